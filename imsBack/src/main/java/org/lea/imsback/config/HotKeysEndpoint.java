@@ -0,0 +1,29 @@
+package org.lea.imsback.config;
+
+import org.lea.imsback.services.HotKeyTracker;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@code GET /actuator/hotkeys?limit=20}: claves (tienda, SKU) más reservadas en la
+ * ventana actual y en la anterior.
+ */
+@Component
+@Endpoint(id = "hotkeys")
+public class HotKeysEndpoint {
+
+    private static final int DEFAULT_LIMIT = 20;
+
+    private final HotKeyTracker hotKeyTracker;
+
+    public HotKeysEndpoint(HotKeyTracker hotKeyTracker) {
+        this.hotKeyTracker = hotKeyTracker;
+    }
+
+    @ReadOperation
+    public HotKeyTracker.Snapshot hotKeys(@Nullable Integer limit) {
+        return hotKeyTracker.snapshot(limit != null && limit > 0 ? limit : DEFAULT_LIMIT);
+    }
+}
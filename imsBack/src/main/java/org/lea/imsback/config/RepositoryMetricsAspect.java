@@ -0,0 +1,79 @@
+package org.lea.imsback.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Timer {@code ims.db.calls} por método de {@code InventoryRepository}.
+ * <p>
+ * Los métodos devuelven Mono/Flux, así que se mide desde la suscripción hasta la
+ * terminación (no la construcción del publisher). {@code outcome} es success, error o
+ * cancelled (p. ej. un listado que el cliente cortó). Los timers se registran una vez por
+ * método y resultado y quedan cacheados: una llamada no busca en el registro.
+ */
+@Aspect
+@Component
+public class RepositoryMetricsAspect {
+
+    private static final String[] OUTCOMES = {"success", "error", "cancelled"};
+
+    private final MeterRegistry meterRegistry;
+    // método -> timer por resultado (índice en OUTCOMES)
+    private final Map<String, Timer[]> timers = new ConcurrentHashMap<>();
+
+    public RepositoryMetricsAspect(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    // this(): el proxy de Spring Data implementa la interfaz; incluye los métodos heredados (save, findAll...)
+    @Around("execution(* org.springframework.data.repository.Repository+.*(..)) "
+            + "&& this(org.lea.imsback.repositories.InventoryRepository)")
+    public Object timeRepositoryCall(ProceedingJoinPoint joinPoint) throws Throwable {
+        Timer[] methodTimers = timers.computeIfAbsent(joinPoint.getSignature().getName(), this::register);
+        Object result = joinPoint.proceed();
+        if (result instanceof Mono<?> mono) {
+            return Mono.defer(() -> {
+                Timer.Sample sample = Timer.start(meterRegistry);
+                return mono.doFinally(signal -> sample.stop(methodTimers[outcome(signal)]));
+            });
+        }
+        if (result instanceof Flux<?> flux) {
+            return Flux.defer(() -> {
+                Timer.Sample sample = Timer.start(meterRegistry);
+                return flux.doFinally(signal -> sample.stop(methodTimers[outcome(signal)]));
+            });
+        }
+        return result;
+    }
+
+    private Timer[] register(String method) {
+        Timer[] methodTimers = new Timer[OUTCOMES.length];
+        for (int i = 0; i < OUTCOMES.length; i++) {
+            methodTimers[i] = Timer.builder("ims.db.calls")
+                    .description("Duración de las llamadas a la base por método de repositorio")
+                    .tag("repository", "InventoryRepository")
+                    .tag("method", method)
+                    .tag("outcome", OUTCOMES[i])
+                    .register(meterRegistry);
+        }
+        return methodTimers;
+    }
+
+    private static int outcome(SignalType signal) {
+        return switch (signal) {
+            case ON_ERROR -> 1;
+            case CANCEL -> 2;
+            default -> 0;
+        };
+    }
+}
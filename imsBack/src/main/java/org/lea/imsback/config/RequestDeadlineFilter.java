@@ -0,0 +1,44 @@
+package org.lea.imsback.config;
+
+import org.lea.imsback.services.ContentionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Propaga el tiempo que le queda a la petición (cabecera {@value #HEADER}, en milisegundos,
+ * relativa para no depender del reloj del cliente) como deadline absoluto en el contexto de
+ * Reactor, donde lo leen los reintentos de {@link ContentionManager}.
+ */
+@Component
+public class RequestDeadlineFilter implements WebFilter {
+
+    public static final String HEADER = "X-Request-Timeout";
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        String timeout = exchange.getRequest().getHeaders().getFirst(HEADER);
+        long millis = parse(timeout);
+        if (millis <= 0) {
+            return chain.filter(exchange);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        return chain.filter(exchange)
+                .contextWrite(context -> context.put(ContentionManager.DEADLINE_CONTEXT_KEY, deadline));
+    }
+
+    private static long parse(String timeout) {
+        if (timeout == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(timeout.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.lea.imsback.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryMetadata;
+import io.r2dbc.spi.Wrapped;
+import reactor.core.publisher.Mono;
+
+/**
+ * Envoltorio del {@link ConnectionPool} que mide cuánto se espera por una conexión
+ * ({@code ims.r2dbc.acquire}, outcome success/error). Implementa {@link Wrapped} para que
+ * el actuator siga encontrando el pool y publique sus métricas {@code r2dbc.pool.*}.
+ */
+public class TimedConnectionFactory implements ConnectionFactory, Wrapped<ConnectionPool> {
+
+    private final ConnectionPool pool;
+    private final MeterRegistry meterRegistry;
+    private final Timer acquired;
+    private final Timer failed;
+
+    public TimedConnectionFactory(ConnectionPool pool, MeterRegistry meterRegistry) {
+        this.pool = pool;
+        this.meterRegistry = meterRegistry;
+        this.acquired = acquireTimer("success");
+        this.failed = acquireTimer("error");
+    }
+
+    @Override
+    public Mono<Connection> create() {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            return pool.create()
+                    .doOnNext(connection -> sample.stop(acquired))
+                    .doOnError(error -> sample.stop(failed));
+        });
+    }
+
+    @Override
+    public ConnectionFactoryMetadata getMetadata() {
+        return pool.getMetadata();
+    }
+
+    @Override
+    public ConnectionPool unwrap() {
+        return pool;
+    }
+
+    public void dispose() {
+        pool.dispose();
+    }
+
+    private Timer acquireTimer(String outcome) {
+        return Timer.builder("ims.r2dbc.acquire")
+                .description("Espera por una conexión del pool R2DBC")
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+}
@@ -6,16 +6,50 @@ import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotEmpty;
+import org.lea.imsback.models.dtos.AdjustmentResult;
+import org.lea.imsback.models.dtos.BatchReservationResponse;
+import org.lea.imsback.models.dtos.Diagnosis;
+import org.lea.imsback.models.dtos.ErrorSummary;
+import org.lea.imsback.models.dtos.ImportEvent;
+import org.lea.imsback.models.dtos.LowStockAlert;
+import org.lea.imsback.models.dtos.LowStockThreshold;
 import org.lea.imsback.models.dtos.ReservationRequest;
+import org.lea.imsback.models.dtos.ReserveAnyRequest;
+import org.lea.imsback.models.dtos.ReserveAnyResult;
+import org.lea.imsback.models.dtos.StockAggregate;
+import org.lea.imsback.models.dtos.StockAdjustment;
+import org.lea.imsback.models.dtos.StockUpdateEvent;
+import org.lea.imsback.models.dtos.StoreAvailability;
 import org.lea.imsback.models.Item;
+import org.lea.imsback.models.StockHold;
+import org.lea.imsback.services.BatchReservationService;
+import org.lea.imsback.services.CrossStoreService;
 import org.lea.imsback.services.ErrorDignosisService;
+import org.lea.imsback.services.HoldService;
+import org.lea.imsback.services.IdempotencyService;
 import org.lea.imsback.services.InventoryService;
+import org.lea.imsback.services.ItemImportService;
+import org.lea.imsback.services.LowStockAlertService;
+import org.lea.imsback.services.LowStockThresholdService;
+import org.lea.imsback.services.StockAdjustmentService;
+import org.lea.imsback.services.StockAggregates;
+import org.lea.imsback.services.StockEventBus;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 @RestController
@@ -27,53 +61,365 @@ import java.util.Map;
 )
 @SecurityRequirement(name = "bearerAuth")
 public class InventoryController {
+    // Comentario periódico para que proxies y navegadores no cierren un stream sin eventos
+    private static final Duration SSE_HEARTBEAT = Duration.ofSeconds(15);
+    private static final String HOLD_ID_HEADER = "X-Hold-Id";
+    private static final String STORE_ID_HEADER = "X-Store-Id";
+    private static final String TEXT_CSV_VALUE = "text/csv";
+
     private final InventoryService inventoryService;
     private final ErrorDignosisService errorDignosisService;
+    private final BatchReservationService batchReservationService;
+    private final StockEventBus stockEventBus;
+    private final HoldService holdService;
+    private final IdempotencyService idempotencyService;
+    private final ItemImportService itemImportService;
+    private final StockAdjustmentService stockAdjustmentService;
+    private final StockAggregates stockAggregates;
+    private final CrossStoreService crossStoreService;
+    private final LowStockAlertService lowStockAlertService;
+    private final LowStockThresholdService lowStockThresholdService;
 
 
-    public InventoryController(InventoryService inventoryService, ErrorDignosisService errorDignosisService) {
+    public InventoryController(InventoryService inventoryService, ErrorDignosisService errorDignosisService,
+                               BatchReservationService batchReservationService, StockEventBus stockEventBus,
+                               HoldService holdService, IdempotencyService idempotencyService,
+                               ItemImportService itemImportService, StockAdjustmentService stockAdjustmentService,
+                               StockAggregates stockAggregates, CrossStoreService crossStoreService,
+                               LowStockAlertService lowStockAlertService,
+                               LowStockThresholdService lowStockThresholdService) {
         this.inventoryService = inventoryService;
 
         this.errorDignosisService = errorDignosisService;
+        this.batchReservationService = batchReservationService;
+        this.stockEventBus = stockEventBus;
+        this.holdService = holdService;
+        this.idempotencyService = idempotencyService;
+        this.itemImportService = itemImportService;
+        this.stockAdjustmentService = stockAdjustmentService;
+        this.stockAggregates = stockAggregates;
+        this.crossStoreService = crossStoreService;
+        this.lowStockAlertService = lowStockAlertService;
+        this.lowStockThresholdService = lowStockThresholdService;
     }
 
     @Operation(summary = "Reserva stock de un SKU en una tienda específica",
             description = "Esta operación es **no bloqueante y reactiva**, lo que permite manejar" +
                     " * un alto volumen de peticiones concurrentes sin saturar los hilos del servidor," +
-                    " * cumpliendo así con los requisitos de alto rendimiento del sistema"
+                    " * cumpliendo así con los requisitos de alto rendimiento del sistema." +
+                    " Sin 'ttlSeconds' la reserva es firme. Con 'ttlSeconds' es un hold con vencimiento:" +
+                    " se confirma con /holds/{holdId}/confirm o se libera con /holds/{holdId}/release;" +
+                    " si vence, el stock vuelve solo. El id del hold viaja en la cabecera X-Hold-Id."
     )
 
     @ApiResponses(value = {
-            @ApiResponse(responseCode = "200", description = "Stock reservado exitosamente. Evento publicado."),
+            @ApiResponse(responseCode = "200", description = "Stock reservado exitosamente (hold creado si se pidió 'ttlSeconds'). Evento publicado."),
             @ApiResponse(responseCode = "409", description = "Conflicto. Stock insuficiente o SKU/Tienda no encontrado."),
+            @ApiResponse(responseCode = "501", description = "Hold pedido en modo durable (no disponible)."),
             @ApiResponse(responseCode = "400", description = "Petición inválida (ej. cuerpo JSON incorrecto).")
     })
     @SecurityRequirement(name = "bearerAuth")
     @PostMapping("/reserve")
-    public Mono<ResponseEntity<String>> reserveStock(@Valid @RequestBody ReservationRequest request) {
+    public Mono<ResponseEntity<String>> reserveStock(@Valid @RequestBody ReservationRequest request,
+                                                     @RequestParam(required = false) @Min(1) Long ttlSeconds,
+                                                     @RequestHeader(value = IdempotencyService.HEADER, required = false)
+                                                     String idempotencyKey) {
+        // Un reintento con la misma clave devuelve la respuesta original sin volver a descontar stock.
+        // El hold es opcional: sólo quien va a confirmarlo pide 'ttlSeconds'.
+        return idempotencyService.execute("reserve", idempotencyKey, Arrays.asList(request, ttlSeconds),
+                () -> (ttlSeconds == null ? reserve(request) : reserveWithHold(request, Duration.ofSeconds(ttlSeconds)))
+                        .onErrorResume(UnsupportedOperationException.class, InventoryController::notImplemented)
+                        .onErrorResume(error -> errorDignosisService.handleError(request, error)));
+    }
+
+    private Mono<ResponseEntity<String>> reserve(ReservationRequest request) {
         return inventoryService.tryReserveStock(request.storeId(), request.sku(), request.quantity())
                 .map(success -> Boolean.TRUE.equals(success)
                         ? ResponseEntity.ok("Stock reservado. Evento de actualización publicado.")
                         : ResponseEntity.status(HttpStatus.CONFLICT)
-                        .body("Reserva fallida. Stock insuficiente o ítem no encontrado."))
-                .onErrorResume(error -> errorDignosisService.handleError(request, error));
+                        .body("Reserva fallida. Stock insuficiente o ítem no encontrado."));
     }
 
-    @Operation(summary = "Crea un nuevo ítem en el inventario")
-    @PostMapping("/create")
-    public Mono<ResponseEntity<String>> createItem(@Valid @RequestBody Item item) {
-        return inventoryService.createItem(item)
-                .map(created -> Boolean.TRUE.equals(created)
-                        ? ResponseEntity.ok("Ítem creado correctamente.")
+    private Mono<ResponseEntity<String>> reserveWithHold(ReservationRequest request, Duration ttl) {
+        return holdService.hold(request.storeId(), request.sku(), request.quantity(), ttl)
+                .map(result -> result.hold() != null
+                        ? ResponseEntity.ok()
+                        .header(HOLD_ID_HEADER, result.hold().getId())
+                        .body("Stock reservado hasta " + result.hold().getExpiresAt()
+                                + " (hold " + result.hold().getId() + "). Evento de actualización publicado.")
                         : ResponseEntity.status(HttpStatus.CONFLICT)
-                        .body("Ya existe un ítem con ese SKU en la tienda."))
-                .onErrorResume(error -> errorDignosisService.handleError(item, error));
+                        .body("Reserva fallida. Stock insuficiente o ítem no encontrado."));
+    }
+
+    @Operation(summary = "Reserva un SKU en la primera tienda con stock de una lista ordenada por el cliente",
+            description = "Reemplaza los N intentos secuenciales del cliente por una sola llamada. Las tiendas se " +
+                    "intentan en el orden dado (las que según el índice de disponibilidad no alcanzan, al final). " +
+                    "Igual que /reserve: sin 'ttlSeconds' la reserva es firme y con 'ttlSeconds' es un hold cuyo id " +
+                    "viaja en X-Hold-Id. La tienda elegida viaja en X-Store-Id. " +
+                    "Acepta la cabecera Idempotency-Key."
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Stock reservado en una de las tiendas (hold creado si se pidió 'ttlSeconds')."),
+            @ApiResponse(responseCode = "409", description = "Ninguna tienda de la lista tiene stock suficiente."),
+            @ApiResponse(responseCode = "501", description = "Hold pedido en modo durable (no disponible)."),
+            @ApiResponse(responseCode = "400", description = "Petición inválida.")
+    })
+    @PostMapping("/reserve/any")
+    public Mono<ResponseEntity<String>> reserveAnyStore(@Valid @RequestBody ReserveAnyRequest request,
+                                                        @RequestParam(required = false) @Min(1) Long ttlSeconds,
+                                                        @RequestHeader(value = IdempotencyService.HEADER, required = false)
+                                                        String idempotencyKey) {
+        Duration ttl = ttlSeconds != null ? Duration.ofSeconds(ttlSeconds) : null;
+        return idempotencyService.execute("reserve-any", idempotencyKey, Arrays.asList(request, ttlSeconds),
+                () -> crossStoreService.reserveAny(request.sku(), request.storeIds(), request.quantity(), ttl)
+                        .map(InventoryController::reservedInStore)
+                        .defaultIfEmpty(ResponseEntity.status(HttpStatus.CONFLICT)
+                                .body("Reserva fallida. Ninguna de las tiendas tiene stock suficiente."))
+                        .onErrorResume(UnsupportedOperationException.class, InventoryController::notImplemented)
+                        .onErrorResume(error -> errorDignosisService.handleError(request, error)));
+    }
+
+    private static ResponseEntity<String> reservedInStore(ReserveAnyResult result) {
+        StockHold hold = result.hold();
+        if (hold == null) {
+            return ResponseEntity.ok()
+                    .header(STORE_ID_HEADER, result.storeId())
+                    .body("Stock reservado en " + result.storeId() + ". Evento de actualización publicado.");
+        }
+        return ResponseEntity.ok()
+                .header(HOLD_ID_HEADER, hold.getId())
+                .header(STORE_ID_HEADER, result.storeId())
+                .body("Stock reservado en " + result.storeId() + " hasta " + hold.getExpiresAt()
+                        + " (hold " + hold.getId() + "). Evento de actualización publicado.");
+    }
+
+    // Operación no disponible en el modo actual (p. ej. holds o flash sale en modo durable): no es un error interno.
+    private static Mono<ResponseEntity<String>> notImplemented(UnsupportedOperationException error) {
+        return Mono.just(ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).body(error.getMessage()));
+    }
+
+    @PostMapping("/holds/{holdId}/confirm")
+    @Operation(summary = "Confirma un hold vigente: el descuento de stock queda firme")
+    public Mono<ResponseEntity<String>> confirmHold(@PathVariable String holdId) {
+        return holdService.confirm(holdId)
+                .map(confirmed -> Boolean.TRUE.equals(confirmed)
+                        ? ResponseEntity.ok("Reserva confirmada.")
+                        : ResponseEntity.status(HttpStatus.NOT_FOUND)
+                        .body("Hold inexistente, ya liberado o vencido."))
+                .onErrorResume(error -> errorDignosisService.handleError(Map.of("holdId", holdId), error));
+    }
+
+    @PostMapping("/holds/{holdId}/release")
+    @Operation(summary = "Libera un hold y devuelve su cantidad al stock")
+    public Mono<ResponseEntity<String>> releaseHold(@PathVariable String holdId) {
+        return holdService.release(holdId)
+                .map(released -> Boolean.TRUE.equals(released)
+                        ? ResponseEntity.ok("Reserva liberada. Stock devuelto.")
+                        : ResponseEntity.status(HttpStatus.NOT_FOUND)
+                        .body("Hold inexistente, ya confirmado o vencido."))
+                .onErrorResume(error -> errorDignosisService.handleError(Map.of("holdId", holdId), error));
+    }
+
+    @Operation(summary = "Reserva atómicamente todas las líneas de un carrito",
+            description = "Todo o nada: las líneas se reservan en una única transacción. " +
+                    "La respuesta incluye el resultado de cada línea."
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Todas las líneas reservadas."),
+            @ApiResponse(responseCode = "409", description = "Alguna línea sin stock o inexistente. No se reservó nada."),
+            @ApiResponse(responseCode = "400", description = "Petición inválida o lote demasiado grande.")
+    })
+    @PostMapping("/reserve/batch")
+    public Mono<ResponseEntity<BatchReservationResponse>> reserveBatch(
+            @RequestBody @NotEmpty List<@Valid ReservationRequest> requests) {
+        return batchReservationService.reserveAll(requests)
+                .map(result -> result.reserved()
+                        ? ResponseEntity.ok(result)
+                        : ResponseEntity.status(HttpStatus.CONFLICT).body(result))
+                .onErrorResume(IllegalArgumentException.class,
+                        error -> Mono.just(ResponseEntity.badRequest().build()));
+    }
+
+    @Operation(summary = "Ajusta el stock de un ítem en +n / -n con un motivo",
+            description = "El delta se aplica sobre la cantidad vigente en la base (no pisa reservas en curso) " +
+                    "y nunca deja el stock negativo. Acepta la cabecera Idempotency-Key: un ajuste no es " +
+                    "idempotente, así que los reintentos deberían enviarla."
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Ajuste aplicado. Evento publicado."),
+            @ApiResponse(responseCode = "404", description = "SKU/Tienda no encontrado."),
+            @ApiResponse(responseCode = "409", description = "El ajuste dejaría el stock negativo."),
+            @ApiResponse(responseCode = "400", description = "Petición inválida (ej. delta 0).")
+    })
+    @PostMapping("/adjust")
+    public Mono<ResponseEntity<String>> adjustStock(@Valid @RequestBody StockAdjustment adjustment,
+                                                    @RequestHeader(value = IdempotencyService.HEADER, required = false)
+                                                    String idempotencyKey) {
+        return idempotencyService.execute("adjust", idempotencyKey, adjustment,
+                () -> stockAdjustmentService.adjust(adjustment)
+                        .map(result -> switch (result.status()) {
+                            case APPLIED -> ResponseEntity.ok("Stock ajustado. Cantidad actual: " + result.newQuantity() + ".");
+                            case NOT_FOUND -> ResponseEntity.status(HttpStatus.NOT_FOUND).body("Ítem no encontrado.");
+                            case INSUFFICIENT_STOCK -> ResponseEntity.status(HttpStatus.CONFLICT)
+                                    .body("Ajuste rechazado. El stock quedaría negativo.");
+                        })
+                        .onErrorResume(IllegalArgumentException.class,
+                                error -> Mono.just(ResponseEntity.badRequest().body(error.getMessage())))
+                        .onErrorResume(error -> errorDignosisService.handleError(adjustment, error)));
+    }
+
+    @Operation(summary = "Ajuste masivo de stock (miles de líneas por llamada)",
+            description = "Pensado para los procesos nocturnos (recepciones, conteos, mermas). Las líneas se " +
+                    "procesan por tramos (ims.adjustments.chunk-size): dentro de un tramo los deltas de una misma " +
+                    "clave se suman y se aplican con un único statement batch, con un evento por clave. Cada clave " +
+                    "se aplica o rechaza por separado; la respuesta trae el resultado de cada una."
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Lote procesado. Ver el estado de cada clave."),
+            @ApiResponse(responseCode = "400", description = "Petición inválida, delta 0 o lote demasiado grande.")
+    })
+    @PostMapping("/adjust/bulk")
+    public Mono<ResponseEntity<List<AdjustmentResult>>> adjustStockBulk(
+            @RequestBody @NotEmpty List<@Valid StockAdjustment> adjustments) {
+        return stockAdjustmentService.adjustAll(adjustments)
+                .collectList()
+                .map(ResponseEntity::ok)
+                .onErrorResume(IllegalArgumentException.class,
+                        error -> Mono.just(ResponseEntity.badRequest().build()));
+    }
+
+    @Operation(summary = "Crea un nuevo ítem en el inventario",
+            description = "Acepta la cabecera Idempotency-Key: un reintento con la misma clave devuelve la respuesta original.")
+    @PostMapping("/create")
+    public Mono<ResponseEntity<String>> createItem(@Valid @RequestBody Item item,
+                                                   @RequestHeader(value = IdempotencyService.HEADER, required = false)
+                                                   String idempotencyKey) {
+        return idempotencyService.execute("create", idempotencyKey, item,
+                () -> inventoryService.createItem(item)
+                        .map(created -> Boolean.TRUE.equals(created)
+                                ? ResponseEntity.ok("Ítem creado correctamente.")
+                                : ResponseEntity.status(HttpStatus.CONFLICT)
+                                .body("Ya existe un ítem con ese SKU en la tienda."))
+                        .onErrorResume(error -> errorDignosisService.handleError(item, error)));
+    }
+
+    @Operation(summary = "Importación masiva de ítems (CSV o NDJSON)",
+            description = "El cuerpo se procesa a medida que llega: 'Content-Type: text/csv' con columnas " +
+                    "storeId,sku,quantity (encabezado opcional) o 'application/x-ndjson' con un objeto por línea. " +
+                    "Crea los ítems nuevos y reemplaza la cantidad de los existentes, por lotes. La respuesta es un " +
+                    "reporte NDJSON: filas rechazadas, avance periódico y totales al final (COMPLETED o FAILED)."
+    )
+    @PostMapping(value = "/import",
+            consumes = {TEXT_CSV_VALUE, MediaType.APPLICATION_NDJSON_VALUE},
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<ImportEvent> importItems(@RequestBody Flux<DataBuffer> body, ServerHttpRequest request) {
+        ItemImportService.Format format = MediaType.APPLICATION_NDJSON.isCompatibleWith(request.getHeaders().getContentType())
+                ? ItemImportService.Format.NDJSON
+                : ItemImportService.Format.CSV;
+        return itemImportService.importItems(body, format);
+    }
+
+    @GetMapping("/diagnosis/{id}")
+    @Operation(summary = "Obtiene el diagnóstico de IA de un error",
+            description = "El id es el de la cabecera X-Correlation-Id de la respuesta 500 o una huella de error. " +
+                    "Mientras la IA trabaja el estado es PENDING."
+    )
+    public Mono<ResponseEntity<Diagnosis>> getDiagnosis(@PathVariable String id) {
+        return errorDignosisService.getDiagnosis(id)
+                .map(ResponseEntity::ok)
+                .defaultIfEmpty(ResponseEntity.notFound().build());
     }
 
-    @GetMapping("/store/{storeId}")
-    @Operation(summary = "Obtiene todos los ítems de una tienda")
-    public Flux<Item> getItemsByStore(@PathVariable String storeId) {
-        return inventoryService.getItemsByStore(storeId)
+    @GetMapping("/errors/top")
+    @Operation(summary = "Huellas de error más frecuentes",
+            description = "Ordenadas por ocurrencias en la ventana reciente, con el estado de su diagnóstico de IA."
+    )
+    public Flux<ErrorSummary> getTopErrors(@RequestParam(defaultValue = "10") @Min(1) @Max(100) int limit) {
+        return errorDignosisService.topErrors(limit);
+    }
+
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @Operation(summary = "Stream (SSE) de actualizaciones de stock",
+            description = "Filtrable por 'storeId' y/o 'sku'. Con 'overflow=LATEST_PER_KEY' un cliente lento " +
+                    "recibe sólo el último valor de cada SKU; con DROP_OLDEST (por defecto) pierde los más viejos. " +
+                    "Un ítem borrado llega como evento 'stock-delete' (deleted = true)."
+    )
+    public Flux<ServerSentEvent<StockUpdateEvent>> streamStockUpdates(
+            @RequestParam(required = false) String storeId,
+            @RequestParam(required = false) String sku,
+            @RequestParam(defaultValue = "DROP_OLDEST") StockEventBus.Overflow overflow) {
+        Flux<ServerSentEvent<StockUpdateEvent>> updates = stockEventBus.subscribe(storeId, sku, overflow)
+                .map(event -> ServerSentEvent.builder(event).event(event.deleted() ? "stock-delete" : "stock-update").build());
+        Flux<ServerSentEvent<StockUpdateEvent>> heartbeats = Flux.interval(SSE_HEARTBEAT)
+                .map(tick -> ServerSentEvent.<StockUpdateEvent>builder().comment("keep-alive").build());
+        return Flux.merge(updates, heartbeats);
+    }
+
+    @GetMapping("/alerts/low-stock")
+    @Operation(summary = "Alertas de stock bajo abiertas",
+            description = "Filtrable por 'storeId' y/o 'sku'. Una alerta queda abierta desde que el stock baja al " +
+                    "umbral hasta que vuelve al nivel de cierre."
+    )
+    public Flux<LowStockAlert> getLowStockAlerts(@RequestParam(required = false) String storeId,
+                                                 @RequestParam(required = false) String sku) {
+        return Flux.fromIterable(lowStockAlertService.activeAlerts(storeId, sku));
+    }
+
+    @GetMapping(value = "/alerts/low-stock/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @Operation(summary = "Stream (SSE) de alertas de stock bajo",
+            description = "Un evento por cruce de umbral (LOW_STOCK, OUT_OF_STOCK, RECOVERED), filtrable por " +
+                    "'storeId' y/o 'sku'. Para el estado actual al conectarse, /alerts/low-stock."
+    )
+    public Flux<ServerSentEvent<LowStockAlert>> streamLowStockAlerts(@RequestParam(required = false) String storeId,
+                                                                    @RequestParam(required = false) String sku) {
+        Flux<ServerSentEvent<LowStockAlert>> alerts = lowStockAlertService.subscribe(storeId, sku)
+                .map(alert -> ServerSentEvent.builder(alert).event("low-stock").build());
+        Flux<ServerSentEvent<LowStockAlert>> heartbeats = Flux.interval(SSE_HEARTBEAT)
+                .map(tick -> ServerSentEvent.<LowStockAlert>builder().comment("keep-alive").build());
+        return Flux.merge(alerts, heartbeats);
+    }
+
+    @GetMapping("/alerts/low-stock/thresholds")
+    @Operation(summary = "Umbrales de stock bajo configurados")
+    public Flux<LowStockThreshold> getLowStockThresholds() {
+        return Flux.fromIterable(lowStockAlertService.thresholds());
+    }
+
+    @PutMapping("/alerts/low-stock/thresholds")
+    @Operation(summary = "Define un umbral de stock bajo para un ítem, un SKU, una tienda o por defecto",
+            description = "Gana el más específico: ítem, SKU, tienda, por defecto (ims.alerts.low-stock.threshold). " +
+                    "Se aplica desde el próximo cambio de stock de cada ítem."
+    )
+    public Mono<ResponseEntity<LowStockThreshold>> setLowStockThreshold(@Valid @RequestBody LowStockThreshold threshold) {
+        return lowStockThresholdService.setThreshold(threshold)
+                .map(ResponseEntity::ok)
+                .onErrorResume(IllegalArgumentException.class,
+                        error -> Mono.just(ResponseEntity.badRequest().build()));
+    }
+
+    @DeleteMapping("/alerts/low-stock/thresholds")
+    @Operation(summary = "Quita un umbral de stock bajo (sin 'storeId' ni 'sku', el umbral por defecto)")
+    public Mono<ResponseEntity<String>> removeLowStockThreshold(@RequestParam(required = false) String storeId,
+                                                                @RequestParam(required = false) String sku) {
+        return lowStockThresholdService.removeThreshold(storeId, sku)
+                .map(removed -> removed
+                        ? ResponseEntity.ok("Umbral eliminado.")
+                        : ResponseEntity.status(HttpStatus.NOT_FOUND).body("No hay un umbral para ese alcance."));
+    }
+
+    @GetMapping(value = "/store/{storeId}",
+            produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    @Operation(summary = "Obtiene todos los ítems de una tienda",
+            description = "Con 'Accept: application/x-ndjson' se transmite un ítem por línea a medida que se lee. " +
+                    "Con 'limit' devuelve una sola página; la siguiente se pide con 'after' = id del último ítem."
+    )
+    public Flux<Item> getItemsByStore(@PathVariable String storeId,
+                                      @RequestParam(required = false) Long after,
+                                      @RequestParam(required = false) @Min(1) @Max(1000) Integer limit) {
+        Flux<Item> items = limit != null
+                ? inventoryService.getItemsByStore(storeId, after != null ? after : 0L, limit)
+                : inventoryService.getItemsByStore(storeId);
+        return items
                 .onErrorResume(error -> {
                     // En este caso, devolvemos un flujo vacío con log automático
                     errorDignosisService.handleError(storeId, error).subscribe();
@@ -89,8 +435,46 @@ public class InventoryController {
                 .defaultIfEmpty(ResponseEntity.notFound().build());
     }
 
+    @GetMapping("/sku/{sku}/availability")
+    @Operation(summary = "Tiendas con stock de un SKU, de mayor a menor",
+            description = "Sale de un índice por SKU en memoria, al día con los eventos de stock. Útil para " +
+                    "ofrecer otra tienda cuando /reserve responde 409; para reservar, /reserve/any."
+    )
+    public Flux<StoreAvailability> getSkuAvailability(@PathVariable String sku,
+                                                      @RequestParam(defaultValue = "1") @Min(1) int minQuantity) {
+        return crossStoreService.availability(sku, minQuantity);
+    }
+
+    @GetMapping("/aggregates/store/{storeId}")
+    @Operation(summary = "Unidades totales e ítems de una tienda",
+            description = "Agregado mantenido en memoria a partir de los eventos de stock (O(1)); " +
+                    "puede ir unos milisegundos detrás de la última escritura."
+    )
+    public Mono<ResponseEntity<StockAggregate>> getStoreAggregate(@PathVariable String storeId) {
+        return Mono.justOrEmpty(stockAggregates.store(storeId))
+                .map(ResponseEntity::ok)
+                .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    @GetMapping("/aggregates/sku/{sku}")
+    @Operation(summary = "Stock de un SKU sumado en todas las tiendas, y en cuántas tiendas existe")
+    public Mono<ResponseEntity<StockAggregate>> getSkuAggregate(@PathVariable String sku) {
+        return Mono.justOrEmpty(stockAggregates.sku(sku))
+                .map(ResponseEntity::ok)
+                .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    @GetMapping("/aggregates/total")
+    @Operation(summary = "Unidades e ítems de toda la red")
+    public Mono<StockAggregate> getTotalAggregate() {
+        return Mono.just(stockAggregates.total());
+    }
+
     @PatchMapping("/update")
-    @Operation(summary = "Actualiza manualmente la cantidad de un ítem existente")
+    @Operation(summary = "Actualiza manualmente la cantidad de un ítem existente",
+            description = "Reemplaza la cantidad: pisa las reservas que ocurran entre la lectura del cliente y la " +
+                    "escritura. Para recepciones, devoluciones y mermas use /adjust o /adjust/bulk."
+    )
     public Mono<ResponseEntity<String>> updateItem(@RequestBody Item item) {
         return inventoryService.updateItemQuantity(item)
                 .map(updated -> Boolean.TRUE.equals(updated)
@@ -110,4 +494,33 @@ public class InventoryController {
                         .body("Ítem no encontrado."))
                 .onErrorResume(error -> errorDignosisService.handleError(Map.of("storeId", storeId, "sku", sku), error));
     }
+
+    @PostMapping("/flash-sale/{storeId}/{sku}")
+    @Operation(summary = "Activa el modo flash sale: reparte el stock del ítem en sub-contadores")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Modo flash sale activado."),
+            @ApiResponse(responseCode = "404", description = "Ítem no encontrado."),
+            @ApiResponse(responseCode = "501", description = "Modo durable: flash sale no disponible.")
+    })
+    public Mono<ResponseEntity<String>> enableFlashSale(@PathVariable String storeId, @PathVariable String sku,
+                                                        @RequestParam(required = false) Integer shards) {
+        return inventoryService.enableFlashSale(storeId, sku, shards)
+                .map(enabled -> Boolean.TRUE.equals(enabled)
+                        ? ResponseEntity.ok("Modo flash sale activado.")
+                        : ResponseEntity.status(HttpStatus.NOT_FOUND)
+                        .body("Ítem no encontrado."))
+                .onErrorResume(UnsupportedOperationException.class, InventoryController::notImplemented)
+                .onErrorResume(error -> errorDignosisService.handleError(Map.of("storeId", storeId, "sku", sku), error));
+    }
+
+    @DeleteMapping("/flash-sale/{storeId}/{sku}")
+    @Operation(summary = "Desactiva el modo flash sale y consolida el stock en el ítem")
+    public Mono<ResponseEntity<String>> disableFlashSale(@PathVariable String storeId, @PathVariable String sku) {
+        return inventoryService.disableFlashSale(storeId, sku)
+                .map(disabled -> Boolean.TRUE.equals(disabled)
+                        ? ResponseEntity.ok("Modo flash sale desactivado.")
+                        : ResponseEntity.status(HttpStatus.NOT_FOUND)
+                        .body("El ítem no está en modo flash sale."))
+                .onErrorResume(error -> errorDignosisService.handleError(Map.of("storeId", storeId, "sku", sku), error));
+    }
 }
\ No newline at end of file
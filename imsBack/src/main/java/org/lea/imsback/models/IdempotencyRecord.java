@@ -0,0 +1,30 @@
+package org.lea.imsback.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.relational.core.mapping.Table;
+
+import java.time.Instant;
+
+/**
+ * Respuesta guardada para una clave de idempotencia ({@code Idempotency-Key}).
+ * El id es "operación:clave"; {@code requestHash} detecta que se reutilizó la clave
+ * con otro cuerpo.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Table("idempotency_record")
+public class IdempotencyRecord {
+
+    @Id
+    private String id;
+    private String requestHash;
+    private int status;
+    // Cabeceras de la respuesta original en formato JSON
+    private String headers;
+    private String body;
+    private Instant expiresAt;
+}
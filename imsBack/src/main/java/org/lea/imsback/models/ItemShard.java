@@ -0,0 +1,31 @@
+package org.lea.imsback.models;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.relational.core.mapping.Table;
+
+/**
+ * Sub-contador de stock de un SKU en modo "flash sale".
+ * El stock de un ítem caliente se reparte en N filas para que las reservas
+ * concurrentes no compitan por la misma fila.
+ */
+@Data
+@NoArgsConstructor
+@Table("item_shard")
+public class ItemShard {
+
+    @Id
+    private Long id;
+    private String storeId;
+    private String sku;
+    private int shard;
+    private int quantity;
+
+    public ItemShard(String storeId, String sku, int shard, int quantity) {
+        this.storeId = storeId;
+        this.sku = sku;
+        this.shard = shard;
+        this.quantity = quantity;
+    }
+}
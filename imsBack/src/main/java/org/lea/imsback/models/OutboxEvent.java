@@ -0,0 +1,25 @@
+package org.lea.imsback.models;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.relational.core.mapping.Table;
+
+/**
+ * Evento de stock pendiente de publicar (tabla outbox).
+ * Se inserta en la misma transacción que la escritura sobre {@code item}, así que
+ * existe si y sólo si el cambio de stock quedó confirmado. {@code newQuantity} null = refresco de
+ * una clave en flash sale: el total se lee al publicarlo. {@code deleted} = borrado del ítem.
+ */
+@Data
+@NoArgsConstructor
+@Table("stock_event_outbox")
+public class OutboxEvent {
+
+    @Id
+    private Long id;
+    private String storeId;
+    private String sku;
+    private Integer newQuantity;
+    private boolean deleted;
+}
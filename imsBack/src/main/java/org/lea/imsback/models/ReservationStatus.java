@@ -0,0 +1,17 @@
+package org.lea.imsback.models;
+
+/**
+ * Resultado de un intento de reserva de stock.
+ * Permite distinguir el motivo de un rechazo sin depender de excepciones.
+ */
+public enum ReservationStatus {
+    RESERVED,
+    INSUFFICIENT_STOCK,
+    NOT_FOUND,
+    // Línea válida de una reserva por lote que no se aplicó porque otra línea falló
+    ABORTED;
+
+    public boolean isReserved() {
+        return this == RESERVED;
+    }
+}
@@ -0,0 +1,28 @@
+package org.lea.imsback.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.relational.core.mapping.Table;
+
+import java.time.Instant;
+
+/**
+ * Reserva temporal (hold) de stock. La cantidad ya está descontada de {@code item};
+ * al confirmarse la fila se borra y el descuento queda firme, y al liberarse o vencer
+ * se borra devolviendo la cantidad al ítem.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Table("stock_hold")
+public class StockHold {
+
+    @Id
+    private String id;
+    private String storeId;
+    private String sku;
+    private int quantity;
+    private Instant expiresAt;
+}
@@ -0,0 +1,13 @@
+package org.lea.imsback.models;
+
+/**
+ * Clave lógica de un ítem de inventario: el par (tienda, SKU).
+ * Es la unidad sobre la que se serializan reservas, métricas y eventos.
+ */
+public record StockKey(String storeId, String sku) {
+
+    @Override
+    public String toString() {
+        return storeId + "/" + sku;
+    }
+}
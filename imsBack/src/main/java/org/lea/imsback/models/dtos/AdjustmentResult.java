@@ -0,0 +1,23 @@
+package org.lea.imsback.models.dtos;
+
+/**
+ * Resultado del ajuste de una clave. {@code delta} es la suma de los ajustes de la clave en
+ * la petición; {@code newQuantity} es null si no se aplicó.
+ */
+public record AdjustmentResult(String storeId, String sku, int delta, Status status, Integer newQuantity) {
+
+    public enum Status {
+        APPLIED,
+        // El ajuste dejaría el stock negativo
+        INSUFFICIENT_STOCK,
+        NOT_FOUND
+    }
+
+    public static AdjustmentResult applied(String storeId, String sku, int delta, int newQuantity) {
+        return new AdjustmentResult(storeId, sku, delta, Status.APPLIED, newQuantity);
+    }
+
+    public static AdjustmentResult rejected(String storeId, String sku, int delta, Status status) {
+        return new AdjustmentResult(storeId, sku, delta, status, null);
+    }
+}
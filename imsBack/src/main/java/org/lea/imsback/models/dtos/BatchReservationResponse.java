@@ -0,0 +1,16 @@
+package org.lea.imsback.models.dtos;
+
+import org.lea.imsback.models.ReservationStatus;
+
+import java.util.List;
+
+/**
+ * Resultado de una reserva por lote (todo o nada).
+ * {@code reserved} es true sólo si todas las líneas quedaron reservadas; en caso
+ * contrario ninguna se aplicó y cada línea indica su motivo.
+ */
+public record BatchReservationResponse(boolean reserved, List<LineResult> lines) {
+
+    public record LineResult(String storeId, String sku, int quantity, ReservationStatus status) {
+    }
+}
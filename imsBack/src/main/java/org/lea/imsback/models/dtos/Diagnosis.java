@@ -0,0 +1,27 @@
+package org.lea.imsback.models.dtos;
+
+import java.time.Instant;
+
+/**
+ * Diagnóstico de IA de una huella de error ({@link org.lea.imsback.services.ErrorAggregator}).
+ * Todas las ocurrencias de la misma huella comparten el diagnóstico.
+ * {@code analysis} contiene el texto de la IA (COMPLETED) o el motivo por el que no hay
+ * diagnóstico (FAILED / SKIPPED).
+ */
+public record Diagnosis(String fingerprint, Status status, String analysis, Instant createdAt) {
+
+    public enum Status {
+        PENDING,
+        COMPLETED,
+        FAILED,
+        SKIPPED
+    }
+
+    public static Diagnosis pending(String fingerprint) {
+        return new Diagnosis(fingerprint, Status.PENDING, null, Instant.now());
+    }
+
+    public Diagnosis with(Status status, String analysis) {
+        return new Diagnosis(fingerprint, status, analysis, Instant.now());
+    }
+}
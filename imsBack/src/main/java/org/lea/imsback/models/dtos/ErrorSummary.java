@@ -0,0 +1,12 @@
+package org.lea.imsback.models.dtos;
+
+import java.time.Instant;
+
+/**
+ * Una huella de error con sus conteos. {@code windowCount} son las ocurrencias dentro de
+ * la ventana de {@code ims.errors.rate-window}; {@code diagnosis} es null si nunca se pidió.
+ */
+public record ErrorSummary(String fingerprint, String exception, String message,
+                           long total, long windowCount, Instant firstSeen, Instant lastSeen,
+                           Diagnosis.Status diagnosis) {
+}
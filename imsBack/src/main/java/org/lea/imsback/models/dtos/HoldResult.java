@@ -0,0 +1,10 @@
+package org.lea.imsback.models.dtos;
+
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.models.StockHold;
+
+/**
+ * Resultado de reservar con hold: el hold sólo está presente si la reserva fue exitosa.
+ */
+public record HoldResult(ReservationStatus status, StockHold hold) {
+}
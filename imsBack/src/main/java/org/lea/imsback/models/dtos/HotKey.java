@@ -0,0 +1,8 @@
+package org.lea.imsback.models.dtos;
+
+/**
+ * Clave caliente según el sketch de frecuencias: {@code count} sobreestima las reservas
+ * reales de la clave en a lo sumo {@code error}.
+ */
+public record HotKey(String storeId, String sku, long count, long error) {
+}
@@ -0,0 +1,36 @@
+package org.lea.imsback.models.dtos;
+
+/**
+ * Una línea del reporte de una importación masiva (se transmite como NDJSON).
+ * <ul>
+ *     <li>{@code REJECTED}: una fila descartada; {@code line} es su número en el cuerpo (desde 1).</li>
+ *     <li>{@code PROGRESS}: avance periódico.</li>
+ *     <li>{@code COMPLETED} / {@code FAILED}: cierre del reporte, con los totales.</li>
+ * </ul>
+ * {@code imported} y {@code rejected} son los totales acumulados hasta ese evento.
+ */
+public record ImportEvent(Type type, Long line, String reason, long imported, long rejected, Long elapsedMillis) {
+
+    public enum Type {
+        REJECTED,
+        PROGRESS,
+        COMPLETED,
+        FAILED
+    }
+
+    public static ImportEvent rejected(long line, String reason, long imported, long rejected) {
+        return new ImportEvent(Type.REJECTED, line, reason, imported, rejected, null);
+    }
+
+    public static ImportEvent progress(long imported, long rejected, long elapsedMillis) {
+        return new ImportEvent(Type.PROGRESS, null, null, imported, rejected, elapsedMillis);
+    }
+
+    public static ImportEvent completed(long imported, long rejected, long elapsedMillis) {
+        return new ImportEvent(Type.COMPLETED, null, null, imported, rejected, elapsedMillis);
+    }
+
+    public static ImportEvent failed(String reason, long imported, long rejected, long elapsedMillis) {
+        return new ImportEvent(Type.FAILED, null, reason, imported, rejected, elapsedMillis);
+    }
+}
@@ -0,0 +1,21 @@
+package org.lea.imsback.models.dtos;
+
+import java.time.Instant;
+
+/**
+ * Cruce de un umbral de stock bajo. {@code threshold} es el nivel que se cruzó: {@code low}
+ * al abrirse la alerta, {@code clear} al cerrarse.
+ */
+public record LowStockAlert(String storeId, String sku, Type type, int quantity, int threshold, Instant at) {
+
+    public enum Type {
+        LOW_STOCK,
+        // Una alerta abierta (o una nueva) que llegó a 0; no se repite hasta cerrarse
+        OUT_OF_STOCK,
+        RECOVERED
+    }
+
+    public boolean isActive() {
+        return type != Type.RECOVERED;
+    }
+}
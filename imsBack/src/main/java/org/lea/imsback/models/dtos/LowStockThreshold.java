@@ -0,0 +1,19 @@
+package org.lea.imsback.models.dtos;
+
+import jakarta.validation.constraints.Min;
+
+/**
+ * Umbral de stock bajo. Con {@code storeId} y {@code sku} aplica a ese ítem; con uno solo, a
+ * todo el SKU o a toda la tienda; sin ninguno, es el umbral por defecto.
+ * <p>
+ * La alerta se dispara cuando la cantidad baja a {@code low} o menos y se cierra recién
+ * cuando vuelve a {@code clear} o más (histéresis). Sin {@code clear} se usa
+ * {@code low + ims.alerts.low-stock.hysteresis}.
+ */
+public record LowStockThreshold(
+        String storeId,
+        String sku,
+        @Min(0) int low,
+        @Min(1) Integer clear
+) {
+}
@@ -0,0 +1,19 @@
+package org.lea.imsback.models.dtos;
+
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Size;
+
+import java.util.List;
+
+/**
+ * Reserva en la primera tienda de la lista que tenga stock. {@code storeIds} va en el orden
+ * de preferencia del cliente (cercanía, costo de envío, etc.).
+ */
+public record ReserveAnyRequest(
+        @NotBlank String sku,
+        @NotEmpty @Size(max = 50) List<@NotBlank String> storeIds,
+        @Min(1) int quantity
+) {
+}
@@ -0,0 +1,9 @@
+package org.lea.imsback.models.dtos;
+
+import org.lea.imsback.models.StockHold;
+
+/**
+ * Resultado de reservar en cualquier tienda: la tienda elegida y, sólo si se pidió TTL, el hold.
+ */
+public record ReserveAnyResult(String storeId, StockHold hold) {
+}
@@ -0,0 +1,25 @@
+package org.lea.imsback.models.dtos;
+
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * Ajuste relativo de stock: {@code delta} positivo suma (recepción, devolución) y negativo
+ * resta (merma, rotura). Se aplica sobre la cantidad vigente, sin pisar reservas en curso.
+ */
+public record StockAdjustment(
+        @NotBlank String storeId,
+        @NotBlank String sku,
+        int delta,
+        @NotNull Reason reason
+) {
+
+    public enum Reason {
+        RECEIPT,
+        CUSTOMER_RETURN,
+        DAMAGE,
+        SHRINKAGE,
+        CYCLE_COUNT,
+        CORRECTION
+    }
+}
@@ -0,0 +1,14 @@
+package org.lea.imsback.models.dtos;
+
+/**
+ * Stock agregado de un conjunto de ítems (una tienda, un SKU en todas las tiendas o toda la red):
+ * unidades totales y cantidad de ítems.
+ */
+public record StockAggregate(long units, long items) {
+
+    public static final StockAggregate EMPTY = new StockAggregate(0, 0);
+
+    public StockAggregate plus(long units, long items) {
+        return new StockAggregate(this.units + units, this.items + items);
+    }
+}
@@ -1,4 +1,15 @@
 package org.lea.imsback.models.dtos;
 
 // Usando Java Record para el DTO del evento (inmutable y conciso)
-public record StockUpdateEvent(String storeId, String sku, int newQuantity) {}
+// version: id del outbox o LSN del log, creciente por ítem; 0 = todavía sin asignar (al escribirlo)
+// deleted: el ítem se borró (newQuantity no aplica)
+public record StockUpdateEvent(String storeId, String sku, int newQuantity, long version, boolean deleted) {
+
+    public StockUpdateEvent(String storeId, String sku, int newQuantity, long version) {
+        this(storeId, sku, newQuantity, version, false);
+    }
+
+    public StockUpdateEvent(String storeId, String sku, int newQuantity) {
+        this(storeId, sku, newQuantity, 0L);
+    }
+}
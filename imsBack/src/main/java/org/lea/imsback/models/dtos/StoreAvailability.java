@@ -0,0 +1,7 @@
+package org.lea.imsback.models.dtos;
+
+/**
+ * Stock disponible de un SKU en una tienda.
+ */
+public record StoreAvailability(String storeId, int quantity) {
+}
@@ -0,0 +1,32 @@
+package org.lea.imsback.repositories;
+
+import org.lea.imsback.models.IdempotencyRecord;
+import org.springframework.data.r2dbc.repository.Modifying;
+import org.springframework.data.r2dbc.repository.Query;
+import org.springframework.data.r2dbc.repository.R2dbcRepository;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+
+@Repository
+public interface IdempotencyRecordRepository extends R2dbcRepository<IdempotencyRecord, String> {
+
+    @Query("SELECT * FROM idempotency_record WHERE id = :id AND expires_at > :now")
+    Mono<IdempotencyRecord> findValid(String id, Instant now);
+
+    // El id lo arma la aplicación, por lo que save() intentaría un UPDATE.
+    @Modifying
+    @Query("""
+            MERGE INTO idempotency_record KEY (id)
+            VALUES (:id, :requestHash, :status, :headers, :body, :expiresAt)
+            """)
+    Mono<Integer> upsert(String id, String requestHash, int status, String headers, String body, Instant expiresAt);
+
+    /**
+     * Purga por TTL: usa el índice sobre {@code expires_at}.
+     */
+    @Modifying
+    @Query("DELETE FROM idempotency_record WHERE expires_at <= :now")
+    Mono<Integer> deleteExpired(Instant now);
+}
@@ -1,13 +1,81 @@
 package org.lea.imsback.repositories;
 
 import org.lea.imsback.models.Item;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.r2dbc.repository.Modifying;
+import org.springframework.data.r2dbc.repository.Query;
 import org.springframework.data.r2dbc.repository.R2dbcRepository;
 import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 @Repository
 public interface InventoryRepository extends R2dbcRepository<Item, String> {
     Mono<Item> findBySkuAndStoreId(String sku, String storeId);
-    Mono<Void> deleteBySkuAndStoreId(String sku, String storeId);
+
+    /**
+     * Página keyset de una tienda: ítems con id mayor al cursor, en orden de id.
+     * Usa el índice (store_id, id), por lo que el costo no depende del tamaño de la tabla.
+     */
+    Flux<Item> findByStoreIdAndIdGreaterThanOrderByIdAsc(String storeId, Long afterId, Limit limit);
+
+    /**
+     * Descuenta stock en una única sentencia condicional (un solo round trip).
+     * H2 no soporta {@code UPDATE ... RETURNING}; su equivalente es la tabla delta
+     * {@code FINAL TABLE}, que devuelve la fila tal como quedó tras el UPDATE.
+     *
+     * @return Mono con la cantidad restante, o vacío si no se actualizó ninguna fila
+     * (stock insuficiente o ítem inexistente).
+     */
+    @Query("""
+            SELECT quantity FROM FINAL TABLE (
+                UPDATE item SET quantity = quantity - :quantity, version = version + 1
+                WHERE sku = :sku AND store_id = :storeId AND quantity >= :quantity)
+            """)
+    Mono<Integer> reserveStock(String sku, String storeId, int quantity);
+
+    /**
+     * Sobrescribe la cantidad en una única sentencia.
+     *
+     * @return Mono con la cantidad resultante, o vacío si el ítem no existe.
+     */
+    @Query("""
+            SELECT quantity FROM FINAL TABLE (
+                UPDATE item SET quantity = :quantity, version = version + 1
+                WHERE sku = :sku AND store_id = :storeId)
+            """)
+    Mono<Integer> updateQuantity(String sku, String storeId, int quantity);
+
+    /**
+     * Suma (o resta, con delta negativo) stock en una única sentencia.
+     *
+     * @return Mono con la cantidad resultante, o vacío si el ítem no existe.
+     */
+    @Query("""
+            SELECT quantity FROM FINAL TABLE (
+                UPDATE item SET quantity = quantity + :delta, version = version + 1
+                WHERE sku = :sku AND store_id = :storeId)
+            """)
+    Mono<Integer> incrementQuantity(String sku, String storeId, int delta);
+
+    /**
+     * Deja la cantidad en cero y devuelve la que había, de forma atómica
+     * ({@code OLD TABLE} devuelve la fila previa al UPDATE).
+     *
+     * @return Mono con la cantidad previa, o vacío si el ítem no existe.
+     */
+    @Query("""
+            SELECT quantity FROM OLD TABLE (
+                UPDATE item SET quantity = 0, version = version + 1
+                WHERE sku = :sku AND store_id = :storeId)
+            """)
+    Mono<Integer> drainQuantity(String sku, String storeId);
+
+    /**
+     * @return Mono con la cantidad de filas eliminadas (0 si el ítem no existe).
+     */
+    @Modifying
+    @Query("DELETE FROM item WHERE sku = :sku AND store_id = :storeId")
+    Mono<Integer> deleteBySkuAndStoreId(String sku, String storeId);
 
 }
@@ -0,0 +1,70 @@
+package org.lea.imsback.repositories;
+
+import org.lea.imsback.models.ItemShard;
+import org.springframework.data.r2dbc.repository.Modifying;
+import org.springframework.data.r2dbc.repository.Query;
+import org.springframework.data.r2dbc.repository.R2dbcRepository;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+@Repository
+public interface ItemShardRepository extends R2dbcRepository<ItemShard, Long> {
+
+    Flux<ItemShard> findByStoreIdAndSkuOrderByShard(String storeId, String sku);
+
+    /**
+     * Bloquea todos los shards de la clave hasta el fin de la transacción.
+     */
+    @Query("SELECT * FROM item_shard WHERE store_id = :storeId AND sku = :sku ORDER BY shard FOR UPDATE")
+    Flux<ItemShard> lockShards(String storeId, String sku);
+
+    /**
+     * Descuenta de un único sub-contador si le alcanza el stock.
+     * <p>
+     * No devuelve el total de la clave: sumarlo acá no vería los descuentos todavía sin
+     * confirmar de los otros shards. El total se lee después del commit ({@link #totalQuantity}).
+     *
+     * @return Mono con lo que queda en el shard, o vacío si no alcanzó.
+     */
+    @Query("""
+            SELECT quantity FROM FINAL TABLE (
+                UPDATE item_shard SET quantity = quantity - :quantity
+                WHERE store_id = :storeId AND sku = :sku AND shard = :shard AND quantity >= :quantity)
+            """)
+    Mono<Integer> takeFromShard(String storeId, String sku, int shard, int quantity);
+
+    /**
+     * Suma (o resta, con cantidad negativa) a un shard sin guarda.
+     *
+     * @return Mono con la cantidad de filas actualizadas (0 si el shard no existe).
+     */
+    @Modifying
+    @Query("UPDATE item_shard SET quantity = quantity + :quantity WHERE store_id = :storeId AND sku = :sku AND shard = :shard")
+    Mono<Integer> addToShard(String storeId, String sku, int shard, int quantity);
+
+    /**
+     * Stock total confirmado de la clave: ítem más todos sus shards.
+     *
+     * @return Mono con el total, o vacío si el ítem no existe.
+     */
+    @Query("""
+            SELECT CAST(i.quantity + COALESCE((SELECT SUM(s.quantity) FROM item_shard s
+                                               WHERE s.store_id = i.store_id AND s.sku = i.sku), 0) AS INT)
+            FROM item i
+            WHERE i.store_id = :storeId AND i.sku = :sku
+            """)
+    Mono<Integer> totalQuantity(String storeId, String sku);
+
+    @Query("SELECT CAST(COALESCE(SUM(quantity), 0) AS INT) FROM item_shard WHERE store_id = :storeId AND sku = :sku")
+    Mono<Integer> sumQuantity(String storeId, String sku);
+
+    /**
+     * Elimina los shards de la clave y devuelve la suma del stock que contenían.
+     */
+    @Query("""
+            SELECT CAST(COALESCE(SUM(quantity), 0) AS INT) FROM OLD TABLE (
+                DELETE FROM item_shard WHERE store_id = :storeId AND sku = :sku)
+            """)
+    Mono<Integer> drainShards(String storeId, String sku);
+}
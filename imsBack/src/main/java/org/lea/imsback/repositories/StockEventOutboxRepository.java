@@ -0,0 +1,33 @@
+package org.lea.imsback.repositories;
+
+import org.lea.imsback.models.OutboxEvent;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.r2dbc.repository.Modifying;
+import org.springframework.data.r2dbc.repository.Query;
+import org.springframework.data.r2dbc.repository.R2dbcRepository;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+@Repository
+public interface StockEventOutboxRepository extends R2dbcRepository<OutboxEvent, Long> {
+
+    /**
+     * Siguiente lote de eventos a partir del offset (exclusivo), en orden de inserción.
+     */
+    Flux<OutboxEvent> findByIdGreaterThanOrderByIdAsc(Long afterId, Limit limit);
+
+    @Query("SELECT last_id FROM stock_event_outbox_offset WHERE consumer = :consumer")
+    Mono<Long> findOffset(String consumer);
+
+    @Modifying
+    @Query("MERGE INTO stock_event_outbox_offset KEY (consumer) VALUES (:consumer, :lastId)")
+    Mono<Integer> saveOffset(String consumer, long lastId);
+
+    /**
+     * Compactación: borra los eventos ya publicados.
+     */
+    @Modifying
+    @Query("DELETE FROM stock_event_outbox WHERE id <= :lastId")
+    Mono<Integer> deleteUpTo(long lastId);
+}
@@ -0,0 +1,47 @@
+package org.lea.imsback.repositories;
+
+import org.lea.imsback.models.StockHold;
+import org.springframework.data.r2dbc.repository.Modifying;
+import org.springframework.data.r2dbc.repository.Query;
+import org.springframework.data.r2dbc.repository.R2dbcRepository;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.Collection;
+
+@Repository
+public interface StockHoldRepository extends R2dbcRepository<StockHold, String> {
+
+    // El id lo genera la aplicación, por lo que save() intentaría un UPDATE.
+    @Modifying
+    @Query("INSERT INTO stock_hold (id, store_id, sku, quantity, expires_at) VALUES (:id, :storeId, :sku, :quantity, :expiresAt)")
+    Mono<Integer> insert(String id, String storeId, String sku, int quantity, Instant expiresAt);
+
+    /**
+     * Confirma un hold vigente: lo borra y el descuento queda firme.
+     *
+     * @return Mono con la fila borrada, o vacío si no existe o ya venció.
+     */
+    @Query("""
+            SELECT * FROM OLD TABLE (
+                DELETE FROM stock_hold WHERE id = :id AND expires_at > :now)
+            """)
+    Mono<StockHold> confirm(String id, Instant now);
+
+    /**
+     * Borra los holds indicados y devuelve los que efectivamente existían (liberación o
+     * vencimiento). Si dos caminos compiten por el mismo hold, sólo uno lo recibe.
+     */
+    @Query("""
+            SELECT * FROM OLD TABLE (
+                DELETE FROM stock_hold WHERE id IN (:ids))
+            """)
+    Flux<StockHold> deleteReturning(Collection<String> ids);
+
+    /**
+     * Holds pendientes en orden de vencimiento (para recargar el expirador al arrancar).
+     */
+    Flux<StockHold> findAllByOrderByExpiresAtAsc();
+}
@@ -0,0 +1,200 @@
+package org.lea.imsback.services;
+
+import io.r2dbc.spi.Statement;
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.models.dtos.BatchReservationResponse;
+import org.lea.imsback.models.dtos.ReservationRequest;
+import org.lea.imsback.models.dtos.StockUpdateEvent;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Reserva atómica de un carrito completo (varias líneas) en una sola transacción R2DBC.
+ * <p>
+ * Las líneas se agrupan por (tienda, SKU) y las claves se procesan en orden para que dos
+ * carritos concurrentes tomen los locks de fila siempre en la misma secuencia (sin deadlocks).
+ * Las claves normales se descuentan con un único statement batch de UPDATE condicionales;
+ * las claves en modo flash sale, sobre sus shards dentro de la misma transacción.
+ * Si alguna clave no alcanza, se hace rollback de todo. En modo durable el lote se resuelve
+ * en {@link DurableInventoryStore}.
+ */
+@Service
+public class BatchReservationService {
+    private static final Logger log = LoggerFactory.getLogger(BatchReservationService.class);
+
+    private static final String RESERVE_SQL = """
+            SELECT quantity FROM FINAL TABLE (
+                UPDATE item SET quantity = quantity - $1, version = version + 1
+                WHERE sku = $2 AND store_id = $3 AND quantity >= $1)
+            """;
+    private static final Comparator<StockKey> KEY_ORDER =
+            Comparator.comparing(StockKey::storeId).thenComparing(StockKey::sku);
+
+    private final DatabaseClient databaseClient;
+    private final TransactionalOperator transactionalOperator;
+    private final InventoryRepository inventoryRepository;
+    private final ShardedStockService shardedStockService;
+    private final StockEventOutbox stockEventOutbox;
+    private final ObjectProvider<DurableInventoryStore> durableStore;
+    private final int maxLines;
+
+    public BatchReservationService(DatabaseClient databaseClient,
+                                   TransactionalOperator transactionalOperator,
+                                   InventoryRepository inventoryRepository,
+                                   ShardedStockService shardedStockService,
+                                   StockEventOutbox stockEventOutbox,
+                                   ObjectProvider<DurableInventoryStore> durableStore,
+                                   @Value("${ims.reservation.batch.max-lines:100}") int maxLines) {
+        this.databaseClient = databaseClient;
+        this.transactionalOperator = transactionalOperator;
+        this.inventoryRepository = inventoryRepository;
+        this.shardedStockService = shardedStockService;
+        this.stockEventOutbox = stockEventOutbox;
+        this.durableStore = durableStore;
+        this.maxLines = maxLines;
+    }
+
+    public Mono<BatchReservationResponse> reserveAll(List<ReservationRequest> lines) {
+        if (lines.size() > maxLines) {
+            return Mono.error(new IllegalArgumentException("El lote supera el máximo de " + maxLines + " líneas."));
+        }
+        DurableInventoryStore durable = durableStore.getIfAvailable();
+        if (durable != null) {
+            // Modo durable: todo o nada bajo los locks de las claves, un único registro en el log.
+            Map<StockKey, Integer> totals = new TreeMap<>(KEY_ORDER);
+            lines.forEach(line -> totals.merge(new StockKey(line.storeId(), line.sku()), line.quantity(), Integer::sum));
+            return durable.reserveAll(totals)
+                    .map(failed -> failed.isEmpty()
+                            ? response(lines, key -> ReservationStatus.RESERVED, true)
+                            : response(lines, key -> failed.getOrDefault(key, ReservationStatus.ABORTED), false));
+        }
+        // Cantidad total por clave, en orden determinista
+        Map<StockKey, Integer> plain = new TreeMap<>(KEY_ORDER);
+        Map<StockKey, Integer> sharded = new TreeMap<>(KEY_ORDER);
+        for (ReservationRequest line : lines) {
+            StockKey key = new StockKey(line.storeId(), line.sku());
+            (shardedStockService.isSharded(key.storeId(), key.sku()) ? sharded : plain)
+                    .merge(key, line.quantity(), Integer::sum);
+        }
+
+        Mono<List<StockKey>> reservation = reservePlain(plain)
+                .flatMap(newQuantities -> reserveSharded(sharded)
+                        .flatMap(reservedSharded -> {
+                            List<StockKey> failed = new ArrayList<>();
+                            plain.keySet().stream().filter(k -> !newQuantities.containsKey(k)).forEach(failed::add);
+                            sharded.keySet().stream().filter(k -> !reservedSharded.contains(k)).forEach(failed::add);
+                            // Una excepción dentro de la transacción provoca el rollback de todo el lote.
+                            if (!failed.isEmpty()) {
+                                return Mono.error(new BatchAbortedException(failed));
+                            }
+                            // Los eventos del lote van al outbox en la misma transacción.
+                            List<StockKey> reserved = new ArrayList<>(newQuantities.keySet());
+                            reserved.addAll(reservedSharded);
+                            return stockEventOutbox.append(events(newQuantities, reservedSharded)).thenReturn(reserved);
+                        }));
+
+        return transactionalOperator.transactional(reservation)
+                .map(reserved -> {
+                    afterCommit(reserved);
+                    return response(lines, key -> ReservationStatus.RESERVED, true);
+                })
+                .onErrorResume(BatchAbortedException.class, aborted -> classify(aborted.failed)
+                        .map(statuses -> response(lines,
+                                key -> statuses.getOrDefault(key, ReservationStatus.ABORTED), false)));
+    }
+
+    // Un único statement batch: una ejecución del UPDATE condicional por clave, en orden.
+    private Mono<Map<StockKey, Integer>> reservePlain(Map<StockKey, Integer> plain) {
+        if (plain.isEmpty()) {
+            return Mono.just(new HashMap<>());
+        }
+        List<StockKey> keys = new ArrayList<>(plain.keySet());
+        return databaseClient.inConnectionMany(connection -> {
+                    Statement statement = connection.createStatement(RESERVE_SQL);
+                    for (int i = 0; i < keys.size(); i++) {
+                        StockKey key = keys.get(i);
+                        statement.bind(0, plain.get(key)).bind(1, key.sku()).bind(2, key.storeId());
+                        if (i < keys.size() - 1) {
+                            statement.add();
+                        }
+                    }
+                    return Flux.from(statement.execute())
+                            .index()
+                            .concatMap(indexed -> Flux.from(indexed.getT2().map((row, meta) -> row.get(0, Integer.class)))
+                                    .map(quantity -> Map.entry(keys.get(indexed.getT1().intValue()), quantity)));
+                })
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue, HashMap::new);
+    }
+
+    // Claves reservadas sobre sus shards, en orden
+    private Mono<List<StockKey>> reserveSharded(Map<StockKey, Integer> sharded) {
+        return Flux.fromIterable(sharded.entrySet())
+                .concatMap(entry -> shardedStockService.reserve(entry.getKey().storeId(), entry.getKey().sku(), entry.getValue())
+                        .filter(ReservationStatus::isReserved)
+                        .map(status -> entry.getKey()))
+                .collectList();
+    }
+
+    // Las claves en flash sale llevan un refresco: su total se lee al publicarlo
+    private List<StockUpdateEvent> events(Map<StockKey, Integer> newQuantities, List<StockKey> reservedSharded) {
+        List<StockUpdateEvent> events = new ArrayList<>();
+        newQuantities.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey(KEY_ORDER))
+                .map(entry -> new StockUpdateEvent(entry.getKey().storeId(), entry.getKey().sku(), entry.getValue()))
+                .forEach(events::add);
+        reservedSharded.forEach(key -> events.add(StockEventOutbox.refresh(key.storeId(), key.sku())));
+        return events;
+    }
+
+    private void afterCommit(List<StockKey> reserved) {
+        stockEventOutbox.afterCommit(reserved);
+        log.info("RESERVA POR LOTE EXITOSA: {} claves", reserved.size());
+    }
+
+    // Fuera de la transacción (ya revertida): distingue stock insuficiente de ítem inexistente.
+    private Mono<Map<StockKey, ReservationStatus>> classify(List<StockKey> failed) {
+        return Flux.fromIterable(failed)
+                .concatMap(key -> inventoryRepository.findBySkuAndStoreId(key.sku(), key.storeId())
+                        .map(item -> ReservationStatus.INSUFFICIENT_STOCK)
+                        .defaultIfEmpty(ReservationStatus.NOT_FOUND)
+                        .map(status -> Map.entry(key, status)))
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .doOnNext(statuses -> log.warn("RESERVA POR LOTE FALLIDA: {}", statuses));
+    }
+
+    private BatchReservationResponse response(List<ReservationRequest> lines,
+                                              Function<StockKey, ReservationStatus> statusOf,
+                                              boolean reserved) {
+        List<BatchReservationResponse.LineResult> results = lines.stream()
+                .map(line -> new BatchReservationResponse.LineResult(line.storeId(), line.sku(), line.quantity(),
+                        statusOf.apply(new StockKey(line.storeId(), line.sku()))))
+                .toList();
+        return new BatchReservationResponse(reserved, results);
+    }
+
+    private static final class BatchAbortedException extends RuntimeException {
+        private final List<StockKey> failed;
+
+        BatchAbortedException(List<StockKey> failed) {
+            super("Lote abortado: " + failed, null, false, false);
+            this.failed = failed;
+        }
+    }
+}
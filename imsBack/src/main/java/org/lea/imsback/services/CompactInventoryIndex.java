@@ -0,0 +1,649 @@
+package org.lea.imsback.services;
+
+import org.lea.imsback.models.Item;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Índice de inventario en memoria con representación compacta (sin un objeto por ítem).
+ * <p>
+ * {@code storeId} y {@code sku} se traducen a enteros con un diccionario cada uno (cada
+ * string distinto se guarda una sola vez) y el par se empaqueta en una clave {@code long}
+ * de una tabla hash de direccionamiento abierto (sondeo lineal) de arreglos primitivos. Cada
+ * ítem es una fila de columnas paralelas: cantidad y versión (en el heap o, con
+ * {@code offHeap}, en buffers directos fuera del heap), id, versión del último evento aplicado
+ * y el siguiente ítem del mismo SKU, que enlaza las tiendas de cada SKU para la consulta de
+ * disponibilidad.
+ * <p>
+ * Un único escritor a la vez; las lecturas no toman lock (lectura optimista de un
+ * {@link StampedLock}, reintentada con lock de lectura si hubo una escritura en el medio) y
+ * {@link #quantity} no asigna memoria. Los strings de los diccionarios no se liberan al
+ * borrar ítems.
+ */
+public final class CompactInventoryIndex {
+
+    public static final int ABSENT = -1;
+    // Resultado de put con un evento más viejo que el último aplicado a la fila
+    public static final int STALE = -2;
+    // Versión de una fila cuya cantidad llegó por un evento (que no trae la versión)
+    private static final long UNKNOWN = -1L;
+    private static final long EMPTY = -1L;
+
+    /**
+     * Recibe las tiendas de un SKU en {@link #forEachStore}.
+     */
+    @FunctionalInterface
+    public interface StoreQuantityConsumer {
+        void accept(String storeId, int quantity);
+    }
+
+    private final StampedLock lock = new StampedLock();
+    private final Dictionary stores = new Dictionary();
+    private final Dictionary skus = new Dictionary();
+
+    // Tabla hash: clave empaquetada (tienda << 32 | SKU) -> fila. Capacidad potencia de 2, carga <= 1/2.
+    private long[] keys;
+    private int[] rowOf;
+    private int size;
+
+    // Filas
+    private int[] storeOf;
+    private int[] skuOf;
+    private int[] nextInSku;
+    // Escrituras por fila: detecta si la fila cambió mientras se leía la BD (ver refresh)
+    private int[] writes;
+    private long[] ids;
+    // Versión del último evento de stock aplicado (id del outbox o LSN del log; 0 = ninguno)
+    private long[] eventVersions;
+    private ValueColumns values;
+    private int rowCount;
+    private int[] freeRows = new int[16];
+    private int freeCount;
+    // Primera fila de cada SKU (por id de diccionario)
+    private int[] skuHead = new int[16];
+
+    public CompactInventoryIndex(int expectedItems, boolean offHeap) {
+        int rows = Math.max(16, expectedItems);
+        int capacity = Integer.highestOneBit(Math.max(32, rows * 2 - 1)) << 1;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        rowOf = new int[capacity];
+        storeOf = new int[rows];
+        skuOf = new int[rows];
+        nextInSku = new int[rows];
+        writes = new int[rows];
+        ids = new long[rows];
+        eventVersions = new long[rows];
+        values = offHeap ? new DirectColumns(rows) : new HeapColumns(rows);
+        Arrays.fill(skuHead, ABSENT);
+    }
+
+    // -----------------------------------------------------------------
+    // Lecturas
+    // -----------------------------------------------------------------
+
+    /**
+     * @return la cantidad del ítem, o {@link #ABSENT}. No asigna memoria.
+     */
+    public int quantity(String storeId, String sku) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int row = row(storeId, sku);
+                int quantity = row < 0 ? ABSENT : values.quantity(row);
+                if (lock.validate(stamp)) {
+                    return quantity;
+                }
+            } catch (RuntimeException e) {
+                // Arreglos a medio reemplazar por una escritura concurrente: se reintenta con lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            int row = row(storeId, sku);
+            return row < 0 ? ABSENT : values.quantity(row);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return el ítem completo, o null si no está o su versión no se conoce (la cantidad llegó
+     * por un evento después de la última lectura de la BD).
+     */
+    public Item item(String storeId, String sku) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int row = row(storeId, sku);
+                int quantity = row < 0 ? 0 : values.quantity(row);
+                long version = row < 0 ? UNKNOWN : values.version(row);
+                long id = row < 0 ? 0 : ids[row];
+                if (lock.validate(stamp)) {
+                    return toItem(storeId, sku, id, quantity, version);
+                }
+            } catch (RuntimeException e) {
+                // Se reintenta con lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            int row = row(storeId, sku);
+            return row < 0 ? null : toItem(storeId, sku, ids[row], values.quantity(row), values.version(row));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Versión del último evento aplicado al ítem; 0 si no hubo o no está.
+     */
+    public long eventVersion(String storeId, String sku) {
+        long stamp = lock.readLock();
+        try {
+            int row = row(storeId, sku);
+            return row < 0 ? 0L : eventVersions[row];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Contador de escrituras de la fila, para {@link #refresh}; {@link #ABSENT} si no está.
+     */
+    public int writeCount(String storeId, String sku) {
+        long stamp = lock.readLock();
+        try {
+            int row = row(storeId, sku);
+            return row < 0 ? ABSENT : writes[row];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Recorre las tiendas de un SKU (sin orden).
+     */
+    public void forEachStore(String sku, StoreQuantityConsumer consumer) {
+        long stamp = lock.readLock();
+        try {
+            int skuId = skus.idOf(sku);
+            if (skuId < 0 || skuId >= skuHead.length) {
+                return;
+            }
+            for (int row = skuHead[skuId]; row != ABSENT; row = nextInSku[row]) {
+                consumer.accept(stores.name(storeOf[row]), values.quantity(row));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Memoria de los arreglos y buffers del índice (sin los strings de los diccionarios).
+     */
+    public long footprintBytes() {
+        long stamp = lock.readLock();
+        try {
+            return (long) keys.length * (Long.BYTES + Integer.BYTES)
+                    + (long) storeOf.length * (4 * Integer.BYTES + 2 * Long.BYTES)
+                    + values.bytes()
+                    + (long) (freeRows.length + skuHead.length) * Integer.BYTES;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // -----------------------------------------------------------------
+    // Escrituras
+    // -----------------------------------------------------------------
+
+    /**
+     * Registra la cantidad nueva de un ítem (evento de stock sin versión).
+     *
+     * @return la cantidad anterior, o {@link #ABSENT} si el ítem no estaba.
+     */
+    public int put(String storeId, String sku, int quantity) {
+        return put(storeId, sku, quantity, 0L);
+    }
+
+    /**
+     * Registra la cantidad nueva de un ítem (evento de stock), salvo que la fila ya haya visto
+     * un evento de versión mayor. La versión del ítem queda desconocida hasta el próximo
+     * {@link #refresh}.
+     *
+     * @param eventVersion versión del evento; 0 = sin versión, se aplica siempre.
+     * @return la cantidad anterior, {@link #ABSENT} si el ítem no estaba o {@link #STALE} si
+     * el evento es más viejo que el último aplicado (y no se aplicó).
+     */
+    public int put(String storeId, String sku, int quantity, long eventVersion) {
+        long stamp = lock.writeLock();
+        try {
+            int row = row(storeId, sku);
+            if (row >= 0) {
+                if (eventVersion != 0 && eventVersion < eventVersions[row]) {
+                    return STALE;
+                }
+                int previous = values.quantity(row);
+                values.quantity(row, quantity);
+                values.version(row, UNKNOWN);
+                eventVersions[row] = Math.max(eventVersions[row], eventVersion);
+                writes[row]++;
+                return previous;
+            }
+            row = insert(storeId, sku);
+            values.quantity(row, quantity);
+            values.version(row, UNKNOWN);
+            eventVersions[row] = eventVersion;
+            return ABSENT;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Registra un ítem leído de la fuente de verdad (carga inicial o reconciliación).
+     *
+     * @return la cantidad anterior, o {@link #ABSENT} si el ítem no estaba.
+     */
+    public int put(Item item) {
+        return put(item, 0L);
+    }
+
+    /**
+     * Como {@link #put(Item)}, y la fila pasa a ignorar eventos anteriores a {@code eventVersion}.
+     */
+    public int put(Item item, long eventVersion) {
+        long stamp = lock.writeLock();
+        try {
+            int row = row(item.getStoreId(), item.getSku());
+            int previous = ABSENT;
+            if (row >= 0) {
+                previous = values.quantity(row);
+                writes[row]++;
+            } else {
+                row = insert(item.getStoreId(), item.getSku());
+            }
+            set(row, item);
+            eventVersions[row] = Math.max(eventVersions[row], eventVersion);
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Completa id y versión con un ítem recién leído de la BD, sólo si la fila no cambió
+     * desde {@code expectedWrites} (si cambió, lo leído ya es viejo) y la cantidad coincide (si
+     * no coincide, el evento de esa escritura todavía no llegó). La cantidad nunca se toma de
+     * acá: sólo la cambian los eventos, para que los agregados vean cada diferencia.
+     */
+    public void refresh(Item item, int expectedWrites) {
+        long stamp = lock.writeLock();
+        try {
+            int row = row(item.getStoreId(), item.getSku());
+            if (row >= 0 && writes[row] == expectedWrites && item.getVersion() != null
+                    && values.quantity(row) == item.getQuantity()) {
+                set(row, item);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Deja desconocida la versión del ítem (se confirmó una escritura cuyo evento todavía no
+     * llegó): {@link #item} deja de responderlo y una lectura de la BD ya en curso no lo
+     * completa. La cantidad no cambia hasta que llegue el evento.
+     */
+    public void invalidate(String storeId, String sku) {
+        long stamp = lock.writeLock();
+        try {
+            int row = row(storeId, sku);
+            if (row >= 0) {
+                values.version(row, UNKNOWN);
+                writes[row]++;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return la cantidad que tenía el ítem, o {@link #ABSENT} si no estaba.
+     */
+    public int remove(String storeId, String sku) {
+        return remove(storeId, sku, 0L);
+    }
+
+    /**
+     * Borra el ítem (evento de borrado), salvo que la fila ya haya visto un evento de versión mayor.
+     *
+     * @param eventVersion versión del borrado; 0 = sin versión, se aplica siempre.
+     * @return la cantidad que tenía el ítem, {@link #ABSENT} si no estaba o {@link #STALE} si
+     * el borrado es más viejo que el último evento aplicado (y no se aplicó).
+     */
+    public int remove(String storeId, String sku, long eventVersion) {
+        long stamp = lock.writeLock();
+        try {
+            int storeId32 = stores.idOf(storeId);
+            int skuId = skus.idOf(sku);
+            if (storeId32 < 0 || skuId < 0) {
+                return ABSENT;
+            }
+            int slot = slot(pack(storeId32, skuId));
+            if (keys[slot] == EMPTY) {
+                return ABSENT;
+            }
+            int row = rowOf[slot];
+            if (eventVersion != 0 && eventVersion < eventVersions[row]) {
+                return STALE;
+            }
+            int previous = values.quantity(row);
+            writes[row]++;
+            deleteSlot(slot);
+            unlinkFromSku(row, skuId);
+            if (freeCount == freeRows.length) {
+                freeRows = Arrays.copyOf(freeRows, freeCount * 2);
+            }
+            freeRows[freeCount++] = row;
+            size--;
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // -----------------------------------------------------------------
+    // Internos (llamar con lock o dentro de una lectura optimista)
+    // -----------------------------------------------------------------
+
+    private int row(String storeId, String sku) {
+        int storeId32 = stores.idOf(storeId);
+        int skuId = skus.idOf(sku);
+        if (storeId32 < 0 || skuId < 0) {
+            return ABSENT;
+        }
+        long[] table = keys;
+        int[] rows = rowOf;
+        long key = pack(storeId32, skuId);
+        int mask = table.length - 1;
+        for (int slot = mix(key) & mask, probes = 0; probes < table.length; slot = (slot + 1) & mask, probes++) {
+            long current = table[slot];
+            if (current == key) {
+                return rows[slot];
+            }
+            if (current == EMPTY) {
+                return ABSENT;
+            }
+        }
+        return ABSENT;
+    }
+
+    // Slot de la clave, o el slot vacío donde iría
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int insert(String storeId, String sku) {
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        int storeId32 = stores.intern(storeId);
+        int skuId = skus.intern(sku);
+        int row = freeCount > 0 ? freeRows[--freeCount] : nextRow();
+        long key = pack(storeId32, skuId);
+        int slot = slot(key);
+        keys[slot] = key;
+        rowOf[slot] = row;
+        storeOf[row] = storeId32;
+        skuOf[row] = skuId;
+        writes[row]++;
+        ids[row] = 0;
+        eventVersions[row] = 0;
+        if (skuId >= skuHead.length) {
+            int previousLength = skuHead.length;
+            skuHead = Arrays.copyOf(skuHead, Math.max(skuId + 1, previousLength * 2));
+            Arrays.fill(skuHead, previousLength, skuHead.length, ABSENT);
+        }
+        nextInSku[row] = skuHead[skuId];
+        skuHead[skuId] = row;
+        size++;
+        return row;
+    }
+
+    private int nextRow() {
+        if (rowCount == storeOf.length) {
+            int capacity = rowCount * 2;
+            storeOf = Arrays.copyOf(storeOf, capacity);
+            skuOf = Arrays.copyOf(skuOf, capacity);
+            nextInSku = Arrays.copyOf(nextInSku, capacity);
+            writes = Arrays.copyOf(writes, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            eventVersions = Arrays.copyOf(eventVersions, capacity);
+            values = values.grow(capacity);
+        }
+        return rowCount++;
+    }
+
+    private void set(int row, Item item) {
+        values.quantity(row, item.getQuantity());
+        values.version(row, item.getVersion() != null ? item.getVersion() : UNKNOWN);
+        ids[row] = item.getId() != null ? item.getId() : 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldRows = rowOf;
+        long[] newKeys = new long[capacity];
+        Arrays.fill(newKeys, EMPTY);
+        int[] newRows = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = mix(oldKeys[i]) & mask;
+                while (newKeys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                newKeys[slot] = oldKeys[i];
+                newRows[slot] = oldRows[i];
+            }
+        }
+        keys = newKeys;
+        rowOf = newRows;
+    }
+
+    // Borrado con desplazamiento hacia atrás: no deja lápidas que alarguen los sondeos
+    private void deleteSlot(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (keys[next] != EMPTY) {
+            int home = mix(keys[next]) & mask;
+            // La entrada de "next" puede ocupar el hueco si su posición ideal no está entre hueco y next
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                rowOf[hole] = rowOf[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = EMPTY;
+    }
+
+    private void unlinkFromSku(int row, int skuId) {
+        if (skuHead[skuId] == row) {
+            skuHead[skuId] = nextInSku[row];
+            return;
+        }
+        for (int previous = skuHead[skuId]; previous != ABSENT; previous = nextInSku[previous]) {
+            if (nextInSku[previous] == row) {
+                nextInSku[previous] = nextInSku[row];
+                return;
+            }
+        }
+    }
+
+    private static Item toItem(String storeId, String sku, long id, int quantity, long version) {
+        if (version == UNKNOWN) {
+            return null;
+        }
+        Item item = new Item(sku, quantity, storeId);
+        item.setId(id);
+        item.setVersion(version);
+        return item;
+    }
+
+    private static long pack(int storeId, int skuId) {
+        return ((long) storeId << 32) | (skuId & 0xFFFFFFFFL);
+    }
+
+    // Mezcla final de MurmurHash3: los ids de diccionario son consecutivos
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * String -> id consecutivo. La búsqueda ({@link ConcurrentHashMap#get}) no asigna memoria
+     * y es segura con un escritor concurrente.
+     */
+    private static final class Dictionary {
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private volatile String[] names = new String[16];
+        private int count;
+
+        int idOf(String name) {
+            Integer id = ids.get(name);
+            return id != null ? id : ABSENT;
+        }
+
+        String name(int id) {
+            return names[id];
+        }
+
+        int intern(String name) {
+            Integer id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            if (count == names.length) {
+                names = Arrays.copyOf(names, count * 2);
+            }
+            names[count] = name;
+            ids.put(name, count);
+            return count++;
+        }
+    }
+
+    /**
+     * Columnas de cantidad (int) y versión (long), en el heap o fuera de él.
+     */
+    private abstract static sealed class ValueColumns permits HeapColumns, DirectColumns {
+        abstract int quantity(int row);
+
+        abstract void quantity(int row, int quantity);
+
+        abstract long version(int row);
+
+        abstract void version(int row, long version);
+
+        abstract ValueColumns grow(int capacity);
+
+        abstract long bytes();
+    }
+
+    private static final class HeapColumns extends ValueColumns {
+        private final int[] quantities;
+        private final long[] versions;
+
+        HeapColumns(int capacity) {
+            this(new int[capacity], new long[capacity]);
+        }
+
+        private HeapColumns(int[] quantities, long[] versions) {
+            this.quantities = quantities;
+            this.versions = versions;
+        }
+
+        int quantity(int row) {
+            return quantities[row];
+        }
+
+        void quantity(int row, int quantity) {
+            quantities[row] = quantity;
+        }
+
+        long version(int row) {
+            return versions[row];
+        }
+
+        void version(int row, long version) {
+            versions[row] = version;
+        }
+
+        ValueColumns grow(int capacity) {
+            return new HeapColumns(Arrays.copyOf(quantities, capacity), Arrays.copyOf(versions, capacity));
+        }
+
+        long bytes() {
+            return (long) quantities.length * (Integer.BYTES + Long.BYTES);
+        }
+    }
+
+    // Buffers directos: no los recorre el GC; se liberan cuando el índice deja de usarse
+    private static final class DirectColumns extends ValueColumns {
+        private final ByteBuffer quantities;
+        private final ByteBuffer versions;
+
+        DirectColumns(int capacity) {
+            quantities = ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder());
+            versions = ByteBuffer.allocateDirect(capacity * Long.BYTES).order(ByteOrder.nativeOrder());
+        }
+
+        int quantity(int row) {
+            return quantities.getInt(row * Integer.BYTES);
+        }
+
+        void quantity(int row, int quantity) {
+            quantities.putInt(row * Integer.BYTES, quantity);
+        }
+
+        long version(int row) {
+            return versions.getLong(row * Long.BYTES);
+        }
+
+        void version(int row, long version) {
+            versions.putLong(row * Long.BYTES, version);
+        }
+
+        ValueColumns grow(int capacity) {
+            DirectColumns grown = new DirectColumns(capacity);
+            grown.quantities.put(0, quantities, 0, quantities.capacity());
+            grown.versions.put(0, versions, 0, versions.capacity());
+            return grown;
+        }
+
+        long bytes() {
+            return quantities.capacity() + (long) versions.capacity();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.lea.imsback.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.lea.imsback.models.StockKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Gestor de contención para operaciones de stock sobre claves calientes.
+ * <p>
+ * Ante un conflicto de concurrencia (bloqueo optimista, lock timeout, deadlock) vuelve a
+ * ejecutar la operación, que relee el estado, con backoff exponencial acotado y jitter.
+ * Lleva por clave una tasa de conflictos (media móvil exponencial) y con ella limita
+ * cuántos intentos simultáneos se permiten sobre esa clave: cuanto más conflictiva,
+ * menos intentos en vuelo. Los reintentos se cortan al llegar al deadline de la petición:
+ * el que deja en el contexto de Reactor {@code RequestDeadlineFilter} (bajo
+ * {@link #DEADLINE_CONTEXT_KEY}), acotado por {@code ims.contention.deadline}.
+ * <p>
+ * El estado de una clave se crea, se toma y se suelta siempre dentro de
+ * {@code ConcurrentHashMap.compute}, y se elimina sólo cuando queda ociosa (sin intentos en
+ * vuelo ni en espera y sin conflictos recientes): nunca se descarta uno que otro hilo está usando.
+ */
+@Component
+public class ContentionManager {
+    private static final Logger log = LoggerFactory.getLogger(ContentionManager.class);
+    // Peso de la última observación en la tasa de conflictos
+    private static final double EWMA_ALPHA = 0.2;
+    /**
+     * Instante límite de la petición ({@link System#nanoTime()}, {@code Long}) en el contexto de Reactor.
+     */
+    public static final String DEADLINE_CONTEXT_KEY = "ims.request.deadline";
+
+    private final int maxAttempts;
+    private final Duration baseBackoff;
+    private final Duration maxBackoff;
+    private final Duration deadline;
+    private final int maxInFlightPerKey;
+    private final Map<StockKey, KeyState> states = new ConcurrentHashMap<>();
+
+    private final Counter retries;
+    private final Counter throttled;
+    private final Counter giveUpsAttempts;
+    private final Counter giveUpsDeadline;
+
+    public ContentionManager(MeterRegistry meterRegistry,
+                             @Value("${ims.contention.max-attempts:5}") int maxAttempts,
+                             @Value("${ims.contention.base-backoff:5ms}") Duration baseBackoff,
+                             @Value("${ims.contention.max-backoff:200ms}") Duration maxBackoff,
+                             @Value("${ims.contention.deadline:2s}") Duration deadline,
+                             @Value("${ims.contention.max-in-flight-per-key:16}") int maxInFlightPerKey) {
+        this.maxAttempts = maxAttempts;
+        this.baseBackoff = baseBackoff;
+        this.maxBackoff = maxBackoff;
+        this.deadline = deadline;
+        this.maxInFlightPerKey = maxInFlightPerKey;
+        this.retries = Counter.builder("ims.contention.retries")
+                .description("Reintentos por conflicto de concurrencia")
+                .register(meterRegistry);
+        this.throttled = Counter.builder("ims.contention.throttled")
+                .description("Intentos demorados por el límite de concurrencia de la clave")
+                .register(meterRegistry);
+        this.giveUpsAttempts = Counter.builder("ims.contention.giveups")
+                .tag("reason", "attempts")
+                .description("Operaciones abandonadas tras agotar los reintentos")
+                .register(meterRegistry);
+        this.giveUpsDeadline = Counter.builder("ims.contention.giveups")
+                .tag("reason", "deadline")
+                .description("Operaciones abandonadas por alcanzar el deadline")
+                .register(meterRegistry);
+        meterRegistry.gauge("ims.contention.hot.keys", states, Map::size);
+    }
+
+    /**
+     * Ejecuta la operación hasta el deadline de la petición (o el configurado, si es anterior o
+     * la petición no trae uno).
+     * El {@code Supplier} se invoca en cada intento, por lo que debe releer el estado.
+     */
+    public <T> Mono<T> execute(StockKey key, Supplier<Mono<T>> operation) {
+        return Mono.deferContextual(context -> {
+            long fallback = System.nanoTime() + deadline.toNanos();
+            long requestDeadline = context.<Long>getOrEmpty(DEADLINE_CONTEXT_KEY)
+                    .map(requested -> requested - fallback < 0 ? requested : fallback)
+                    .orElse(fallback);
+            return execute(key, requestDeadline, operation);
+        });
+    }
+
+    /**
+     * @param deadlineNanos instante límite en la escala de {@link System#nanoTime()}.
+     */
+    public <T> Mono<T> execute(StockKey key, long deadlineNanos, Supplier<Mono<T>> operation) {
+        return attempt(key, operation, 1, 0, deadlineNanos);
+    }
+
+    /**
+     * Tasa de conflictos observada para la clave (0 si no está bajo contención).
+     */
+    public double conflictRate(StockKey key) {
+        KeyState state = states.get(key);
+        return state == null ? 0 : state.conflictRate;
+    }
+
+    /**
+     * @param attempt   ejecuciones de la operación (la actual incluida), acotadas por {@code maxAttempts}.
+     * @param throttles esperas por el límite de la clave hasta ahora; también hacen crecer el backoff.
+     */
+    private <T> Mono<T> attempt(StockKey key, Supplier<Mono<T>> operation, int attempt, int throttles,
+                                long deadlineNanos) {
+        return Mono.defer(() -> {
+            KeyState state = acquire(key);
+            if (state == null) {
+                // Clave saturada: se espera en lugar de sumar otro intento que seguramente choque.
+                throttled.increment();
+                Duration wait = backoff(attempt + throttles);
+                if (System.nanoTime() + wait.toNanos() > deadlineNanos) {
+                    leave(key, false);
+                    giveUpsDeadline.increment();
+                    return Mono.error(new ConcurrencyFailureException("Deadline alcanzado esperando turno para " + key));
+                }
+                return Mono.delay(wait)
+                        .doFinally(signal -> leave(key, false))
+                        .then(attempt(key, operation, attempt, throttles + 1, deadlineNanos));
+            }
+            return operation.get()
+                    .doFinally(signal -> leave(key, true))
+                    .doOnSuccess(value -> state.record(false))
+                    .onErrorResume(this::isConflict, error -> {
+                        state.record(true);
+                        if (attempt >= maxAttempts) {
+                            giveUpsAttempts.increment();
+                            log.warn("Contención en {}: se abandona tras {} intentos", key, attempt);
+                            return Mono.error(error);
+                        }
+                        Duration wait = backoff(attempt);
+                        if (System.nanoTime() + wait.toNanos() > deadlineNanos) {
+                            giveUpsDeadline.increment();
+                            log.warn("Contención en {}: deadline alcanzado tras {} intentos", key, attempt);
+                            return Mono.error(error);
+                        }
+                        retries.increment();
+                        return Mono.delay(wait).then(attempt(key, operation, attempt + 1, throttles, deadlineNanos));
+                    });
+        });
+    }
+
+    private boolean isConflict(Throwable error) {
+        return error instanceof ConcurrencyFailureException || error instanceof TransientDataAccessException;
+    }
+
+    // Backoff exponencial con "full jitter": aleatorio entre 0 y min(max, base * 2^(intento-1)).
+    private Duration backoff(int attempt) {
+        long ceiling = Math.min(maxBackoff.toNanos(), baseBackoff.toNanos() << Math.min(attempt - 1, 20));
+        return Duration.ofNanos(ThreadLocalRandom.current().nextLong(ceiling + 1));
+    }
+
+    /**
+     * Toma un lugar en la clave, o registra una espera si está saturada.
+     *
+     * @return el estado de la clave si se tomó lugar, o null si hay que esperar.
+     */
+    private KeyState acquire(StockKey key) {
+        KeyState[] acquired = new KeyState[1];
+        states.compute(key, (k, state) -> {
+            KeyState current = state != null ? state : new KeyState();
+            if (current.inFlight < current.limit(maxInFlightPerKey)) {
+                current.inFlight++;
+                acquired[0] = current;
+            } else {
+                current.waiting++;
+            }
+            return current;
+        });
+        return acquired[0];
+    }
+
+    /**
+     * Suelta el lugar (o la espera) tomado en {@link #acquire}. Las claves ociosas no ocupan memoria.
+     */
+    private void leave(StockKey key, boolean inFlight) {
+        states.computeIfPresent(key, (k, state) -> {
+            if (inFlight) {
+                state.inFlight--;
+            } else {
+                state.waiting--;
+            }
+            return state.isIdle() ? null : state;
+        });
+    }
+
+    // Contadores modificados sólo dentro de compute sobre la clave (lock del bin del mapa).
+    private static final class KeyState {
+        int inFlight;
+        int waiting;
+        volatile double conflictRate;
+
+        // Límite adaptativo: se reduce linealmente con la tasa de conflictos, mínimo 1.
+        int limit(int maxInFlight) {
+            return Math.max(1, (int) Math.round(maxInFlight * (1 - conflictRate)));
+        }
+
+        boolean isIdle() {
+            return inFlight == 0 && waiting == 0 && conflictRate < 0.01;
+        }
+
+        synchronized void record(boolean conflict) {
+            conflictRate = conflictRate * (1 - EWMA_ALPHA) + (conflict ? EWMA_ALPHA : 0);
+        }
+    }
+}
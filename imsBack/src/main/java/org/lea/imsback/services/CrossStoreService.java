@@ -0,0 +1,143 @@
+package org.lea.imsback.services;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.models.dtos.ReserveAnyResult;
+import org.lea.imsback.models.dtos.StoreAvailability;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Consultas y reservas que cruzan tiendas: dónde hay stock de un SKU y "reservar en
+ * cualquiera" de una lista de tiendas en una sola llamada.
+ * <p>
+ * La disponibilidad sale del índice por SKU de {@link StockAggregates} (en memoria, al día
+ * con los eventos de stock, unos milisegundos detrás de la última escritura). Hasta que ese
+ * índice termina de cargarse se consulta la base por el índice único (sku, store_id).
+ */
+@Service
+public class CrossStoreService {
+    private static final Logger log = LoggerFactory.getLogger(CrossStoreService.class);
+
+    // Stock total por tienda de un SKU: en flash sale es item.quantity + la suma de sus shards
+    private static final String AVAILABILITY_SQL = """
+            SELECT i.store_id,
+                   CAST(i.quantity + COALESCE((SELECT SUM(s.quantity) FROM item_shard s
+                                               WHERE s.store_id = i.store_id AND s.sku = i.sku), 0) AS INT) AS quantity
+            FROM item i
+            WHERE i.sku = $1
+            """;
+    private static final Comparator<StoreAvailability> MOST_STOCK_FIRST =
+            Comparator.comparingInt(StoreAvailability::quantity).reversed().thenComparing(StoreAvailability::storeId);
+
+    private final StockAggregates stockAggregates;
+    private final InventoryService inventoryService;
+    private final HoldService holdService;
+    private final DatabaseClient databaseClient;
+    private final ObjectProvider<DurableInventoryStore> durableStore;
+    private final MeterRegistry meterRegistry;
+    private final DistributionSummary attempts;
+
+    public CrossStoreService(StockAggregates stockAggregates,
+                             InventoryService inventoryService,
+                             HoldService holdService,
+                             DatabaseClient databaseClient,
+                             ObjectProvider<DurableInventoryStore> durableStore,
+                             MeterRegistry meterRegistry) {
+        this.stockAggregates = stockAggregates;
+        this.inventoryService = inventoryService;
+        this.holdService = holdService;
+        this.databaseClient = databaseClient;
+        this.durableStore = durableStore;
+        this.meterRegistry = meterRegistry;
+        this.attempts = DistributionSummary.builder("ims.reserve.any.attempts")
+                .description("Tiendas intentadas por cada reserva en cualquier tienda")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Tiendas con al menos {@code minQuantity} unidades del SKU, de mayor a menor stock.
+     */
+    public Flux<StoreAvailability> availability(String sku, int minQuantity) {
+        Flux<StoreAvailability> stores = stockAggregates.isLoaded()
+                ? Flux.defer(() -> {
+                    List<StoreAvailability> found = new ArrayList<>();
+                    stockAggregates.forEachStore(sku, (storeId, quantity) -> found.add(new StoreAvailability(storeId, quantity)));
+                    return Flux.fromIterable(found);
+                })
+                : storedAvailability(sku);
+        return stores
+                .filter(store -> store.quantity() >= minQuantity)
+                .sort(MOST_STOCK_FIRST);
+    }
+
+    /**
+     * Intenta reservar en cada tienda, en el orden del cliente, hasta lograrlo. Las tiendas que
+     * según el índice en memoria no alcanzan se intentan al final (el índice puede ir detrás de
+     * una reposición reciente). Igual que /reserve: sin {@code ttl} la reserva es firme y con
+     * {@code ttl} es un hold.
+     *
+     * @return la tienda elegida (con su hold si se pidió), o vacío si ninguna tenía stock suficiente.
+     */
+    public Mono<ReserveAnyResult> reserveAny(String sku, List<String> storeIds, int quantity, Duration ttl) {
+        return Mono.defer(() -> {
+            List<String> likely = new ArrayList<>();
+            List<String> unlikely = new ArrayList<>();
+            for (String storeId : new LinkedHashSet<>(storeIds)) {
+                int known = stockAggregates.isLoaded() ? stockAggregates.quantity(storeId, sku) : StockAggregates.ABSENT;
+                (known != StockAggregates.ABSENT && known < quantity ? unlikely : likely).add(storeId);
+            }
+            AtomicInteger tried = new AtomicInteger();
+            // concatMap + next(): cada tienda se intenta recién si la anterior falló
+            return Flux.concat(Flux.fromIterable(likely), Flux.fromIterable(unlikely))
+                    .concatMap(storeId -> {
+                        tried.incrementAndGet();
+                        return ttl == null
+                                ? inventoryService.reserveStock(storeId, sku, quantity)
+                                .filter(ReservationStatus::isReserved)
+                                .map(status -> new ReserveAnyResult(storeId, null))
+                                : holdService.hold(storeId, sku, quantity, ttl)
+                                .mapNotNull(result -> result.hold())
+                                .map(hold -> new ReserveAnyResult(storeId, hold));
+                    })
+                    .next()
+                    .doOnSuccess(result -> {
+                        attempts.record(tried.get());
+                        meterRegistry.counter("ims.reserve.any", "outcome", result != null ? "reserved" : "unavailable")
+                                .increment();
+                        if (result != null) {
+                            log.info("RESERVA EN CUALQUIER TIENDA: {} x SKU {} en {} ({} tiendas intentadas)",
+                                    quantity, sku, result.storeId(), tried.get());
+                        } else {
+                            log.warn("RESERVA EN CUALQUIER TIENDA FALLIDA: {} x SKU {} sin stock en {}", quantity, sku, storeIds);
+                        }
+                    });
+        });
+    }
+
+    private Flux<StoreAvailability> storedAvailability(String sku) {
+        DurableInventoryStore durable = durableStore.getIfAvailable();
+        if (durable != null) {
+            return durable.findAll()
+                    .filter(item -> item.getSku().equals(sku))
+                    .map(item -> new StoreAvailability(item.getStoreId(), item.getQuantity()));
+        }
+        return databaseClient.sql(AVAILABILITY_SQL)
+                .bind(0, sku)
+                .map((row, meta) -> new StoreAvailability(row.get("store_id", String.class), row.get("quantity", Integer.class)))
+                .all();
+    }
+}
@@ -0,0 +1,195 @@
+package org.lea.imsback.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Agrupa los errores por huella (fingerprint) y lleva cuántas veces ocurre cada uno.
+ * <p>
+ * La huella combina la clase de la excepción (y la de su causa raíz), el mensaje
+ * normalizado (sin UUIDs, hex ni números) y los primeros frames propios de la pila sin
+ * número de línea. Así el mismo fallo repetido miles de veces en un incidente cae en una
+ * sola huella aunque cada mensaje traiga otro SKU o cantidad.
+ * <p>
+ * Por huella se guarda el total y un conteo en ventana deslizante ({@code ims.errors.rate-window}).
+ */
+@Component
+public class ErrorAggregator {
+
+    private static final Pattern UUID_PATTERN =
+            Pattern.compile("\\b[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}\\b");
+    private static final Pattern HEX_PATTERN = Pattern.compile("\\b0x[0-9a-fA-F]+\\b|\\b[0-9a-fA-F]{16,}\\b");
+    private static final Pattern NUMBER_PATTERN = Pattern.compile("\\d+");
+    // Sufijos de lambdas y clases sintéticas (lambda$reserve$3, $$Lambda/0x...)
+    private static final Pattern SYNTHETIC_PATTERN = Pattern.compile("\\$\\$Lambda.*|\\$\\d+");
+    // Frames de infraestructura: no distinguen un fallo de otro.
+    private static final List<String> FRAMEWORK_PREFIXES =
+            List.of("java.", "jdk.", "sun.", "reactor.", "io.netty.", "io.r2dbc.", "org.springframework.");
+    private static final int WINDOW_BUCKETS = 60;
+
+    private final int frames;
+    private final long bucketNanos;
+    private final Cache<String, Stats> stats;
+
+    public ErrorAggregator(@Value("${ims.errors.fingerprint-frames:5}") int frames,
+                           @Value("${ims.errors.rate-window:60s}") Duration rateWindow,
+                           @Value("${ims.errors.max-fingerprints:1000}") long maxFingerprints,
+                           @Value("${ims.errors.idle-expiry:1h}") Duration idleExpiry) {
+        this.frames = frames;
+        this.bucketNanos = Math.max(1, rateWindow.toNanos() / WINDOW_BUCKETS);
+        this.stats = Caffeine.newBuilder()
+                .maximumSize(maxFingerprints)
+                .expireAfterAccess(idleExpiry)
+                .build();
+    }
+
+    /**
+     * Resumen de una huella. {@code windowCount} son las ocurrencias dentro de la ventana.
+     */
+    public record Occurrence(String fingerprint, String exception, String message,
+                             long total, long windowCount, Instant firstSeen, Instant lastSeen) {
+
+        public boolean isFirst() {
+            return total == 1;
+        }
+    }
+
+    /**
+     * Cuenta una ocurrencia del error y devuelve el estado de su huella.
+     */
+    public Occurrence record(Throwable error) {
+        String fingerprint = fingerprint(error);
+        Stats entry = stats.get(fingerprint, key -> new Stats(key, exceptionName(error), normalize(error.getMessage())));
+        return entry.hit(System.nanoTime());
+    }
+
+    /**
+     * @return las {@code limit} huellas con más ocurrencias en la ventana (desempate por total).
+     */
+    public List<Occurrence> top(int limit) {
+        long now = System.nanoTime();
+        List<Occurrence> all = new ArrayList<>();
+        stats.asMap().values().forEach(entry -> all.add(entry.snapshot(now)));
+        all.sort(Comparator.comparingLong(Occurrence::windowCount)
+                .thenComparingLong(Occurrence::total)
+                .reversed());
+        return all.subList(0, Math.min(limit, all.size()));
+    }
+
+    public String fingerprint(Throwable error) {
+        StringBuilder key = new StringBuilder(exceptionName(error))
+                .append('|').append(normalize(error.getMessage()));
+        for (String frame : significantFrames(error)) {
+            key.append('|').append(frame);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(key.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String normalize(String message) {
+        if (message == null) {
+            return "";
+        }
+        String normalized = UUID_PATTERN.matcher(message).replaceAll("<uuid>");
+        normalized = HEX_PATTERN.matcher(normalized).replaceAll("<hex>");
+        return NUMBER_PATTERN.matcher(normalized).replaceAll("<n>");
+    }
+
+    private static String exceptionName(Throwable error) {
+        Throwable root = error;
+        while (root.getCause() != null && root.getCause() != root) {
+            root = root.getCause();
+        }
+        String name = error.getClass().getName();
+        return root == error ? name : name + "<-" + root.getClass().getName();
+    }
+
+    // Frames propios (sin infraestructura); si no hay ninguno, los primeros de la pila.
+    private List<String> significantFrames(Throwable error) {
+        StackTraceElement[] stack = error.getStackTrace();
+        List<String> own = new ArrayList<>(frames);
+        for (StackTraceElement element : stack) {
+            if (own.size() == frames) {
+                break;
+            }
+            if (FRAMEWORK_PREFIXES.stream().noneMatch(element.getClassName()::startsWith)) {
+                own.add(frame(element));
+            }
+        }
+        if (own.isEmpty()) {
+            for (int i = 0; i < Math.min(frames, stack.length); i++) {
+                own.add(frame(stack[i]));
+            }
+        }
+        return own;
+    }
+
+    private static String frame(StackTraceElement element) {
+        String className = SYNTHETIC_PATTERN.matcher(element.getClassName()).replaceAll("");
+        String method = SYNTHETIC_PATTERN.matcher(element.getMethodName()).replaceAll("");
+        return className + "." + method;
+    }
+
+    // Contadores de una huella; la ventana son WINDOW_BUCKETS casilleros circulares.
+    private final class Stats {
+        private final String fingerprint;
+        private final String exception;
+        private final String message;
+        private final Instant firstSeen = Instant.now();
+        private final AtomicLong total = new AtomicLong();
+        private final long[] counts = new long[WINDOW_BUCKETS];
+        private final long[] epochs = new long[WINDOW_BUCKETS];
+        private volatile Instant lastSeen = firstSeen;
+
+        Stats(String fingerprint, String exception, String message) {
+            this.fingerprint = fingerprint;
+            this.exception = exception;
+            this.message = message;
+        }
+
+        Occurrence hit(long nowNanos) {
+            total.incrementAndGet();
+            lastSeen = Instant.now();
+            long epoch = nowNanos / bucketNanos;
+            int slot = (int) Math.floorMod(epoch, (long) WINDOW_BUCKETS);
+            synchronized (this) {
+                if (epochs[slot] != epoch) {
+                    epochs[slot] = epoch;
+                    counts[slot] = 0;
+                }
+                counts[slot]++;
+            }
+            return snapshot(nowNanos);
+        }
+
+        synchronized Occurrence snapshot(long nowNanos) {
+            long epoch = nowNanos / bucketNanos;
+            long windowCount = 0;
+            for (int i = 0; i < WINDOW_BUCKETS; i++) {
+                if (epoch - epochs[i] < WINDOW_BUCKETS) {
+                    windowCount += counts[i];
+                }
+            }
+            return new Occurrence(fingerprint, exception, message, total.get(), windowCount, firstSeen, lastSeen);
+        }
+    }
+}
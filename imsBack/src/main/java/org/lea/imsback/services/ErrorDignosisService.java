@@ -1,36 +1,190 @@
 package org.lea.imsback.services;
 
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.lea.imsback.models.dtos.Diagnosis;
+import org.lea.imsback.models.dtos.ErrorSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Manejo de errores críticos de los controladores con diagnóstico de IA asíncrono.
+ * <p>
+ * El 500 se responde al instante con un id de correlación; el diagnóstico corre en
+ * segundo plano ({@link LogAnalysisService}, hilos propios) y se consulta después con
+ * {@code GET /api/inventario/diagnosis/{id}}. Un límite de diagnósticos simultáneos y un
+ * circuit breaker evitan que una caída de la IA (o una ráfaga de errores) acumule trabajo.
+ * <p>
+ * Los errores se agrupan por huella ({@link ErrorAggregator}): sólo la primera ocurrencia
+ * de cada huella va a la IA, y luego una muestra cada {@code ims.diagnosis.sample-interval}.
+ * El resto de las ocurrencias comparte el diagnóstico cacheado de su huella.
+ */
 @Service
 public class ErrorDignosisService {
+    private static final Logger log = LoggerFactory.getLogger(ErrorDignosisService.class);
+
+    public static final String CORRELATION_HEADER = "X-Correlation-Id";
 
     private final LogAnalysisService logAnalysisService;
+    private final ErrorAggregator errorAggregator;
+    private final Semaphore permits;
+    private final CircuitBreaker circuitBreaker;
+    private final Duration sampleInterval;
+    // Diagnóstico por huella y huella por id de correlación
+    private final Cache<String, Diagnosis> diagnoses;
+    private final Cache<String, String> correlations;
+    // Huellas con una llamada a la IA en vuelo
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
 
-    public ErrorDignosisService(LogAnalysisService logAnalysisService) {
+    public ErrorDignosisService(LogAnalysisService logAnalysisService,
+                                ErrorAggregator errorAggregator,
+                                @Value("${ims.diagnosis.max-concurrent:4}") int maxConcurrent,
+                                @Value("${ims.diagnosis.breaker.failure-threshold:5}") int failureThreshold,
+                                @Value("${ims.diagnosis.breaker.open-duration:60s}") Duration openDuration,
+                                @Value("${ims.diagnosis.retention:1h}") Duration retention,
+                                @Value("${ims.diagnosis.sample-interval:10m}") Duration sampleInterval) {
         this.logAnalysisService = logAnalysisService;
+        this.errorAggregator = errorAggregator;
+        this.permits = new Semaphore(maxConcurrent);
+        this.circuitBreaker = new CircuitBreaker(failureThreshold, openDuration);
+        this.sampleInterval = sampleInterval;
+        this.diagnoses = Caffeine.newBuilder()
+                .maximumSize(1_000)
+                .expireAfterWrite(retention)
+                .build();
+        this.correlations = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(retention)
+                .build();
     }
 
     public Mono<ResponseEntity<String>> handleError(Object request, Throwable error) {
-        String logEntry = formatErrorLog(request, error);
+        String id = UUID.randomUUID().toString();
+        ErrorAggregator.Occurrence occurrence = errorAggregator.record(error);
+        String fingerprint = occurrence.fingerprint();
+        String logEntry = formatErrorLog(request, error, occurrence);
+        if (occurrence.isFirst()) {
+            log.error("Error crítico [{}] huella {}: {}", id, fingerprint, logEntry);
+        } else {
+            log.error("Error crítico [{}] huella {} ({} en la ventana): {}",
+                    id, fingerprint, occurrence.windowCount(), error.getMessage());
+        }
+
+        correlations.put(id, fingerprint);
+        if (claim(fingerprint)) {
+            diagnose(fingerprint, logEntry);
+        }
+
+        return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .header(CORRELATION_HEADER, id)
+                .body("ERROR CRÍTICO INTERNO. Se ha activado el diagnóstico de IA.\n\n"
+                        + "Consulte GET /api/inventario/diagnosis/" + id));
+    }
+
+    /**
+     * @param id id de correlación de la respuesta 500, o directamente una huella.
+     * @return Mono con el diagnóstico de la huella, o vacío si no existe o ya se descartó.
+     */
+    public Mono<Diagnosis> getDiagnosis(String id) {
+        String fingerprint = correlations.getIfPresent(id);
+        return Mono.justOrEmpty(diagnoses.getIfPresent(fingerprint != null ? fingerprint : id));
+    }
+
+    /**
+     * @return las huellas más frecuentes en la ventana, con el estado de su diagnóstico.
+     */
+    public Flux<ErrorSummary> topErrors(int limit) {
+        return Flux.fromIterable(errorAggregator.top(limit))
+                .map(occurrence -> {
+                    Diagnosis diagnosis = diagnoses.getIfPresent(occurrence.fingerprint());
+                    return new ErrorSummary(occurrence.fingerprint(), occurrence.exception(), occurrence.message(),
+                            occurrence.total(), occurrence.windowCount(), occurrence.firstSeen(), occurrence.lastSeen(),
+                            diagnosis != null ? diagnosis.status() : null);
+                });
+    }
+
+    public CircuitBreaker.State circuitState() {
+        return circuitBreaker.state();
+    }
+
+    /*
+     * Decide si esta ocurrencia va a la IA: primera vez, diagnóstico anterior fallido u
+     * omitido, o diagnóstico completo más viejo que el intervalo de muestreo. Nunca dos
+     * llamadas en vuelo para la misma huella.
+     */
+    private boolean claim(String fingerprint) {
+        if (!inFlight.add(fingerprint)) {
+            return false;
+        }
+        Diagnosis current = diagnoses.getIfPresent(fingerprint);
+        if (current != null && current.status() == Diagnosis.Status.COMPLETED) {
+            if (current.createdAt().isAfter(Instant.now().minus(sampleInterval))) {
+                inFlight.remove(fingerprint);
+                return false;
+            }
+            // Muestra periódica: el diagnóstico vigente sigue visible hasta que llegue el nuevo.
+            return true;
+        }
+        diagnoses.put(fingerprint, Diagnosis.pending(fingerprint));
+        return true;
+    }
+
+    private void diagnose(String fingerprint, String logEntry) {
+        if (!permits.tryAcquire()) {
+            complete(fingerprint, Diagnosis.Status.SKIPPED, "Demasiados diagnósticos en curso. Consulte logs de servidor.");
+            return;
+        }
+        if (!circuitBreaker.tryAcquire()) {
+            permits.release();
+            complete(fingerprint, Diagnosis.Status.SKIPPED, "Diagnóstico de IA no disponible (circuito abierto). Consulte logs de servidor.");
+            return;
+        }
+        logAnalysisService.analyzeErrorLog(logEntry)
+                .defaultIfEmpty("La IA no devolvió contenido.")
+                .doFinally(signal -> permits.release())
+                .subscribe(
+                        analysis -> {
+                            circuitBreaker.onSuccess();
+                            complete(fingerprint, Diagnosis.Status.COMPLETED, analysis);
+                        },
+                        failure -> {
+                            circuitBreaker.onFailure();
+                            log.warn("Fallo al obtener el diagnóstico de IA [huella {}]: {}", fingerprint, failure.getMessage());
+                            complete(fingerprint, Diagnosis.Status.FAILED, "Fallo al obtener el diagnóstico de IA. Consulte logs de servidor.");
+                        });
+    }
 
-        return logAnalysisService.analyzeErrorLog(logEntry)
-                .map(aiAnalysis -> ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                        .body("ERROR CRÍTICO INTERNO. Se ha activado el diagnóstico de IA.\n\n" + aiAnalysis))
-                .onErrorReturn(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                        .body("Error crítico. Fallo al obtener el diagnóstico de IA. Consulte logs de servidor."));
+    private void complete(String fingerprint, Diagnosis.Status status, String analysis) {
+        // Si falla una muestra periódica se conserva el diagnóstico completo anterior.
+        diagnoses.asMap().compute(fingerprint, (key, current) ->
+                status != Diagnosis.Status.COMPLETED && current != null && current.status() == Diagnosis.Status.COMPLETED
+                        ? current
+                        : (current != null ? current : Diagnosis.pending(key)).with(status, analysis));
+        inFlight.remove(fingerprint);
     }
 
-    private String formatErrorLog(Object request, Throwable error) {
+    private String formatErrorLog(Object request, Throwable error, ErrorAggregator.Occurrence occurrence) {
         return String.format("""
                 🔥 Error crítico detectado:
                 Request: %s
                 Exception: %s
                 Message: %s
-                """, request, error.getClass().getSimpleName(), error.getMessage());
+                Huella: %s (%d ocurrencias, %d en la última ventana)
+                """, request, error.getClass().getSimpleName(), error.getMessage(),
+                occurrence.fingerprint(), occurrence.total(), occurrence.windowCount());
     }
 }
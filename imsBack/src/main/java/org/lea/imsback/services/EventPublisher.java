@@ -1,26 +1,124 @@
 package org.lea.imsback.services;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.lea.imsback.models.StockKey;
 import org.lea.imsback.models.dtos.StockUpdateEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * Simula el envío de eventos de stock de forma reactiva (no bloqueante).
- * Verificar la tecnología de mensajería (ej. Kafka, RabbitMQ, o un simulacro en memoria)
- * y cómo se asegura la entrega del evento.
+ * Publica los eventos de stock de forma reactiva (no bloqueante) en el bus en memoria
+ * ({@link StockEventBus}), del que se alimentan el stream SSE y demás consumidores.
+ * <p>
+ * Los eventos pasan por una etapa de coalescencia: dentro de cada ventana
+ * ({@code ims.events.coalesce-window}) sólo se conserva el último evento de cada
+ * (tienda, SKU) y se emiten todos juntos. Un SKU caliente en flash sale genera así un
+ * evento por ventana en lugar de cientos. Con ventana 0 se publica cada evento al instante.
  */
 @Component
 public class EventPublisher {
     private static final Logger log = LoggerFactory.getLogger(EventPublisher.class);
 
-    public Mono<Void> publishStockUpdate(String storeId, String sku, int newQuantity) {
-        StockUpdateEvent event = new StockUpdateEvent(storeId, sku, newQuantity);
+    private final ItemCache itemCache;
+    private final StockAggregates stockAggregates;
+    private final LowStockAlertService lowStockAlertService;
+    private final StockEventBus stockEventBus;
+    private final Counter coalesced;
+    private final Sinks.Many<StockUpdateEvent> pending = Sinks.many().unicast().onBackpressureBuffer();
+    private final Disposable coalescer;
+
+    public EventPublisher(ItemCache itemCache, StockAggregates stockAggregates,
+                          LowStockAlertService lowStockAlertService, StockEventBus stockEventBus,
+                          MeterRegistry meterRegistry,
+                          @Value("${ims.events.coalesce-window:50ms}") Duration coalesceWindow) {
+        this.itemCache = itemCache;
+        this.stockAggregates = stockAggregates;
+        this.lowStockAlertService = lowStockAlertService;
+        this.stockEventBus = stockEventBus;
+        this.coalesced = Counter.builder("ims.events.coalesced")
+                .description("Eventos de stock descartados por otro más reciente de la misma clave")
+                .register(meterRegistry);
+        this.coalescer = coalesceWindow.isZero()
+                ? pending.asFlux().subscribe(this::emit)
+                : pending.asFlux()
+                .buffer(coalesceWindow)
+                .filter(window -> !window.isEmpty())
+                .subscribe(this::emitCoalesced);
+    }
+
+    /**
+     * @param version id del outbox o LSN del log. Un evento más viejo que el último aplicado a la
+     *                clave (reentrega tardía de un id salteado) sólo invalida la cache: no llega a
+     *                las alertas ni al bus, aunque lo nuevo haya salido en una ventana anterior.
+     */
+    public Mono<Void> publishStockUpdate(String storeId, String sku, int newQuantity, long version) {
+        StockUpdateEvent event = new StockUpdateEvent(storeId, sku, newQuantity, version);
 
         return Mono.fromRunnable(() -> {
-            // Simulamos el envío real a un broker de mensajes (e.g., Kafka)
-            log.info("EVENTO PUBLICADO -> StockUpdate: {}", event);
+            // Invalidación síncrona: ninguna lectura posterior al evento ve el stock anterior
+            itemCache.invalidate(storeId, sku);
+            // Antes de la coalescencia: los agregados y las alertas ven cada cambio
+            if (stockAggregates.onStockUpdate(storeId, sku, newQuantity, version)) {
+                lowStockAlertService.onStockUpdate(storeId, sku, newQuantity);
+                pending.emitNext(event, Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100)));
+            }
         }).then(); // Retorna Mono<Void> para mantener la cadena reactiva
     }
+
+    /**
+     * Borrado de un ítem: invalida la cache, deja una lápida con {@code version} en los agregados,
+     * cierra las alertas y publica en el bus un evento con {@code deleted = true}. Como en
+     * {@link #publishStockUpdate}, un borrado más viejo que lo ya aplicado no sigue de largo.
+     */
+    public Mono<Void> publishDelete(String storeId, String sku, long version) {
+        StockUpdateEvent event = new StockUpdateEvent(storeId, sku, 0, version, true);
+
+        return Mono.fromRunnable(() -> {
+            itemCache.invalidate(storeId, sku);
+            if (stockAggregates.onDelete(storeId, sku, version)) {
+                lowStockAlertService.onDelete(storeId, sku);
+                pending.emitNext(event, Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100)));
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        coalescer.dispose();
+    }
+
+    private void emitCoalesced(List<StockUpdateEvent> window) {
+        // Último evento por clave (el de mayor versión), en el orden en que apareció cada clave
+        Map<StockKey, StockUpdateEvent> latest = new LinkedHashMap<>();
+        for (StockUpdateEvent event : window) {
+            latest.merge(new StockKey(event.storeId(), event.sku()), event,
+                    (current, next) -> next.version() >= current.version() ? next : current);
+        }
+        int collapsed = window.size() - latest.size();
+        if (collapsed > 0) {
+            coalesced.increment(collapsed);
+        }
+        Collection<StockUpdateEvent> events = latest.values();
+        events.forEach(stockEventBus::publish);
+        log.info("EVENTOS PUBLICADOS -> {} StockUpdate ({} colapsados)", events.size(), collapsed);
+        log.debug("Eventos de la ventana: {}", events);
+    }
+
+    private void emit(StockUpdateEvent event) {
+        stockEventBus.publish(event);
+        log.info("EVENTO PUBLICADO -> StockUpdate: {}", event);
+    }
 }
@@ -0,0 +1,264 @@
+package org.lea.imsback.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.r2dbc.spi.Statement;
+import jakarta.annotation.PreDestroy;
+import org.lea.imsback.models.StockHold;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.models.dtos.HoldResult;
+import org.lea.imsback.models.dtos.StockUpdateEvent;
+import org.lea.imsback.repositories.StockHoldRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Reservas con vencimiento (holds).
+ * <p>
+ * Reservar descuenta el stock como siempre y registra un hold con TTL en la misma transacción
+ * (o en el group commit del carril): no queda descuento sin hold aunque se cancele la petición.
+ * El hold se confirma (el descuento queda firme) o se libera (el stock vuelve al ítem). Si
+ * nadie lo confirma, vence y el stock se devuelve solo.
+ * <p>
+ * Los vencimientos los lleva un {@link HoldTimingWheel} en memoria con un único hilo de
+ * tick: no hay un timer por hold ni barridos de la tabla. Los holds vencidos en cada tick
+ * se devuelven por lotes: un DELETE con {@code OLD TABLE} y un UPDATE batch por clave.
+ */
+@Service
+public class HoldService {
+    private static final Logger log = LoggerFactory.getLogger(HoldService.class);
+
+    private static final String RETURN_SQL = """
+            SELECT quantity FROM FINAL TABLE (
+                UPDATE item SET quantity = quantity + $1, version = version + 1
+                WHERE sku = $2 AND store_id = $3)
+            """;
+    private static final Comparator<StockKey> KEY_ORDER =
+            Comparator.comparing(StockKey::storeId).thenComparing(StockKey::sku);
+    // Reintento de un lote de vencimientos que falló contra la BD
+    private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final InventoryService inventoryService;
+    private final StockHoldRepository holdRepository;
+    private final DatabaseClient databaseClient;
+    private final TransactionalOperator transactionalOperator;
+    private final ShardedStockService shardedStockService;
+    private final StockEventOutbox stockEventOutbox;
+    private final ObjectProvider<DurableInventoryStore> durableStore;
+    private final Duration defaultTtl;
+    private final int expireBatchSize;
+    private final Counter expiredHolds;
+    private final HoldTimingWheel wheel;
+    private final ScheduledExecutorService ticker;
+
+    public HoldService(InventoryService inventoryService,
+                       StockHoldRepository holdRepository,
+                       DatabaseClient databaseClient,
+                       TransactionalOperator transactionalOperator,
+                       ShardedStockService shardedStockService,
+                       StockEventOutbox stockEventOutbox,
+                       ObjectProvider<DurableInventoryStore> durableStore,
+                       MeterRegistry meterRegistry,
+                       @Value("${ims.holds.ttl:15m}") Duration defaultTtl,
+                       @Value("${ims.holds.tick:100ms}") Duration tick,
+                       @Value("${ims.holds.wheel-size:4096}") int wheelSize,
+                       @Value("${ims.holds.expire-batch-size:500}") int expireBatchSize) {
+        this.inventoryService = inventoryService;
+        this.holdRepository = holdRepository;
+        this.databaseClient = databaseClient;
+        this.transactionalOperator = transactionalOperator;
+        this.shardedStockService = shardedStockService;
+        this.stockEventOutbox = stockEventOutbox;
+        this.durableStore = durableStore;
+        this.defaultTtl = defaultTtl;
+        this.expireBatchSize = expireBatchSize;
+        this.expiredHolds = Counter.builder("ims.holds.expired").register(meterRegistry);
+        this.wheel = new HoldTimingWheel(tick.toNanos(), wheelSize, System.nanoTime());
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hold-expirer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::expireDue, tick.toNanos(), tick.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Vuelve a programar los holds que quedaron pendientes (una sola lectura al arrancar,
+     * en orden de vencimiento).
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void scheduleOutstandingHolds() {
+        holdRepository.findAllByOrderByExpiresAtAsc()
+                .subscribe(hold -> schedule(hold.getId(), hold.getExpiresAt()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * Reserva stock y registra un hold que vence en {@code ttl} (o el TTL por defecto).
+     */
+    public Mono<HoldResult> hold(String storeId, String sku, int quantity, Duration ttl) {
+        if (durableStore.getIfAvailable() != null) {
+            // El hold vive en stock_hold y su stock en el WAL: un reinicio perdería lo retenido.
+            return Mono.error(new UnsupportedOperationException("Reservas con vencimiento no disponibles en modo durable"));
+        }
+        StockHold hold = new StockHold(UUID.randomUUID().toString(), storeId, sku, quantity,
+                Instant.now().plus(ttl != null ? ttl : defaultTtl));
+        // El alta confirma con el descuento (outbox, invalidación tras el commit, reintentos y
+        // métricas incluidos), igual por carriles o shards. Se programa dentro de la transacción,
+        // para que una cancelación tras el commit no lo deje sin vencer, y otra vez después del
+        // commit por si éste llegó pasado el vencimiento. Un vencimiento que no encuentra el hold
+        // (revertido o ya devuelto) no hace nada.
+        Mono<Void> insertHold = holdRepository.insert(hold.getId(), storeId, sku, quantity, hold.getExpiresAt())
+                .doOnSuccess(rows -> schedule(hold.getId(), hold.getExpiresAt()))
+                .then();
+        return inventoryService.reserveStock(storeId, sku, quantity, insertHold)
+                .map(status -> new HoldResult(status, status.isReserved() ? hold : null))
+                .doOnNext(result -> {
+                    if (result.hold() != null) {
+                        schedule(hold.getId(), hold.getExpiresAt());
+                    }
+                });
+    }
+
+    /**
+     * Confirma un hold vigente: el descuento queda firme.
+     *
+     * @return Mono<Boolean> - false si el hold no existe, ya se liberó o venció.
+     */
+    public Mono<Boolean> confirm(String holdId) {
+        return holdRepository.confirm(holdId, Instant.now())
+                .doOnNext(hold -> log.info("HOLD CONFIRMADO: {} ({} x SKU {} en {})",
+                        holdId, hold.getQuantity(), hold.getSku(), hold.getStoreId()))
+                .map(hold -> true)
+                .defaultIfEmpty(false);
+    }
+
+    /**
+     * Libera un hold devolviendo su cantidad al ítem.
+     *
+     * @return Mono<Boolean> - false si el hold no existe (ya confirmado, liberado o vencido).
+     */
+    public Mono<Boolean> release(String holdId) {
+        return releaseAll(List.of(holdId))
+                .doOnNext(released -> {
+                    if (released > 0) {
+                        log.info("HOLD LIBERADO: {}", holdId);
+                    }
+                })
+                .map(released -> released > 0);
+    }
+
+    private void schedule(String holdId, Instant expiresAt) {
+        long delayNanos = Math.max(0, Duration.between(Instant.now(), expiresAt).toNanos());
+        wheel.schedule(holdId, System.nanoTime() + delayNanos);
+    }
+
+    // Hilo del tick: toma los vencidos y los devuelve por lotes sin bloquear el tick.
+    private void expireDue() {
+        List<String> due = wheel.advance(System.nanoTime());
+        if (due.isEmpty()) {
+            return;
+        }
+        Flux.fromIterable(due)
+                .buffer(expireBatchSize)
+                .concatMap(batch -> releaseAll(batch)
+                        .doOnNext(expired -> {
+                            expiredHolds.increment(expired);
+                            if (expired > 0) {
+                                log.info("HOLDS VENCIDOS: {} devueltos al stock", expired);
+                            }
+                        })
+                        .onErrorResume(e -> {
+                            log.warn("No se pudieron vencer {} holds, se reintenta: {}", batch.size(), e.getMessage());
+                            batch.forEach(id -> wheel.schedule(id, System.nanoTime() + RETRY_NANOS));
+                            return Mono.empty();
+                        }))
+                .subscribe();
+    }
+
+    private Mono<Integer> releaseAll(Collection<String> holdIds) {
+        Mono<List<StockHold>> released = holdRepository.deleteReturning(holdIds)
+                .collectList()
+                .flatMap(holds -> returnStock(holds).thenReturn(holds));
+        return transactionalOperator.transactional(released)
+                .doOnNext(this::afterReturn)
+                .map(List::size);
+    }
+
+    // Suma por clave y devuelve el stock en orden de clave (mismo orden de locks que el lote).
+    private Mono<Void> returnStock(List<StockHold> holds) {
+        Map<StockKey, Integer> plain = new TreeMap<>(KEY_ORDER);
+        Map<StockKey, Integer> sharded = new TreeMap<>(KEY_ORDER);
+        for (StockHold hold : holds) {
+            StockKey key = new StockKey(hold.getStoreId(), hold.getSku());
+            (shardedStockService.isSharded(key.storeId(), key.sku()) ? sharded : plain)
+                    .merge(key, hold.getQuantity(), Integer::sum);
+        }
+        Flux<StockUpdateEvent> plainEvents = returnPlain(plain);
+        Flux<StockUpdateEvent> shardedEvents = Flux.fromIterable(sharded.entrySet())
+                .concatMap(entry -> shardedStockService.giveBack(entry.getKey().storeId(), entry.getKey().sku(), entry.getValue())
+                        .filter(returned -> returned)
+                        .map(returned -> StockEventOutbox.refresh(entry.getKey().storeId(), entry.getKey().sku())));
+        return Flux.concat(plainEvents, shardedEvents)
+                .collectList()
+                .flatMap(stockEventOutbox::append);
+    }
+
+    // Un único statement batch: un incremento por clave.
+    private Flux<StockUpdateEvent> returnPlain(Map<StockKey, Integer> plain) {
+        if (plain.isEmpty()) {
+            return Flux.empty();
+        }
+        List<StockKey> keys = new ArrayList<>(plain.keySet());
+        return databaseClient.inConnectionMany(connection -> {
+            Statement statement = connection.createStatement(RETURN_SQL);
+            for (int i = 0; i < keys.size(); i++) {
+                StockKey key = keys.get(i);
+                statement.bind(0, plain.get(key)).bind(1, key.sku()).bind(2, key.storeId());
+                if (i < keys.size() - 1) {
+                    statement.add();
+                }
+            }
+            return Flux.from(statement.execute())
+                    .index()
+                    .concatMap(indexed -> Flux.from(indexed.getT2().map((row, meta) -> row.get(0, Integer.class)))
+                            .map(quantity -> {
+                                StockKey key = keys.get(indexed.getT1().intValue());
+                                return new StockUpdateEvent(key.storeId(), key.sku(), quantity);
+                            }));
+        });
+    }
+
+    private void afterReturn(List<StockHold> holds) {
+        stockEventOutbox.afterCommit(holds.stream()
+                .map(hold -> new StockKey(hold.getStoreId(), hold.getSku()))
+                .collect(Collectors.toSet()));
+    }
+}
@@ -0,0 +1,84 @@
+package org.lea.imsback.services;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Timing wheel con hash para vencimientos de holds.
+ * <p>
+ * La rueda tiene {@code wheelSize} casilleros de {@code tickNanos} cada uno; un hold se
+ * ubica en el casillero {@code tickDeVencimiento % wheelSize}, así que programar y
+ * vencer cuesta O(1) sin importar cuántos holds haya pendientes. Los vencimientos más
+ * lejanos que una vuelta comparten casillero y simplemente se saltean hasta su vuelta.
+ * <p>
+ * {@link #schedule} es seguro desde cualquier hilo (sólo encola); {@link #advance} debe
+ * llamarse siempre desde el mismo hilo (el del tick).
+ */
+final class HoldTimingWheel {
+
+    private record Entry(String holdId, long deadlineTick) {
+    }
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final List<Entry>[] buckets;
+    private final int mask;
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    // Próximo tick a procesar (sólo lo toca el hilo del tick)
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    HoldTimingWheel(long tickNanos, int wheelSize, long startNanos) {
+        // Tamaño potencia de dos: el módulo se resuelve con una máscara.
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.startNanos = startNanos;
+        this.mask = size - 1;
+        this.buckets = new List[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+    }
+
+    void schedule(String holdId, long deadlineNanos) {
+        long deadlineTick = Math.max(0, (deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+        pending.add(new Entry(holdId, deadlineTick));
+    }
+
+    /**
+     * Procesa todos los ticks vencidos hasta {@code nowNanos}.
+     *
+     * @return ids de los holds vencidos.
+     */
+    List<String> advance(long nowNanos) {
+        long currentTick = (nowNanos - startNanos) / tickNanos;
+        List<String> expired = new ArrayList<>();
+        transferPending(expired);
+        for (; tick <= currentTick; tick++) {
+            Iterator<Entry> it = buckets[(int) (tick & mask)].iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.deadlineTick() <= tick) {
+                    it.remove();
+                    expired.add(entry.holdId());
+                }
+            }
+        }
+        return expired;
+    }
+
+    private void transferPending(List<String> expired) {
+        Entry entry;
+        while ((entry = pending.poll()) != null) {
+            if (entry.deadlineTick() < tick) {
+                // Su casillero ya pasó en esta vuelta: vence ahora.
+                expired.add(entry.holdId());
+            } else {
+                buckets[(int) (entry.deadlineTick() & mask)].add(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.lea.imsback.services;
+
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.models.dtos.HotKey;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Top-K de las claves (tienda, SKU) con más intentos de reserva, con memoria acotada
+ * ({@link SpaceSaving} de {@code ims.hotkeys.capacity} contadores en total).
+ * <p>
+ * El sketch se reparte en {@code ims.hotkeys.stripes} franjas por hash de la clave, cada una
+ * con su propio lock: reservas de claves distintas no compiten por un monitor global, y como
+ * una clave cae siempre en la misma franja sus conteos no se mezclan. El top es la unión de
+ * los tops de cada franja.
+ * <p>
+ * Las frecuencias se cuentan por ventanas de {@code ims.hotkeys.window}: al cerrar una
+ * ventana queda disponible como "anterior" y la actual empieza de cero, así el top refleja
+ * lo caliente ahora y no desde el arranque.
+ */
+@Component
+public class HotKeyTracker {
+
+    public record Snapshot(Instant windowStart, Duration window, List<HotKey> current, List<HotKey> previous) {
+    }
+
+    private final int stripes;
+    private final int stripeCapacity;
+    private final Duration window;
+    private volatile Window current;
+    private volatile Window previous;
+
+    public HotKeyTracker(@Value("${ims.hotkeys.capacity:1024}") int capacity,
+                         @Value("${ims.hotkeys.window:5m}") Duration window,
+                         @Value("${ims.hotkeys.stripes:16}") int stripes) {
+        // Potencia de dos, para elegir la franja con una máscara
+        this.stripes = Integer.highestOneBit(Math.max(1, stripes) * 2 - 1);
+        this.stripeCapacity = Math.max(1, (capacity + this.stripes - 1) / this.stripes);
+        this.window = window;
+        this.current = new Window(this.stripes, stripeCapacity);
+        this.previous = new Window(this.stripes, stripeCapacity);
+    }
+
+    public void record(String storeId, String sku) {
+        current.record(new StockKey(storeId, sku));
+    }
+
+    public Snapshot snapshot(int limit) {
+        Window now = current;
+        Window before = previous;
+        return new Snapshot(now.start, window, now.top(limit), before.top(limit));
+    }
+
+    @Scheduled(fixedDelayString = "${ims.hotkeys.window:5m}", initialDelayString = "${ims.hotkeys.window:5m}")
+    public void rotate() {
+        previous = current;
+        current = new Window(stripes, stripeCapacity);
+    }
+
+    private static final class Window {
+        private final Instant start = Instant.now();
+        private final SpaceSaving<StockKey>[] sketches;
+
+        @SuppressWarnings("unchecked")
+        Window(int stripes, int stripeCapacity) {
+            this.sketches = new SpaceSaving[stripes];
+            for (int i = 0; i < stripes; i++) {
+                sketches[i] = new SpaceSaving<>(stripeCapacity);
+            }
+        }
+
+        void record(StockKey key) {
+            int hash = key.hashCode();
+            SpaceSaving<StockKey> sketch = sketches[(hash ^ (hash >>> 16)) & (sketches.length - 1)];
+            synchronized (sketch) {
+                sketch.add(key);
+            }
+        }
+
+        List<HotKey> top(int limit) {
+            List<SpaceSaving.Entry<StockKey>> entries = new ArrayList<>();
+            for (SpaceSaving<StockKey> sketch : sketches) {
+                synchronized (sketch) {
+                    entries.addAll(sketch.top(limit));
+                }
+            }
+            return entries.stream()
+                    .sorted(Comparator.comparingLong((SpaceSaving.Entry<StockKey> entry) -> entry.count()).reversed())
+                    .limit(limit)
+                    .map(entry -> new HotKey(entry.key().storeId(), entry.key().sku(), entry.count(), entry.error()))
+                    .toList();
+        }
+    }
+}
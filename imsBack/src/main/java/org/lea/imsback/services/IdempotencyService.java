@@ -0,0 +1,182 @@
+package org.lea.imsback.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.lea.imsback.models.IdempotencyRecord;
+import org.lea.imsback.repositories.IdempotencyRecordRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Soporte de la cabecera {@code Idempotency-Key} para operaciones que los clientes reintentan.
+ * <p>
+ * Dos niveles: un LRU en memoria con las claves recientes y la tabla
+ * {@code idempotency_record} con TTL. Un duplicado devuelve la respuesta original sin volver
+ * a ejecutar la operación. Los duplicados concurrentes comparten el mismo future en memoria,
+ * así que esperan al primer intento en vuelo en lugar de competir con él.
+ * <p>
+ * Sólo se guardan respuestas definitivas: un 5xx no se recuerda y el reintento se ejecuta de nuevo.
+ */
+@Service
+public class IdempotencyService {
+    private static final Logger log = LoggerFactory.getLogger(IdempotencyService.class);
+
+    public static final String HEADER = "Idempotency-Key";
+    private static final int MAX_KEY_LENGTH = 255;
+
+    private final IdempotencyRecordRepository recordRepository;
+    private final ObjectMapper objectMapper;
+    private final Duration ttl;
+    private final AsyncCache<String, StoredResponse> recent;
+
+    public IdempotencyService(IdempotencyRecordRepository recordRepository,
+                              ObjectMapper objectMapper,
+                              MeterRegistry meterRegistry,
+                              @Value("${ims.idempotency.memory-size:10000}") long memorySize,
+                              @Value("${ims.idempotency.ttl:24h}") Duration ttl) {
+        this.recordRepository = recordRepository;
+        this.objectMapper = objectMapper;
+        this.ttl = ttl;
+        this.recent = Caffeine.newBuilder()
+                .maximumSize(memorySize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .buildAsync();
+        CaffeineCacheMetrics.monitor(meterRegistry, recent, "idempotency");
+    }
+
+    /**
+     * Ejecuta {@code action} una sola vez por (operación, clave).
+     * Sin clave, la operación se ejecuta normalmente.
+     *
+     * @param request cuerpo de la petición; reutilizar la clave con otro cuerpo devuelve 422.
+     */
+    public Mono<ResponseEntity<String>> execute(String operation, String key, Object request,
+                                                Supplier<Mono<ResponseEntity<String>>> action) {
+        if (key == null) {
+            return action.get();
+        }
+        if (key.isBlank() || key.length() > MAX_KEY_LENGTH) {
+            return Mono.just(ResponseEntity.badRequest()
+                    .body("Cabecera " + HEADER + " inválida (1 a " + MAX_KEY_LENGTH + " caracteres)."));
+        }
+        String id = operation + ":" + key;
+        String requestHash = hash(request);
+        return Mono.defer(() -> {
+            CompletableFuture<StoredResponse> response =
+                    recent.get(id, (k, executor) -> load(id, requestHash, action).toFuture());
+            // suppressCancel: si un cliente corta, los demás duplicados siguen esperando el mismo future.
+            return Mono.fromFuture(response, true)
+                    .doOnNext(stored -> {
+                        if (!stored.isFinal()) {
+                            recent.asMap().remove(id, response);
+                        }
+                    });
+        }).map(stored -> stored.requestHash().equals(requestHash)
+                ? stored.toResponse()
+                : ResponseEntity.unprocessableEntity()
+                .body("La " + HEADER + " ya se usó con otra petición."));
+    }
+
+    /**
+     * Purga periódica de respuestas vencidas.
+     */
+    @Scheduled(fixedDelayString = "${ims.idempotency.purge-interval:10m}")
+    public Mono<Void> purgeExpired() {
+        return recordRepository.deleteExpired(Instant.now())
+                .doOnNext(deleted -> {
+                    if (deleted > 0) {
+                        log.info("Idempotencia: {} respuestas vencidas purgadas", deleted);
+                    }
+                })
+                .then();
+    }
+
+    // Segundo nivel: la tabla. Si tampoco está ahí, se ejecuta la operación y se guarda.
+    private Mono<StoredResponse> load(String id, String requestHash, Supplier<Mono<ResponseEntity<String>>> action) {
+        return recordRepository.findValid(id, Instant.now())
+                .map(this::fromRecord)
+                .switchIfEmpty(Mono.defer(() -> action.get()
+                        .map(response -> fromResponse(requestHash, response))
+                        .flatMap(stored -> stored.isFinal()
+                                ? recordRepository.upsert(id, stored.requestHash(), stored.status(),
+                                        writeHeaders(stored.headers()), stored.body(), Instant.now().plus(ttl))
+                                .thenReturn(stored)
+                                : Mono.just(stored))));
+    }
+
+    private StoredResponse fromResponse(String requestHash, ResponseEntity<String> response) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        response.getHeaders().forEach((name, values) -> headers.put(name, String.join(",", values)));
+        return new StoredResponse(requestHash, response.getStatusCode().value(), headers, response.getBody());
+    }
+
+    private StoredResponse fromRecord(IdempotencyRecord record) {
+        return new StoredResponse(record.getRequestHash(), record.getStatus(), readHeaders(record.getHeaders()), record.getBody());
+    }
+
+    private String writeHeaders(Map<String, String> headers) {
+        try {
+            return objectMapper.writeValueAsString(headers);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("No se pudieron serializar las cabeceras", e);
+        }
+    }
+
+    private Map<String, String> readHeaders(String json) {
+        if (json == null) {
+            return Map.of();
+        }
+        try {
+            return objectMapper.readValue(json, new TypeReference<>() {
+            });
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cabeceras guardadas ilegibles", e);
+        }
+    }
+
+    private static String hash(Object request) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(String.valueOf(request).getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record StoredResponse(String requestHash, int status, Map<String, String> headers, String body) {
+
+        boolean isFinal() {
+            return status < HttpStatus.INTERNAL_SERVER_ERROR.value();
+        }
+
+        ResponseEntity<String> toResponse() {
+            HttpHeaders httpHeaders = new HttpHeaders();
+            headers.forEach(httpHeaders::add);
+            return ResponseEntity.status(status).headers(httpHeaders).body(body);
+        }
+    }
+}
@@ -2,15 +2,21 @@ package org.lea.imsback.services;
 
 
 import org.lea.imsback.models.Item;
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.models.dtos.StockUpdateEvent;
 import org.lea.imsback.repositories.InventoryRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+
 @Service
 public class InventoryService {
     private static final Logger log = LoggerFactory.getLogger(InventoryService.class);
@@ -19,12 +25,39 @@ public class InventoryService {
     private InventoryRepository inventoryRepository;
 
     @Autowired
-    private EventPublisher eventPublisher;
+    private StockEventOutbox stockEventOutbox;
+
+    @Autowired
+    private ShardedStockService shardedStockService;
+
+    @Autowired
+    private ContentionManager contentionManager;
+
+    @Autowired
+    private ItemCache itemCache;
+
+    @Autowired
+    private StockAggregates stockAggregates;
+
+    @Autowired
+    private ReservationMetrics reservationMetrics;
+
+    @Value("${ims.store-listing.page-size:500}")
+    private int storePageSize = 500;
+
+    // Sólo presente con ims.reservation.lanes.enabled=true
+    @Autowired(required = false)
+    private ReservationLaneEngine laneEngine;
+
+    // Sólo presente con ims.durable.enabled=true: inventario en memoria + write-ahead log
+    @Autowired(required = false)
+    private DurableInventoryStore durableStore;
 
     /**
      * Intenta reservar stock de forma reactiva.
-     * La consistencia se maneja dentro de la cadena reactiva (Mono.flatMap)
-     * que simula una transacción atómica.
+     * La validación y el descuento se resuelven en una única sentencia condicional
+     * ({@link InventoryRepository#reserveStock}), por lo que no hay ventana entre la
+     * lectura y la escritura y no se producen conflictos de bloqueo optimista.
      *
      * @return Mono<Boolean> - true si la reserva fue exitosa, false si no hay stock.
      */
@@ -37,93 +70,239 @@ public class InventoryService {
             return Mono.error(new IllegalStateException("Fallo forzado de conexión a BD para IA."));
         }
         // =========================================================================
+        return reserveStock(storeId, sku, quantity)
+                .map(ReservationStatus::isReserved)
+                .onErrorResume(e -> {
+                    //TOLERANCIA A FALLOS y MANEJO DE ERROR REACTIVO:
+                    // Errores de persistencia o de publicación del evento se logean y se devuelve false al cliente.
+                    log.error("Error al reservar o publicar evento para SKU {} en {}: {}", sku, storeId, e.getMessage());
+                    return Mono.just(false);
+                });
+    }
+
+    /**
+     * Reserva stock con un único UPDATE condicional en el camino exitoso; el evento se
+     * registra en el outbox dentro de la misma transacción. Sólo cuando el UPDATE no afecta filas se consulta el ítem para distinguir
+     * entre stock insuficiente e ítem no encontrado.
+     * Las claves en modo flash sale se reservan sobre sus shards; si el motor por
+     * carriles está activo, el resto se delega en él (group commit). En modo durable
+     * todo se resuelve en {@link DurableInventoryStore}.
+     * Cada intento se mide por resultado en {@link ReservationMetrics}.
+     */
+    public Mono<ReservationStatus> reserveStock(String storeId, String sku, int quantity) {
+        return reserveStock(storeId, sku, quantity, null);
+    }
+
+    /**
+     * Como {@link #reserveStock(String, String, int)}, y si la reserva se acepta ejecuta
+     * {@code onReserved} en su misma transacción (el alta de un hold): o confirman los dos o
+     * ninguno. No disponible en modo durable.
+     *
+     * @param onReserved escritura a confirmar junto con el descuento, o null.
+     */
+    public Mono<ReservationStatus> reserveStock(String storeId, String sku, int quantity, Mono<Void> onReserved) {
+        return reservationMetrics.record(storeId, sku, doReserveStock(storeId, sku, quantity, onReserved));
+    }
+
+    private Mono<ReservationStatus> doReserveStock(String storeId, String sku, int quantity, Mono<Void> onReserved) {
+        if (durableStore != null) {
+            return onReserved == null
+                    ? durableStore.reserve(storeId, sku, quantity)
+                    : Mono.error(new UnsupportedOperationException("El log durable no confirma otras escrituras con la reserva"));
+        }
+        boolean sharded = shardedStockService.isSharded(storeId, sku);
+        Mono<ReservationStatus> routed;
+        if (sharded) {
+            routed = reserveFromShards(storeId, sku, quantity, onReserved);
+        } else if (laneEngine != null) {
+            routed = laneEngine.reserve(storeId, sku, quantity, onReserved);
+        } else {
+            routed = reserveFromItem(storeId, sku, quantity, onReserved);
+        }
+        return routed.flatMap(status -> {
+            if (status.isReserved() || (!shardedStockService.isSwitching(storeId, sku)
+                    && sharded == shardedStockService.isSharded(storeId, sku))) {
+                return Mono.just(status);
+            }
+            // Flash sale activándose o desactivándose: el stock puede estar ya del otro lado
+            return (sharded ? reserveFromItem(storeId, sku, quantity, onReserved) : reserveFromShards(storeId, sku, quantity, onReserved))
+                    .map(other -> other.isReserved() ? other : status);
+        });
+    }
+
+    private Mono<ReservationStatus> reserveFromShards(String storeId, String sku, int quantity, Mono<Void> onReserved) {
+        return contentionManager.execute(new StockKey(storeId, sku), () -> stockEventOutbox.transactional(
+                shardedStockService.reserve(storeId, sku, quantity)
+                        .flatMap(status -> status.isReserved() ? alsoOnReserved(status, onReserved) : Mono.just(status)),
+                status -> status.isReserved() ? StockEventOutbox.refresh(storeId, sku) : null));
+    }
+
+    private Mono<ReservationStatus> reserveFromItem(String storeId, String sku, int quantity, Mono<Void> onReserved) {
+        // Los conflictos transitorios (lock timeout, deadlock) se reintentan en vez de responder "sin stock".
+        return contentionManager.execute(new StockKey(storeId, sku), () -> stockEventOutbox.transactional(
+                        inventoryRepository.reserveStock(sku, storeId, quantity)
+                                .flatMap(newQuantity -> alsoOnReserved(newQuantity, onReserved)),
+                        newQuantity -> new StockUpdateEvent(storeId, sku, newQuantity)))
+                .map(newQuantity -> {
+                    log.info("RESERVA EXITOSA: SKU {} en {}. Stock restante: {}", sku, storeId, newQuantity);
+                    return ReservationStatus.RESERVED;
+                })
+                .switchIfEmpty(Mono.defer(() -> classifyRejection(storeId, sku, quantity)));
+    }
+
+    private static <T> Mono<T> alsoOnReserved(T result, Mono<Void> onReserved) {
+        return onReserved == null ? Mono.just(result) : onReserved.thenReturn(result);
+    }
+
+    private Mono<ReservationStatus> classifyRejection(String storeId, String sku, int quantity) {
         return inventoryRepository.findBySkuAndStoreId(sku, storeId)
-                .flatMap(item -> {
-                    // Validación: Si hay suficiente stock
-                    int currentQuantity = item.getQuantity();
-                    int newQuantity = currentQuantity - quantity;
-
-                    if (newQuantity >= 0) {
-                        item.setQuantity(newQuantity);
-                        // **Paso 2: Operación atómica (Guardar y Publicar)**
-                        // Retorna la cadena de operaciones: guardar -> publicar -> devolver true
-                        return inventoryRepository.save(item)
-                                .flatMap(savedItem -> {
-                                    // Publicar el evento de actualización de stock
-                                    //MANEJO DE ERRORES REACTIVO:
-                                    //maneja explícitamente tres escenarios de fallo: Stock Insuficiente (Lógica de Negocio),
-                                    //Error de Persistencia/Evento (Técnico), e Ítem No Encontrado
-                                    return eventPublisher.publishStockUpdate(storeId, sku, savedItem.getQuantity())
-                                            .thenReturn(true);
-                                })
-                                .doOnSuccess(s -> log.info("RESERVA EXITOSA: SKU {} en {}. Stock restante: {}", sku, storeId, newQuantity))
-                                .onErrorResume(e -> {
-                                    //TOLERANCIA A FALLOS y MANEJO DE ERROR REACTIVO:
-                                    // Manejo de errores de la BD/evento. Aquí podrías intentar un rollback lógico.
-                                    //En la secuencia crucial (save y publish). Esto maneja errores de persistencia o de publicación de eventos,
-                                    // logeándolos y devolviendo false al cliente.
-                                    if (e instanceof OptimisticLockingFailureException) {
-                                        //garantizando que el inventario nunca baje de cero debido a la concurrencia
-                                        log.warn("RESERVA FALLIDA por concurrencia (Optimistic Lock) para SKU {} en {}", sku, storeId);
-                                        // Devolver falso para indicar que la reserva no pudo completarse
-                                        return Mono.just(false);
-                                    }
-                                    log.error("Error al guardar o publicar evento para SKU {} en {}: {}", sku, storeId, e.getMessage());
-                                    // Por simplicidad, se devuelve false ante cualquier error de persistencia/evento.
-                                    return Mono.just(false);
-                                });
-                    } else {
-                        // Stock insuficiente
-                        log.warn("RESERVA FALLIDA: Stock insuficiente para SKU {} en {}. Solicitado: {}, Disponible: {}", sku, storeId, quantity, currentQuantity);
-                        return Mono.just(false);
-                    }
+                .map(item -> {
+                    log.warn("RESERVA FALLIDA: Stock insuficiente para SKU {} en {}. Solicitado: {}, Disponible: {}", sku, storeId, quantity, item.getQuantity());
+                    return ReservationStatus.INSUFFICIENT_STOCK;
                 })
                 //este es el que hace posible el fallback cuando no se encuentra el ítem
-                .switchIfEmpty(Mono.defer(() -> {
-                    // Ítem no encontrado
+                .switchIfEmpty(Mono.fromSupplier(() -> {
                     log.warn("RESERVA FALLIDA: Ítem no encontrado: SKU {} en {}", sku, storeId);
-                    return Mono.just(false);
+                    return ReservationStatus.NOT_FOUND;
                 }));
     }
 
+    /**
+     * Alta de un ítem. Registra su evento de stock como cualquier otra escritura (outbox o
+     * log durable), así que agregados y alertas de stock bajo la ven con su versión.
+     */
     public Mono<Boolean> createItem(Item item) {
-        return inventoryRepository.findBySkuAndStoreId(item.getSku(), item.getStoreId())
-                .flatMap(existing -> Mono.just(false)) // Ya existe
-                .switchIfEmpty(
-                        Mono.defer(() -> inventoryRepository.save(item) // Use Mono.defer for lazy execution
-                                .thenReturn(true)
-                                .doOnSuccess(s -> log.info("..."))
+        if (durableStore != null) {
+            return durableStore.create(item);
+        }
+        return stockEventOutbox.transactional(
+                inventoryRepository.findBySkuAndStoreId(item.getSku(), item.getStoreId())
+                        .flatMap(existing -> Mono.just(false)) // Ya existe
+                        .switchIfEmpty(
+                                Mono.defer(() -> inventoryRepository.save(item) // Use Mono.defer for lazy execution
+                                        .thenReturn(true)
+                                        .doOnSuccess(s -> log.info("..."))
+                                )
                         )
-                )
-                .cast(Boolean.class);
+                        .cast(Boolean.class),
+                created -> created ? new StockUpdateEvent(item.getStoreId(), item.getSku(), item.getQuantity()) : null);
     }
 
+    /**
+     * Recorre todos los ítems de la tienda en páginas keyset sucesivas.
+     * Cada página se pide recién cuando el suscriptor consumió la anterior, así que
+     * una tienda grande se transmite con memoria acotada y respetando la contrapresión.
+     */
     public Flux<Item> getItemsByStore(String storeId) {
-        return inventoryRepository.findAll()
-                .filter(item -> item.getStoreId().equals(storeId));
+        return getItemsByStore(storeId, 0L, storePageSize)
+                .collectList()
+                .expand(page -> page.size() < storePageSize
+                        ? Mono.empty()
+                        : Mono.defer(() -> getItemsByStore(storeId, page.get(page.size() - 1).getId(), storePageSize)
+                        .collectList()))
+                // Prefetch 1: como mucho una página por delante de lo que pidió el suscriptor.
+                .concatMapIterable(page -> page, 1);
+    }
+
+    /**
+     * Una página del listado de la tienda a partir del cursor {@code afterId} (exclusivo).
+     */
+    public Flux<Item> getItemsByStore(String storeId, Long afterId, int limit) {
+        if (durableStore != null) {
+            return durableStore.findByStore(storeId, afterId, limit);
+        }
+        return inventoryRepository.findByStoreIdAndIdGreaterThanOrderByIdAsc(storeId, afterId, Limit.of(limit))
+                .concatMap(this::withShardedQuantity);
     }
 
     public Mono<Item> getItemBySkuAndStore(String storeId, String sku) {
         /* return inventoryRepository.findAll()
                 .filter(item -> item.getStoreId().equals(storeId) && item.getSku().equals(sku))
                 .next(); */
-        return inventoryRepository.findBySkuAndStoreId(sku, storeId);
+        if (durableStore != null) {
+            return durableStore.find(storeId, sku);
+        }
+        // Índice compacto: si tiene el ítem con versión conocida, se responde sin asignar objetos
+        // intermedios ni ir a la BD. Cada escritura confirmada deja la versión desconocida
+        // (StockEventOutbox.afterCommit) hasta que la lectura de la BD completa el índice.
+        if (stockAggregates.isLoaded()) {
+            Item indexed = stockAggregates.item(storeId, sku);
+            if (indexed != null) {
+                return Mono.just(indexed);
+            }
+        }
+        int writeCount = stockAggregates.writeCount(storeId, sku);
+        return itemCache.get(storeId, sku, () -> inventoryRepository.findBySkuAndStoreId(sku, storeId)
+                        .flatMap(this::withShardedQuantity))
+                .doOnNext(item -> stockAggregates.refresh(item, writeCount));
     }
 
     public Mono<Boolean> updateItemQuantity(Item item) {
-        return inventoryRepository.findBySkuAndStoreId(item.getSku(), item.getStoreId())
-                .flatMap(existing -> {
-                    existing.setQuantity(item.getQuantity());
-                    return inventoryRepository.save(existing)
-                            .then(eventPublisher.publishStockUpdate(existing.getStoreId(), existing.getSku(), existing.getQuantity()))
-                            .thenReturn(true);
-                })
+        if (durableStore != null) {
+            return durableStore.updateQuantity(item.getStoreId(), item.getSku(), item.getQuantity());
+        }
+        if (shardedStockService.isSharded(item.getStoreId(), item.getSku())) {
+            return stockEventOutbox.transactional(
+                    shardedStockService.resetTotal(item.getStoreId(), item.getSku(), item.getQuantity()),
+                    updated -> updated ? StockEventOutbox.refresh(item.getStoreId(), item.getSku()) : null);
+        }
+        return stockEventOutbox.transactional(
+                        inventoryRepository.updateQuantity(item.getSku(), item.getStoreId(), item.getQuantity()),
+                        newQuantity -> new StockUpdateEvent(item.getStoreId(), item.getSku(), newQuantity))
+                .map(newQuantity -> true)
                 .switchIfEmpty(Mono.just(false));
     }
 
     public Mono<Boolean> deleteItem(String storeId, String sku) {
-        return inventoryRepository.findBySkuAndStoreId(sku, storeId)
-                .flatMap(existing -> inventoryRepository.delete(existing).thenReturn(true))
-                .switchIfEmpty(Mono.just(false));
+        if (durableStore != null) {
+            // El store publica el borrado con su LSN (agregados y alertas)
+            return durableStore.delete(storeId, sku)
+                    .doOnNext(deleted -> stockEventOutbox.afterCommit(List.of(new StockKey(storeId, sku))));
+        }
+        boolean sharded = shardedStockService.isSharded(storeId, sku);
+        // Shards, fila y evento de borrado en una sola transacción: el drenador deja la lápida y avisa al bus
+        Mono<Integer> delete = sharded
+                ? shardedStockService.drop(storeId, sku).then(inventoryRepository.deleteBySkuAndStoreId(sku, storeId))
+                : inventoryRepository.deleteBySkuAndStoreId(sku, storeId);
+        return stockEventOutbox.transactional(delete,
+                        deletedRows -> deletedRows > 0 ? StockEventOutbox.deleted(storeId, sku) : null)
+                .doOnNext(deletedRows -> {
+                    // Como disable(): la clave deja de estar fragmentada recién después del commit
+                    if (sharded) {
+                        shardedStockService.forget(storeId, sku);
+                    }
+                })
+                .map(deletedRows -> deletedRows > 0);
+    }
+
+    /**
+     * Activa el modo flash sale (stock fragmentado en shards) para una clave caliente.
+     */
+    public Mono<Boolean> enableFlashSale(String storeId, String sku, Integer shards) {
+        if (durableStore != null) {
+            // Los shards viven en item_shard y el stock en el log durable: no hay dónde repartirlo.
+            return Mono.error(new UnsupportedOperationException("Modo flash sale no disponible en modo durable"));
+        }
+        return shardedStockService.enable(storeId, sku, shards)
+                .doOnNext(enabled -> invalidateLane(storeId, sku));
+    }
+
+    public Mono<Boolean> disableFlashSale(String storeId, String sku) {
+        return shardedStockService.disable(storeId, sku)
+                .doOnNext(disabled -> invalidateLane(storeId, sku));
+    }
+
+    // Las lecturas de claves fragmentadas devuelven el stock total (ítem + shards).
+    private Mono<Item> withShardedQuantity(Item item) {
+        return shardedStockService.isSharded(item.getStoreId(), item.getSku())
+                ? shardedStockService.withShardedQuantity(item)
+                : Mono.just(item);
+    }
+
+    // Activar o desactivar flash sale cambia por dónde se reserva la clave: el motor descarta su contador.
+    private void invalidateLane(String storeId, String sku) {
+        if (laneEngine != null) {
+            laneEngine.invalidate(storeId, sku);
+        }
     }
 }
\ No newline at end of file
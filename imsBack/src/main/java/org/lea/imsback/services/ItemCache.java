@@ -0,0 +1,63 @@
+package org.lea.imsback.services;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.StockKey;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Cache asíncrona "read-through" de ítems por (tienda, SKU).
+ * <p>
+ * Caffeine aplica desalojo W-TinyLFU (admite sólo claves con más frecuencia de acceso que
+ * la víctima), tamaño máximo y TTL. Las cargas concurrentes de una misma clave comparten el
+ * mismo future, así que un pico de lecturas sobre un ítem frío genera una sola consulta.
+ * La entrada se invalida en cada publicación de {@code StockUpdateEvent} (ver
+ * {@link EventPublisher}) y en cada borrado, por lo que una lectura posterior a una escritura
+ * nunca ve stock viejo.
+ */
+@Component
+public class ItemCache {
+
+    private final AsyncCache<StockKey, Item> cache;
+
+    public ItemCache(MeterRegistry meterRegistry,
+                     @Value("${ims.cache.item.maximum-size:100000}") long maximumSize,
+                     @Value("${ims.cache.item.ttl:30s}") Duration ttl) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .buildAsync();
+        // Publica hits, misses, evictions y tamaño como cache.* con tag cache=item
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "item");
+    }
+
+    /**
+     * Devuelve el ítem cacheado o lo carga con {@code loader}. Un resultado vacío no se cachea.
+     * Cada llamada recibe su propia copia: el ítem cacheado no se expone para que nadie lo mute.
+     */
+    public Mono<Item> get(String storeId, String sku, Supplier<Mono<Item>> loader) {
+        // suppressCancel: si un lector corta, la carga compartida sigue para los demás que esperan el future.
+        return Mono.fromFuture(() -> cache.get(new StockKey(storeId, sku), (key, executor) -> loader.get().toFuture()), true)
+                .map(ItemCache::copy);
+    }
+
+    public void invalidate(String storeId, String sku) {
+        cache.synchronous().invalidate(new StockKey(storeId, sku));
+    }
+
+    private static Item copy(Item cached) {
+        Item item = new Item(cached.getSku(), cached.getQuantity(), cached.getStoreId());
+        item.setId(cached.getId());
+        item.setVersion(cached.getVersion());
+        return item;
+    }
+}
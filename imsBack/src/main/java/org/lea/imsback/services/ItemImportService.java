@@ -0,0 +1,373 @@
+package org.lea.imsback.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.r2dbc.spi.Result;
+import io.r2dbc.spi.Statement;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.models.dtos.ImportEvent;
+import org.lea.imsback.models.dtos.StockUpdateEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.StringDecoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Importación masiva de ítems (alta de una tienda completa) desde CSV o NDJSON.
+ * <p>
+ * El cuerpo se decodifica línea a línea a medida que llegan los {@link DataBuffer}, sin
+ * juntarlo entero en memoria. Las filas válidas se agrupan de a {@code ims.import.batch-size}
+ * y cada lote es un único MERGE de varias filas (alta o reemplazo de la cantidad). Hay como
+ * mucho {@code ims.import.concurrency} lotes en vuelo; mientras tanto no se lee más del cuerpo
+ * (contrapresión hasta el cliente). Un lote que comparte claves con otro anterior todavía en
+ * vuelo espera a que éste confirme: dos MERGE concurrentes nunca dan de alta la misma clave
+ * (violación de UNIQUE) y la última fila del cuerpo sigue siendo la que gana.
+ * <p>
+ * No es todo o nada: cada lote se confirma por su cuenta, junto con un evento de stock por
+ * ítem en el outbox. El reporte informa cada fila rechazada (hasta
+ * {@code ims.import.max-reported-rejects}), el avance cada {@code ims.import.progress-every}
+ * filas y los totales al final.
+ */
+@Service
+public class ItemImportService {
+    private static final Logger log = LoggerFactory.getLogger(ItemImportService.class);
+
+    public enum Format {
+        CSV,
+        NDJSON
+    }
+
+    private static final int MAX_FIELD_LENGTH = 255;
+    private static final ResolvableType LINE_TYPE = ResolvableType.forClass(String.class);
+    private static final Comparator<StockKey> KEY_ORDER =
+            Comparator.comparing(StockKey::storeId).thenComparing(StockKey::sku);
+
+    private final DatabaseClient databaseClient;
+    private final TransactionalOperator transactionalOperator;
+    private final ObjectMapper objectMapper;
+    private final ShardedStockService shardedStockService;
+    private final StockEventOutbox stockEventOutbox;
+    private final ObjectProvider<DurableInventoryStore> durableStore;
+    private final int batchSize;
+    private final int concurrency;
+    private final long progressEvery;
+    private final long maxReportedRejects;
+    private final StringDecoder lineDecoder = StringDecoder.allMimeTypes(List.of("\n"), true);
+    // Texto del MERGE por cantidad de filas (casi siempre el del lote completo)
+    private final Map<Integer, String> upsertSql = new ConcurrentHashMap<>();
+
+    public ItemImportService(DatabaseClient databaseClient,
+                             TransactionalOperator transactionalOperator,
+                             ObjectMapper objectMapper,
+                             ShardedStockService shardedStockService,
+                             StockEventOutbox stockEventOutbox,
+                             ObjectProvider<DurableInventoryStore> durableStore,
+                             @Value("${ims.import.batch-size:1000}") int batchSize,
+                             @Value("${ims.import.concurrency:4}") int concurrency,
+                             @Value("${ims.import.progress-every:50000}") long progressEvery,
+                             @Value("${ims.import.max-reported-rejects:1000}") long maxReportedRejects) {
+        this.databaseClient = databaseClient;
+        this.transactionalOperator = transactionalOperator;
+        this.objectMapper = objectMapper;
+        this.shardedStockService = shardedStockService;
+        this.stockEventOutbox = stockEventOutbox;
+        this.durableStore = durableStore;
+        this.batchSize = batchSize;
+        this.concurrency = concurrency;
+        this.progressEvery = progressEvery;
+        this.maxReportedRejects = maxReportedRejects;
+    }
+
+    /**
+     * CSV: columnas {@code storeId,sku,quantity}; una primera línea con esos nombres se toma
+     * como encabezado y define el orden. NDJSON: un objeto {@code {"storeId","sku","quantity"}}
+     * por línea.
+     *
+     * @return el reporte, que se emite a medida que avanza la importación.
+     */
+    public Flux<ImportEvent> importItems(Flux<DataBuffer> body, Format format) {
+        return Flux.defer(() -> {
+            long start = System.nanoTime();
+            Totals totals = new Totals();
+            // Último lote en vuelo por clave, de esta importación
+            Map<StockKey, Mono<Void>> inFlight = new ConcurrentHashMap<>();
+            LineParser parser = format == Format.CSV ? new CsvParser() : new NdjsonParser(objectMapper);
+            return lineDecoder.decode(body, LINE_TYPE, null, null)
+                    .index()
+                    .<Row>handle((line, sink) -> {
+                        Row row = parser.parse(line.getT1() + 1, line.getT2());
+                        if (row != null) {
+                            sink.next(row);
+                        }
+                    })
+                    .buffer(batchSize)
+                    // Lotes concurrentes, pero el reporte sale en el orden del cuerpo.
+                    .flatMapSequential(batch -> importBatch(batch, totals, inFlight, start), concurrency)
+                    .concatWith(Mono.fromSupplier(() -> {
+                        log.info("IMPORTACIÓN COMPLETA: {} filas importadas, {} rechazadas en {} ms",
+                                totals.imported.get(), totals.rejected.get(), elapsedMillis(start));
+                        return ImportEvent.completed(totals.imported.get(), totals.rejected.get(), elapsedMillis(start));
+                    }))
+                    .onErrorResume(error -> {
+                        log.error("IMPORTACIÓN FALLIDA tras {} filas: {}", totals.imported.get(), error.getMessage(), error);
+                        return Mono.just(ImportEvent.failed(error.getMessage(), totals.imported.get(),
+                                totals.rejected.get(), elapsedMillis(start)));
+                    });
+        });
+    }
+
+    // Se llama en el orden del cuerpo (mapper de flatMapSequential): ahí se registra el lote en inFlight.
+    private Flux<ImportEvent> importBatch(List<Row> batch, Totals totals, Map<StockKey, Mono<Void>> inFlight, long start) {
+        List<ImportEvent> events = new ArrayList<>();
+        // Una fila repetida dentro del lote: gana la última. Orden de clave = orden de locks.
+        Map<StockKey, Item> valid = new TreeMap<>(KEY_ORDER);
+        for (Row row : batch) {
+            String reason = row.reason();
+            if (reason == null && shardedStockService.isSharded(row.item().getStoreId(), row.item().getSku())) {
+                reason = "El ítem está en modo flash sale";
+            }
+            if (reason != null) {
+                long rejected = totals.rejected.incrementAndGet();
+                if (rejected <= maxReportedRejects) {
+                    events.add(ImportEvent.rejected(row.line(), reason, totals.imported.get(), rejected));
+                }
+                continue;
+            }
+            valid.put(new StockKey(row.item().getStoreId(), row.item().getSku()), row.item());
+        }
+        return afterEarlierBatches(valid.keySet(), inFlight, upsert(valid))
+                .thenMany(Flux.defer(() -> {
+                    long imported = totals.imported.addAndGet(valid.size());
+                    if (imported / progressEvery > (imported - valid.size()) / progressEvery) {
+                        events.add(ImportEvent.progress(imported, totals.rejected.get(), elapsedMillis(start)));
+                    }
+                    log.debug("Lote importado: {} filas", valid.size());
+                    return Flux.fromIterable(events);
+                }));
+    }
+
+    /**
+     * El lote espera a los lotes anteriores en vuelo que comparten alguna de sus claves.
+     */
+    private static Mono<Void> afterEarlierBatches(Collection<StockKey> keys, Map<StockKey, Mono<Void>> inFlight,
+                                                  Mono<Void> write) {
+        List<Mono<Void>> earlier = keys.stream()
+                .map(inFlight::get)
+                .filter(Objects::nonNull)
+                .distinct()
+                .toList();
+        // cache(): lo ejecuta una sola vez, lo suscriba el propio lote o uno posterior que lo espera
+        Mono<Void> done = (earlier.isEmpty() ? write : Mono.when(earlier).then(write)).cache();
+        keys.forEach(key -> inFlight.put(key, done));
+        return done.doFinally(signal -> keys.forEach(key -> inFlight.remove(key, done)));
+    }
+
+    private Mono<Void> upsert(Map<StockKey, Item> items) {
+        if (items.isEmpty()) {
+            return Mono.empty();
+        }
+        DurableInventoryStore durable = durableStore.getIfAvailable();
+        if (durable != null) {
+            // Publica los eventos de stock tras el fsync, como el resto de las escrituras durables
+            return durable.upsertAll(items.values()).then();
+        }
+        List<Item> rows = new ArrayList<>(items.values());
+        String sql = upsertSql.computeIfAbsent(rows.size(), ItemImportService::mergeSql);
+        Mono<Void> merge = databaseClient.inConnectionMany(connection -> {
+                    Statement statement = connection.createStatement(sql);
+                    int index = 0;
+                    for (Item item : rows) {
+                        statement.bind(index++, item.getStoreId())
+                                .bind(index++, item.getSku())
+                                .bind(index++, item.getQuantity());
+                    }
+                    return Flux.from(statement.execute()).flatMap(Result::getRowsUpdated);
+                })
+                .then();
+        // Los eventos del lote van al outbox en la misma transacción que el MERGE.
+        List<StockUpdateEvent> events = rows.stream()
+                .map(item -> new StockUpdateEvent(item.getStoreId(), item.getSku(), item.getQuantity()))
+                .toList();
+        return transactionalOperator.transactional(merge.then(stockEventOutbox.append(events)))
+                .then(Mono.fromRunnable(() -> stockEventOutbox.afterCommit(items.keySet())));
+    }
+
+    // Un único MERGE multi-fila: inserta los ítems nuevos y reemplaza la cantidad de los existentes.
+    private static String mergeSql(int rows) {
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < rows; i++) {
+            int base = i * 3;
+            values.append(i == 0 ? "" : ", ")
+                    .append("(CAST($").append(base + 1).append(" AS VARCHAR(255)), CAST($")
+                    .append(base + 2).append(" AS VARCHAR(255)), CAST($")
+                    .append(base + 3).append(" AS INT))");
+        }
+        return """
+                MERGE INTO item t
+                USING (VALUES %s) s (store_id, sku, quantity)
+                ON t.store_id = s.store_id AND t.sku = s.sku
+                WHEN MATCHED THEN UPDATE SET quantity = s.quantity, version = t.version + 1
+                WHEN NOT MATCHED THEN INSERT (sku, quantity, store_id, version) VALUES (s.sku, s.quantity, s.store_id, 0)
+                """.formatted(values);
+    }
+
+    private static long elapsedMillis(long start) {
+        return Duration.ofNanos(System.nanoTime() - start).toMillis();
+    }
+
+    // -----------------------------------------------------------------
+    // Parseo por línea
+    // -----------------------------------------------------------------
+
+    private static final class Totals {
+        final AtomicLong imported = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+    }
+
+    /**
+     * Una fila del cuerpo: el ítem o el motivo del rechazo.
+     */
+    private record Row(long line, Item item, String reason) {
+
+        static Row of(long line, String storeId, String sku, Integer quantity) {
+            if (storeId == null || storeId.isBlank() || sku == null || sku.isBlank()) {
+                return rejected(line, "storeId y sku son obligatorios");
+            }
+            if (storeId.length() > MAX_FIELD_LENGTH || sku.length() > MAX_FIELD_LENGTH) {
+                return rejected(line, "storeId y sku admiten hasta " + MAX_FIELD_LENGTH + " caracteres");
+            }
+            if (quantity == null || quantity < 0) {
+                return rejected(line, "quantity debe ser un entero mayor o igual a 0");
+            }
+            return new Row(line, new Item(sku, quantity, storeId), null);
+        }
+
+        static Row rejected(long line, String reason) {
+            return new Row(line, null, reason);
+        }
+    }
+
+    private interface LineParser {
+
+        /**
+         * @return la fila, o null si la línea no es una fila (vacía o encabezado).
+         */
+        Row parse(long line, String text);
+    }
+
+    private static final class CsvParser implements LineParser {
+        private int storeColumn = 0;
+        private int skuColumn = 1;
+        private int quantityColumn = 2;
+        private boolean first = true;
+
+        @Override
+        public Row parse(long line, String text) {
+            if (text.isBlank()) {
+                return null;
+            }
+            List<String> fields = split(text);
+            if (first) {
+                first = false;
+                if (header(fields)) {
+                    return null;
+                }
+            }
+            if (fields.size() <= Math.max(storeColumn, Math.max(skuColumn, quantityColumn))) {
+                return Row.rejected(line, "Se esperaban las columnas storeId, sku y quantity");
+            }
+            Integer quantity;
+            try {
+                quantity = Integer.valueOf(fields.get(quantityColumn));
+            } catch (NumberFormatException e) {
+                return Row.rejected(line, "quantity inválida: " + fields.get(quantityColumn));
+            }
+            return Row.of(line, fields.get(storeColumn), fields.get(skuColumn), quantity);
+        }
+
+        private boolean header(List<String> fields) {
+            List<String> names = fields.stream()
+                    .map(field -> field.replace("_", "").toLowerCase(Locale.ROOT))
+                    .toList();
+            if (!names.contains("sku")) {
+                return false;
+            }
+            storeColumn = names.indexOf("storeid");
+            skuColumn = names.indexOf("sku");
+            quantityColumn = names.indexOf("quantity");
+            if (storeColumn < 0 || quantityColumn < 0) {
+                throw new IllegalArgumentException("El encabezado CSV debe incluir storeId, sku y quantity");
+            }
+            return true;
+        }
+
+        // Campos separados por comas; un campo entre comillas puede contener comas ("" = comilla).
+        private static List<String> split(String text) {
+            List<String> fields = new ArrayList<>(3);
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        field.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString().strip());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            fields.add(field.toString().strip());
+            return fields;
+        }
+    }
+
+    private record NdjsonRow(String storeId, String sku, Integer quantity) {
+    }
+
+    private record NdjsonParser(ObjectMapper objectMapper) implements LineParser {
+
+        @Override
+        public Row parse(long line, String text) {
+            if (text.isBlank()) {
+                return null;
+            }
+            try {
+                NdjsonRow row = objectMapper.readValue(text, NdjsonRow.class);
+                return Row.of(line, row.storeId(), row.sku(), row.quantity());
+            } catch (JsonProcessingException e) {
+                return Row.rejected(line, "JSON inválido: " + e.getOriginalMessage());
+            }
+        }
+    }
+}
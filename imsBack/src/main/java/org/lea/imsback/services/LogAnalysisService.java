@@ -1,9 +1,16 @@
 package org.lea.imsback.services;
 
 
+import jakarta.annotation.PreDestroy;
 import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
 
 /**
  * Servicio reactivo para analizar logs utilizando un modelo de lenguaje de IA.
@@ -14,14 +21,39 @@ import reactor.core.publisher.Mono;
 public class LogAnalysisService {
     // ChatClient es el bean de Spring AI recomendado para la interacción con el modelo.
     private final ChatClient chatClient;
+    // La llamada al modelo es bloqueante: corre en hilos propios y acotados, nunca en el event loop.
+    private final Scheduler scheduler;
+    private final Duration timeout;
+
     /**
      * Constructor con inyección del ChatClient.
      * Spring Boot auto-configura un ChatClient si se incluye un starter de modelo.
      * @param chatClientBuilder Un constructor para crear una instancia de ChatClient.
      */
-    public LogAnalysisService(ChatClient.Builder chatClientBuilder) {
+    @Autowired
+    public LogAnalysisService(ChatClient.Builder chatClientBuilder,
+                              @Value("${ims.diagnosis.threads:4}") int threads,
+                              @Value("${ims.diagnosis.timeout:30s}") Duration timeout) {
+        this(buildChatClient(chatClientBuilder), threads, timeout);
+    }
+
+    /**
+     * Constructor directo, p. ej. con un ChatClient de prueba.
+     */
+    public LogAnalysisService(ChatClient chatClient, int threads, Duration timeout) {
+        this.chatClient = chatClient;
+        this.timeout = timeout;
+        this.scheduler = Schedulers.newBoundedElastic(threads, threads * 100, "ai-diagnosis");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.dispose();
+    }
+
+    private static ChatClient buildChatClient(ChatClient.Builder chatClientBuilder) {
         // Configuramos un ChatClient por defecto con el rol base del analista.
-        this.chatClient = chatClientBuilder
+        return chatClientBuilder
                 .defaultSystem("""
                 Actúa como un analista de soporte Nivel 2 experimentado para un sistema de inventario distribuido.
                 Tu tarea es analizar logs y responder SIEMPRE en español con el siguiente formato estricto:
@@ -44,15 +76,16 @@ public class LogAnalysisService {
         // ya que el "System Prompt" ya definió el rol y el formato de salida.
         String userPrompt = "LOG DE ERROR A ANALIZAR:\n\n" + logEntry;
 
-        // La respuesta reactiva se obtiene al no usar el método .stream()
-        // sino al ejecutar la solicitud a través del Mono.fromCallable.
-        // Spring AI maneja internamente la llamada síncrona/asíncrona del cliente HTTP.
+        // call() bloquea hasta que responde el modelo: se ejecuta en el scheduler dedicado
+        // (subscribeOn) y con timeout, para no ocupar hilos de Netty.
 
         return Mono.fromCallable(() ->
-                chatClient.prompt()
-                        .user(userPrompt)
-                        .call()
-                        .content()
-        );
+                        chatClient.prompt()
+                                .user(userPrompt)
+                                .call()
+                                .content()
+                )
+                .subscribeOn(scheduler)
+                .timeout(timeout);
     }
 }
\ No newline at end of file
@@ -0,0 +1,228 @@
+package org.lea.imsback.services;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.models.dtos.LowStockAlert;
+import org.lea.imsback.models.dtos.LowStockThreshold;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Alertas de stock bajo evaluadas sobre cada evento de stock de {@link EventPublisher}.
+ * <p>
+ * Cada evento cuesta O(1): a lo sumo cuatro búsquedas de umbral (ítem, SKU, tienda, por
+ * defecto) y una transición en el mapa de alertas abiertas. Sólo las claves con alerta abierta
+ * ocupan memoria y nunca se recorre {@code item}.
+ * <p>
+ * Las alertas se disparan sólo al cruzar un umbral y con histéresis: se abren al bajar a
+ * {@code low} y se cierran al volver a {@code clear}, así que un stock que oscila alrededor
+ * de {@code low} no genera una alerta por cada reserva. Mientras está abierta, la alerta pasa a
+ * OUT_OF_STOCK al agotarse el stock y vuelve a LOW_STOCK si se repone sin llegar a
+ * {@code clear}. Un cambio de umbral se aplica desde el próximo evento de cada clave.
+ * <p>
+ * Los umbrales viven en memoria; {@link LowStockThresholdService} los persiste y los vuelve a
+ * cargar al arrancar.
+ */
+@Service
+public class LowStockAlertService {
+    private static final Logger log = LoggerFactory.getLogger(LowStockAlertService.class);
+
+    private record Threshold(int low, int clear) {
+    }
+
+    private final Map<StockKey, Threshold> itemThresholds = new ConcurrentHashMap<>();
+    private final Map<String, Threshold> skuThresholds = new ConcurrentHashMap<>();
+    private final Map<String, Threshold> storeThresholds = new ConcurrentHashMap<>();
+    private volatile Threshold defaultThreshold;
+    private final int hysteresis;
+
+    // Alertas abiertas (LOW_STOCK u OUT_OF_STOCK) por clave
+    private final Map<StockKey, LowStockAlert> active = new ConcurrentHashMap<>();
+    private final Sinks.Many<LowStockAlert> sink = Sinks.many().multicast().directBestEffort();
+    private final int bufferSize;
+    private final MeterRegistry meterRegistry;
+
+    public LowStockAlertService(MeterRegistry meterRegistry,
+                                @Value("${ims.alerts.low-stock.threshold:0}") int defaultLow,
+                                @Value("${ims.alerts.low-stock.hysteresis:2}") int hysteresis,
+                                @Value("${ims.events.subscriber-buffer:256}") int bufferSize) {
+        this.meterRegistry = meterRegistry;
+        this.hysteresis = Math.max(1, hysteresis);
+        // Umbral negativo = sin umbral por defecto
+        this.defaultThreshold = defaultLow >= 0 ? new Threshold(defaultLow, defaultLow + this.hysteresis) : null;
+        this.bufferSize = bufferSize;
+        Gauge.builder("ims.alerts.low-stock.active", active, Map::size)
+                .description("Claves con una alerta de stock bajo abierta")
+                .register(meterRegistry);
+    }
+
+    public void onStockUpdate(String storeId, String sku, int quantity) {
+        StockKey key = new StockKey(storeId, sku);
+        Threshold threshold = thresholdOf(key);
+        LowStockAlert[] fired = new LowStockAlert[1];
+        active.compute(key, (k, open) -> {
+            if (open == null) {
+                if (threshold == null || quantity > threshold.low()) {
+                    return null;
+                }
+                fired[0] = alert(key, quantity == 0 ? LowStockAlert.Type.OUT_OF_STOCK : LowStockAlert.Type.LOW_STOCK,
+                        quantity, threshold.low());
+                return fired[0];
+            }
+            // Sin umbral (se quitó) o de vuelta sobre el nivel de cierre: la alerta se cierra
+            if (threshold == null || quantity >= threshold.clear()) {
+                fired[0] = alert(key, LowStockAlert.Type.RECOVERED, quantity, threshold == null ? quantity : threshold.clear());
+                return null;
+            }
+            if (quantity == 0 && open.type() == LowStockAlert.Type.LOW_STOCK) {
+                fired[0] = alert(key, LowStockAlert.Type.OUT_OF_STOCK, quantity, open.threshold());
+                return fired[0];
+            }
+            // Repuesto pero todavía por debajo del cierre: deja de estar agotado
+            if (quantity > 0 && open.type() == LowStockAlert.Type.OUT_OF_STOCK) {
+                fired[0] = alert(key, LowStockAlert.Type.LOW_STOCK, quantity, open.threshold());
+                return fired[0];
+            }
+            return open;
+        });
+        if (fired[0] != null) {
+            publish(fired[0]);
+        }
+    }
+
+    /**
+     * Un ítem borrado cierra su alerta sin notificar.
+     */
+    public void onDelete(String storeId, String sku) {
+        active.remove(new StockKey(storeId, sku));
+    }
+
+    /**
+     * Alertas abiertas, filtrables por tienda y/o SKU (null = todas), con las más recientes primero.
+     */
+    public List<LowStockAlert> activeAlerts(String storeId, String sku) {
+        return active.values().stream()
+                .filter(alert -> (storeId == null || storeId.equals(alert.storeId()))
+                        && (sku == null || sku.equals(alert.sku())))
+                .sorted(Comparator.comparing(LowStockAlert::at).reversed())
+                .toList();
+    }
+
+    /**
+     * Alertas a medida que se disparan. Igual que el bus de stock, un suscriptor lento pierde
+     * las más viejas en lugar de frenar a los demás.
+     */
+    public Flux<LowStockAlert> subscribe(String storeId, String sku) {
+        return sink.asFlux()
+                .filter(alert -> (storeId == null || storeId.equals(alert.storeId()))
+                        && (sku == null || sku.equals(alert.sku())))
+                .onBackpressureBuffer(bufferSize, dropped -> { }, BufferOverflowStrategy.DROP_OLDEST);
+    }
+
+    /**
+     * Completa el nivel de cierre (si falta) y valida el umbral, sin aplicarlo.
+     *
+     * @throws IllegalArgumentException si el cierre no es mayor que el umbral.
+     */
+    public LowStockThreshold normalize(LowStockThreshold request) {
+        int clear = request.clear() != null ? request.clear() : request.low() + hysteresis;
+        if (clear <= request.low()) {
+            throw new IllegalArgumentException("El nivel de cierre debe ser mayor que el umbral.");
+        }
+        return new LowStockThreshold(request.storeId(), request.sku(), request.low(), clear);
+    }
+
+    public LowStockThreshold setThreshold(LowStockThreshold request) {
+        LowStockThreshold normalized = normalize(request);
+        int clear = normalized.clear();
+        Threshold threshold = new Threshold(request.low(), clear);
+        if (request.storeId() != null && request.sku() != null) {
+            itemThresholds.put(new StockKey(request.storeId(), request.sku()), threshold);
+        } else if (request.sku() != null) {
+            skuThresholds.put(request.sku(), threshold);
+        } else if (request.storeId() != null) {
+            storeThresholds.put(request.storeId(), threshold);
+        } else {
+            defaultThreshold = threshold;
+        }
+        log.info("Umbral de stock bajo: tienda {} SKU {} -> {} (cierre {})", request.storeId(), request.sku(), request.low(), clear);
+        return normalized;
+    }
+
+    /**
+     * @return false si no había un umbral para ese alcance.
+     */
+    public boolean removeThreshold(String storeId, String sku) {
+        if (storeId != null && sku != null) {
+            return itemThresholds.remove(new StockKey(storeId, sku)) != null;
+        } else if (sku != null) {
+            return skuThresholds.remove(sku) != null;
+        } else if (storeId != null) {
+            return storeThresholds.remove(storeId) != null;
+        }
+        boolean removed = defaultThreshold != null;
+        defaultThreshold = null;
+        return removed;
+    }
+
+    public List<LowStockThreshold> thresholds() {
+        List<LowStockThreshold> thresholds = new ArrayList<>();
+        Threshold fallback = defaultThreshold;
+        if (fallback != null) {
+            thresholds.add(new LowStockThreshold(null, null, fallback.low(), fallback.clear()));
+        }
+        Stream.of(
+                        storeThresholds.entrySet().stream()
+                                .map(entry -> new LowStockThreshold(entry.getKey(), null, entry.getValue().low(), entry.getValue().clear())),
+                        skuThresholds.entrySet().stream()
+                                .map(entry -> new LowStockThreshold(null, entry.getKey(), entry.getValue().low(), entry.getValue().clear())),
+                        itemThresholds.entrySet().stream()
+                                .map(entry -> new LowStockThreshold(entry.getKey().storeId(), entry.getKey().sku(),
+                                        entry.getValue().low(), entry.getValue().clear())))
+                .flatMap(stream -> stream)
+                .forEach(thresholds::add);
+        return thresholds;
+    }
+
+    // El más específico gana: ítem, SKU, tienda, por defecto
+    private Threshold thresholdOf(StockKey key) {
+        Threshold threshold = itemThresholds.get(key);
+        if (threshold == null) {
+            threshold = skuThresholds.get(key.sku());
+        }
+        if (threshold == null) {
+            threshold = storeThresholds.get(key.storeId());
+        }
+        return threshold != null ? threshold : defaultThreshold;
+    }
+
+    private static LowStockAlert alert(StockKey key, LowStockAlert.Type type, int quantity, int threshold) {
+        return new LowStockAlert(key.storeId(), key.sku(), type, quantity, threshold, Instant.now());
+    }
+
+    private void publish(LowStockAlert alert) {
+        meterRegistry.counter("ims.alerts.low-stock", "type", alert.type().name()).increment();
+        if (alert.isActive()) {
+            log.warn("ALERTA DE STOCK: {} {} en {} (cantidad {}, umbral {})",
+                    alert.type(), alert.sku(), alert.storeId(), alert.quantity(), alert.threshold());
+        } else {
+            log.info("ALERTA DE STOCK CERRADA: {} en {} (cantidad {})", alert.sku(), alert.storeId(), alert.quantity());
+        }
+        sink.emitNext(alert, Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100)));
+    }
+}
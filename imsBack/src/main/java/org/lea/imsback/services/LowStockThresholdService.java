@@ -0,0 +1,98 @@
+package org.lea.imsback.services;
+
+import org.lea.imsback.models.dtos.LowStockThreshold;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+/**
+ * Persistencia de los umbrales de {@link LowStockAlertService} en {@code low_stock_threshold}.
+ * <p>
+ * Cada alta o baja se escribe en la tabla antes de aplicarse en memoria, y al arrancar se
+ * cargan todos, así que los umbrales definidos por API sobreviven a un reinicio. Quitar el
+ * umbral por defecto borra su fila: tras reiniciar vuelve a valer
+ * {@code ims.alerts.low-stock.threshold}.
+ */
+@Service
+public class LowStockThresholdService {
+    private static final Logger log = LoggerFactory.getLogger(LowStockThresholdService.class);
+
+    // store_id o sku de un umbral que aplica a todas (las columnas son parte de la clave primaria)
+    private static final String ANY = "*";
+    private static final String SELECT_SQL =
+            "SELECT store_id, sku, low_quantity, clear_quantity FROM low_stock_threshold";
+    private static final String MERGE_SQL =
+            "MERGE INTO low_stock_threshold (store_id, sku, low_quantity, clear_quantity) KEY (store_id, sku) VALUES ($1, $2, $3, $4)";
+    private static final String DELETE_SQL = "DELETE FROM low_stock_threshold WHERE store_id = $1 AND sku = $2";
+
+    private final LowStockAlertService lowStockAlertService;
+    private final DatabaseClient databaseClient;
+
+    public LowStockThresholdService(LowStockAlertService lowStockAlertService, DatabaseClient databaseClient) {
+        this.lowStockAlertService = lowStockAlertService;
+        this.databaseClient = databaseClient;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        restore().subscribe(
+                count -> log.info("Umbrales de stock bajo cargados: {}", count),
+                e -> log.warn("No se pudieron cargar los umbrales de stock bajo: {}", e.getMessage()));
+    }
+
+    /**
+     * Aplica en memoria los umbrales guardados.
+     *
+     * @return cantidad de umbrales cargados.
+     */
+    public Mono<Long> restore() {
+        return databaseClient.sql(SELECT_SQL)
+                .map((row, meta) -> new LowStockThreshold(
+                        fromColumn(row.get("store_id", String.class)),
+                        fromColumn(row.get("sku", String.class)),
+                        row.get("low_quantity", Integer.class),
+                        row.get("clear_quantity", Integer.class)))
+                .all()
+                .doOnNext(lowStockAlertService::setThreshold)
+                .count();
+    }
+
+    /**
+     * @throws IllegalArgumentException (como error del Mono) si el cierre no es mayor que el umbral.
+     */
+    public Mono<LowStockThreshold> setThreshold(LowStockThreshold request) {
+        return Mono.fromCallable(() -> lowStockAlertService.normalize(request))
+                .flatMap(threshold -> databaseClient.sql(MERGE_SQL)
+                        .bind(0, toColumn(threshold.storeId()))
+                        .bind(1, toColumn(threshold.sku()))
+                        .bind(2, threshold.low())
+                        .bind(3, threshold.clear())
+                        .fetch()
+                        .rowsUpdated()
+                        .then(Mono.fromCallable(() -> lowStockAlertService.setThreshold(threshold))));
+    }
+
+    /**
+     * @return false si no había un umbral para ese alcance.
+     */
+    public Mono<Boolean> removeThreshold(String storeId, String sku) {
+        return databaseClient.sql(DELETE_SQL)
+                .bind(0, toColumn(storeId))
+                .bind(1, toColumn(sku))
+                .fetch()
+                .rowsUpdated()
+                .then(Mono.fromCallable(() -> lowStockAlertService.removeThreshold(storeId, sku)));
+    }
+
+    private static String toColumn(String value) {
+        return value != null ? value : ANY;
+    }
+
+    private static String fromColumn(String value) {
+        return ANY.equals(value) ? null : value;
+    }
+}
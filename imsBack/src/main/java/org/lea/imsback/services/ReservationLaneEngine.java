@@ -0,0 +1,373 @@
+package org.lea.imsback.services;
+
+import io.r2dbc.spi.Statement;
+import jakarta.annotation.PreDestroy;
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.models.dtos.StockUpdateEvent;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Motor de reservas "single-writer" para claves calientes.
+ * Cada par (tienda, SKU) se asigna siempre al mismo carril (uno por core). Un carril
+ * es un único hilo que recibe las reservas en orden de llegada y cada intervalo de flush las
+ * confirma en R2DBC con una única sentencia batch dentro de una transacción (group commit):
+ * un UPDATE condicional por reserva, con la guarda {@code quantity >= cantidad}, por lo que
+ * cada reserva se acepta o rechaza por separado y la BD decide siempre (nunca queda negativa,
+ * aunque alguien la modifique por fuera). Recién después del commit se completan los Mono.
+ * <p>
+ * El carril recuerda, por clave, la cantidad que devolvió el último UPDATE menos lo que tiene
+ * pendiente de confirmar: con eso rechaza en memoria, sin ir a la BD, las reservas que no
+ * pueden alcanzar. Ese contador no sale de una lectura previa; si no se conoce (clave nueva,
+ * invalidada o rechazada por la BD), la reserva va directo al UPDATE.
+ * <p>
+ * Se activa con {@code ims.reservation.lanes.enabled=true}.
+ */
+@Component
+@ConditionalOnProperty(name = "ims.reservation.lanes.enabled", havingValue = "true")
+public class ReservationLaneEngine {
+    private static final Logger log = LoggerFactory.getLogger(ReservationLaneEngine.class);
+
+    private static final String GROUP_COMMIT_SQL = """
+            SELECT quantity FROM FINAL TABLE (
+                UPDATE item SET quantity = quantity - $1, version = version + 1
+                WHERE sku = $2 AND store_id = $3 AND quantity >= $1)
+            """;
+    // Misma secuencia de locks de fila en todos los carriles (sin deadlocks entre sus commits)
+    private static final Comparator<StockKey> KEY_ORDER =
+            Comparator.comparing(StockKey::storeId).thenComparing(StockKey::sku);
+    // Marca de "la guarda rechazó la reserva" en el resultado del group commit
+    private static final int REJECTED = -1;
+    private static final long IDLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final InventoryRepository inventoryRepository;
+    private final DatabaseClient databaseClient;
+    private final TransactionalOperator transactionalOperator;
+    private final StockEventOutbox stockEventOutbox;
+    private final long flushIntervalNanos;
+    private final int maxCountersPerLane;
+    private final Lane[] lanes;
+
+    public ReservationLaneEngine(InventoryRepository inventoryRepository,
+                                 DatabaseClient databaseClient,
+                                 TransactionalOperator transactionalOperator,
+                                 StockEventOutbox stockEventOutbox,
+                                 @Value("${ims.reservation.lanes.count:0}") int laneCount,
+                                 @Value("${ims.reservation.lanes.flush-interval:2ms}") Duration flushInterval,
+                                 @Value("${ims.reservation.lanes.max-counters-per-lane:100000}") int maxCountersPerLane) {
+        this.inventoryRepository = inventoryRepository;
+        this.databaseClient = databaseClient;
+        this.transactionalOperator = transactionalOperator;
+        this.stockEventOutbox = stockEventOutbox;
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.maxCountersPerLane = maxCountersPerLane;
+        int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        this.lanes = new Lane[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new Lane();
+            Thread thread = new Thread(lanes[i], "reservation-lane-" + i);
+            thread.setDaemon(true);
+            lanes[i].thread = thread;
+            thread.start();
+        }
+        log.info("Motor de reservas por carriles activo: {} carriles, flush cada {}", count, flushInterval);
+    }
+
+    /**
+     * Encola la reserva en el carril de la clave. El Mono se completa sólo cuando
+     * el descuento quedó confirmado en la BD (o cuando se rechaza).
+     */
+    public Mono<ReservationStatus> reserve(String storeId, String sku, int quantity) {
+        return reserve(storeId, sku, quantity, null);
+    }
+
+    /**
+     * Como {@link #reserve(String, String, int)}, y si la guarda acepta la reserva ejecuta
+     * {@code onReserved} dentro de la transacción del group commit. Si falla, se revierte el lote.
+     *
+     * @param onReserved escritura a confirmar junto con el descuento, o null.
+     */
+    public Mono<ReservationStatus> reserve(String storeId, String sku, int quantity, Mono<Void> onReserved) {
+        StockKey key = new StockKey(storeId, sku);
+        return Mono.<ReservationStatus>create(sink -> laneFor(key).inbox.add(new Reserve(key, quantity, onReserved, sink)))
+                // Los carriles no deben ejecutar la lógica de quien se suscribe.
+                .publishOn(Schedulers.parallel());
+    }
+
+    /**
+     * Descarta el contador en memoria de la clave (p. ej. tras una actualización manual
+     * o un borrado). La próxima reserva lo recarga desde la BD.
+     */
+    public void invalidate(String storeId, String sku) {
+        StockKey key = new StockKey(storeId, sku);
+        laneFor(key).inbox.add(new Invalidate(key));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.running = false;
+            lane.thread.interrupt();
+        }
+    }
+
+    private Lane laneFor(StockKey key) {
+        return lanes[Math.floorMod(key.hashCode(), lanes.length)];
+    }
+
+    // -----------------------------------------------------------------
+    // Mensajes que procesa cada carril (siempre en su propio hilo)
+    // -----------------------------------------------------------------
+
+    private sealed interface Command permits Reserve, Flushed, Invalidate {
+    }
+
+    private record Reserve(StockKey key, int quantity, Mono<Void> onReserved, MonoSink<ReservationStatus> sink)
+            implements Command {
+    }
+
+    /**
+     * @param newQuantities cantidad tras cada reserva del lote ({@link #REJECTED} si la guarda la rechazó).
+     * @param missing       claves rechazadas que no existen en la BD.
+     */
+    private record Flushed(Batch batch, List<Integer> newQuantities, Set<StockKey> missing, Throwable error)
+            implements Command {
+    }
+
+    private record Invalidate(StockKey key) implements Command {
+    }
+
+    private static final class Counter {
+        int available;
+
+        Counter(int available) {
+            this.available = available;
+        }
+    }
+
+    /**
+     * Reservas pendientes de confirmar, en orden de llegada (ordenadas por clave al confirmar).
+     */
+    private static final class Batch {
+        final List<Reserve> lines = new ArrayList<>();
+        final Map<StockKey, Integer> deltas = new HashMap<>();
+
+        void add(Reserve reserve) {
+            lines.add(reserve);
+            deltas.merge(reserve.key(), reserve.quantity(), Integer::sum);
+        }
+
+        int delta(StockKey key) {
+            return deltas.getOrDefault(key, 0);
+        }
+
+        boolean isEmpty() {
+            return lines.isEmpty();
+        }
+    }
+
+    // Un evento por clave, con la cantidad tras su última reserva aceptada
+    private static List<StockUpdateEvent> events(List<Reserve> lines, List<Integer> newQuantities) {
+        Map<StockKey, Integer> last = new LinkedHashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            if (newQuantities.get(i) != REJECTED) {
+                last.put(lines.get(i).key(), newQuantities.get(i));
+            }
+        }
+        return last.entrySet().stream()
+                .map(entry -> new StockUpdateEvent(entry.getKey().storeId(), entry.getKey().sku(), entry.getValue()))
+                .toList();
+    }
+
+    // Escrituras que piden confirmarse con su reserva (altas de holds), sólo de las aceptadas
+    private static Mono<Void> alsoOnReserved(List<Reserve> lines, List<Integer> newQuantities) {
+        return Flux.range(0, lines.size())
+                .filter(i -> newQuantities.get(i) != REJECTED && lines.get(i).onReserved() != null)
+                .concatMap(i -> lines.get(i).onReserved())
+                .then();
+    }
+
+    private final class Lane implements Runnable {
+        final BlockingQueue<Command> inbox = new LinkedBlockingQueue<>();
+        final Map<StockKey, Counter> counters = new HashMap<>();
+        volatile boolean running = true;
+        Thread thread;
+        Batch current = new Batch();
+        Batch inFlight;
+        long flushDeadline;
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    long waitNanos = current.isEmpty() || inFlight != null
+                            ? IDLE_POLL_NANOS
+                            : Math.max(0, flushDeadline - System.nanoTime());
+                    Command command = inbox.poll(waitNanos, TimeUnit.NANOSECONDS);
+                    while (command != null) {
+                        handle(command);
+                        command = inbox.poll();
+                    }
+                    if (inFlight == null && !current.isEmpty() && System.nanoTime() >= flushDeadline) {
+                        flush();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("Error inesperado en el carril de reservas: {}", e.getMessage(), e);
+                }
+            }
+        }
+
+        private void handle(Command command) {
+            switch (command) {
+                case Reserve reserve -> onReserve(reserve);
+                case Flushed flushed -> onFlushed(flushed);
+                case Invalidate invalidate -> counters.remove(invalidate.key());
+            }
+        }
+
+        private void onReserve(Reserve reserve) {
+            Counter counter = counters.get(reserve.key());
+            if (counter != null) {
+                if (counter.available < reserve.quantity()) {
+                    reserve.sink().success(ReservationStatus.INSUFFICIENT_STOCK);
+                    return;
+                }
+                counter.available -= reserve.quantity();
+            }
+            if (current.isEmpty()) {
+                flushDeadline = System.nanoTime() + flushIntervalNanos;
+            }
+            current.add(reserve);
+        }
+
+        private void flush() {
+            Batch batch = current;
+            current = new Batch();
+            inFlight = batch;
+            // Orden estable: por clave y, dentro de cada clave, por llegada.
+            batch.lines.sort(Comparator.comparing(Reserve::key, KEY_ORDER));
+            List<Reserve> lines = batch.lines;
+            Flux<Integer> newQuantities = databaseClient.inConnectionMany(connection -> {
+                Statement statement = connection.createStatement(GROUP_COMMIT_SQL);
+                for (int i = 0; i < lines.size(); i++) {
+                    Reserve line = lines.get(i);
+                    statement.bind(0, line.quantity())
+                            .bind(1, line.key().sku())
+                            .bind(2, line.key().storeId());
+                    if (i < lines.size() - 1) {
+                        statement.add();
+                    }
+                }
+                return Flux.from(statement.execute())
+                        .concatMap(result -> Flux.from(result.map((row, meta) -> row.get(0, Integer.class)))
+                                .defaultIfEmpty(REJECTED));
+            });
+            // Los eventos de las claves confirmadas van al outbox en la misma transacción.
+            Mono<List<Integer>> commit = newQuantities.collectList()
+                    .flatMap(quantities -> alsoOnReserved(lines, quantities)
+                            .then(stockEventOutbox.append(events(lines, quantities)))
+                            .thenReturn(quantities));
+            // El resultado se emite recién después del commit de la transacción.
+            transactionalOperator.transactional(commit)
+                    .flatMap(quantities -> missing(lines, quantities)
+                            .map(missing -> new Flushed(batch, quantities, missing, null)))
+                    .subscribe(
+                            inbox::add,
+                            error -> inbox.add(new Flushed(batch, List.of(), Set.of(), error)));
+        }
+
+        // Fuera de la transacción: distingue ítem inexistente de stock insuficiente en las
+        // claves sin ninguna reserva aceptada.
+        private Mono<Set<StockKey>> missing(List<Reserve> lines, List<Integer> quantities) {
+            Set<StockKey> rejected = new HashSet<>();
+            Set<StockKey> accepted = new HashSet<>();
+            for (int i = 0; i < lines.size(); i++) {
+                (quantities.get(i) == REJECTED ? rejected : accepted).add(lines.get(i).key());
+            }
+            rejected.removeAll(accepted);
+            return Flux.fromIterable(rejected)
+                    .filterWhen(key -> inventoryRepository.findBySkuAndStoreId(key.sku(), key.storeId())
+                            .hasElement()
+                            .map(exists -> !exists))
+                    .collect(Collectors.toSet());
+        }
+
+        private void onFlushed(Flushed flushed) {
+            inFlight = null;
+            List<Reserve> lines = flushed.batch().lines;
+            if (flushed.error() != null) {
+                log.error("Fallo el group commit de {} reservas: {}", lines.size(), flushed.error().getMessage());
+                for (Reserve line : lines) {
+                    counters.remove(line.key());
+                    line.sink().error(flushed.error());
+                }
+                return;
+            }
+            Map<StockKey, Integer> lastQuantity = new HashMap<>();
+            for (int i = 0; i < lines.size(); i++) {
+                int newQuantity = flushed.newQuantities().get(i);
+                if (newQuantity != REJECTED) {
+                    lastQuantity.put(lines.get(i).key(), newQuantity);
+                }
+            }
+            for (StockKey key : flushed.batch().deltas.keySet()) {
+                Integer quantity = lastQuantity.get(key);
+                if (quantity != null) {
+                    // Lo que quedó en la BD menos lo que se aceptó en memoria desde entonces
+                    counters.put(key, new Counter(quantity - current.delta(key)));
+                    stockEventOutbox.invalidateReads(key);
+                } else {
+                    // Todas rechazadas: la cantidad real no se conoce, la próxima va a la BD
+                    counters.remove(key);
+                }
+            }
+            // Recién con las lecturas invalidadas: quien reservó ve su cambio al leer
+            Set<StockKey> rejected = new HashSet<>();
+            for (int i = 0; i < lines.size(); i++) {
+                Reserve line = lines.get(i);
+                if (flushed.newQuantities().get(i) != REJECTED) {
+                    line.sink().success(ReservationStatus.RESERVED);
+                } else {
+                    rejected.add(line.key());
+                    line.sink().success(flushed.missing().contains(line.key())
+                            ? ReservationStatus.NOT_FOUND
+                            : ReservationStatus.INSUFFICIENT_STOCK);
+                }
+            }
+            if (!rejected.isEmpty()) {
+                log.warn("Group commit: reservas rechazadas por la guarda en {}", rejected);
+            }
+            if (counters.size() > maxCountersPerLane) {
+                counters.keySet().removeIf(key -> current.delta(key) == 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.lea.imsback.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.lea.imsback.models.ReservationStatus;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Métricas de reserva: timer {@code ims.reservation} por resultado (éxito, sin stock, no
+ * encontrado, conflicto de concurrencia, error, sin resultado o cancelada) y registro de la
+ * clave en el {@link HotKeyTracker}. El conteo de cada resultado es el {@code count} de su
+ * timer: toda reserva medida termina en exactamente uno.
+ */
+@Component
+public class ReservationMetrics {
+
+    enum Outcome {
+        SUCCESS,
+        INSUFFICIENT_STOCK,
+        NOT_FOUND,
+        CONFLICT,
+        ERROR,
+        // Terminó sin estado (no debería pasar) o el cliente cortó antes del resultado
+        EMPTY,
+        CANCELLED
+    }
+
+    private final MeterRegistry meterRegistry;
+    private final HotKeyTracker hotKeyTracker;
+    private final Map<Outcome, Timer> timers = new EnumMap<>(Outcome.class);
+
+    public ReservationMetrics(MeterRegistry meterRegistry, HotKeyTracker hotKeyTracker) {
+        this.meterRegistry = meterRegistry;
+        this.hotKeyTracker = hotKeyTracker;
+        for (Outcome outcome : Outcome.values()) {
+            timers.put(outcome, Timer.builder("ims.reservation")
+                    .description("Duración de las reservas de stock por resultado")
+                    .tag("outcome", outcome.name().toLowerCase(Locale.ROOT))
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+        }
+    }
+
+    /**
+     * Mide la reserva desde la suscripción hasta su resultado (o su cancelación).
+     */
+    public Mono<ReservationStatus> record(String storeId, String sku, Mono<ReservationStatus> reservation) {
+        return Mono.defer(() -> {
+            hotKeyTracker.record(storeId, sku);
+            Timer.Sample sample = Timer.start(meterRegistry);
+            // Si no llega ni valor ni error, la reserva se canceló
+            Outcome[] outcome = {Outcome.CANCELLED};
+            return reservation
+                    .doOnSuccess(status -> outcome[0] = status != null ? outcomeOf(status) : Outcome.EMPTY)
+                    .doOnError(error -> outcome[0] = outcomeOf(error))
+                    .doFinally(signal -> sample.stop(timers.get(outcome[0])));
+        });
+    }
+
+    private static Outcome outcomeOf(ReservationStatus status) {
+        return switch (status) {
+            case RESERVED -> Outcome.SUCCESS;
+            case INSUFFICIENT_STOCK, ABORTED -> Outcome.INSUFFICIENT_STOCK;
+            case NOT_FOUND -> Outcome.NOT_FOUND;
+        };
+    }
+
+    // Conflictos: bloqueo optimista, lock timeout o deadlock que agotaron los reintentos
+    private static Outcome outcomeOf(Throwable error) {
+        return error instanceof ConcurrencyFailureException || error instanceof TransientDataAccessException
+                ? Outcome.CONFLICT
+                : Outcome.ERROR;
+    }
+}
@@ -0,0 +1,314 @@
+package org.lea.imsback.services;
+
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.ItemShard;
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.lea.imsback.repositories.ItemShardRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Modo "flash sale": reparte el stock de un (tienda, SKU) caliente en N sub-contadores
+ * (tabla {@code item_shard}) para que las reservas concurrentes actualicen filas distintas.
+ * <p>
+ * Cada reserva empieza en un shard aleatorio y recorre los demás hasta encontrar uno con
+ * stock suficiente. Sólo si ninguno alcanza por sí solo pero la suma sí, se descuenta de
+ * varios shards bloqueándolos en una transacción. Un rebalanceador periódico mueve stock
+ * de los shards ricos a los vacíos para que ese caso sea excepcional.
+ * <p>
+ * Ninguna escritura sobre shards calcula el total de la clave: dentro de la transacción no se
+ * ven los descuentos sin confirmar de los otros shards. Sus eventos son refrescos
+ * ({@link StockEventOutbox#refresh}) que el drenador resuelve con {@link #totalQuantity}.
+ * <p>
+ * {@code shardCounts} (por dónde se reserva la clave) cambia recién tras el commit de
+ * {@link #enable} o {@link #disable}. Mientras tanto la clave figura en {@link #isSwitching} y una
+ * reserva rechazada de un lado vuelve a probar del otro.
+ */
+@Service
+public class ShardedStockService {
+    private static final Logger log = LoggerFactory.getLogger(ShardedStockService.class);
+
+    private final ItemShardRepository shardRepository;
+    private final InventoryRepository inventoryRepository;
+    private final TransactionalOperator transactionalOperator;
+    private final int defaultShards;
+    // Claves en modo flash sale -> cantidad de shards
+    private final Map<StockKey, Integer> shardCounts = new ConcurrentHashMap<>();
+    // Claves con un enable/disable en curso -> cuántos
+    private final Map<StockKey, Integer> switching = new ConcurrentHashMap<>();
+
+    public ShardedStockService(ItemShardRepository shardRepository,
+                               InventoryRepository inventoryRepository,
+                               TransactionalOperator transactionalOperator,
+                               @Value("${ims.flash-sale.default-shards:8}") int defaultShards) {
+        this.shardRepository = shardRepository;
+        this.inventoryRepository = inventoryRepository;
+        this.transactionalOperator = transactionalOperator;
+        this.defaultShards = defaultShards;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadShardedKeys() {
+        shardRepository.findAll()
+                .subscribe(shard -> shardCounts.merge(new StockKey(shard.getStoreId(), shard.getSku()), 1, Integer::sum));
+    }
+
+    public boolean isSharded(String storeId, String sku) {
+        return shardCounts.containsKey(new StockKey(storeId, sku));
+    }
+
+    /**
+     * @return true si hay un enable/disable de la clave en curso: su stock puede estar ya del
+     * lado que {@link #isSharded} todavía no indica.
+     */
+    public boolean isSwitching(String storeId, String sku) {
+        return switching.containsKey(new StockKey(storeId, sku));
+    }
+
+    /**
+     * Activa (o re-fragmenta) el modo flash sale de una clave moviendo todo su stock a los shards.
+     *
+     * @return Mono<Boolean> - false si el ítem no existe.
+     */
+    public Mono<Boolean> enable(String storeId, String sku, Integer shards) {
+        int count = shards != null && shards > 0 ? shards : defaultShards;
+        Mono<Boolean> enable = inventoryRepository.drainQuantity(sku, storeId)
+                .flatMap(itemQuantity -> shardRepository.drainShards(storeId, sku)
+                        .flatMap(sharded -> createShards(storeId, sku, itemQuantity + sharded, count).thenReturn(true)))
+                .defaultIfEmpty(false);
+        return switchingWhile(storeId, sku, transactionalOperator.transactional(enable)
+                .doOnNext(enabled -> {
+                    if (enabled) {
+                        shardCounts.put(new StockKey(storeId, sku), count);
+                        log.info("FLASH SALE activado para SKU {} en {} con {} shards", sku, storeId, count);
+                    }
+                }));
+    }
+
+    /**
+     * Desactiva el modo flash sale devolviendo el stock de los shards a la fila de {@code item}.
+     *
+     * @return Mono<Boolean> - false si la clave no estaba fragmentada o el ítem no existe.
+     */
+    public Mono<Boolean> disable(String storeId, String sku) {
+        if (!isSharded(storeId, sku)) {
+            return Mono.just(false);
+        }
+        // Sin fila de item donde volcar el stock, single() falla y la transacción hace rollback
+        // (los shards quedan como estaban).
+        Mono<Integer> disable = shardRepository.drainShards(storeId, sku)
+                .flatMap(sharded -> inventoryRepository.incrementQuantity(sku, storeId, sharded))
+                .single();
+        return switchingWhile(storeId, sku, transactionalOperator.transactional(disable)
+                .map(quantity -> {
+                    shardCounts.remove(new StockKey(storeId, sku));
+                    log.info("FLASH SALE desactivado para SKU {} en {}", sku, storeId);
+                    return true;
+                })
+                .onErrorReturn(NoSuchElementException.class, false));
+    }
+
+    // Marca la clave en isSwitching desde antes de la transacción hasta después de tocar shardCounts
+    private <T> Mono<T> switchingWhile(String storeId, String sku, Mono<T> change) {
+        StockKey key = new StockKey(storeId, sku);
+        return Mono.defer(() -> {
+                    switching.merge(key, 1, Integer::sum);
+                    return change;
+                })
+                .doFinally(signal -> switching.computeIfPresent(key, (k, running) -> running == 1 ? null : running - 1));
+    }
+
+    /**
+     * Reserva sobre los shards. Si la clave todavía no figura como fragmentada (flash sale
+     * recién activado), bloquea y descuenta de los shards que haya.
+     *
+     * @return NOT_FOUND si la clave no tiene shards.
+     */
+    public Mono<ReservationStatus> reserve(String storeId, String sku, int quantity) {
+        Integer count = shardCounts.get(new StockKey(storeId, sku));
+        if (count == null) {
+            return reserveAcrossShards(storeId, sku, quantity);
+        }
+        int start = ThreadLocalRandom.current().nextInt(count);
+        return Flux.range(0, count)
+                .concatMap(i -> shardRepository.takeFromShard(storeId, sku, (start + i) % count, quantity))
+                .next()
+                .map(left -> ReservationStatus.RESERVED)
+                .switchIfEmpty(Mono.defer(() -> reserveAcrossShards(storeId, sku, quantity)));
+    }
+
+    /**
+     * Devuelve stock (hold liberado o vencido) a un shard al azar; el rebalanceador lo reparte.
+     * Si la clave dejó de estar fragmentada en el medio, lo devuelve a la fila de {@code item}.
+     *
+     * @return Mono<Boolean> - false si el ítem no existe.
+     */
+    public Mono<Boolean> giveBack(String storeId, String sku, int quantity) {
+        int count = shardCounts.getOrDefault(new StockKey(storeId, sku), 1);
+        return shardRepository.addToShard(storeId, sku, ThreadLocalRandom.current().nextInt(count), quantity)
+                .filter(rows -> rows > 0)
+                .switchIfEmpty(Mono.defer(() -> inventoryRepository.incrementQuantity(sku, storeId, quantity)))
+                .hasElement();
+    }
+
+    /**
+     * Stock total confirmado de la clave (ítem más shards), o vacío si el ítem no existe.
+     */
+    public Mono<Integer> totalQuantity(String storeId, String sku) {
+        return shardRepository.totalQuantity(storeId, sku);
+    }
+
+    /**
+     * Sobrescribe el stock total de una clave fragmentada repartiéndolo de nuevo en los shards.
+     *
+     * @return Mono<Boolean> - false si el ítem no existe.
+     */
+    public Mono<Boolean> resetTotal(String storeId, String sku, int total) {
+        int count = shardCounts.getOrDefault(new StockKey(storeId, sku), defaultShards);
+        Mono<Boolean> reset = inventoryRepository.drainQuantity(sku, storeId)
+                .flatMap(previous -> shardRepository.drainShards(storeId, sku))
+                .flatMap(previous -> createShards(storeId, sku, total, count).thenReturn(true))
+                .defaultIfEmpty(false);
+        return transactionalOperator.transactional(reset);
+    }
+
+    /**
+     * Elimina los shards de una clave (por ejemplo, al borrar el ítem). Debe ejecutarse dentro de
+     * la transacción del borrado; la clave deja de estar fragmentada con {@link #forget} tras el commit.
+     */
+    public Mono<Void> drop(String storeId, String sku) {
+        return shardRepository.drainShards(storeId, sku).then();
+    }
+
+    /**
+     * Saca la clave del modo flash sale una vez confirmado el {@link #drop} de sus shards.
+     */
+    public void forget(String storeId, String sku) {
+        if (shardCounts.remove(new StockKey(storeId, sku)) != null) {
+            log.info("FLASH SALE terminado para SKU {} en {} (shards eliminados)", sku, storeId);
+        }
+    }
+
+    /**
+     * Suma la cantidad de los shards a la del ítem, para lecturas.
+     */
+    public Mono<Item> withShardedQuantity(Item item) {
+        return shardRepository.sumQuantity(item.getStoreId(), item.getSku())
+                .map(sharded -> {
+                    item.setQuantity(item.getQuantity() + sharded);
+                    return item;
+                });
+    }
+
+    /**
+     * Rebalanceo periódico: lleva stock de los shards por encima del promedio a los que
+     * quedaron por debajo de la mitad del promedio. Cada movimiento es un descuento
+     * condicional más un incremento dentro de una transacción, por lo que convive con
+     * las reservas concurrentes.
+     */
+    @Scheduled(fixedDelayString = "${ims.flash-sale.rebalance-interval:500ms}")
+    public Mono<Void> rebalance() {
+        return Flux.fromIterable(shardCounts.keySet())
+                .concatMap(key -> shardRepository.findByStoreIdAndSkuOrderByShard(key.storeId(), key.sku())
+                        .collectList()
+                        .flatMapMany(shards -> Flux.fromIterable(planMoves(shards)))
+                        .concatMap(move -> transactionalOperator.transactional(
+                                shardRepository.takeFromShard(key.storeId(), key.sku(), move.from(), move.quantity())
+                                        .flatMap(taken -> shardRepository.addToShard(key.storeId(), key.sku(), move.to(), move.quantity())))))
+                .onErrorResume(e -> {
+                    log.warn("Rebalanceo de shards fallido: {}", e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private List<ShardMove> planMoves(List<ItemShard> shards) {
+        int total = shards.stream().mapToInt(ItemShard::getQuantity).sum();
+        int average = shards.isEmpty() ? 0 : total / shards.size();
+        List<ShardMove> moves = new ArrayList<>();
+        if (average < 2) {
+            return moves;
+        }
+        List<int[]> rich = new ArrayList<>();
+        for (ItemShard shard : shards) {
+            if (shard.getQuantity() > average) {
+                rich.add(new int[]{shard.getShard(), shard.getQuantity() - average});
+            }
+        }
+        rich.sort(Comparator.comparingInt((int[] r) -> r[1]).reversed());
+        for (ItemShard poor : shards) {
+            int need = average - poor.getQuantity();
+            if (poor.getQuantity() >= average / 2) {
+                continue;
+            }
+            for (int[] donor : rich) {
+                if (need == 0) {
+                    break;
+                }
+                int amount = Math.min(need, donor[1]);
+                if (amount > 0) {
+                    moves.add(new ShardMove(donor[0], poor.getShard(), amount));
+                    donor[1] -= amount;
+                    need -= amount;
+                }
+            }
+        }
+        return moves;
+    }
+
+    private Mono<ReservationStatus> reserveAcrossShards(String storeId, String sku, int quantity) {
+        Mono<ReservationStatus> sweep = shardRepository.lockShards(storeId, sku)
+                .collectList()
+                .flatMap(shards -> {
+                    if (shards.isEmpty()) {
+                        return Mono.just(ReservationStatus.NOT_FOUND);
+                    }
+                    int total = shards.stream().mapToInt(ItemShard::getQuantity).sum();
+                    if (total < quantity) {
+                        return Mono.just(ReservationStatus.INSUFFICIENT_STOCK);
+                    }
+                    List<ShardMove> takes = new ArrayList<>();
+                    int remaining = quantity;
+                    for (ItemShard shard : shards) {
+                        int take = Math.min(remaining, shard.getQuantity());
+                        if (take > 0) {
+                            takes.add(new ShardMove(shard.getShard(), shard.getShard(), take));
+                            remaining -= take;
+                        }
+                    }
+                    return Flux.fromIterable(takes)
+                            .concatMap(take -> shardRepository.addToShard(storeId, sku, take.from(), -take.quantity()))
+                            .then(Mono.just(ReservationStatus.RESERVED));
+                });
+        return transactionalOperator.transactional(sweep);
+    }
+
+    private Mono<Void> createShards(String storeId, String sku, int total, int count) {
+        List<ItemShard> shards = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            shards.add(new ItemShard(storeId, sku, i, total / count + (i < total % count ? 1 : 0)));
+        }
+        return shardRepository.saveAll(shards).then();
+    }
+
+    private record ShardMove(int from, int to, int quantity) {
+    }
+}
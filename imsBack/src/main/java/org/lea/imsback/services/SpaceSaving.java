@@ -0,0 +1,162 @@
+package org.lea.imsback.services;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Sketch "space-saving" de elementos más frecuentes con memoria acotada.
+ * <p>
+ * Guarda a lo sumo {@code capacity} contadores. Una clave nueva con el sketch lleno
+ * reemplaza a la de menor conteo y hereda ese conteo como error: el conteo de una clave
+ * sobreestima su frecuencia real en a lo sumo {@code error}, y toda clave con frecuencia
+ * mayor a N/capacity está garantizada en el sketch.
+ * <p>
+ * Todo vive en arreglos preasignados: los contadores forman un min-heap (la raíz es la
+ * víctima del reemplazo) y un índice de direccionamiento abierto lleva de la clave a su
+ * posición en el heap. {@link #add} no asigna memoria.
+ * <p>
+ * No es thread-safe: lo sincroniza quien lo usa.
+ */
+final class SpaceSaving<K> {
+
+    record Entry<K>(K key, long count, long error) {
+    }
+
+    // Por posición del heap
+    private final Object[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    private final int[] cellOf;
+    // Por celda del índice: posición en el heap + 1 (0 = libre)
+    private final int[] table;
+    private final int mask;
+    private int size;
+
+    SpaceSaving(int capacity) {
+        keys = new Object[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        cellOf = new int[capacity];
+        // Potencia de dos >= 2 * capacity: factor de carga <= 0,5
+        int cells = Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) << 1;
+        table = new int[cells];
+        mask = cells - 1;
+    }
+
+    void add(K key) {
+        int cell = find(key);
+        if (table[cell] != 0) {
+            int position = table[cell] - 1;
+            counts[position]++;
+            siftDown(position);
+        } else if (size < keys.length) {
+            int position = size++;
+            keys[position] = key;
+            counts[position] = 1;
+            errors[position] = 0;
+            link(cell, position);
+            siftUp(position);
+        } else {
+            long min = counts[0];
+            unlink(cellOf[0]);
+            keys[0] = key;
+            counts[0] = min + 1;
+            errors[0] = min;
+            link(find(key), 0);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * @return las {@code limit} claves de mayor conteo, de mayor a menor.
+     */
+    @SuppressWarnings("unchecked")
+    List<Entry<K>> top(int limit) {
+        return IntStream.range(0, size)
+                .boxed()
+                .sorted(Comparator.comparingLong((Integer position) -> counts[position]).reversed())
+                .limit(limit)
+                .map(position -> new Entry<>((K) keys[position], counts[position], errors[position]))
+                .toList();
+    }
+
+    private int home(Object key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    // Celda de la clave o, si no está, la celda libre donde iría
+    private int find(Object key) {
+        int cell = home(key);
+        while (table[cell] != 0 && !keys[table[cell] - 1].equals(key)) {
+            cell = (cell + 1) & mask;
+        }
+        return cell;
+    }
+
+    private void link(int cell, int position) {
+        table[cell] = position + 1;
+        cellOf[position] = cell;
+    }
+
+    // Borrado con corrimiento hacia atrás: las claves sondeadas tras el hueco se acercan a su celda de origen
+    private void unlink(int cell) {
+        table[cell] = 0;
+        int hole = cell;
+        for (int next = (cell + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            int home = home(keys[table[next] - 1]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                link(hole, table[next] - 1);
+                table[next] = 0;
+                hole = next;
+            }
+        }
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (counts[parent] <= counts[position]) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < size && counts[left] < counts[smallest]) {
+                smallest = left;
+            }
+            if (right < size && counts[right] < counts[smallest]) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        Object key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        long count = counts[a];
+        counts[a] = counts[b];
+        counts[b] = count;
+        long error = errors[a];
+        errors[a] = errors[b];
+        errors[b] = error;
+        int cellA = cellOf[a];
+        int cellB = cellOf[b];
+        link(cellA, b);
+        link(cellB, a);
+    }
+}
@@ -0,0 +1,217 @@
+package org.lea.imsback.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.r2dbc.spi.Statement;
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.models.dtos.AdjustmentResult;
+import org.lea.imsback.models.dtos.StockAdjustment;
+import org.lea.imsback.models.dtos.StockUpdateEvent;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Ajustes relativos de stock (+n / -n con motivo), seguros frente a reservas concurrentes.
+ * <p>
+ * A diferencia de {@code PATCH /update}, que pisa la cantidad con un valor leído antes, cada
+ * ajuste se aplica como {@code quantity = quantity + delta} en la propia sentencia, con la
+ * guarda {@code quantity + delta >= 0}: una recepción que llega mientras hay reservas en
+ * curso se suma a lo que quede, sin borrarlas.
+ * <p>
+ * Los ajustes masivos se procesan de a {@code ims.adjustments.chunk-size}. Dentro de cada
+ * tramo los deltas se suman por (tienda, SKU) y se aplican con un único statement batch en
+ * una transacción, junto con un evento de stock por clave afectada en el outbox. Cada clave
+ * se aplica o rechaza por separado (no es todo o nada).
+ */
+@Service
+public class StockAdjustmentService {
+    private static final Logger log = LoggerFactory.getLogger(StockAdjustmentService.class);
+
+    private static final String ADJUST_SQL = """
+            SELECT quantity FROM FINAL TABLE (
+                UPDATE item SET quantity = quantity + $1, version = version + 1
+                WHERE sku = $2 AND store_id = $3 AND quantity + $1 >= 0)
+            """;
+    private static final Comparator<StockKey> KEY_ORDER =
+            Comparator.comparing(StockKey::storeId).thenComparing(StockKey::sku);
+
+    private final DatabaseClient databaseClient;
+    private final TransactionalOperator transactionalOperator;
+    private final InventoryRepository inventoryRepository;
+    private final ShardedStockService shardedStockService;
+    private final StockEventOutbox stockEventOutbox;
+    private final ObjectProvider<DurableInventoryStore> durableStore;
+    private final MeterRegistry meterRegistry;
+    private final int chunkSize;
+    private final int maxPerCall;
+
+    public StockAdjustmentService(DatabaseClient databaseClient,
+                                  TransactionalOperator transactionalOperator,
+                                  InventoryRepository inventoryRepository,
+                                  ShardedStockService shardedStockService,
+                                  StockEventOutbox stockEventOutbox,
+                                  ObjectProvider<DurableInventoryStore> durableStore,
+                                  MeterRegistry meterRegistry,
+                                  @Value("${ims.adjustments.chunk-size:500}") int chunkSize,
+                                  @Value("${ims.adjustments.max-per-call:50000}") int maxPerCall) {
+        this.databaseClient = databaseClient;
+        this.transactionalOperator = transactionalOperator;
+        this.inventoryRepository = inventoryRepository;
+        this.shardedStockService = shardedStockService;
+        this.stockEventOutbox = stockEventOutbox;
+        this.durableStore = durableStore;
+        this.meterRegistry = meterRegistry;
+        this.chunkSize = chunkSize;
+        this.maxPerCall = maxPerCall;
+    }
+
+    public Mono<AdjustmentResult> adjust(StockAdjustment adjustment) {
+        return adjustAll(List.of(adjustment)).next();
+    }
+
+    /**
+     * @return un resultado por clave, en orden de (tienda, SKU) dentro de cada tramo.
+     */
+    public Flux<AdjustmentResult> adjustAll(List<StockAdjustment> adjustments) {
+        if (adjustments.size() > maxPerCall) {
+            return Flux.error(new IllegalArgumentException("La petición supera el máximo de " + maxPerCall + " ajustes."));
+        }
+        if (adjustments.stream().anyMatch(adjustment -> adjustment.delta() == 0)) {
+            return Flux.error(new IllegalArgumentException("Un ajuste debe tener delta distinto de 0."));
+        }
+        return Flux.fromIterable(adjustments)
+                .buffer(chunkSize)
+                .concatMap(this::adjustChunk);
+    }
+
+    private Flux<AdjustmentResult> adjustChunk(List<StockAdjustment> chunk) {
+        Map<StockKey, Integer> plain = new TreeMap<>(KEY_ORDER);
+        Map<StockKey, Integer> sharded = new TreeMap<>(KEY_ORDER);
+        for (StockAdjustment adjustment : chunk) {
+            StockKey key = new StockKey(adjustment.storeId(), adjustment.sku());
+            (shardedStockService.isSharded(key.storeId(), key.sku()) ? sharded : plain)
+                    .merge(key, adjustment.delta(), Integer::sum);
+            meterRegistry.counter("ims.adjustments", "reason", adjustment.reason().name()).increment();
+        }
+        DurableInventoryStore durable = durableStore.getIfAvailable();
+        if (durable != null) {
+            plain.putAll(sharded);
+            return durable.adjustAll(plain).flatMapIterable(results -> results);
+        }
+
+        Mono<Adjusted> adjustment = adjustPlain(plain)
+                .flatMap(newQuantities -> adjustSharded(sharded)
+                        .map(adjustedSharded -> new Adjusted(newQuantities, adjustedSharded)))
+                // Un evento por clave afectada, en la misma transacción.
+                .flatMap(adjusted -> stockEventOutbox.append(events(adjusted)).thenReturn(adjusted));
+
+        return transactionalOperator.transactional(adjustment)
+                .doOnNext(this::afterCommit)
+                .flatMapMany(adjusted -> {
+                    Map<StockKey, Integer> deltas = new TreeMap<>(KEY_ORDER);
+                    deltas.putAll(plain);
+                    deltas.putAll(sharded);
+                    return Flux.fromIterable(deltas.entrySet())
+                            .concatMap(entry -> {
+                                StockKey key = entry.getKey();
+                                Integer newQuantity = adjusted.plain().get(key);
+                                if (newQuantity != null) {
+                                    return Mono.just(AdjustmentResult.applied(key.storeId(), key.sku(), entry.getValue(), newQuantity));
+                                }
+                                if (adjusted.sharded().contains(key)) {
+                                    // El total de una clave en flash sale se lee ya confirmado
+                                    return shardedStockService.totalQuantity(key.storeId(), key.sku())
+                                            .map(total -> AdjustmentResult.applied(key.storeId(), key.sku(), entry.getValue(), total));
+                                }
+                                return classifyRejection(key, entry.getValue());
+                            });
+                });
+    }
+
+    // Un único statement batch: un UPDATE relativo con guarda por clave, en orden de clave.
+    private Mono<Map<StockKey, Integer>> adjustPlain(Map<StockKey, Integer> plain) {
+        if (plain.isEmpty()) {
+            return Mono.just(new HashMap<>());
+        }
+        List<StockKey> keys = new ArrayList<>(plain.keySet());
+        return databaseClient.inConnectionMany(connection -> {
+                    Statement statement = connection.createStatement(ADJUST_SQL);
+                    for (int i = 0; i < keys.size(); i++) {
+                        StockKey key = keys.get(i);
+                        statement.bind(0, plain.get(key)).bind(1, key.sku()).bind(2, key.storeId());
+                        if (i < keys.size() - 1) {
+                            statement.add();
+                        }
+                    }
+                    return Flux.from(statement.execute())
+                            .index()
+                            .concatMap(indexed -> Flux.from(indexed.getT2().map((row, meta) -> row.get(0, Integer.class)))
+                                    .map(quantity -> Map.entry(keys.get(indexed.getT1().intValue()), quantity)));
+                })
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue, HashMap::new);
+    }
+
+    // Claves en flash sale: los ingresos van a un shard y los egresos se reservan sobre los shards.
+    private Mono<List<StockKey>> adjustSharded(Map<StockKey, Integer> sharded) {
+        return Flux.fromIterable(sharded.entrySet())
+                .concatMap(entry -> {
+                    StockKey key = entry.getKey();
+                    int delta = entry.getValue();
+                    Mono<Boolean> applied = delta >= 0
+                            ? shardedStockService.giveBack(key.storeId(), key.sku(), delta)
+                            : shardedStockService.reserve(key.storeId(), key.sku(), -delta).map(ReservationStatus::isReserved);
+                    return applied.filter(done -> done).map(done -> key);
+                })
+                .collectList();
+    }
+
+    // Las claves en flash sale llevan un refresco: su total se lee al publicarlo
+    private List<StockUpdateEvent> events(Adjusted adjusted) {
+        List<StockUpdateEvent> events = new ArrayList<>();
+        adjusted.plain().entrySet().stream()
+                .sorted(Map.Entry.comparingByKey(KEY_ORDER))
+                .map(entry -> new StockUpdateEvent(entry.getKey().storeId(), entry.getKey().sku(), entry.getValue()))
+                .forEach(events::add);
+        adjusted.sharded().forEach(key -> events.add(StockEventOutbox.refresh(key.storeId(), key.sku())));
+        return events;
+    }
+
+    private void afterCommit(Adjusted adjusted) {
+        List<StockKey> keys = new ArrayList<>(adjusted.plain().keySet());
+        keys.addAll(adjusted.sharded());
+        stockEventOutbox.afterCommit(keys);
+        log.info("AJUSTE DE STOCK: {} claves aplicadas", keys.size());
+    }
+
+    // Fuera de la transacción: distingue stock insuficiente de ítem inexistente.
+    private Mono<AdjustmentResult> classifyRejection(StockKey key, int delta) {
+        return inventoryRepository.findBySkuAndStoreId(key.sku(), key.storeId())
+                .map(item -> AdjustmentResult.Status.INSUFFICIENT_STOCK)
+                .defaultIfEmpty(AdjustmentResult.Status.NOT_FOUND)
+                .map(status -> {
+                    log.warn("AJUSTE RECHAZADO: {} {} ({})", key, delta, status);
+                    return AdjustmentResult.rejected(key.storeId(), key.sku(), delta, status);
+                });
+    }
+
+    /**
+     * Claves aplicadas de un tramo: cantidad resultante de las normales y las de flash sale.
+     */
+    private record Adjusted(Map<StockKey, Integer> plain, List<StockKey> sharded) {
+    }
+}
@@ -0,0 +1,189 @@
+package org.lea.imsback.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.r2dbc.spi.Statement;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.dtos.StockAggregate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Carga inicial, reconciliación periódica y persistencia de {@link StockAggregates}.
+ * <p>
+ * Los agregados se mantienen en memoria a partir de los eventos de stock. Cada
+ * {@code ims.aggregates.flush-interval} los que cambiaron se vuelcan a la tabla
+ * {@code stock_aggregate} (write-behind, un statement batch por pasada). Cada
+ * {@code ims.aggregates.reconcile-interval} se recalculan desde la fuente de verdad
+ * ({@code item} + {@code item_shard}, o el store durable) y se corrigen las diferencias,
+ * que quedan en la métrica {@code ims.aggregates.drift}. En modo durable, cada reconciliación
+ * olvida además las lápidas de borrados anteriores a la reconciliación previa (en modo outbox
+ * lo hace la compactación del outbox).
+ */
+@Service
+public class StockAggregateService {
+    private static final Logger log = LoggerFactory.getLogger(StockAggregateService.class);
+
+    // Stock total por clave: en flash sale es item.quantity + la suma de sus shards
+    private static final String CURRENT_STOCK_SQL = """
+            SELECT i.id, i.version, i.store_id, i.sku, CAST(i.quantity + COALESCE(s.quantity, 0) AS INT) AS quantity
+            FROM item i
+            LEFT JOIN (SELECT store_id, sku, SUM(quantity) AS quantity FROM item_shard GROUP BY store_id, sku) s
+                   ON s.store_id = i.store_id AND s.sku = i.sku
+            """;
+    private static final String MERGE_SQL =
+            "MERGE INTO stock_aggregate (scope, agg_key, units, items) KEY (scope, agg_key) VALUES ($1, $2, $3, $4)";
+    private static final String DELETE_SQL = "DELETE FROM stock_aggregate WHERE scope = $1 AND agg_key = $2";
+
+    private final StockAggregates stockAggregates;
+    private final DatabaseClient databaseClient;
+    private final ObjectProvider<DurableInventoryStore> durableStore;
+    private final Counter drift;
+    private final Timer reconcileTimer;
+    private final AtomicBoolean reconciling = new AtomicBoolean();
+    // Modo durable: LSN del log al terminar la reconciliación anterior
+    private volatile long previousLsn;
+
+    public StockAggregateService(StockAggregates stockAggregates,
+                                 DatabaseClient databaseClient,
+                                 ObjectProvider<DurableInventoryStore> durableStore,
+                                 MeterRegistry meterRegistry) {
+        this.stockAggregates = stockAggregates;
+        this.databaseClient = databaseClient;
+        this.durableStore = durableStore;
+        this.drift = Counter.builder("ims.aggregates.drift")
+                .description("Agregados corregidos por la reconciliación")
+                .register(meterRegistry);
+        this.reconcileTimer = Timer.builder("ims.aggregates.reconcile")
+                .register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        reconcile().subscribe();
+    }
+
+    /**
+     * Recalcula los agregados desde la fuente de verdad y reemplaza los de memoria.
+     *
+     * @return cantidad de agregados que no coincidían (vacío si ya había una reconciliación en curso).
+     */
+    public Mono<Long> reconcile() {
+        return Mono.defer(() -> {
+            if (!reconciling.compareAndSet(false, true)) {
+                return Mono.empty();
+            }
+            long start = System.nanoTime();
+            StockAggregates.Rebuild rebuild = stockAggregates.beginRebuild();
+            return currentStock()
+                    .doOnNext(item -> rebuild.add(item))
+                    .then(Mono.fromCallable(rebuild::complete))
+                    .doOnNext(drifted -> {
+                        pruneDurableTombstones();
+                        reconcileTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        if (drifted > 0) {
+                            drift.increment(drifted);
+                            log.warn("Reconciliación de agregados: {} agregados corregidos", drifted);
+                        }
+                    })
+                    .doOnError(e -> rebuild.abort())
+                    .doOnCancel(rebuild::abort)
+                    .doFinally(signal -> reconciling.set(false));
+        });
+    }
+
+    // Los eventos del log anteriores a la reconciliación previa se publicaron hace un intervalo
+    // entero (el evento sale apenas el fsync cubre su registro): ninguno puede llegar tarde.
+    private void pruneDurableTombstones() {
+        DurableInventoryStore durable = durableStore.getIfAvailable();
+        if (durable != null) {
+            stockAggregates.pruneTombstones(previousLsn);
+            previousLsn = durable.lastLsn();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${ims.aggregates.reconcile-interval:10m}",
+            initialDelayString = "${ims.aggregates.reconcile-interval:10m}")
+    public Mono<Void> scheduledReconcile() {
+        return reconcile()
+                .onErrorResume(e -> {
+                    log.warn("Reconciliación de agregados fallida: {}", e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * Vuelca a {@code stock_aggregate} los agregados modificados desde la pasada anterior.
+     */
+    @Scheduled(fixedDelayString = "${ims.aggregates.flush-interval:1s}")
+    public Mono<Void> flush() {
+        return Mono.defer(() -> {
+            List<StockAggregates.Change> changes = stockAggregates.drainChanges();
+            if (changes.isEmpty()) {
+                return Mono.empty();
+            }
+            List<StockAggregates.Change> upserts = changes.stream().filter(change -> change.aggregate() != null).toList();
+            List<StockAggregates.Change> deletes = changes.stream().filter(change -> change.aggregate() == null).toList();
+            return execute(MERGE_SQL, upserts)
+                    .then(execute(DELETE_SQL, deletes))
+                    .onErrorResume(e -> {
+                        // Se reintentan en la próxima pasada con el valor vigente en ese momento.
+                        stockAggregates.retry(changes);
+                        log.warn("No se pudieron persistir {} agregados: {}", changes.size(), e.getMessage());
+                        return Mono.empty();
+                    });
+        });
+    }
+
+    private Flux<Item> currentStock() {
+        DurableInventoryStore durable = durableStore.getIfAvailable();
+        if (durable != null) {
+            return durable.findAll();
+        }
+        return databaseClient.sql(CURRENT_STOCK_SQL)
+                .map((row, meta) -> {
+                    Item item = new Item(row.get("sku", String.class),
+                            row.get("quantity", Integer.class), row.get("store_id", String.class));
+                    item.setId(row.get("id", Long.class));
+                    item.setVersion(row.get("version", Long.class));
+                    return item;
+                })
+                .all();
+    }
+
+    private Mono<Void> execute(String sql, List<StockAggregates.Change> changes) {
+        if (changes.isEmpty()) {
+            return Mono.empty();
+        }
+        return databaseClient.inConnectionMany(connection -> {
+                    Statement statement = connection.createStatement(sql);
+                    for (int i = 0; i < changes.size(); i++) {
+                        StockAggregates.Change change = changes.get(i);
+                        statement.bind(0, change.scope().name()).bind(1, change.id());
+                        StockAggregate aggregate = change.aggregate();
+                        if (aggregate != null) {
+                            statement.bind(2, aggregate.units()).bind(3, aggregate.items());
+                        }
+                        if (i < changes.size() - 1) {
+                            statement.add();
+                        }
+                    }
+                    return Flux.from(statement.execute()).concatMap(result -> Flux.from(result.getRowsUpdated()));
+                })
+                .then();
+    }
+}
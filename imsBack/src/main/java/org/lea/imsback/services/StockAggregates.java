@@ -0,0 +1,448 @@
+package org.lea.imsback.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.models.dtos.StockAggregate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Agregados de stock materializados en memoria: unidades e ítems por tienda, por SKU (todas
+ * las tiendas) y de toda la red. Las lecturas son O(1) y no toman locks.
+ * <p>
+ * Los eventos de stock traen la cantidad nueva, no el delta, así que se guarda la última
+ * cantidad vista de cada clave y el delta se calcula contra ella. Aplicar dos veces el mismo
+ * evento (el outbox entrega "al menos una vez") no cambia nada. Cada evento trae además su
+ * versión (id del outbox o LSN del log): uno más viejo que el último aplicado a la clave, como
+ * la reentrega tardía de un id salteado, se descarta.
+ * <p>
+ * Un borrado deja una lápida con su versión: un evento de la clave que no sea más nuevo (una
+ * escritura confirmada antes del borrado pero publicada después) se descarta en vez de volver
+ * a crear el ítem. La lápida se va cuando llega un evento más nuevo (el ítem se volvió a crear)
+ * o con {@link #pruneTombstones}, cuando ya se publicó todo lo que podía ser más viejo.
+ * <p>
+ * Los eventos de una misma clave se aplican en serie bajo el lock de su franja; los de claves
+ * de franjas distintas, en paralelo.
+ * <p>
+ * Esas cantidades viven en un {@link CompactInventoryIndex} (junto con id y versión de cada
+ * ítem cuando se conocen), que responde también la lectura de un ítem y la disponibilidad de
+ * un SKU en todas las tiendas ({@link #forEachStore}).
+ * <p>
+ * Una reconstrucción ({@link #beginRebuild()}) arma un estado nuevo desde la fuente de verdad
+ * sin frenar las escrituras: los eventos que llegan mientras tanto se guardan y se vuelven a
+ * aplicar sobre el estado nuevo antes de reemplazar al actual.
+ */
+@Component
+public class StockAggregates {
+
+    public enum Scope {
+        STORE,
+        SKU,
+        TOTAL
+    }
+
+    /**
+     * Agregado modificado desde el último {@link #drainChanges()}; {@code aggregate} null = ya no existe.
+     */
+    public record Change(Scope scope, String id, StockAggregate aggregate) {
+    }
+
+    public static final String TOTAL_ID = "*";
+    public static final int ABSENT = CompactInventoryIndex.ABSENT;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final boolean offHeap;
+    private final Object[] stripes = new Object[LOCK_STRIPES];
+    // Compartido al aplicar eventos; exclusivo para empezar, terminar o descartar una reconstrucción
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private final Set<Map.Entry<Scope, String>> dirty = ConcurrentHashMap.newKeySet();
+    // Versión del borrado de cada clave borrada; se modifica bajo el lock de la franja de la clave
+    private final Map<StockKey, Long> tombstones = new ConcurrentHashMap<>();
+    private final Counter stale;
+    private volatile State state;
+    private volatile boolean loaded;
+    // Se asignan con el lock de escritura de stateLock y se leen con el de lectura
+    private Queue<StockEvent> replay;
+    private Queue<StockKey> replayInvalidated;
+
+    public StockAggregates(MeterRegistry meterRegistry,
+                           @Value("${ims.index.off-heap:false}") boolean offHeap) {
+        this.offHeap = offHeap;
+        this.state = new State(0, offHeap);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+        this.stale = Counter.builder("ims.aggregates.stale-events")
+                .description("Eventos de stock descartados por ser más viejos que el último aplicado a su clave")
+                .register(meterRegistry);
+        Gauge.builder("ims.aggregates.keys", this, aggregates -> aggregates.state.total.get().items())
+                .description("Claves (tienda, SKU) seguidas por los agregados de stock")
+                .register(meterRegistry);
+        Gauge.builder("ims.index.bytes", this, aggregates -> aggregates.state.index.footprintBytes())
+                .description("Memoria del índice compacto de inventario (sin los diccionarios)")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Evento sin versión: se aplica siempre.
+     */
+    public void onStockUpdate(String storeId, String sku, int quantity) {
+        onStockUpdate(storeId, sku, quantity, 0L);
+    }
+
+    /**
+     * @param version id del outbox o LSN del log; si es menor que la del último evento
+     *                aplicado a la clave, el evento se descarta.
+     * @return false si el evento se descartó por viejo: quien lo reenvía a otros consumidores
+     * (alertas, bus) tampoco debe hacerlo.
+     */
+    public boolean onStockUpdate(String storeId, String sku, int quantity, long version) {
+        return apply(new StockEvent(new StockKey(storeId, sku), quantity, version));
+    }
+
+    /**
+     * Borrado sin versión: no deja lápida.
+     */
+    public void onDelete(String storeId, String sku) {
+        onDelete(storeId, sku, 0L);
+    }
+
+    /**
+     * @param version versión del borrado (id del outbox o LSN del log): los eventos de la clave
+     *                con versión menor o igual que lleguen después se descartan.
+     * @return false si el borrado es más viejo que el último evento aplicado a la clave.
+     */
+    public boolean onDelete(String storeId, String sku, long version) {
+        return apply(new StockEvent(new StockKey(storeId, sku), null, version));
+    }
+
+    /**
+     * Olvida las lápidas hasta {@code version}: ya no queda ningún evento así de viejo por aplicar.
+     */
+    public void pruneTombstones(long version) {
+        tombstones.values().removeIf(buried -> buried <= version);
+    }
+
+    public StockAggregate store(String storeId) {
+        return state.byStore.get(storeId);
+    }
+
+    public StockAggregate sku(String sku) {
+        return state.bySku.get(sku);
+    }
+
+    public StockAggregate total() {
+        return state.total.get();
+    }
+
+    /**
+     * Stock de un SKU en cada tienda donde existe, O(tiendas del SKU).
+     */
+    public void forEachStore(String sku, CompactInventoryIndex.StoreQuantityConsumer consumer) {
+        state.index.forEachStore(sku, consumer);
+    }
+
+    /**
+     * @return la última cantidad vista de la clave, o {@link #ABSENT} si no existe. No asigna memoria.
+     */
+    public int quantity(String storeId, String sku) {
+        return state.index.quantity(storeId, sku);
+    }
+
+    /**
+     * @return el ítem desde el índice, o null si no está o su versión no se conoce (hubo una
+     * escritura después de la última lectura de la BD).
+     */
+    public Item item(String storeId, String sku) {
+        return state.index.item(storeId, sku);
+    }
+
+    /**
+     * Marca a pasar a {@link #refresh} junto con el ítem que se lea de la BD a continuación.
+     */
+    public int writeCount(String storeId, String sku) {
+        return state.index.writeCount(storeId, sku);
+    }
+
+    /**
+     * Completa id y versión del ítem en el índice, salvo que haya cambiado desde {@code writeCount}.
+     */
+    public void refresh(Item item, int writeCount) {
+        state.index.refresh(item, writeCount);
+    }
+
+    /**
+     * Tras el commit de una escritura: {@link #item} deja de responder la clave hasta que una
+     * lectura de la BD posterior a su evento la complete.
+     */
+    public void invalidate(String storeId, String sku) {
+        Lock shared = stateLock.readLock();
+        shared.lock();
+        try {
+            state.index.invalidate(storeId, sku);
+            if (replayInvalidated != null) {
+                replayInvalidated.add(new StockKey(storeId, sku));
+            }
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    /**
+     * false hasta que termina la primera carga desde la fuente de verdad.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Empieza a armar un estado nuevo. Hay que completarlo con {@link Rebuild#complete()}.
+     */
+    public Rebuild beginRebuild() {
+        Lock exclusive = stateLock.writeLock();
+        exclusive.lock();
+        try {
+            replay = new ConcurrentLinkedQueue<>();
+            replayInvalidated = new ConcurrentLinkedQueue<>();
+            return new Rebuild();
+        } finally {
+            exclusive.unlock();
+        }
+    }
+
+    /**
+     * Agregados modificados desde la última llamada (para persistirlos en la tabla resumen).
+     */
+    public List<Change> drainChanges() {
+        if (dirty.isEmpty()) {
+            return List.of();
+        }
+        // Con el lock compartido: no se mezcla con el reemplazo del estado
+        Lock shared = stateLock.readLock();
+        shared.lock();
+        try {
+            State current = state;
+            List<Change> changes = new ArrayList<>();
+            for (Iterator<Map.Entry<Scope, String>> it = dirty.iterator(); it.hasNext(); ) {
+                Map.Entry<Scope, String> entry = it.next();
+                // Se quita antes de leer el agregado: una marca posterior queda para la próxima vez
+                it.remove();
+                changes.add(new Change(entry.getKey(), entry.getValue(), current.get(entry.getKey(), entry.getValue())));
+            }
+            return changes;
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    /**
+     * Vuelve a marcar como pendientes cambios que no se pudieron persistir.
+     */
+    public void retry(List<Change> changes) {
+        changes.forEach(change -> dirty.add(Map.entry(change.scope(), change.id())));
+    }
+
+    private boolean apply(StockEvent event) {
+        Lock shared = stateLock.readLock();
+        shared.lock();
+        try {
+            // La franja ordena los eventos de la clave también en replay
+            synchronized (stripes[Math.floorMod(event.key().hashCode(), stripes.length)]) {
+                Applied applied = buried(event) ? Applied.STALE : state.apply(event);
+                switch (applied) {
+                    case CHANGED -> markDirty(event.key());
+                    case STALE -> stale.increment();
+                    case UNCHANGED -> {
+                    }
+                }
+                // Lo descartado acá también lo estaría sobre el estado reconstruido
+                if (replay != null && applied != Applied.STALE) {
+                    replay.add(event);
+                }
+                return applied != Applied.STALE;
+            }
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    // Llamar con el lock de la franja de la clave
+    private boolean buried(StockEvent event) {
+        if (event.version() == 0) {
+            return false;
+        }
+        if (event.quantity() == null) {
+            tombstones.merge(event.key(), event.version(), Math::max);
+            return false;
+        }
+        Long buried = tombstones.get(event.key());
+        if (buried == null) {
+            return false;
+        }
+        if (event.version() <= buried) {
+            return true;
+        }
+        // Evento posterior al borrado: el ítem se volvió a crear
+        tombstones.remove(event.key());
+        return false;
+    }
+
+    private void markDirty(StockKey key) {
+        dirty.add(Map.entry(Scope.STORE, key.storeId()));
+        dirty.add(Map.entry(Scope.SKU, key.sku()));
+        dirty.add(Map.entry(Scope.TOTAL, TOTAL_ID));
+    }
+
+    /**
+     * Estado nuevo en construcción. {@link #add} no es thread-safe: lo alimenta un único flujo.
+     */
+    public final class Rebuild {
+        private final State fresh = new State(state.index.size(), offHeap);
+
+        public void add(Item item) {
+            // Conserva la versión del último evento aplicado: una reentrega vieja no pisa lo leído
+            fresh.load(item, state.index.eventVersion(item.getStoreId(), item.getSku()));
+        }
+
+        /**
+         * Descarta la reconstrucción.
+         */
+        public void abort() {
+            Lock exclusive = stateLock.writeLock();
+            exclusive.lock();
+            try {
+                replay = null;
+                replayInvalidated = null;
+            } finally {
+                exclusive.unlock();
+            }
+        }
+
+        /**
+         * Reemplaza el estado actual por el reconstruido.
+         *
+         * @return cantidad de agregados que no coincidían con la reconstrucción.
+         */
+        public long complete() {
+            Lock exclusive = stateLock.writeLock();
+            exclusive.lock();
+            try {
+                replay.forEach(fresh::apply);
+                // Lo leído para la reconstrucción puede ser anterior a esas escrituras
+                replayInvalidated.forEach(key -> fresh.index.invalidate(key.storeId(), key.sku()));
+                replay = null;
+                replayInvalidated = null;
+                State previous = state;
+                long drifted = 0;
+                for (Scope scope : Scope.values()) {
+                    Set<String> ids = new HashSet<>(previous.ids(scope));
+                    ids.addAll(fresh.ids(scope));
+                    for (String id : ids) {
+                        if (!Objects.equals(previous.get(scope, id), fresh.get(scope, id))) {
+                            drifted++;
+                            dirty.add(Map.entry(scope, id));
+                        }
+                    }
+                }
+                state = fresh;
+                loaded = true;
+                return drifted;
+            } finally {
+                exclusive.unlock();
+            }
+        }
+    }
+
+    // quantity null = ítem borrado; version 0 = sin versión
+    private record StockEvent(StockKey key, Integer quantity, long version) {
+    }
+
+    private enum Applied {
+        CHANGED,
+        UNCHANGED,
+        STALE
+    }
+
+    private static final class State {
+        // Última cantidad vista de cada (tienda, SKU), más id y versión cuando se conocen. Cada clave
+        // se modifica bajo el lock de su franja (o, mientras se reconstruye, desde un único flujo).
+        private final CompactInventoryIndex index;
+        private final Map<String, StockAggregate> byStore = new ConcurrentHashMap<>();
+        private final Map<String, StockAggregate> bySku = new ConcurrentHashMap<>();
+        private final AtomicReference<StockAggregate> total = new AtomicReference<>(StockAggregate.EMPTY);
+
+        State(int expectedItems, boolean offHeap) {
+            this.index = new CompactInventoryIndex(expectedItems, offHeap);
+        }
+
+        Applied apply(StockEvent event) {
+            StockKey key = event.key();
+            int quantity = event.quantity() == null ? ABSENT : event.quantity();
+            int previous = quantity == ABSENT
+                    ? index.remove(key.storeId(), key.sku(), event.version())
+                    : index.put(key.storeId(), key.sku(), quantity, event.version());
+            if (previous == CompactInventoryIndex.STALE) {
+                return Applied.STALE;
+            }
+            return account(key.storeId(), key.sku(), quantity, previous) ? Applied.CHANGED : Applied.UNCHANGED;
+        }
+
+        void load(Item item, long eventVersion) {
+            account(item.getStoreId(), item.getSku(), item.getQuantity(), index.put(item, eventVersion));
+        }
+
+        private boolean account(String storeId, String sku, int quantity, int previous) {
+            long units = (quantity == ABSENT ? 0 : quantity) - (previous == ABSENT ? 0 : previous);
+            long items = (quantity == ABSENT ? 0 : 1) - (previous == ABSENT ? 0 : 1);
+            if (units == 0 && items == 0) {
+                return false;
+            }
+            add(byStore, storeId, units, items);
+            add(bySku, sku, units, items);
+            total.updateAndGet(current -> current.plus(units, items));
+            return true;
+        }
+
+        StockAggregate get(Scope scope, String id) {
+            return switch (scope) {
+                case STORE -> byStore.get(id);
+                case SKU -> bySku.get(id);
+                case TOTAL -> total.get();
+            };
+        }
+
+        Set<String> ids(Scope scope) {
+            return switch (scope) {
+                case STORE -> byStore.keySet();
+                case SKU -> bySku.keySet();
+                case TOTAL -> Set.of(TOTAL_ID);
+            };
+        }
+
+        private static void add(Map<String, StockAggregate> aggregates, String id, long units, long items) {
+            aggregates.compute(id, (key, current) -> {
+                StockAggregate next = (current == null ? StockAggregate.EMPTY : current).plus(units, items);
+                return next.items() == 0 ? null : next;
+            });
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.lea.imsback.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.models.dtos.StockUpdateEvent;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bus de eventos de stock en memoria, basado en un sink multicast.
+ * <p>
+ * El sink entrega "best effort": un suscriptor lento nunca frena al publicador ni a los
+ * demás suscriptores. Cada suscriptor tiene su propio buffer acotado y elige qué hacer
+ * cuando se llena:
+ * <ul>
+ *     <li>{@link Overflow#DROP_OLDEST}: descarta los eventos más viejos.</li>
+ *     <li>{@link Overflow#LATEST_PER_KEY}: conserva sólo el último evento de cada
+ *     (tienda, SKU); ideal para tableros, que sólo necesitan el valor actual.</li>
+ * </ul>
+ */
+@Component
+public class StockEventBus {
+
+    public enum Overflow {
+        DROP_OLDEST,
+        LATEST_PER_KEY
+    }
+
+    private final Sinks.Many<StockUpdateEvent> sink = Sinks.many().multicast().directBestEffort();
+    private final int bufferSize;
+    private final Counter droppedOldest;
+    private final Counter droppedConflated;
+
+    public StockEventBus(MeterRegistry meterRegistry,
+                         @Value("${ims.events.subscriber-buffer:256}") int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.droppedOldest = Counter.builder("ims.events.dropped")
+                .tag("overflow", "drop_oldest")
+                .register(meterRegistry);
+        this.droppedConflated = Counter.builder("ims.events.dropped")
+                .tag("overflow", "latest_per_key")
+                .register(meterRegistry);
+    }
+
+    public void publish(StockUpdateEvent event) {
+        // Reintenta sólo ante emisiones concurrentes; sin suscriptores el evento se descarta.
+        sink.emitNext(event, Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100)));
+    }
+
+    /**
+     * Suscripción filtrada por tienda y/o SKU (null = todos).
+     */
+    public Flux<StockUpdateEvent> subscribe(String storeId, String sku, Overflow overflow) {
+        Flux<StockUpdateEvent> events = sink.asFlux()
+                .filter(event -> (storeId == null || storeId.equals(event.storeId()))
+                        && (sku == null || sku.equals(event.sku())));
+        return overflow == Overflow.LATEST_PER_KEY
+                ? latestPerKey(events)
+                : events.onBackpressureBuffer(bufferSize, dropped -> droppedOldest.increment(),
+                BufferOverflowStrategy.DROP_OLDEST);
+    }
+
+    public int subscriberCount() {
+        return sink.currentSubscriberCount();
+    }
+
+    // Buffer por clave: un evento nuevo reemplaza al pendiente de la misma clave sin perder su turno.
+    private Flux<StockUpdateEvent> latestPerKey(Flux<StockUpdateEvent> events) {
+        return Flux.create(downstream -> {
+            Map<StockKey, StockUpdateEvent> pending = new LinkedHashMap<>();
+            Runnable drain = () -> {
+                synchronized (pending) {
+                    Iterator<StockUpdateEvent> it = pending.values().iterator();
+                    while (downstream.requestedFromDownstream() > 0 && it.hasNext()) {
+                        StockUpdateEvent next = it.next();
+                        it.remove();
+                        downstream.next(next);
+                    }
+                }
+            };
+            Disposable upstream = events.subscribe(event -> {
+                synchronized (pending) {
+                    if (pending.put(new StockKey(event.storeId(), event.sku()), event) != null) {
+                        droppedConflated.increment();
+                    } else if (pending.size() > bufferSize) {
+                        Iterator<StockUpdateEvent> it = pending.values().iterator();
+                        it.next();
+                        it.remove();
+                        droppedConflated.increment();
+                    }
+                }
+                drain.run();
+            }, downstream::error, downstream::complete);
+            downstream.onRequest(n -> drain.run());
+            downstream.onDispose(upstream);
+        });
+    }
+}
@@ -0,0 +1,380 @@
+package org.lea.imsback.services;
+
+import io.r2dbc.spi.Statement;
+import org.lea.imsback.models.OutboxEvent;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.models.dtos.StockUpdateEvent;
+import org.lea.imsback.repositories.ItemShardRepository;
+import org.lea.imsback.repositories.StockEventOutboxRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Outbox transaccional de {@link StockUpdateEvent}.
+ * <p>
+ * Las escrituras de stock insertan su evento en {@code stock_event_outbox} dentro de la
+ * misma transacción R2DBC, por lo que no hay evento sin cambio ni cambio sin evento.
+ * Un drenador en segundo plano lee lotes con {@code id > offset}, los publica con
+ * {@link EventPublisher} y recién después avanza el offset: entrega "al menos una vez".
+ * Mientras se despacha un lote ya se está leyendo el siguiente.
+ * <p>
+ * Los ids se asignan al insertar pero las transacciones confirman en otro orden, así que
+ * un hueco en la secuencia puede ser una transacción aún abierta. El drenador se detiene
+ * en el hueco y sólo lo saltea si sigue abierto pasado {@code ims.outbox.gap-timeout}
+ * (id consumido por una transacción revertida). Los ids salteados se siguen buscando en
+ * cada pasada: si la transacción sólo era lenta, su evento se publica al confirmarse.
+ * Se abandonan pasado {@code ims.outbox.skip-retention} y, hasta entonces, la compactación
+ * no borra por encima del menor de ellos. Con la misma cota se olvidan las lápidas de
+ * {@link StockAggregates}.
+ * <p>
+ * Las claves en flash sale registran un refresco ({@link #refresh}) en lugar de la cantidad: sus
+ * escrituras tocan shards distintos sin un lock en común, así que ninguna ve el total. El
+ * drenador lo lee ya confirmado (ítem más shards) al publicarlo, como evento sin versión.
+ * <p>
+ * Un borrado registra su propio evento ({@link #deleted}) en la transacción del DELETE: su id
+ * es la versión de la lápida y el drenador lo publica con {@link EventPublisher#publishDelete}.
+ * <p>
+ * Sin escrituras nuevas el drenador consulta la tabla sólo cada {@code ims.outbox.idle-poll-interval}.
+ */
+@Service
+public class StockEventOutbox {
+    private static final Logger log = LoggerFactory.getLogger(StockEventOutbox.class);
+
+    private static final String CONSUMER = "stock-event-bus";
+    private static final String INSERT_SQL =
+            "INSERT INTO stock_event_outbox (store_id, sku, new_quantity, deleted) VALUES ($1, $2, $3, $4)";
+    // Cantidad de un refresco: se guarda como NULL y se resuelve al publicarlo
+    private static final int REFRESH = -1;
+
+    private final StockEventOutboxRepository outboxRepository;
+    private final ItemShardRepository shardRepository;
+    private final DatabaseClient databaseClient;
+    private final TransactionalOperator transactionalOperator;
+    private final EventPublisher eventPublisher;
+    private final ItemCache itemCache;
+    private final StockAggregates stockAggregates;
+    private final ObjectProvider<ReservationLaneEngine> laneEngine;
+    private final int batchSize;
+    private final long gapTimeoutNanos;
+    private final long skipRetentionNanos;
+    private final long idlePollNanos;
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+    // Hubo escrituras (o quedó un hueco abierto) desde la última pasada
+    private final AtomicBoolean pending = new AtomicBoolean(true);
+    // id salteado -> System.nanoTime() en que se salteó
+    private final ConcurrentSkipListMap<Long, Long> skipped = new ConcurrentSkipListMap<>();
+    // -1 = todavía no se leyó de la BD
+    private volatile long offset = -1;
+    private volatile long gapId = -1;
+    private volatile long gapSince;
+    private volatile long lastPoll;
+
+    public StockEventOutbox(StockEventOutboxRepository outboxRepository,
+                            ItemShardRepository shardRepository,
+                            DatabaseClient databaseClient,
+                            TransactionalOperator transactionalOperator,
+                            EventPublisher eventPublisher,
+                            ItemCache itemCache,
+                            StockAggregates stockAggregates,
+                            ObjectProvider<ReservationLaneEngine> laneEngine,
+                            @Value("${ims.outbox.batch-size:256}") int batchSize,
+                            @Value("${ims.outbox.gap-timeout:1s}") Duration gapTimeout,
+                            @Value("${ims.outbox.skip-retention:5m}") Duration skipRetention,
+                            @Value("${ims.outbox.idle-poll-interval:1s}") Duration idlePollInterval) {
+        this.outboxRepository = outboxRepository;
+        this.shardRepository = shardRepository;
+        this.databaseClient = databaseClient;
+        this.transactionalOperator = transactionalOperator;
+        this.eventPublisher = eventPublisher;
+        this.itemCache = itemCache;
+        this.stockAggregates = stockAggregates;
+        this.laneEngine = laneEngine;
+        this.batchSize = batchSize;
+        this.gapTimeoutNanos = gapTimeout.toNanos();
+        this.skipRetentionNanos = skipRetention.toNanos();
+        this.idlePollNanos = idlePollInterval.toNanos();
+    }
+
+    /**
+     * Ejecuta una escritura de stock y registra su evento en la misma transacción.
+     * Tras el commit invalida la clave con {@link #afterCommit}.
+     *
+     * @param eventOf evento a registrar para el resultado, o null si no hubo cambio.
+     */
+    public <T> Mono<T> transactional(Mono<T> write, Function<T, StockUpdateEvent> eventOf) {
+        return transactionalOperator.transactional(write
+                        .flatMap(result -> {
+                            StockUpdateEvent event = eventOf.apply(result);
+                            return event == null
+                                    ? Mono.just(new Written<>(result, null))
+                                    : append(List.of(event)).thenReturn(new Written<>(result, event));
+                        }))
+                .doOnNext(written -> {
+                    if (written.event() != null) {
+                        afterCommit(List.of(new StockKey(written.event().storeId(), written.event().sku())));
+                    }
+                })
+                .map(Written::result);
+    }
+
+    /**
+     * Invalida lo que se guarda en memoria de las claves tras el commit de una escritura de
+     * stock: la cache de lectura y la versión del ítem en el índice de {@link StockAggregates},
+     * para que el propio cliente vea su cambio sin esperar al drenador, y el contador del motor
+     * por carriles si está activo. Toda escritura que
+     * confirme su propia transacción tiene que pasar por acá.
+     */
+    public void afterCommit(Collection<StockKey> keys) {
+        ReservationLaneEngine lanes = laneEngine.getIfAvailable();
+        for (StockKey key : keys) {
+            invalidateReads(key);
+            if (lanes != null) {
+                lanes.invalidate(key.storeId(), key.sku());
+            }
+        }
+    }
+
+    /**
+     * Como {@link #afterCommit}, sin tocar el motor por carriles: lo usa el propio motor
+     * después de su group commit.
+     */
+    public void invalidateReads(StockKey key) {
+        itemCache.invalidate(key.storeId(), key.sku());
+        stockAggregates.invalidate(key.storeId(), key.sku());
+    }
+
+    private record Written<T>(T result, StockUpdateEvent event) {
+    }
+
+    /**
+     * Evento de una clave en flash sale: el total se lee al publicarlo, ya confirmado.
+     */
+    public static StockUpdateEvent refresh(String storeId, String sku) {
+        return new StockUpdateEvent(storeId, sku, REFRESH);
+    }
+
+    /**
+     * Evento de borrado del ítem, a registrar en la transacción del DELETE.
+     */
+    public static StockUpdateEvent deleted(String storeId, String sku) {
+        return new StockUpdateEvent(storeId, sku, 0, 0L, true);
+    }
+
+    /**
+     * Inserta los eventos con un único statement batch. Debe ejecutarse dentro de la
+     * transacción de la escritura que los origina.
+     */
+    public Mono<Void> append(List<StockUpdateEvent> events) {
+        if (events.isEmpty()) {
+            return Mono.empty();
+        }
+        return databaseClient.inConnectionMany(connection -> {
+                    Statement statement = connection.createStatement(INSERT_SQL);
+                    for (int i = 0; i < events.size(); i++) {
+                        StockUpdateEvent event = events.get(i);
+                        statement.bind(0, event.storeId()).bind(1, event.sku());
+                        if (event.deleted() || event.newQuantity() == REFRESH) {
+                            statement.bindNull(2, Integer.class);
+                        } else {
+                            statement.bind(2, event.newQuantity());
+                        }
+                        statement.bind(3, event.deleted());
+                        if (i < events.size() - 1) {
+                            statement.add();
+                        }
+                    }
+                    return Flux.from(statement.execute()).concatMap(result -> Flux.from(result.getRowsUpdated()));
+                })
+                // Avisa al drenador; si la transacción se revierte, sólo cuesta una consulta de más
+                .doOnComplete(() -> pending.set(true))
+                .then();
+    }
+
+    /**
+     * Publica los eventos pendientes por lotes. La lectura del lote siguiente se solapa con
+     * el despacho del actual; el offset se persiste después de despachar cada lote.
+     */
+    @Scheduled(fixedDelayString = "${ims.outbox.poll-interval:250ms}")
+    public Mono<Void> drain() {
+        return Mono.defer(() -> draining.compareAndSet(false, true) ? drainBatches() : Mono.empty());
+    }
+
+    private Mono<Void> drainBatches() {
+        long now = System.nanoTime();
+        // Un aviso perdido (commit posterior a la pasada que lo consumió) lo recoge la pasada ociosa
+        if (!pending.getAndSet(false) && skipped.isEmpty() && now - lastPoll < idlePollNanos) {
+            draining.set(false);
+            return Mono.empty();
+        }
+        lastPoll = now;
+        return redeliverSkipped()
+                .then(currentOffset())
+                .flatMapMany(from -> fetch(from)
+                        .expand(batch -> batch.size() < batchSize ? Mono.empty() : fetch(lastId(batch))))
+                .concatMap(batch -> dispatch(batch).then(advance(lastId(batch))), 1)
+                .onErrorResume(e -> {
+                    // El offset no avanzó: el lote se vuelve a publicar en la próxima pasada.
+                    log.warn("Drenado del outbox interrumpido: {}", e.getMessage());
+                    return Mono.empty();
+                })
+                .doFinally(signal -> draining.set(false))
+                .then();
+    }
+
+    /**
+     * Compactación periódica: borra lo que ya se publicó, sin tocar ids salteados que
+     * todavía pueden confirmarse.
+     */
+    @Scheduled(fixedDelayString = "${ims.outbox.compaction-interval:30s}")
+    public Mono<Void> compact() {
+        Map.Entry<Long, Long> firstSkipped = skipped.firstEntry();
+        long upTo = firstSkipped == null ? offset : Math.min(offset, firstSkipped.getKey() - 1);
+        if (upTo <= 0) {
+            return Mono.empty();
+        }
+        // Ningún evento hasta upTo queda por publicar: sus lápidas ya no descartan nada
+        stockAggregates.pruneTombstones(upTo);
+        return outboxRepository.deleteUpTo(upTo)
+                .doOnNext(deleted -> {
+                    if (deleted > 0) {
+                        log.info("Outbox compactado: {} eventos publicados eliminados", deleted);
+                    }
+                })
+                .then();
+    }
+
+    public long offset() {
+        return offset;
+    }
+
+    private Mono<Long> currentOffset() {
+        long current = offset;
+        if (current >= 0) {
+            return Mono.just(current);
+        }
+        return outboxRepository.findOffset(CONSUMER)
+                .defaultIfEmpty(0L)
+                .doOnNext(loaded -> offset = loaded);
+    }
+
+    private Mono<List<OutboxEvent>> fetch(long afterId) {
+        return outboxRepository.findByIdGreaterThanOrderByIdAsc(afterId, Limit.of(batchSize))
+                .collectList()
+                .map(batch -> contiguousPrefix(afterId, batch))
+                .filter(batch -> !batch.isEmpty());
+    }
+
+    private List<OutboxEvent> contiguousPrefix(long afterId, List<OutboxEvent> batch) {
+        long expected = afterId + 1;
+        for (int i = 0; i < batch.size(); i++) {
+            long id = batch.get(i).getId();
+            if (id != expected) {
+                if (!gapExpired(expected)) {
+                    // Hueco abierto: hay que volver a mirar aunque no lleguen escrituras nuevas
+                    pending.set(true);
+                    return batch.subList(0, i);
+                }
+                skip(expected, id);
+            }
+            expected = id + 1;
+        }
+        return batch;
+    }
+
+    private boolean gapExpired(long missingId) {
+        long now = System.nanoTime();
+        if (gapId != missingId) {
+            gapId = missingId;
+            gapSince = now;
+            return false;
+        }
+        return now - gapSince >= gapTimeoutNanos;
+    }
+
+    // El hueco puede abarcar varios ids (fromId..toId exclusivo): todos quedan pendientes.
+    private void skip(long fromId, long toId) {
+        long now = System.nanoTime();
+        for (long id = fromId; id < toId; id++) {
+            skipped.put(id, now);
+        }
+        log.warn("Outbox: se saltean los ids {}..{} (transacción revertida o todavía abierta)", fromId, toId - 1);
+    }
+
+    /**
+     * Publica los eventos salteados que ya se confirmaron y abandona los que superaron
+     * {@code ims.outbox.skip-retention}. Publicarlos tarde no pisa eventos más nuevos de su
+     * clave: el UPDATE toma el lock de fila antes de insertar el evento, así que el id crece
+     * con cada escritura del ítem, y se publica como versión del evento para que los
+     * consumidores descarten el viejo. Un refresco publicado tarde lee el total de ese momento.
+     */
+    private Mono<Void> redeliverSkipped() {
+        if (skipped.isEmpty()) {
+            return Mono.empty();
+        }
+        long now = System.nanoTime();
+        skipped.entrySet().removeIf(entry -> {
+            if (now - entry.getValue() < skipRetentionNanos) {
+                return false;
+            }
+            log.warn("Outbox: se abandona el id {} (nunca se confirmó)", entry.getKey());
+            return true;
+        });
+        return outboxRepository.findAllById(List.copyOf(skipped.keySet()))
+                .sort((a, b) -> Long.compare(a.getId(), b.getId()))
+                .concatMap(event -> publish(event)
+                        .doOnSuccess(v -> {
+                            skipped.remove(event.getId());
+                            log.info("Outbox: publicado el id salteado {}", event.getId());
+                        }))
+                .then();
+    }
+
+    private Mono<Void> dispatch(List<OutboxEvent> batch) {
+        return Flux.fromIterable(batch)
+                .concatMap(this::publish)
+                .then();
+    }
+
+    private Mono<Void> publish(OutboxEvent event) {
+        if (event.isDeleted()) {
+            // El DELETE tomó el lock de fila antes de insertar el evento: su id cubre toda
+            // escritura anterior del ítem y la lápida descarta las que se publiquen después
+            return eventPublisher.publishDelete(event.getStoreId(), event.getSku(), event.getId());
+        }
+        if (event.getNewQuantity() == null) {
+            // Refresco: el total confirmado de ahora, sin versión (nunca es más viejo que lo ya
+            // publicado). Si el ítem ya no existe no hay nada que publicar.
+            return shardRepository.totalQuantity(event.getStoreId(), event.getSku())
+                    .flatMap(total -> eventPublisher.publishStockUpdate(event.getStoreId(), event.getSku(), total, 0L));
+        }
+        return eventPublisher.publishStockUpdate(event.getStoreId(), event.getSku(), event.getNewQuantity(), event.getId());
+    }
+
+    private Mono<Void> advance(long lastId) {
+        return outboxRepository.saveOffset(CONSUMER, lastId)
+                .doOnSuccess(rows -> offset = lastId)
+                .then();
+    }
+
+    private static long lastId(List<OutboxEvent> batch) {
+        return batch.get(batch.size() - 1).getId();
+    }
+}
@@ -0,0 +1,418 @@
+package org.lea.imsback.services;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log en segmentos mapeados en memoria.
+ * <p>
+ * Cada registro es {longitud, crc32, lsn, mutaciones} y se agrega copiando bytes al segmento
+ * actual, sin syscalls. El fsync lo hace un único hilo ({@code wal-sync}): espera
+ * {@code syncInterval} para juntar los registros que van llegando, fuerza el segmento una
+ * vez y completa a todos los que esperaban hasta ese LSN (group commit).
+ * <p>
+ * Cuando un registro no entra en el segmento, éste se fuerza y se abre otro, nombrado por su
+ * primer LSN. Al abrir, el log se recorre hasta el primer registro vacío o con CRC inválido
+ * (escritura cortada por una caída) y se sigue escribiendo desde ahí. Un registro agrupa
+ * varias mutaciones y se recupera entero o no se recupera.
+ * <p>
+ * Si un fsync falla el log queda detenido: los que esperaban (y los que esperen después)
+ * reciben el error y {@link #append} rechaza todo registro nuevo hasta reiniciar, que es
+ * cuando se vuelve a leer lo que efectivamente llegó al disco.
+ */
+final class WriteAheadLog implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // longitud + crc + lsn
+    private static final int HEADER_BYTES = Integer.BYTES * 2 + Long.BYTES;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Estado de un ítem tras una mutación; {@code deleted} marca una baja.
+     */
+    record Entry(long id, String storeId, String sku, int quantity, long version, boolean deleted) {
+
+        Entry withQuantity(int newQuantity) {
+            return new Entry(id, storeId, sku, newQuantity, version + 1, false);
+        }
+
+        Entry asDeleted() {
+            return new Entry(id, storeId, sku, quantity, version, true);
+        }
+    }
+
+    private record Waiter(long lsn, MonoSink<Void> sink) {
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long syncIntervalNanos;
+    private final Timer syncTimer;
+    private final DistributionSummary groupSize;
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private Thread syncThread;
+    private volatile boolean running = true;
+    private volatile long durableLsn;
+    private volatile UncheckedIOException failure;
+    // Estado del escritor (guardado por this)
+    private MappedByteBuffer segment;
+    private long lastLsn;
+
+    WriteAheadLog(Path directory, int segmentSize, Duration syncInterval, MeterRegistry meterRegistry) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncIntervalNanos = syncInterval.toNanos();
+        this.syncTimer = Timer.builder("ims.wal.sync")
+                .description("Duración de cada fsync agrupado del write-ahead log")
+                .register(meterRegistry);
+        this.groupSize = DistributionSummary.builder("ims.wal.group")
+                .description("Escrituras confirmadas por cada fsync")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Recorre el log entregando los registros posteriores a {@code afterLsn}, deja el
+     * escritor al final del último registro válido y arranca el hilo de fsync.
+     *
+     * @return el último LSN (el del log o {@code afterLsn} si el log es más viejo).
+     */
+    long open(long afterLsn, Consumer<List<Entry>> replay) throws IOException {
+        List<Path> segments = segments();
+        long last = afterLsn;
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            MappedByteBuffer buffer = map(path, Math.max(segmentSize, (int) Files.size(path)));
+            while (buffer.remaining() >= HEADER_BYTES) {
+                int start = buffer.position();
+                Record record = read(buffer);
+                if (record == null) {
+                    buffer.position(start);
+                    break;
+                }
+                if (record.lsn() > afterLsn) {
+                    replay.accept(record.entries());
+                }
+                last = Math.max(last, record.lsn());
+            }
+            boolean torn = buffer.remaining() >= Integer.BYTES && buffer.getInt(buffer.position()) != 0;
+            if (torn) {
+                log.warn("WAL: registro incompleto en {} (posición {}), se descarta desde ahí",
+                        path.getFileName(), buffer.position());
+                zeroFrom(buffer, buffer.position());
+            }
+            if (torn && i < segments.size() - 1) {
+                // Lo que sigue a un corte nunca se confirmó: se descartan los segmentos posteriores.
+                for (Path later : segments.subList(i + 1, segments.size())) {
+                    Files.delete(later);
+                }
+                segments = segments.subList(0, i + 1);
+            }
+            if (i == segments.size() - 1) {
+                segment = buffer;
+            }
+        }
+        lastLsn = last;
+        durableLsn = last;
+        if (segment == null) {
+            roll(last + 1);
+        }
+        syncThread = new Thread(this::syncLoop, "wal-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+        return last;
+    }
+
+    /**
+     * Agrega un registro con las mutaciones (todas o ninguna al recuperar).
+     *
+     * @return su LSN; es durable cuando completa {@link #awaitDurable}.
+     */
+    synchronized long append(List<Entry> entries) {
+        if (failure != null) {
+            throw new IllegalStateException("WAL detenido tras un fsync fallido: no se aceptan escrituras", failure);
+        }
+        if (entries.isEmpty() || entries.size() > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Un registro del WAL lleva entre 1 y " + Short.MAX_VALUE + " mutaciones");
+        }
+        byte[] body = encode(entries);
+        if (HEADER_BYTES + body.length > segmentSize) {
+            throw new IllegalArgumentException("Registro de " + body.length + " bytes mayor que el segmento del WAL");
+        }
+        long lsn = lastLsn + 1;
+        if (segment.remaining() < HEADER_BYTES + body.length) {
+            roll(lsn);
+        }
+        segment.putInt(body.length)
+                .putInt(crc(lsn, body))
+                .putLong(lsn)
+                .put(body);
+        lastLsn = lsn;
+        return lsn;
+    }
+
+    synchronized long lastLsn() {
+        return lastLsn;
+    }
+
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Se completa (en el hilo de fsync) cuando el registro {@code lsn} ya está en disco.
+     */
+    Mono<Void> awaitDurable(long lsn) {
+        return Mono.create(sink -> {
+            if (lsn <= durableLsn) {
+                sink.success();
+                return;
+            }
+            if (failure != null) {
+                sink.error(failure);
+                return;
+            }
+            // Si el fallo llega justo ahora, el hilo de fsync completa al que espera con el error.
+            waiters.add(new Waiter(lsn, sink));
+            LockSupport.unpark(syncThread);
+        });
+    }
+
+    /**
+     * Borra los segmentos cuyos registros son todos anteriores o iguales a {@code lsn}
+     * (ya cubiertos por un snapshot). El segmento actual nunca se borra.
+     */
+    void truncateUpTo(long lsn) throws IOException {
+        List<Path> segments = segments();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (firstLsn(segments.get(i + 1)) <= lsn + 1) {
+                Files.delete(segments.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (syncThread != null) {
+            LockSupport.unpark(syncThread);
+            try {
+                syncThread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void syncLoop() {
+        while (running) {
+            if (waiters.isEmpty()) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            // Ventana de agrupación: los que llegan mientras tanto comparten el fsync.
+            LockSupport.parkNanos(this, syncIntervalNanos);
+            sync();
+        }
+        sync();
+    }
+
+    private void sync() {
+        if (failure != null) {
+            completeWaiters(Long.MAX_VALUE, failure);
+            return;
+        }
+        long target;
+        MappedByteBuffer buffer;
+        synchronized (this) {
+            target = lastLsn;
+            buffer = segment;
+        }
+        try {
+            if (target > durableLsn) {
+                syncTimer.record(() -> {
+                    buffer.force();
+                });
+                durableLsn = target;
+            }
+        } catch (UncheckedIOException e) {
+            log.error("WAL: falló el fsync hasta LSN {}, el log queda detenido: {}", target, e.getMessage());
+            failure = e;
+            // Nada posterior puede volverse durable: fallan todos, no sólo los cubiertos por este fsync.
+            completeWaiters(Long.MAX_VALUE, e);
+            return;
+        }
+        completeWaiters(durableLsn, null);
+    }
+
+    private void completeWaiters(long upTo, Throwable error) {
+        int completed = 0;
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+            Waiter waiter = it.next();
+            if (waiter.lsn() <= upTo) {
+                it.remove();
+                completed++;
+                if (error != null) {
+                    waiter.sink().error(error);
+                } else {
+                    waiter.sink().success();
+                }
+            }
+        }
+        if (completed > 0) {
+            groupSize.record(completed);
+        }
+    }
+
+    // El segmento anterior se fuerza antes de abrir el nuevo: sólo el actual puede quedar a medias.
+    private void roll(long firstLsn) {
+        try {
+            if (segment != null) {
+                try {
+                    segment.force();
+                } catch (UncheckedIOException e) {
+                    log.error("WAL: falló el fsync del segmento al rotar, el log queda detenido: {}", e.getMessage());
+                    failure = e;
+                    throw e;
+                }
+            }
+            segment = map(directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstLsn, SEGMENT_SUFFIX)), segmentSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo abrir un segmento del WAL", e);
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return new ArrayList<>(files
+                    .filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .sorted()
+                    .toList());
+        }
+    }
+
+    private static long firstLsn(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // El mapeo sigue siendo válido después de cerrar el canal.
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static void zeroFrom(MappedByteBuffer buffer, int position) {
+        for (int i = position; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    // -----------------------------------------------------------------
+    // Formato de registro
+    // -----------------------------------------------------------------
+
+    private record Record(long lsn, List<Entry> entries) {
+    }
+
+    // null si no hay un registro completo y válido en la posición actual
+    private static Record read(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining() - Integer.BYTES - Long.BYTES) {
+            return null;
+        }
+        int crc = buffer.getInt();
+        long lsn = buffer.getLong();
+        byte[] body = new byte[length];
+        buffer.get(body);
+        if (crc != crc(lsn, body)) {
+            return null;
+        }
+        return new Record(lsn, decode(ByteBuffer.wrap(body)));
+    }
+
+    private static int crc(long lsn, byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, lsn));
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(List<Entry> entries) {
+        List<byte[]> strings = new ArrayList<>(entries.size() * 2);
+        int size = Short.BYTES;
+        for (Entry entry : entries) {
+            byte[] storeId = entry.storeId().getBytes(StandardCharsets.UTF_8);
+            byte[] sku = entry.sku().getBytes(StandardCharsets.UTF_8);
+            strings.add(storeId);
+            strings.add(sku);
+            size += 1 + Long.BYTES * 2 + Integer.BYTES + Short.BYTES * 2 + storeId.length + sku.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).putShort((short) entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            buffer.put((byte) (entry.deleted() ? 1 : 0))
+                    .putLong(entry.id())
+                    .putLong(entry.version())
+                    .putInt(entry.quantity());
+            putString(buffer, strings.get(i * 2));
+            putString(buffer, strings.get(i * 2 + 1));
+        }
+        return buffer.array();
+    }
+
+    private static List<Entry> decode(ByteBuffer buffer) {
+        int count = buffer.getShort();
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            boolean deleted = buffer.get() == 1;
+            long id = buffer.getLong();
+            long version = buffer.getLong();
+            int quantity = buffer.getInt();
+            entries.add(new Entry(id, getString(buffer), getString(buffer), quantity, version, deleted));
+        }
+        return entries;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        buffer.putShort((short) value.length).put(value);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] value = new byte[buffer.getShort()];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -1,4 +1,11 @@
--- 1. Limpieza segura: Borrar la tabla si ya existe
+-- 1. Limpieza segura: Borrar las tablas si ya existen
+DROP TABLE IF EXISTS low_stock_threshold;
+DROP TABLE IF EXISTS stock_aggregate;
+DROP TABLE IF EXISTS idempotency_record;
+DROP TABLE IF EXISTS stock_hold;
+DROP TABLE IF EXISTS stock_event_outbox_offset;
+DROP TABLE IF EXISTS stock_event_outbox;
+DROP TABLE IF EXISTS item_shard;
 DROP TABLE IF EXISTS item;
 
 -- 2. Creación de la tabla con la sintaxis correcta de Clave Primaria Compuesta
@@ -10,10 +17,97 @@ CREATE TABLE item
     store_id VARCHAR(255) NOT NULL,
     version  BIGINT       NOT NULL,
 
-    -- Restricción de negocio: (sku, store_id) debe ser único
+    -- Restricción de negocio: (sku, store_id) debe ser único. Su índice (sku primero) sirve
+    -- también para buscar un SKU en todas las tiendas (disponibilidad entre tiendas).
     UNIQUE (sku, store_id)
 );
 
+-- Listado por tienda: índice (store_id, id) para paginación keyset sin leer toda la tabla
+CREATE INDEX idx_item_store_id ON item (store_id, id);
+
+-- Sub-contadores de stock para SKUs en modo "flash sale".
+-- Mientras un (store_id, sku) está fragmentado, su stock total es item.quantity + SUM(item_shard.quantity).
+CREATE TABLE item_shard
+(
+    id       BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    store_id VARCHAR(255) NOT NULL,
+    sku      VARCHAR(255) NOT NULL,
+    shard    INT          NOT NULL,
+    quantity INT          NOT NULL,
+
+    UNIQUE (store_id, sku, shard)
+);
+
+-- Outbox transaccional de eventos de stock: se escribe en la misma transacción que el UPDATE de item
+-- y un drenador en segundo plano lo publica por lotes (id > offset).
+-- new_quantity NULL = clave en flash sale: el drenador lee el total (item + shards) al publicarlo.
+-- deleted = borrado del ítem (sin cantidad): su id es la versión de la lápida.
+CREATE TABLE stock_event_outbox
+(
+    id           BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    store_id     VARCHAR(255) NOT NULL,
+    sku          VARCHAR(255) NOT NULL,
+    new_quantity INT,
+    deleted      BOOLEAN DEFAULT FALSE NOT NULL
+);
+
+-- Último id publicado por cada consumidor del outbox
+CREATE TABLE stock_event_outbox_offset
+(
+    consumer VARCHAR(64) PRIMARY KEY,
+    last_id  BIGINT NOT NULL
+);
+
+-- Reservas temporales (holds): la cantidad ya está descontada de item hasta que se confirma,
+-- se libera o vence. El vencimiento lo maneja un timing wheel en memoria, no un barrido de la tabla.
+CREATE TABLE stock_hold
+(
+    id         VARCHAR(36)              PRIMARY KEY,
+    store_id   VARCHAR(255)             NOT NULL,
+    sku        VARCHAR(255)             NOT NULL,
+    quantity   INT                      NOT NULL,
+    expires_at TIMESTAMP WITH TIME ZONE NOT NULL
+);
+
+CREATE INDEX idx_stock_hold_expires_at ON stock_hold (expires_at);
+
+-- Respuestas de operaciones con cabecera Idempotency-Key (segundo nivel, detrás del LRU en memoria)
+CREATE TABLE idempotency_record
+(
+    id           VARCHAR(320)             PRIMARY KEY,
+    request_hash VARCHAR(64)              NOT NULL,
+    status       INT                      NOT NULL,
+    headers      VARCHAR(2000),
+    body         VARCHAR(10000),
+    expires_at   TIMESTAMP WITH TIME ZONE NOT NULL
+);
+
+CREATE INDEX idx_idempotency_record_expires_at ON idempotency_record (expires_at);
+
+-- Agregados de stock (por tienda, por SKU y total de la red). Se mantienen en memoria a partir de
+-- los eventos de stock y se vuelcan acá periódicamente (write-behind); no es la fuente de verdad.
+CREATE TABLE stock_aggregate
+(
+    scope   VARCHAR(8)   NOT NULL,
+    agg_key VARCHAR(255) NOT NULL,
+    units   BIGINT       NOT NULL,
+    items   BIGINT       NOT NULL,
+
+    PRIMARY KEY (scope, agg_key)
+);
+
+-- Umbrales de stock bajo definidos por API; se cargan en memoria al arrancar.
+-- '*' en store_id o sku = todas (sin ninguno de los dos, el umbral por defecto).
+CREATE TABLE low_stock_threshold
+(
+    store_id       VARCHAR(255) NOT NULL,
+    sku            VARCHAR(255) NOT NULL,
+    low_quantity   INT          NOT NULL,
+    clear_quantity INT          NOT NULL,
+
+    PRIMARY KEY (store_id, sku)
+);
+
 -- 3. Carga de datos iniciales
 INSERT INTO item (sku, quantity, store_id, version)
 VALUES ('A101', 10, 'STORE_A', 0);
@@ -0,0 +1,80 @@
+package org.lea.imsback;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.models.dtos.BatchReservationResponse;
+import org.lea.imsback.models.dtos.ReservationRequest;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.lea.imsback.services.BatchReservationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reserva por lote contra H2 real: todo o nada y resultado por línea.
+ */
+@SpringBootTest
+class BatchReservationServiceTest {
+
+    private static final String TEST_STORE_ID = "BATCH_STORE";
+
+    @Autowired
+    private BatchReservationService batchReservationService;
+
+    @Autowired
+    private InventoryRepository inventoryRepository;
+
+    @BeforeEach
+    void setup() {
+        Flux.just("B1", "B2", "B3")
+                .concatMap(sku -> inventoryRepository.deleteBySkuAndStoreId(sku, TEST_STORE_ID)
+                        .then(inventoryRepository.save(new Item(sku, 5, TEST_STORE_ID))))
+                .blockLast();
+    }
+
+    @Test
+    void reserveAll_shouldReserveEveryLine_whenAllHaveStock() {
+        List<ReservationRequest> cart = List.of(
+                new ReservationRequest(TEST_STORE_ID, "B2", 2),
+                new ReservationRequest(TEST_STORE_ID, "B1", 1),
+                // Misma clave dos veces: se suman (3 + 2 = 5)
+                new ReservationRequest(TEST_STORE_ID, "B3", 3),
+                new ReservationRequest(TEST_STORE_ID, "B3", 2));
+
+        BatchReservationResponse response = batchReservationService.reserveAll(cart).block();
+
+        assertTrue(response.reserved());
+        assertTrue(response.lines().stream().allMatch(line -> line.status() == ReservationStatus.RESERVED));
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId("B3", TEST_STORE_ID))
+                .expectNextMatches(item -> item.getQuantity() == 0)
+                .verifyComplete();
+    }
+
+    @Test
+    void reserveAll_shouldRollbackEverything_whenOneLineFails() {
+        List<ReservationRequest> cart = List.of(
+                new ReservationRequest(TEST_STORE_ID, "B1", 2),
+                new ReservationRequest(TEST_STORE_ID, "B2", 6),
+                new ReservationRequest(TEST_STORE_ID, "MISSING", 1));
+
+        BatchReservationResponse response = batchReservationService.reserveAll(cart).block();
+
+        assertFalse(response.reserved());
+        assertEquals(ReservationStatus.ABORTED, response.lines().get(0).status());
+        assertEquals(ReservationStatus.INSUFFICIENT_STOCK, response.lines().get(1).status());
+        assertEquals(ReservationStatus.NOT_FOUND, response.lines().get(2).status());
+        // B1 se descontó dentro de la transacción, pero el rollback lo revirtió.
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId("B1", TEST_STORE_ID))
+                .expectNextMatches(item -> item.getQuantity() == 5)
+                .verifyComplete();
+    }
+}
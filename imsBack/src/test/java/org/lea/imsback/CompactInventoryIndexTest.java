@@ -0,0 +1,113 @@
+package org.lea.imsback;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.services.CompactInventoryIndex;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CompactInventoryIndexTest {
+
+    @ParameterizedTest(name = "offHeap={0}")
+    @ValueSource(booleans = {false, true})
+    void putAndRemove_shouldKeepLookupsConsistentAcrossGrowth(boolean offHeap) {
+        // Capacidad mínima: fuerza varios rehash y, al borrar, el corrimiento de las claves sondeadas
+        CompactInventoryIndex index = new CompactInventoryIndex(0, offHeap);
+        for (int store = 0; store < 20; store++) {
+            for (int sku = 0; sku < 50; sku++) {
+                assertEquals(CompactInventoryIndex.ABSENT, index.put("S" + store, "SKU" + sku, store * 100 + sku));
+            }
+        }
+        assertEquals(1000, index.size());
+        assertEquals(1203, index.put("S12", "SKU3", 7));
+
+        for (int store = 0; store < 20; store += 2) {
+            for (int sku = 0; sku < 50; sku++) {
+                index.remove("S" + store, "SKU" + sku);
+            }
+        }
+        assertEquals(500, index.size());
+        assertEquals(CompactInventoryIndex.ABSENT, index.remove("S0", "SKU0"));
+        for (int store = 0; store < 20; store++) {
+            for (int sku = 0; sku < 50; sku++) {
+                int expected = store % 2 == 0 ? CompactInventoryIndex.ABSENT
+                        : store == 12 && sku == 3 ? 7 : store * 100 + sku;
+                assertEquals(expected, index.quantity("S" + store, "SKU" + sku));
+            }
+        }
+        assertEquals(CompactInventoryIndex.ABSENT, index.quantity("S1", "desconocido"));
+
+        // Las filas liberadas se reutilizan
+        index.put("S0", "SKU0", 1);
+        assertEquals(1, index.quantity("S0", "SKU0"));
+    }
+
+    @ParameterizedTest(name = "offHeap={0}")
+    @ValueSource(booleans = {false, true})
+    void forEachStore_shouldListOnlyTheStoresOfTheSku(boolean offHeap) {
+        CompactInventoryIndex index = new CompactInventoryIndex(4, offHeap);
+        index.put("S1", "A", 5);
+        index.put("S2", "A", 0);
+        index.put("S3", "A", 9);
+        index.put("S1", "B", 2);
+        index.remove("S2", "A");
+
+        Map<String, Integer> stores = new HashMap<>();
+        index.forEachStore("A", stores::put);
+        assertEquals(Map.of("S1", 5, "S3", 9), stores);
+
+        stores.clear();
+        index.forEachStore("C", stores::put);
+        assertEquals(Map.of(), stores);
+    }
+
+    @ParameterizedTest(name = "offHeap={0}")
+    @ValueSource(booleans = {false, true})
+    void item_shouldRequireAKnownVersion(boolean offHeap) {
+        CompactInventoryIndex index = new CompactInventoryIndex(4, offHeap);
+        index.put(item(7L, "A", 10, "S1", 3L));
+        assertEquals(item(7L, "A", 10, "S1", 3L), index.item("S1", "A"));
+
+        // Un evento trae sólo la cantidad: la versión queda desconocida
+        index.put("S1", "A", 8);
+        assertNull(index.item("S1", "A"));
+
+        // Lectura de la BD sin escrituras en el medio: se completa
+        int writes = index.writeCount("S1", "A");
+        index.refresh(item(7L, "A", 8, "S1", 4L), writes);
+        assertEquals(item(7L, "A", 8, "S1", 4L), index.item("S1", "A"));
+
+        // Hubo una escritura mientras se leía la BD: lo leído se descarta
+        writes = index.writeCount("S1", "A");
+        index.put("S1", "A", 6);
+        index.refresh(item(7L, "A", 8, "S1", 5L), writes);
+        assertNull(index.item("S1", "A"));
+
+        // El evento de lo leído todavía no llegó (cantidad distinta): también se descarta
+        writes = index.writeCount("S1", "A");
+        index.refresh(item(7L, "A", 4, "S1", 6L), writes);
+        assertNull(index.item("S1", "A"));
+        assertEquals(6, index.quantity("S1", "A"));
+
+        // Escritura confirmada cuyo evento no llegó: deja de responderse y lo que se estaba leyendo se descarta
+        index.refresh(item(7L, "A", 6, "S1", 6L), index.writeCount("S1", "A"));
+        writes = index.writeCount("S1", "A");
+        index.invalidate("S1", "A");
+        assertNull(index.item("S1", "A"));
+        index.refresh(item(7L, "A", 6, "S1", 6L), writes);
+        assertNull(index.item("S1", "A"));
+        assertEquals(6, index.quantity("S1", "A"));
+    }
+
+    private static Item item(Long id, String sku, int quantity, String storeId, Long version) {
+        Item item = new Item(sku, quantity, storeId);
+        item.setId(id);
+        item.setVersion(version);
+        return item;
+    }
+}
@@ -0,0 +1,113 @@
+package org.lea.imsback;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.services.ContentionManager;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContentionManagerTest {
+
+    private static final StockKey KEY = new StockKey("STORE_A", "SKU123");
+
+    private SimpleMeterRegistry meterRegistry;
+    private ContentionManager contentionManager;
+
+    @BeforeEach
+    void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+        contentionManager = new ContentionManager(
+                meterRegistry, 3, Duration.ofMillis(1), Duration.ofMillis(5), Duration.ofSeconds(1), 4);
+    }
+
+    @Test
+    void execute_shouldGiveUp_afterMaxAttempts() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        StepVerifier.create(contentionManager.execute(KEY, () -> {
+                    attempts.incrementAndGet();
+                    return Mono.error(new OptimisticLockingFailureException("conflicto"));
+                }))
+                .expectError(OptimisticLockingFailureException.class)
+                .verify();
+
+        assertEquals(3, attempts.get());
+        assertEquals(2, meterRegistry.counter("ims.contention.retries").count());
+        assertEquals(1, meterRegistry.counter("ims.contention.giveups", "reason", "attempts").count());
+        assertTrue(contentionManager.conflictRate(KEY) > 0);
+    }
+
+    @Test
+    void execute_shouldStopRetrying_whenDeadlineIsReached() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        StepVerifier.create(contentionManager.execute(KEY, System.nanoTime(), () -> {
+                    attempts.incrementAndGet();
+                    return Mono.error(new OptimisticLockingFailureException("conflicto"));
+                }))
+                .expectError(OptimisticLockingFailureException.class)
+                .verify();
+
+        assertEquals(1, meterRegistry.counter("ims.contention.giveups", "reason", "deadline").count()
+                + meterRegistry.counter("ims.contention.giveups", "reason", "attempts").count());
+        assertTrue(attempts.get() < 3);
+    }
+
+    @Test
+    void execute_shouldUseTheRequestDeadline_fromTheContext() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        // La petición ya no tiene tiempo: no se reintenta aunque el deadline configurado (1s) lo permita.
+        StepVerifier.create(contentionManager.execute(KEY, () -> {
+                            attempts.incrementAndGet();
+                            return Mono.error(new OptimisticLockingFailureException("conflicto"));
+                        })
+                        .contextWrite(context -> context.put(ContentionManager.DEADLINE_CONTEXT_KEY, System.nanoTime())))
+                .expectError(OptimisticLockingFailureException.class)
+                .verify();
+
+        assertEquals(1, attempts.get());
+        assertEquals(1, meterRegistry.counter("ims.contention.giveups", "reason", "deadline").count());
+    }
+
+    @Test
+    void execute_shouldDropKeyState_onlyOnceIdle() {
+        Sinks.One<String> first = Sinks.one();
+        StepVerifier.create(contentionManager.execute(KEY, first::asMono))
+                .then(() -> assertEquals(1.0, meterRegistry.get("ims.contention.hot.keys").gauge().value()))
+                // Un segundo intento concurrente sobre la clave reutiliza el mismo estado
+                .then(() -> assertEquals("ok", contentionManager.execute(KEY, () -> Mono.just("ok")).block()))
+                .then(() -> assertEquals(1.0, meterRegistry.get("ims.contention.hot.keys").gauge().value()))
+                .then(() -> first.tryEmitValue("listo"))
+                .expectNext("listo")
+                .verifyComplete();
+
+        assertEquals(0.0, meterRegistry.get("ims.contention.hot.keys").gauge().value());
+    }
+
+    @Test
+    void execute_shouldNotRetry_nonConcurrencyErrors() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        StepVerifier.create(contentionManager.execute(KEY, () -> {
+                    attempts.incrementAndGet();
+                    return Mono.error(new DataAccessResourceFailureException("BD caída"));
+                }))
+                .expectError(DataAccessResourceFailureException.class)
+                .verify();
+
+        assertEquals(1, attempts.get());
+        assertEquals(0, contentionManager.conflictRate(KEY));
+    }
+}
@@ -0,0 +1,78 @@
+package org.lea.imsback;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.dtos.StoreAvailability;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.lea.imsback.services.CrossStoreService;
+import org.lea.imsback.services.StockAggregateService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Disponibilidad entre tiendas y reserva en cualquier tienda contra H2 real.
+ */
+@SpringBootTest
+class CrossStoreServiceTest {
+
+    private static final String SKU = "CROSS-1";
+
+    @Autowired
+    private CrossStoreService crossStoreService;
+
+    @Autowired
+    private StockAggregateService stockAggregateService;
+
+    @Autowired
+    private InventoryRepository inventoryRepository;
+
+    @BeforeEach
+    void setup() {
+        Flux.just("CROSS_S1", "CROSS_S2", "CROSS_S3")
+                .concatMap(storeId -> inventoryRepository.deleteBySkuAndStoreId(SKU, storeId))
+                .then(inventoryRepository.save(new Item(SKU, 0, "CROSS_S1")))
+                .then(inventoryRepository.save(new Item(SKU, 2, "CROSS_S2")))
+                .then(inventoryRepository.save(new Item(SKU, 8, "CROSS_S3")))
+                // Las altas directas al repositorio no generan eventos: se recarga el índice
+                .then(stockAggregateService.reconcile()
+                        // Vacío = la carga inicial seguía en curso: se reintenta
+                        .repeatWhenEmpty(retries -> retries.delayElements(Duration.ofMillis(10))))
+                .block();
+    }
+
+    @Test
+    void availability_shouldListStoresWithStockMostFirst() {
+        StepVerifier.create(crossStoreService.availability(SKU, 1))
+                .expectNext(new StoreAvailability("CROSS_S3", 8), new StoreAvailability("CROSS_S2", 2))
+                .verifyComplete();
+    }
+
+    @Test
+    void reserveAny_shouldReserveFirmlyInTheFirstRankedStoreWithEnoughStock() {
+        // Sin TTL la reserva es firme: no queda ningún hold
+        StepVerifier.create(crossStoreService.reserveAny(SKU, List.of("CROSS_S1", "CROSS_S2", "CROSS_S3"), 3, null))
+                .expectNextMatches(result -> result.storeId().equals("CROSS_S3") && result.hold() == null)
+                .verifyComplete();
+
+        StepVerifier.create(crossStoreService.reserveAny(SKU, List.of("CROSS_S1", "CROSS_S2"), 3, null))
+                .verifyComplete();
+
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId(SKU, "CROSS_S3"))
+                .expectNextMatches(item -> item.getQuantity() == 5)
+                .verifyComplete();
+    }
+
+    @Test
+    void reserveAny_shouldHoldOnlyWhenATtlIsGiven() {
+        StepVerifier.create(crossStoreService.reserveAny(SKU, List.of("CROSS_S1", "CROSS_S2", "CROSS_S3"), 3, Duration.ofMinutes(5)))
+                .expectNextMatches(result -> result.storeId().equals("CROSS_S3")
+                        && result.hold() != null && result.hold().getQuantity() == 3)
+                .verifyComplete();
+    }
+}
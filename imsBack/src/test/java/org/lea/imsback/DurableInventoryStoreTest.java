@@ -0,0 +1,166 @@
+package org.lea.imsback;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.lea.imsback.services.DurableInventoryStore;
+import org.lea.imsback.services.EventPublisher;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.longThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Modo durable: lo confirmado sobrevive a un reinicio (snapshot + cola del log).
+ * Cada "reinicio" abre otro store sobre el mismo directorio sin cerrar el anterior, como tras una caída.
+ */
+class DurableInventoryStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private InventoryRepository inventoryRepository;
+    private EventPublisher eventPublisher;
+
+    @BeforeEach
+    void setup() {
+        inventoryRepository = mock(InventoryRepository.class);
+        eventPublisher = mock(EventPublisher.class);
+        Item seed = new Item("A101", 10, "STORE_A");
+        seed.setId(1L);
+        seed.setVersion(0L);
+        when(inventoryRepository.findAll()).thenReturn(Flux.just(seed));
+        when(eventPublisher.publishStockUpdate(anyString(), anyString(), anyInt(), anyLong())).thenReturn(Mono.empty());
+        when(eventPublisher.publishDelete(anyString(), anyString(), anyLong())).thenReturn(Mono.empty());
+    }
+
+    @Test
+    void confirmedWrites_shouldSurviveACrash() throws IOException {
+        DurableInventoryStore store = open();
+        StepVerifier.create(store.reserve("STORE_A", "A101", 3))
+                .expectNext(ReservationStatus.RESERVED)
+                .verifyComplete();
+        StepVerifier.create(store.create(new Item("B202", 5, "STORE_A")))
+                .expectNext(true)
+                .verifyComplete();
+        StepVerifier.create(store.updateQuantity("STORE_A", "B202", 8))
+                .expectNext(true)
+                .verifyComplete();
+        store.snapshot();
+        StepVerifier.create(store.reserve("STORE_A", "B202", 2))
+                .expectNext(ReservationStatus.RESERVED)
+                .verifyComplete();
+        StepVerifier.create(store.delete("STORE_A", "A101"))
+                .expectNext(true)
+                .verifyComplete();
+
+        DurableInventoryStore recovered = open();
+        StepVerifier.create(recovered.find("STORE_A", "A101"))
+                .verifyComplete();
+        StepVerifier.create(recovered.find("STORE_A", "B202"))
+                .expectNextMatches(item -> item.getQuantity() == 6 && item.getId() == 2L)
+                .verifyComplete();
+        // La tabla sólo se importa en el primer arranque.
+        verify(inventoryRepository, times(1)).findAll();
+        verify(eventPublisher).publishStockUpdate(eq("STORE_A"), eq("B202"), eq(6), anyLong());
+        // El borrado se publica con su LSN: los agregados dejan una lápida
+        verify(eventPublisher).publishDelete(eq("STORE_A"), eq("A101"), longThat(lsn -> lsn > 0));
+    }
+
+    @Test
+    void reserveAll_shouldApplyAllOrNothing() throws IOException {
+        DurableInventoryStore store = open();
+        StepVerifier.create(store.create(new Item("B202", 1, "STORE_A")))
+                .expectNext(true)
+                .verifyComplete();
+
+        StepVerifier.create(store.reserveAll(Map.of(new StockKey("STORE_A", "A101"), 4, new StockKey("STORE_A", "B202"), 2)))
+                .expectNext(Map.of(new StockKey("STORE_A", "B202"), ReservationStatus.INSUFFICIENT_STOCK))
+                .verifyComplete();
+        StepVerifier.create(store.find("STORE_A", "A101"))
+                .expectNextMatches(item -> item.getQuantity() == 10)
+                .verifyComplete();
+
+        StepVerifier.create(store.reserveAll(Map.of(new StockKey("STORE_A", "A101"), 4, new StockKey("STORE_A", "B202"), 1)))
+                .expectNext(Map.of())
+                .verifyComplete();
+        StepVerifier.create(open().findByStore("STORE_A", 0L, 10).map(Item::getQuantity))
+                .expectNext(6, 0)
+                .verifyComplete();
+    }
+
+    @Test
+    void tornTail_shouldBeDiscardedOnRecovery() throws IOException {
+        DurableInventoryStore store = open();
+        StepVerifier.create(store.reserve("STORE_A", "A101", 1))
+                .expectNext(ReservationStatus.RESERVED)
+                .verifyComplete();
+        StepVerifier.create(store.reserve("STORE_A", "A101", 1))
+                .expectNext(ReservationStatus.RESERVED)
+                .verifyComplete();
+        corruptLastWrittenByte();
+
+        DurableInventoryStore recovered = open();
+        StepVerifier.create(recovered.find("STORE_A", "A101"))
+                .expectNextMatches(item -> item.getQuantity() == 9)
+                .verifyComplete();
+        // El log sigue siendo usable tras el corte.
+        StepVerifier.create(recovered.reserve("STORE_A", "A101", 4))
+                .expectNext(ReservationStatus.RESERVED)
+                .verifyComplete();
+        StepVerifier.create(open().find("STORE_A", "A101"))
+                .expectNextMatches(item -> item.getQuantity() == 5)
+                .verifyComplete();
+    }
+
+    private DurableInventoryStore open() throws IOException {
+        return new DurableInventoryStore(inventoryRepository, eventPublisher, new SimpleMeterRegistry(),
+                directory, DataSize.ofKilobytes(64), Duration.ofMillis(1));
+    }
+
+    // Simula una escritura cortada: cambia el último byte no nulo del segmento.
+    private void corruptLastWrittenByte() throws IOException {
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = files.filter(path -> path.getFileName().toString().startsWith("wal-")).sorted().toList();
+            assertFalse(segments.isEmpty());
+            segment = segments.get(segments.size() - 1);
+        }
+        byte[] bytes = Files.readAllBytes(segment);
+        int last = bytes.length - 1;
+        while (bytes[last] == 0) {
+            last--;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(last);
+            file.write(bytes[last] ^ 0xFF);
+        }
+        assertEquals(bytes.length, Files.size(segment));
+    }
+}
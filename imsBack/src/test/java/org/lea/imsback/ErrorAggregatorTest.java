@@ -0,0 +1,52 @@
+package org.lea.imsback;
+
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.services.ErrorAggregator;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ErrorAggregatorTest {
+
+    private final ErrorAggregator errorAggregator = new ErrorAggregator(5, Duration.ofSeconds(60), 100, Duration.ofMinutes(5));
+
+    @Test
+    void fingerprint_shouldIgnoreIdsAndNumbers_butNotTheExceptionType() {
+        String a = errorAggregator.fingerprint(timeout("3f2b8c1e-0d4a-4b7e-9c61-2a5f0e7d9b13", 120));
+        String b = errorAggregator.fingerprint(timeout("a1b2c3d4-e5f6-4a7b-8c9d-0e1f2a3b4c5d", 7));
+        String other = errorAggregator.fingerprint(new IllegalArgumentException("Hold 42 vencido tras 120 ms"));
+
+        assertEquals(a, b);
+        assertNotEquals(a, other);
+    }
+
+    @Test
+    void record_shouldCountPerFingerprint_andRankByWindowRate() {
+        ErrorAggregator.Occurrence first = errorAggregator.record(timeout("x", 1));
+        assertTrue(first.isFirst());
+        for (int i = 0; i < 4; i++) {
+            errorAggregator.record(timeout("x", i));
+        }
+        ErrorAggregator.Occurrence rare = errorAggregator.record(new IllegalArgumentException("raro"));
+        assertTrue(rare.isFirst());
+        ErrorAggregator.Occurrence again = errorAggregator.record(timeout("x", 9));
+        assertFalse(again.isFirst());
+
+        List<ErrorAggregator.Occurrence> top = errorAggregator.top(10);
+        assertEquals(2, top.size());
+        assertEquals(first.fingerprint(), top.get(0).fingerprint());
+        assertEquals(6, top.get(0).total());
+        assertEquals(6, top.get(0).windowCount());
+        assertEquals("Hold x vencido tras <n> ms", top.get(0).message());
+        assertEquals(1, errorAggregator.top(1).size());
+    }
+
+    private static IllegalStateException timeout(String holdId, int millis) {
+        return new IllegalStateException("Hold " + holdId + " vencido tras " + millis + " ms");
+    }
+}
@@ -0,0 +1,130 @@
+package org.lea.imsback;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.dtos.Diagnosis;
+import org.lea.imsback.services.CircuitBreaker;
+import org.lea.imsback.services.ErrorAggregator;
+import org.lea.imsback.services.ErrorDignosisService;
+import org.lea.imsback.services.LogAnalysisService;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Diagnóstico asíncrono con un ChatClient de prueba (sin red).
+ */
+class ErrorDignosisServiceTest {
+
+    private final ChatClient chatClient = mock(ChatClient.class, RETURNS_DEEP_STUBS);
+    private final LogAnalysisService logAnalysisService = new LogAnalysisService(chatClient, 2, Duration.ofSeconds(5));
+    private final ErrorDignosisService errorDignosisService =
+            new ErrorDignosisService(logAnalysisService, new ErrorAggregator(5, Duration.ofSeconds(60), 100, Duration.ofMinutes(5)),
+                    2, 2, Duration.ofMinutes(1), Duration.ofMinutes(5), Duration.ofMinutes(10));
+
+    @AfterEach
+    void tearDown() {
+        logAnalysisService.shutdown();
+    }
+
+    @Test
+    void handleError_shouldAnswerImmediately_whileTheAiIsStillWorking() throws InterruptedException {
+        CountDownLatch aiMayAnswer = new CountDownLatch(1);
+        when(chatClient.prompt().user(anyString()).call().content()).thenAnswer(invocation -> {
+            aiMayAnswer.await(5, TimeUnit.SECONDS);
+            return "1. Causa Raíz Técnica: BD caída";
+        });
+
+        // La respuesta no espera a la IA (que está bloqueada hasta el latch).
+        ResponseEntity<String> response = errorDignosisService
+                .handleError("req", new IllegalStateException("Fallo forzado"))
+                .block(Duration.ofMillis(500));
+
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, response.getStatusCode());
+        String id = response.getHeaders().getFirst(ErrorDignosisService.CORRELATION_HEADER);
+        assertNotNull(id);
+        assertEquals(Diagnosis.Status.PENDING, errorDignosisService.getDiagnosis(id).block().status());
+
+        aiMayAnswer.countDown();
+        assertEquals(Diagnosis.Status.COMPLETED, awaitFinished(id).status());
+        assertEquals("1. Causa Raíz Técnica: BD caída", errorDignosisService.getDiagnosis(id).block().analysis());
+    }
+
+    @Test
+    void circuitBreaker_shouldOpenAfterConsecutiveFailures_andSkipDiagnosis() throws InterruptedException {
+        when(chatClient.prompt().user(anyString()).call().content()).thenThrow(new IllegalStateException("IA caída"));
+
+        for (int i = 0; i < 2; i++) {
+            String id = correlationId(errorDignosisService.handleError("req", new RuntimeException("x")).block());
+            assertEquals(Diagnosis.Status.FAILED, awaitFinished(id).status());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, errorDignosisService.circuitState());
+
+        String skipped = correlationId(errorDignosisService.handleError("req", new RuntimeException("x")).block());
+        StepVerifier.create(errorDignosisService.getDiagnosis(skipped))
+                .expectNextMatches(diagnosis -> diagnosis.status() == Diagnosis.Status.SKIPPED)
+                .verifyComplete();
+    }
+
+    @Test
+    void handleError_shouldDiagnoseEachFingerprintOnce_andShareTheResult() throws InterruptedException {
+        AtomicInteger aiCalls = new AtomicInteger();
+        when(chatClient.prompt().user(anyString()).call().content()).thenAnswer(invocation -> {
+            aiCalls.incrementAndGet();
+            return "Diagnóstico";
+        });
+
+        // Mismo fallo con distinto SKU en el mensaje: misma huella.
+        String first = correlationId(errorDignosisService.handleError("req", stockError("SKU-1")).block());
+        awaitFinished(first);
+        String repeated = null;
+        for (int i = 2; i <= 50; i++) {
+            repeated = correlationId(errorDignosisService.handleError("req", stockError("SKU-" + i)).block());
+        }
+
+        assertEquals(1, aiCalls.get());
+        assertEquals(Diagnosis.Status.COMPLETED, errorDignosisService.getDiagnosis(repeated).block().status());
+        StepVerifier.create(errorDignosisService.topErrors(10))
+                .expectNextMatches(summary -> summary.total() == 50
+                        && summary.windowCount() == 50
+                        && summary.diagnosis() == Diagnosis.Status.COMPLETED)
+                .verifyComplete();
+    }
+
+    @Test
+    void getDiagnosis_shouldBeEmpty_forUnknownId() {
+        StepVerifier.create(errorDignosisService.getDiagnosis("no-existe"))
+                .verifyComplete();
+    }
+
+    private static IllegalStateException stockError(String sku) {
+        return new IllegalStateException("Sin conexión al reservar " + sku + " (intento 3)");
+    }
+
+    private String correlationId(ResponseEntity<String> response) {
+        return response.getHeaders().getFirst(ErrorDignosisService.CORRELATION_HEADER);
+    }
+
+    private Diagnosis awaitFinished(String id) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        Diagnosis diagnosis = errorDignosisService.getDiagnosis(id).block();
+        while (diagnosis.status() == Diagnosis.Status.PENDING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            diagnosis = errorDignosisService.getDiagnosis(id).block();
+        }
+        return diagnosis;
+    }
+}
@@ -0,0 +1,74 @@
+package org.lea.imsback;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.dtos.StockUpdateEvent;
+import org.lea.imsback.services.EventPublisher;
+import org.lea.imsback.services.ItemCache;
+import org.lea.imsback.services.LowStockAlertService;
+import org.lea.imsback.services.StockAggregates;
+import org.lea.imsback.services.StockEventBus;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class EventPublisherTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private StockEventBus bus;
+    private LowStockAlertService alerts;
+    private EventPublisher eventPublisher;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        bus = new StockEventBus(meterRegistry, 256);
+        alerts = new LowStockAlertService(meterRegistry, 0, 2, 256);
+        eventPublisher = new EventPublisher(new ItemCache(meterRegistry, 100, Duration.ofSeconds(30)),
+                new StockAggregates(meterRegistry, false), alerts,
+                bus, meterRegistry, Duration.ofMillis(200));
+    }
+
+    @AfterEach
+    void tearDown() {
+        eventPublisher.shutdown();
+    }
+
+    @Test
+    void publishStockUpdate_shouldKeepOnlyTheLatestEventPerKeyWithinTheWindow() {
+        StepVerifier.create(bus.subscribe(null, null, StockEventBus.Overflow.DROP_OLDEST))
+                .then(() -> Flux.concat(
+                                eventPublisher.publishStockUpdate("S1", "A", 5, 1),
+                                eventPublisher.publishStockUpdate("S1", "B", 7, 2),
+                                eventPublisher.publishStockUpdate("S1", "A", 3, 4),
+                                // Reentrega tardía de un id salteado: no pisa al más nuevo
+                                eventPublisher.publishStockUpdate("S1", "A", 4, 3))
+                        .blockLast())
+                .expectNext(new StockUpdateEvent("S1", "A", 3, 4), new StockUpdateEvent("S1", "B", 7, 2))
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+
+        // La reentrega vieja ni siquiera entra a la ventana
+        assertEquals(1.0, meterRegistry.get("ims.events.coalesced").counter().count());
+    }
+
+    @Test
+    void publishStockUpdate_shouldDropAStaleRedelivery_inALaterWindow() {
+        StepVerifier.create(bus.subscribe(null, null, StockEventBus.Overflow.DROP_OLDEST))
+                .then(() -> eventPublisher.publishStockUpdate("S1", "A", 0, 5).block())
+                .expectNext(new StockUpdateEvent("S1", "A", 0, 5))
+                // Reentrega tardía de un id salteado, con la ventana anterior ya emitida
+                .then(() -> eventPublisher.publishStockUpdate("S1", "A", 10, 3).block())
+                .expectNoEvent(Duration.ofMillis(500))
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+
+        // La alerta de agotado sigue abierta: la cantidad vieja no la cierra
+        assertEquals(1, alerts.activeAlerts("S1", "A").size());
+    }
+}
@@ -0,0 +1,116 @@
+package org.lea.imsback;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.models.dtos.HoldResult;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.lea.imsback.services.HoldService;
+import org.lea.imsback.services.InventoryService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Holds contra H2 real: confirmación, liberación y vencimiento por el timing wheel.
+ */
+@SpringBootTest(properties = "ims.holds.tick=20ms")
+class HoldServiceTest {
+
+    private static final String TEST_SKU = "HOLD_SKU";
+    private static final String TEST_STORE_ID = "HOLD_STORE";
+    private static final int INITIAL_STOCK = 10;
+
+    @Autowired
+    private HoldService holdService;
+
+    @Autowired
+    private InventoryRepository inventoryRepository;
+
+    @Autowired
+    private InventoryService inventoryService;
+
+    @BeforeEach
+    void setup() {
+        inventoryRepository.deleteBySkuAndStoreId(TEST_SKU, TEST_STORE_ID)
+                .then(inventoryRepository.save(new Item(TEST_SKU, INITIAL_STOCK, TEST_STORE_ID)))
+                .block();
+    }
+
+    @Test
+    void release_shouldGiveTheQuantityBack() {
+        HoldResult result = holdService.hold(TEST_STORE_ID, TEST_SKU, 3, null).block();
+        assertNotNull(result.hold());
+        assertEquals(INITIAL_STOCK - 3, quantity());
+
+        StepVerifier.create(holdService.release(result.hold().getId()))
+                .expectNext(true)
+                .verifyComplete();
+        assertEquals(INITIAL_STOCK, quantity());
+
+        // Una segunda liberación no devuelve stock dos veces.
+        StepVerifier.create(holdService.release(result.hold().getId()))
+                .expectNext(false)
+                .verifyComplete();
+        assertEquals(INITIAL_STOCK, quantity());
+    }
+
+    @Test
+    void confirm_shouldKeepTheDiscount() {
+        HoldResult result = holdService.hold(TEST_STORE_ID, TEST_SKU, 4, null).block();
+
+        StepVerifier.create(holdService.confirm(result.hold().getId()))
+                .expectNext(true)
+                .verifyComplete();
+        StepVerifier.create(holdService.release(result.hold().getId()))
+                .expectNext(false)
+                .verifyComplete();
+        assertEquals(INITIAL_STOCK - 4, quantity());
+    }
+
+    @Test
+    void hold_shouldExpireAndReturnStock_whenNotConfirmed() throws InterruptedException {
+        HoldResult result = holdService.hold(TEST_STORE_ID, TEST_SKU, 5, Duration.ofSeconds(1)).block();
+        assertEquals(INITIAL_STOCK - 5, quantity());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (quantity() != INITIAL_STOCK && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(INITIAL_STOCK, quantity());
+
+        // Vencido ya no se puede confirmar.
+        StepVerifier.create(holdService.confirm(result.hold().getId()))
+                .expectNext(false)
+                .verifyComplete();
+    }
+
+    @Test
+    void hold_shouldNotCreateHold_whenStockIsInsufficient() {
+        StepVerifier.create(holdService.hold(TEST_STORE_ID, TEST_SKU, INITIAL_STOCK + 1, null))
+                .expectNextMatches(result -> result.status() == ReservationStatus.INSUFFICIENT_STOCK
+                        && result.hold() == null)
+                .verifyComplete();
+    }
+
+    @Test
+    void reserveStock_shouldRollBackTheDiscount_whenTheHoldInsertFails() {
+        // El alta del hold va en la transacción del descuento: si falla, no queda stock retenido
+        Mono<Void> failingInsert = Mono.error(new IllegalStateException("Alta de hold fallida"));
+
+        StepVerifier.create(inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 3, failingInsert))
+                .verifyError(IllegalStateException.class);
+        assertEquals(INITIAL_STOCK, quantity());
+    }
+
+    private int quantity() {
+        return inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID).block().getQuantity();
+    }
+}
@@ -0,0 +1,72 @@
+package org.lea.imsback;
+
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.dtos.HotKey;
+import org.lea.imsback.services.HotKeyTracker;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HotKeyTrackerTest {
+
+    @Test
+    void snapshot_shouldKeepHeavyHitters_withBoundedCounters() {
+        HotKeyTracker tracker = new HotKeyTracker(32, Duration.ofMinutes(5), 4);
+        // Dos claves calientes entre 1000 claves frías que pasan una sola vez.
+        // 32 contadores en 4 franjas de 8: queda garantizada toda clave con más de N/8 ocurrencias
+        // de su franja (~75 en la más cargada).
+        for (int i = 0; i < 1000; i++) {
+            tracker.record("S1", "COLD-" + i);
+            if (i % 4 == 0) {
+                tracker.record("S1", "HOT-A");
+            }
+            if (i % 10 == 0) {
+                tracker.record("S1", "HOT-B");
+            }
+        }
+
+        List<HotKey> top = tracker.snapshot(2).current();
+        assertEquals("HOT-A", top.get(0).sku());
+        assertEquals("HOT-B", top.get(1).sku());
+        // El conteo nunca subestima y sobreestima a lo sumo en su error
+        assertTrue(top.get(0).count() >= 250 && top.get(0).count() - top.get(0).error() <= 250);
+        assertTrue(top.get(1).count() >= 100 && top.get(1).count() - top.get(1).error() <= 100);
+    }
+
+    @Test
+    void record_shouldCountExactly_fromConcurrentThreads() throws InterruptedException {
+        HotKeyTracker tracker = new HotKeyTracker(64, Duration.ofMinutes(5), 8);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    tracker.record("S1", "HOT");
+                    tracker.record("S1", "T" + thread + "-" + (i % 8));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(new HotKey("S1", "HOT", 40_000, 0), tracker.snapshot(1).current().get(0));
+    }
+
+    @Test
+    void rotate_shouldStartANewWindow_andKeepThePreviousOne() {
+        HotKeyTracker tracker = new HotKeyTracker(8, Duration.ofMinutes(5), 4);
+        tracker.record("S1", "SKU-1");
+
+        tracker.rotate();
+        tracker.record("S1", "SKU-2");
+
+        HotKeyTracker.Snapshot snapshot = tracker.snapshot(10);
+        assertEquals(List.of(new HotKey("S1", "SKU-2", 1, 0)), snapshot.current());
+        assertEquals(List.of(new HotKey("S1", "SKU-1", 1, 0)), snapshot.previous());
+    }
+}
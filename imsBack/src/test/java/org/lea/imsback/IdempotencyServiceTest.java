@@ -0,0 +1,99 @@
+package org.lea.imsback;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.repositories.IdempotencyRecordRepository;
+import org.lea.imsback.services.IdempotencyService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Idempotencia contra H2 real: LRU en memoria + tabla.
+ */
+@SpringBootTest
+class IdempotencyServiceTest {
+
+    @Autowired
+    private IdempotencyService idempotencyService;
+
+    @Autowired
+    private IdempotencyRecordRepository recordRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final AtomicInteger executions = new AtomicInteger();
+
+    private Supplier<Mono<ResponseEntity<String>>> slowAction(HttpStatus status) {
+        return () -> Mono.delay(Duration.ofMillis(100))
+                .map(tick -> ResponseEntity.status(status)
+                        .header("X-Hold-Id", "hold-" + executions.incrementAndGet())
+                        .body("respuesta " + executions.get()));
+    }
+
+    @Test
+    void concurrentDuplicates_shouldShareTheFirstExecution() {
+        String key = UUID.randomUUID().toString();
+
+        List<ResponseEntity<String>> responses = Flux.range(0, 10)
+                .flatMap(i -> idempotencyService.execute("reserve", key, "cuerpo", slowAction(HttpStatus.OK))
+                        .subscribeOn(Schedulers.parallel()))
+                .collectList()
+                .block();
+
+        assertEquals(1, executions.get());
+        assertEquals(1, responses.stream().map(ResponseEntity::getBody).distinct().count());
+    }
+
+    @Test
+    void duplicate_shouldBeServedFromTheTable_afterLeavingMemory() {
+        String key = UUID.randomUUID().toString();
+        ResponseEntity<String> first = idempotencyService.execute("reserve", key, "cuerpo", slowAction(HttpStatus.CONFLICT)).block();
+
+        // Otra instancia (memoria vacía) sobre la misma tabla
+        IdempotencyService otherNode = new IdempotencyService(recordRepository, objectMapper,
+                new SimpleMeterRegistry(), 100, Duration.ofHours(1));
+        ResponseEntity<String> replay = otherNode.execute("reserve", key, "cuerpo", slowAction(HttpStatus.OK)).block();
+
+        assertEquals(1, executions.get());
+        assertEquals(HttpStatus.CONFLICT, replay.getStatusCode());
+        assertEquals(first.getBody(), replay.getBody());
+        assertEquals(first.getHeaders().getFirst("X-Hold-Id"), replay.getHeaders().getFirst("X-Hold-Id"));
+    }
+
+    @Test
+    void reusedKey_withAnotherRequest_shouldBeRejected() {
+        String key = UUID.randomUUID().toString();
+        idempotencyService.execute("reserve", key, "cuerpo", slowAction(HttpStatus.OK)).block();
+
+        ResponseEntity<String> response = idempotencyService.execute("reserve", key, "otro cuerpo", slowAction(HttpStatus.OK)).block();
+
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, response.getStatusCode());
+        assertEquals(1, executions.get());
+    }
+
+    @Test
+    void serverError_shouldNotBeRemembered() {
+        String key = UUID.randomUUID().toString();
+        idempotencyService.execute("reserve", key, "cuerpo", slowAction(HttpStatus.INTERNAL_SERVER_ERROR)).block();
+
+        ResponseEntity<String> retry = idempotencyService.execute("reserve", key, "cuerpo", slowAction(HttpStatus.OK)).block();
+
+        assertEquals(HttpStatus.OK, retry.getStatusCode());
+        assertEquals(2, executions.get());
+    }
+}
@@ -0,0 +1,98 @@
+package org.lea.imsback;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.r2dbc.pool.ConnectionPool;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.config.TimedConnectionFactory;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Limit;
+import reactor.test.StepVerifier;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Verifica contra H2 (R2DBC) las sentencias únicas del repositorio.
+ */
+@SpringBootTest
+class InventoryRepositoryTest {
+
+    private static final String TEST_SKU = "REPO_SKU";
+    private static final String TEST_STORE_ID = "REPO_STORE";
+
+    @Autowired
+    private InventoryRepository inventoryRepository;
+
+    @Autowired
+    private TimedConnectionFactory connectionFactory;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setup() {
+        inventoryRepository.deleteBySkuAndStoreId(TEST_SKU, TEST_STORE_ID)
+                .then(inventoryRepository.save(new Item(TEST_SKU, 5, TEST_STORE_ID)))
+                .block();
+    }
+
+    @Test
+    void reserveStock_shouldReturnRemainingQuantity_whenStockIsSufficient() {
+        StepVerifier.create(inventoryRepository.reserveStock(TEST_SKU, TEST_STORE_ID, 3))
+                .expectNext(2)
+                .verifyComplete();
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .expectNextMatches(item -> item.getQuantity() == 2 && item.getVersion() == 1L)
+                .verifyComplete();
+    }
+
+    @Test
+    void reserveStock_shouldNotUpdate_whenStockIsInsufficientOrItemMissing() {
+        StepVerifier.create(inventoryRepository.reserveStock(TEST_SKU, TEST_STORE_ID, 6))
+                .verifyComplete();
+        StepVerifier.create(inventoryRepository.reserveStock("MISSING", TEST_STORE_ID, 1))
+                .verifyComplete();
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .expectNextMatches(item -> item.getQuantity() == 5)
+                .verifyComplete();
+    }
+
+    @Test
+    void updateQuantityAndDelete_shouldUseSingleStatements() {
+        StepVerifier.create(inventoryRepository.updateQuantity(TEST_SKU, TEST_STORE_ID, 40))
+                .expectNext(40)
+                .verifyComplete();
+        StepVerifier.create(inventoryRepository.deleteBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .expectNext(1)
+                .verifyComplete();
+        StepVerifier.create(inventoryRepository.deleteBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .expectNext(0)
+                .verifyComplete();
+    }
+
+    @Test
+    void findByStoreId_shouldPageWithKeysetCursor() {
+        Item first = inventoryRepository.findByStoreIdAndIdGreaterThanOrderByIdAsc("STORE_A", 0L, Limit.of(1))
+                .blockFirst();
+
+        StepVerifier.create(inventoryRepository.findByStoreIdAndIdGreaterThanOrderByIdAsc("STORE_A", first.getId(), Limit.of(10)))
+                .expectNextMatches(item -> item.getId() > first.getId() && item.getStoreId().equals("STORE_A"))
+                .thenConsumeWhile(item -> item.getStoreId().equals("STORE_A"))
+                .verifyComplete();
+    }
+
+    @Test
+    void connectionPool_shouldBeWarmedUpAndTimeAcquisitions() {
+        ConnectionPool pool = connectionFactory.unwrap();
+        assertTrue(pool.getMetrics().orElseThrow().allocatedSize() >= 10);
+        // El actuator encuentra el pool detrás del envoltorio
+        assertTrue(meterRegistry.find("r2dbc.pool.pending").gauge() != null);
+
+        long before = meterRegistry.timer("ims.r2dbc.acquire", "outcome", "success").count();
+        inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID).block();
+        assertTrue(meterRegistry.timer("ims.r2dbc.acquire", "outcome", "success").count() > before);
+    }
+}
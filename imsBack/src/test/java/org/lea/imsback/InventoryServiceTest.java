@@ -1,21 +1,44 @@
 package org.lea.imsback;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.lea.imsback.models.Item;
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.models.dtos.HotKey;
+import org.lea.imsback.models.dtos.StockUpdateEvent;
 import org.lea.imsback.repositories.InventoryRepository;
-import org.lea.imsback.services.EventPublisher;
+import org.lea.imsback.services.ContentionManager;
+import org.lea.imsback.services.DurableInventoryStore;
+import org.lea.imsback.services.HotKeyTracker;
 import org.lea.imsback.services.InventoryService;
+import org.lea.imsback.services.ItemCache;
+import org.lea.imsback.services.ReservationMetrics;
+import org.lea.imsback.services.ShardedStockService;
+import org.lea.imsback.services.StockAggregates;
+import org.lea.imsback.services.StockEventOutbox;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.domain.Limit;
 import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 @SpringBootTest
@@ -29,7 +52,29 @@ class InventoryServiceTest {
     private InventoryRepository inventoryRepository;
 
     @Mock
-    private EventPublisher eventPublisher;
+    private StockEventOutbox stockEventOutbox;
+
+    @Mock
+    private ShardedStockService shardedStockService;
+
+    @Spy
+    private ContentionManager contentionManager = new ContentionManager(
+            new SimpleMeterRegistry(), 3, Duration.ofMillis(1), Duration.ofMillis(5), Duration.ofSeconds(1), 16);
+
+    @Spy
+    private ItemCache itemCache = new ItemCache(new SimpleMeterRegistry(), 100, Duration.ofSeconds(30));
+
+    @Spy
+    private StockAggregates stockAggregates = new StockAggregates(new SimpleMeterRegistry(), false);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final HotKeyTracker hotKeyTracker = new HotKeyTracker(16, Duration.ofMinutes(5), 4);
+
+    @Spy
+    private ReservationMetrics reservationMetrics = new ReservationMetrics(meterRegistry, hotKeyTracker);
+
+    // Eventos que la escritura registró en el outbox (dentro de su transacción)
+    private final List<StockUpdateEvent> outboxEvents = new ArrayList<>();
 
     private Item testItem;
     private final String TEST_SKU = "SKU123";
@@ -41,30 +86,30 @@ class InventoryServiceTest {
     @BeforeEach
     void setup() {
         testItem = new Item(TEST_SKU, 10, TEST_STORE_ID);
+        lenient().when(stockEventOutbox.transactional(any(), any())).thenAnswer(invocation -> {
+            Mono<Object> write = invocation.getArgument(0);
+            Function<Object, StockUpdateEvent> eventOf = invocation.getArgument(1);
+            return write.doOnNext(result -> {
+                StockUpdateEvent event = eventOf.apply(result);
+                if (event != null) {
+                    outboxEvents.add(event);
+                }
+            });
+        });
     }
 
     /**
-     * Prueba CLAVE de concurrencia. Simula 10 reservas simultáneas (10 > 5).
-     * Solo 5 reservas deben tener éxito (true) y el stock final debe ser 0.
+     * La reserva se resuelve con un único UPDATE condicional: no hay lectura previa
+     * ni llamada a save en el camino exitoso.
      */
     @Test
-    void tryReserveStock_shouldReturnTrue_whenStockIsSufficientAndSaveSucceeds() {
+    void tryReserveStock_shouldReturnTrue_whenStockIsSufficientAndUpdateSucceeds() {
         // ARRANGE
-        Item existingItem = new Item(TEST_SKU, INITIAL_STOCK, TEST_STORE_ID);
         int expectedNewQuantity = INITIAL_STOCK - RESERVATION_QTY;
 
-        // 1. findBySkuAndStoreId: Item is found
-        when(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
-                .thenReturn(Mono.just(existingItem));
-
-        // 2. save: Save succeeds and returns the updated item
-        // The existingItem object will be mutated in the flatMap before save is called.
-        when(inventoryRepository.save(existingItem))
-                .thenReturn(Mono.just(existingItem));
-
-        // 3. publishStockUpdate: Event publishing succeeds (Mono<Void>)
-        when(eventPublisher.publishStockUpdate(TEST_STORE_ID, TEST_SKU, expectedNewQuantity))
-                .thenReturn(Mono.empty());
+        // 1. reserveStock: el UPDATE condicional afecta la fila y devuelve el stock restante
+        when(inventoryRepository.reserveStock(TEST_SKU, TEST_STORE_ID, RESERVATION_QTY))
+                .thenReturn(Mono.just(expectedNewQuantity));
 
         // ACT & ASSERT
         StepVerifier.create(inventoryService.tryReserveStock(TEST_STORE_ID, TEST_SKU, RESERVATION_QTY))
@@ -72,63 +117,59 @@ class InventoryServiceTest {
                 .verifyComplete();
 
         // VERIFY
-        // Verify save and publish were called exactly once.
-        verify(inventoryRepository, times(1)).save(existingItem);
-        verify(eventPublisher, times(1)).publishStockUpdate(TEST_STORE_ID, TEST_SKU, expectedNewQuantity);
+        // Un solo round trip: ni lectura previa ni save.
+        verify(inventoryRepository, never()).findBySkuAndStoreId(anyString(), anyString());
+        verify(inventoryRepository, never()).save(any(Item.class));
+        // El evento quedó en el outbox, en la misma transacción que el UPDATE.
+        assertEquals(List.of(new StockUpdateEvent(TEST_STORE_ID, TEST_SKU, expectedNewQuantity)), outboxEvents);
     }
 
     @Test
     void tryReserveStock_shouldReturnFalse_whenStockIsInsufficient() {
         // ARRANGE
-        // Stock is only 2, but RESERVATION_QTY is 3.
+        // Stock is only 2, but RESERVATION_QTY is 3: el UPDATE condicional no afecta filas.
         Item existingItem = new Item(TEST_SKU, LOW_STOCK, TEST_STORE_ID);
-
-        // 1. findBySkuAndStoreId: Item is found
+        when(inventoryRepository.reserveStock(TEST_SKU, TEST_STORE_ID, RESERVATION_QTY))
+                .thenReturn(Mono.empty());
         when(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
                 .thenReturn(Mono.just(existingItem));
 
         // ACT & ASSERT
-        StepVerifier.create(inventoryService.tryReserveStock(TEST_STORE_ID, TEST_SKU, RESERVATION_QTY))
-                .expectNext(false)
+        StepVerifier.create(inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, RESERVATION_QTY))
+                .expectNext(ReservationStatus.INSUFFICIENT_STOCK)
                 .verifyComplete();
 
         // VERIFY
-        // Verify save and publish were NEVER called.
-        verify(inventoryRepository, never()).save(any(Item.class));
-        verify(eventPublisher, never()).publishStockUpdate(anyString(), anyString(), anyInt());
+        assertTrue(outboxEvents.isEmpty());
     }
 
     @Test
     void tryReserveStock_shouldReturnFalse_whenItemDoesNotExist() {
         // ARRANGE
+        when(inventoryRepository.reserveStock(TEST_SKU, TEST_STORE_ID, RESERVATION_QTY))
+                .thenReturn(Mono.empty());
         // findBySkuAndStoreId: Item is NOT found (Mono.empty())
         when(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
                 .thenReturn(Mono.empty());
 
         // ACT & ASSERT
+        StepVerifier.create(inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, RESERVATION_QTY))
+                .expectNext(ReservationStatus.NOT_FOUND)
+                .verifyComplete();
         StepVerifier.create(inventoryService.tryReserveStock(TEST_STORE_ID, TEST_SKU, RESERVATION_QTY))
                 .expectNext(false)
                 .verifyComplete();
 
         // VERIFY
-        // Verify save and publish were NEVER called.
-        verify(inventoryRepository, never()).save(any(Item.class));
-        verify(eventPublisher, never()).publishStockUpdate(anyString(), anyString(), anyInt());
+        assertTrue(outboxEvents.isEmpty());
     }
 
     @Test
-    void tryReserveStock_shouldReturnFalse_whenOptimisticLockingFails() {
+    void tryReserveStock_shouldReturnFalse_whenUpdateFails() {
         // ARRANGE
-        Item existingItem = new Item(TEST_SKU, INITIAL_STOCK, TEST_STORE_ID);
-
-        // 1. findBySkuAndStoreId: Item is found
-        when(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
-                .thenReturn(Mono.just(existingItem));
-
-        // 2. save: Simulates Optimistic Locking failure
-        // The item is mutated first, then save is called, which errors.
-        when(inventoryRepository.save(existingItem))
-                .thenReturn(Mono.error(new OptimisticLockingFailureException("Simulated lock failure")));
+        // El UPDATE condicional falla por un error de persistencia.
+        when(inventoryRepository.reserveStock(TEST_SKU, TEST_STORE_ID, RESERVATION_QTY))
+                .thenReturn(Mono.error(new DataAccessResourceFailureException("Simulated DB failure")));
 
         // ACT & ASSERT
         // The onErrorResume should catch the exception and return Mono.just(false).
@@ -137,9 +178,57 @@ class InventoryServiceTest {
                 .verifyComplete();
 
         // VERIFY
-        // Verify save was called, but publish was NOT (since save failed).
-        verify(inventoryRepository, times(1)).save(existingItem);
-        verify(eventPublisher, never()).publishStockUpdate(anyString(), anyString(), anyInt());
+        assertTrue(outboxEvents.isEmpty());
+    }
+
+    @Test
+    void tryReserveStock_shouldRetry_whenConcurrencyConflictIsTransient() {
+        // ARRANGE
+        // Primer intento: conflicto de concurrencia. Segundo intento: el UPDATE se aplica.
+        int expectedNewQuantity = INITIAL_STOCK - RESERVATION_QTY;
+        when(inventoryRepository.reserveStock(TEST_SKU, TEST_STORE_ID, RESERVATION_QTY))
+                .thenReturn(Mono.error(new OptimisticLockingFailureException("Simulated lock failure")),
+                        Mono.just(expectedNewQuantity));
+
+        // ACT & ASSERT
+        // El conflicto ya no se traduce en "stock insuficiente": se reintenta.
+        StepVerifier.create(inventoryService.tryReserveStock(TEST_STORE_ID, TEST_SKU, RESERVATION_QTY))
+                .expectNext(true)
+                .verifyComplete();
+
+        // VERIFY
+        verify(inventoryRepository, times(2)).reserveStock(TEST_SKU, TEST_STORE_ID, RESERVATION_QTY);
+    }
+
+    @Test
+    void reserveStock_shouldTimeEachOutcome_andTrackHotKeys() {
+        when(inventoryRepository.reserveStock(TEST_SKU, TEST_STORE_ID, RESERVATION_QTY))
+                .thenReturn(Mono.just(INITIAL_STOCK - RESERVATION_QTY));
+        when(inventoryRepository.reserveStock("MISSING", TEST_STORE_ID, RESERVATION_QTY))
+                .thenReturn(Mono.empty());
+        when(inventoryRepository.findBySkuAndStoreId("MISSING", TEST_STORE_ID))
+                .thenReturn(Mono.empty());
+        when(inventoryRepository.reserveStock("BROKEN", TEST_STORE_ID, RESERVATION_QTY))
+                .thenReturn(Mono.error(new DataAccessResourceFailureException("Simulated DB failure")));
+
+        for (int i = 0; i < 3; i++) {
+            inventoryService.tryReserveStock(TEST_STORE_ID, TEST_SKU, RESERVATION_QTY).block();
+        }
+        inventoryService.tryReserveStock(TEST_STORE_ID, "MISSING", RESERVATION_QTY).block();
+        inventoryService.tryReserveStock(TEST_STORE_ID, "BROKEN", RESERVATION_QTY).block();
+
+        assertEquals(3, meterRegistry.get("ims.reservation").tag("outcome", "success").timer().count());
+        assertEquals(1, meterRegistry.get("ims.reservation").tag("outcome", "not_found").timer().count());
+        assertEquals(1, meterRegistry.get("ims.reservation").tag("outcome", "error").timer().count());
+        assertEquals(0, meterRegistry.get("ims.reservation").tag("outcome", "conflict").timer().count());
+
+        // Sin resultado o cancelada: también se miden
+        reservationMetrics.record(TEST_STORE_ID, TEST_SKU, Mono.empty()).block();
+        reservationMetrics.record(TEST_STORE_ID, TEST_SKU, Mono.never()).subscribe().dispose();
+        assertEquals(1, meterRegistry.get("ims.reservation").tag("outcome", "empty").timer().count());
+        assertEquals(1, meterRegistry.get("ims.reservation").tag("outcome", "cancelled").timer().count());
+        HotKey hottest = hotKeyTracker.snapshot(1).current().get(0);
+        assertEquals(new HotKey(TEST_STORE_ID, TEST_SKU, 5, 0), hottest);
     }
 
     @Test
@@ -161,7 +250,8 @@ class InventoryServiceTest {
         // Verifica que se intentó encontrar y luego se guardó.
         verify(inventoryRepository, times(1)).findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID);
         verify(inventoryRepository, times(1)).save(testItem);
-
+        // El alta registra su evento en el outbox, en la misma transacción que el INSERT.
+        assertEquals(List.of(new StockUpdateEvent(TEST_STORE_ID, TEST_SKU, INITIAL_STOCK)), outboxEvents);
     }
 
     @Test
@@ -178,19 +268,21 @@ class InventoryServiceTest {
         // Verifica que se intentó encontrar pero NO se guardó.
         verify(inventoryRepository, times(1)).findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID);
         verify(inventoryRepository, never()).save(any(Item.class));
+        assertTrue(outboxEvents.isEmpty());
     }
 
     // --- Tests para getItemsByStore ---
     // public Flux<Item> getItemsByStore(String storeId)
     @Test
-    void getItemsByStore_shouldReturnFilteredItems() {
+    void getItemsByStore_shouldReturnStoreItems_usingIndexedQuery() {
         // ARRANGE
         Item item1 = new Item("SKU1", 5, TEST_STORE_ID);
+        item1.setId(1L);
         Item item2 = new Item("SKU2", 10, TEST_STORE_ID);
-        Item otherStoreItem = new Item("SKU3", 1, "OTHER_STORE");
-        // Simula que findAll devuelve todos los ítems.
-        when(inventoryRepository.findAll())
-                .thenReturn(Flux.just(item1, otherStoreItem, item2));
+        item2.setId(2L);
+        // La consulta filtra por tienda en la BD: ya no se lee la tabla completa.
+        when(inventoryRepository.findByStoreIdAndIdGreaterThanOrderByIdAsc(eq(TEST_STORE_ID), eq(0L), any(Limit.class)))
+                .thenReturn(Flux.just(item1, item2));
 
         // ACT & ASSERT
         StepVerifier.create(inventoryService.getItemsByStore(TEST_STORE_ID))
@@ -199,16 +291,14 @@ class InventoryServiceTest {
                 .verifyComplete(); // Espera que el Flux complete
 
         // VERIFY
-        verify(inventoryRepository, times(1)).findAll();
+        verify(inventoryRepository, never()).findAll();
     }
 
     @Test
-    void getItemsByStore_shouldReturnEmptyFlux_whenNoItemsMatchStoreId() {
+    void getItemsByStore_shouldReturnEmptyFlux_whenStoreHasNoItems() {
         // ARRANGE
-        Item otherStoreItem = new Item("SKU3", 1, "OTHER_STORE");
-        // Simula que findAll devuelve solo ítems de otras tiendas.
-        when(inventoryRepository.findAll())
-                .thenReturn(Flux.just(otherStoreItem));
+        when(inventoryRepository.findByStoreIdAndIdGreaterThanOrderByIdAsc(eq(TEST_STORE_ID), eq(0L), any(Limit.class)))
+                .thenReturn(Flux.empty());
 
         // ACT & ASSERT
         StepVerifier.create(inventoryService.getItemsByStore(TEST_STORE_ID))
@@ -216,7 +306,54 @@ class InventoryServiceTest {
                 .verifyComplete();
 
         // VERIFY
-        verify(inventoryRepository, times(1)).findAll();
+        verify(inventoryRepository, never()).findAll();
+    }
+
+    @Test
+    void getItemsByStore_shouldFetchPagesOnlyAsTheyAreConsumed() {
+        // ARRANGE: 10 ítems en páginas de 2
+        ReflectionTestUtils.setField(inventoryService, "storePageSize", 2);
+        List<Item> store = new ArrayList<>();
+        for (long id = 1; id <= 10; id++) {
+            Item item = new Item("SKU" + id, 1, TEST_STORE_ID);
+            item.setId(id);
+            store.add(item);
+        }
+        when(inventoryRepository.findByStoreIdAndIdGreaterThanOrderByIdAsc(eq(TEST_STORE_ID), anyLong(), any(Limit.class)))
+                .thenAnswer(invocation -> {
+                    long afterId = invocation.getArgument(1);
+                    Limit limit = invocation.getArgument(2);
+                    return Flux.fromIterable(store)
+                            .filter(item -> item.getId() > afterId)
+                            .take(limit.max());
+                });
+
+        // ACT: el suscriptor pide 3 ítems y sigue suscrito sin pedir más
+        List<Item> received = new ArrayList<>();
+        Disposable subscription = inventoryService.getItemsByStore(TEST_STORE_ID)
+                .subscribe(received::add, null, null, s -> s.request(3));
+
+        // ASSERT: se leen las 2 páginas que cubren la demanda y, como mucho, una más por delante
+        assertEquals(3, received.size());
+        subscription.dispose();
+
+        // VERIFY
+        verify(inventoryRepository, times(3))
+                .findByStoreIdAndIdGreaterThanOrderByIdAsc(eq(TEST_STORE_ID), anyLong(), any(Limit.class));
+    }
+
+    @Test
+    void getItemsByStore_shouldReturnPageAfterCursor() {
+        // ARRANGE
+        Item item3 = new Item("SKU3", 1, TEST_STORE_ID);
+        item3.setId(3L);
+        when(inventoryRepository.findByStoreIdAndIdGreaterThanOrderByIdAsc(TEST_STORE_ID, 2L, Limit.of(1)))
+                .thenReturn(Flux.just(item3));
+
+        // ACT & ASSERT
+        StepVerifier.create(inventoryService.getItemsByStore(TEST_STORE_ID, 2L, 1))
+                .expectNext(item3)
+                .verifyComplete();
     }
 
 
@@ -252,25 +389,93 @@ class InventoryServiceTest {
         verify(inventoryRepository, times(1)).findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID);
     }
 
+    @Test
+    void getItemBySkuAndStore_shouldServeFromCache_untilInvalidated() {
+        // ARRANGE
+        when(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .thenReturn(Mono.just(testItem));
+
+        // ACT & ASSERT
+        // Dos lecturas seguidas: la segunda sale de la cache.
+        StepVerifier.create(inventoryService.getItemBySkuAndStore(TEST_STORE_ID, TEST_SKU))
+                .expectNext(testItem)
+                .verifyComplete();
+        StepVerifier.create(inventoryService.getItemBySkuAndStore(TEST_STORE_ID, TEST_SKU))
+                .expectNext(testItem)
+                .verifyComplete();
+        verify(inventoryRepository, times(1)).findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID);
+
+        // Tras la invalidación (evento de stock) se vuelve a leer de la BD.
+        itemCache.invalidate(TEST_STORE_ID, TEST_SKU);
+        StepVerifier.create(inventoryService.getItemBySkuAndStore(TEST_STORE_ID, TEST_SKU))
+                .expectNext(testItem)
+                .verifyComplete();
+
+        // VERIFY
+        verify(inventoryRepository, times(2)).findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID);
+    }
+
+    @Test
+    void getItemBySkuAndStore_shouldNotExposeTheCachedItem() {
+        // ARRANGE
+        when(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .thenReturn(Mono.just(testItem));
+
+        // ACT: quien lee modifica el ítem recibido
+        Item first = inventoryService.getItemBySkuAndStore(TEST_STORE_ID, TEST_SKU).block();
+        first.setQuantity(0);
+
+        // ASSERT: la siguiente lectura sale de la cache sin el cambio
+        StepVerifier.create(inventoryService.getItemBySkuAndStore(TEST_STORE_ID, TEST_SKU))
+                .expectNextMatches(item -> item.getQuantity() == testItem.getQuantity() && item != first)
+                .verifyComplete();
+        verify(inventoryRepository, times(1)).findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID);
+    }
+
+    @Test
+    void getItemBySkuAndStore_shouldServeFromIndex_whenVersionIsKnown() {
+        // ARRANGE: reconciliación cargó el ítem completo (con id y versión) en el índice.
+        testItem.setId(1L);
+        testItem.setVersion(0L);
+        StockAggregates.Rebuild rebuild = stockAggregates.beginRebuild();
+        rebuild.add(testItem);
+        rebuild.complete();
+
+        // ACT & ASSERT
+        StepVerifier.create(inventoryService.getItemBySkuAndStore(TEST_STORE_ID, TEST_SKU))
+                .expectNext(testItem)
+                .verifyComplete();
+        verify(inventoryRepository, never()).findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID);
+
+        // Un evento de stock deja la versión desconocida: se lee de la BD y se completa el índice.
+        Item updated = new Item(TEST_SKU, 20, TEST_STORE_ID);
+        updated.setId(testItem.getId());
+        updated.setVersion(testItem.getVersion() + 1);
+        stockAggregates.onStockUpdate(TEST_STORE_ID, TEST_SKU, 20);
+        when(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .thenReturn(Mono.just(updated));
+        StepVerifier.create(inventoryService.getItemBySkuAndStore(TEST_STORE_ID, TEST_SKU))
+                .expectNext(updated)
+                .verifyComplete();
+        itemCache.invalidate(TEST_STORE_ID, TEST_SKU);
+        StepVerifier.create(inventoryService.getItemBySkuAndStore(TEST_STORE_ID, TEST_SKU))
+                .expectNext(updated)
+                .verifyComplete();
+
+        // VERIFY
+        verify(inventoryRepository, times(1)).findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID);
+    }
+
     // --- Tests para updateItemQuantity ---
     // public Mono<Boolean> updateItemQuantity(Item item)
     @Test
     void updateItemQuantity_shouldReturnTrueAndUpdate_whenItemExists() {
         // ARRANGE
-        Item existingItem = new Item(TEST_SKU, 10, TEST_STORE_ID);
         Item updatedItem = new Item(TEST_SKU, 20, TEST_STORE_ID); // Nuevo ítem con la cantidad a actualizar
 
-        // Simula la búsqueda.
-        when(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
-                .thenReturn(Mono.just(existingItem));
-
-        // Simula el guardado. Retorna el ítem existente AHORA con la nueva cantidad (20).
-        when(inventoryRepository.save(any(Item.class)))
-                .thenReturn(Mono.just(updatedItem));
-
-        // Simula la publicación del evento. Mono<Void> se simula con Mono.empty().
-        when(eventPublisher.publishStockUpdate(anyString(), anyString(), anyInt()))
-                .thenReturn(Mono.empty());
+        // Simula el UPDATE en una sola sentencia, que devuelve la nueva cantidad (20).
+        when(inventoryRepository.updateQuantity(TEST_SKU, TEST_STORE_ID, updatedItem.getQuantity()))
+                .thenReturn(Mono.just(updatedItem.getQuantity()));
 
         // ACT & ASSERT
         StepVerifier.create(inventoryService.updateItemQuantity(updatedItem)) // Usa el ítem con la nueva cantidad
@@ -278,22 +483,17 @@ class InventoryServiceTest {
                 .verifyComplete();
 
         // VERIFY
-        // Verifica que se buscó
-        verify(inventoryRepository, times(1)).findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID);
-        // Verifica que se guardó. Usamos un ArgumentCaptor para verificar que el ítem guardado
-        // tiene la nueva cantidad.
-        // **Nota:** Para verificar la cantidad actualizada en el objeto 'existing', necesitarías un ArgumentCaptor
-        // o reescribir el mock para asegurar que `existing.setQuantity` fue llamado.
-        // Lo simplificaremos verificando que se llamó a save y a publishStockUpdate.
-        verify(inventoryRepository, times(1)).save(existingItem); // El 'existingItem' mutó
-        verify(eventPublisher, times(1)).publishStockUpdate(TEST_STORE_ID, TEST_SKU, updatedItem.getQuantity());
+        // Sin lectura previa ni save: una única sentencia.
+        verify(inventoryRepository, never()).findBySkuAndStoreId(anyString(), anyString());
+        verify(inventoryRepository, never()).save(any(Item.class));
+        assertEquals(List.of(new StockUpdateEvent(TEST_STORE_ID, TEST_SKU, updatedItem.getQuantity())), outboxEvents);
     }
 
     @Test
     void updateItemQuantity_shouldReturnFalse_whenItemDoesNotExist() {
         // ARRANGE
-        // Simula que findBySkuAndStoreId no encuentra nada
-        when(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+        // Simula que el UPDATE no afecta ninguna fila
+        when(inventoryRepository.updateQuantity(TEST_SKU, TEST_STORE_ID, testItem.getQuantity()))
                 .thenReturn(Mono.empty());
 
         // ACT & ASSERT
@@ -302,10 +502,18 @@ class InventoryServiceTest {
                 .verifyComplete();
 
         // VERIFY
-        // Verifica que se buscó, pero NO se guardó ni se publicó evento.
-        verify(inventoryRepository, times(1)).findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID);
-        verify(inventoryRepository, never()).save(any(Item.class));
-        verify(eventPublisher, never()).publishStockUpdate(anyString(), anyString(), anyInt());
+        // No se publicó evento.
+        assertTrue(outboxEvents.isEmpty());
+    }
+
+    @Test
+    void enableFlashSale_shouldFailAsUnsupported_inDurableMode() {
+        ReflectionTestUtils.setField(inventoryService, "durableStore", mock(DurableInventoryStore.class));
+
+        // No es un ítem inexistente: el controlador lo responde con 501, no con 404
+        StepVerifier.create(inventoryService.enableFlashSale(TEST_STORE_ID, TEST_SKU, 4))
+                .verifyError(UnsupportedOperationException.class);
+        verify(shardedStockService, never()).enable(anyString(), anyString(), any());
     }
 
     // --- Tests para deleteItem ---
@@ -313,41 +521,37 @@ class InventoryServiceTest {
     @Test
     void deleteItem_shouldReturnTrueAndDelete_whenItemExists() {
         // ARRANGE
-        Item existingItem = testItem;
-        // Simula la búsqueda.
-        when(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
-                .thenReturn(Mono.just(existingItem));
-        // Simula la eliminación (Mono<Void> se simula con Mono.empty()).
-        when(inventoryRepository.delete(existingItem))
-                .thenReturn(Mono.empty());
+        // Simula el DELETE directo: una fila eliminada.
+        when(inventoryRepository.deleteBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .thenReturn(Mono.just(1));
 
         // ACT & ASSERT
         StepVerifier.create(inventoryService.deleteItem(TEST_STORE_ID, TEST_SKU))
-                .expectNext(true) // Espera 'true' por el .thenReturn(true) después de delete
+                .expectNext(true)
                 .verifyComplete();
 
         // VERIFY
-        // Verifica que se buscó y se eliminó.
-        verify(inventoryRepository, times(1)).findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID);
-        verify(inventoryRepository, times(1)).delete(existingItem);
+        // Verifica que se eliminó sin lectura previa.
+        verify(inventoryRepository, never()).findBySkuAndStoreId(anyString(), anyString());
+        verify(inventoryRepository, times(1)).deleteBySkuAndStoreId(TEST_SKU, TEST_STORE_ID);
+        // El borrado registra su evento en la misma transacción: el drenador deja la lápida
+        assertEquals(List.of(StockEventOutbox.deleted(TEST_STORE_ID, TEST_SKU)), outboxEvents);
     }
 
     @Test
     void deleteItem_shouldReturnFalse_whenItemDoesNotExist() {
         // ARRANGE
-        // Simula que findBySkuAndStoreId no encuentra nada.
-        when(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
-                .thenReturn(Mono.empty());
+        // Simula que el DELETE no afecta ninguna fila.
+        when(inventoryRepository.deleteBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .thenReturn(Mono.just(0));
 
         // ACT & ASSERT
         StepVerifier.create(inventoryService.deleteItem(TEST_STORE_ID, TEST_SKU))
-                .expectNext(false) // Espera 'false' por el switchIfEmpty(Mono.just(false))
+                .expectNext(false)
                 .verifyComplete();
 
         // VERIFY
-        // Verifica que se buscó, pero NO se eliminó.
-        verify(inventoryRepository, times(1)).findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID);
         verify(inventoryRepository, never()).delete(any(Item.class));
+        assertTrue(outboxEvents.isEmpty());
     }
 }
-
@@ -0,0 +1,124 @@
+package org.lea.imsback;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.dtos.ImportEvent;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.lea.imsback.services.ItemImportService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Importación masiva contra H2 real. El cuerpo llega en trozos chicos que cortan líneas y
+ * caracteres multibyte por la mitad, como en una subida real.
+ */
+@SpringBootTest(properties = {"ims.import.batch-size=2", "ims.import.progress-every=3"})
+class ItemImportServiceTest {
+
+    private static final String STORE_ID = "IMPORT_STORE";
+
+    @Autowired
+    private ItemImportService itemImportService;
+
+    @Autowired
+    private InventoryRepository inventoryRepository;
+
+    @BeforeEach
+    void setup() {
+        Flux.just("SKU-1", "SKU-2", "SKU-3", "SKU-4", "SKU-5", "SKU-Ñ")
+                .concatMap(sku -> inventoryRepository.deleteBySkuAndStoreId(sku, STORE_ID))
+                .then(inventoryRepository.save(new Item("SKU-1", 99, STORE_ID)))
+                .block();
+    }
+
+    @Test
+    void csv_shouldUpsertValidRowsAndReportRejects() {
+        String csv = """
+                sku,quantity,store_id
+                SKU-1,5,IMPORT_STORE
+
+                SKU-2,abc,IMPORT_STORE
+                SKU-2,7,IMPORT_STORE
+                "SKU-Ñ",3,IMPORT_STORE
+                SKU-3,-1,IMPORT_STORE
+                SKU-2,8,IMPORT_STORE
+                """;
+
+        StepVerifier.create(itemImportService.importItems(chunks(csv), ItemImportService.Format.CSV))
+                .expectNextMatches(event -> event.type() == ImportEvent.Type.REJECTED && event.line() == 4)
+                .expectNextMatches(event -> event.type() == ImportEvent.Type.PROGRESS)
+                .expectNextMatches(event -> event.type() == ImportEvent.Type.REJECTED && event.line() == 7)
+                .expectNextMatches(event -> event.type() == ImportEvent.Type.COMPLETED
+                        && event.imported() == 4 && event.rejected() == 2)
+                .verifyComplete();
+
+        assertQuantity("SKU-1", 5);
+        assertQuantity("SKU-2", 8);
+        assertQuantity("SKU-Ñ", 3);
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId("SKU-3", STORE_ID))
+                .verifyComplete();
+    }
+
+    @Test
+    void ndjson_shouldRejectMalformedLines() {
+        String ndjson = """
+                {"storeId":"IMPORT_STORE","sku":"SKU-3","quantity":12}
+                {"storeId":"IMPORT_STORE","sku":
+                {"storeId":"IMPORT_STORE","quantity":1}
+                """;
+
+        StepVerifier.create(itemImportService.importItems(chunks(ndjson), ItemImportService.Format.NDJSON))
+                .expectNextMatches(event -> event.type() == ImportEvent.Type.REJECTED && event.line() == 2)
+                .expectNextMatches(event -> event.type() == ImportEvent.Type.REJECTED && event.line() == 3)
+                .expectNextMatches(event -> event.type() == ImportEvent.Type.COMPLETED
+                        && event.imported() == 1 && event.rejected() == 2)
+                .verifyComplete();
+
+        assertQuantity("SKU-3", 12);
+    }
+
+    @Test
+    void csv_shouldApplyBatchesSharingKeysInBodyOrder() {
+        // Cada lote escribe las mismas dos claves nuevas, con varios lotes en vuelo
+        StringBuilder csv = new StringBuilder("sku,quantity,store_id\n");
+        for (int i = 1; i <= 20; i++) {
+            csv.append("SKU-4,").append(i).append(",IMPORT_STORE\n");
+            csv.append("SKU-5,").append(100 + i).append(",IMPORT_STORE\n");
+        }
+
+        StepVerifier.create(itemImportService.importItems(chunks(csv.toString()), ItemImportService.Format.CSV)
+                        .filter(event -> event.type() != ImportEvent.Type.PROGRESS))
+                .expectNextMatches(event -> event.type() == ImportEvent.Type.COMPLETED
+                        && event.imported() == 40 && event.rejected() == 0)
+                .verifyComplete();
+
+        // Gana la última fila del cuerpo
+        assertQuantity("SKU-4", 20);
+        assertQuantity("SKU-5", 120);
+    }
+
+    private void assertQuantity(String sku, int quantity) {
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId(sku, STORE_ID))
+                .expectNextMatches(item -> item.getQuantity() == quantity)
+                .verifyComplete();
+    }
+
+    private static Flux<DataBuffer> chunks(String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        List<DataBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i += 7) {
+            buffers.add(DefaultDataBufferFactory.sharedInstance.wrap(Arrays.copyOfRange(bytes, i, Math.min(bytes.length, i + 7))));
+        }
+        return Flux.fromIterable(buffers);
+    }
+}
@@ -0,0 +1,66 @@
+package org.lea.imsback;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.dtos.LowStockAlert;
+import org.lea.imsback.models.dtos.LowStockThreshold;
+import org.lea.imsback.services.LowStockAlertService;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LowStockAlertServiceTest {
+
+    private LowStockAlertService alerts;
+
+    @BeforeEach
+    void setUp() {
+        // Por defecto sólo alerta sin stock, con cierre en 2
+        alerts = new LowStockAlertService(new SimpleMeterRegistry(), 0, 2, 256);
+    }
+
+    @Test
+    void onStockUpdate_shouldFireOnlyOnCrossingsWithHysteresis() {
+        alerts.setThreshold(new LowStockThreshold(null, "A", 5, 10));
+
+        StepVerifier.create(alerts.subscribe(null, "A").map(LowStockAlert::type))
+                .then(() -> {
+                    alerts.onStockUpdate("S1", "A", 8);
+                    alerts.onStockUpdate("S1", "A", 5);  // cruza el umbral
+                    alerts.onStockUpdate("S1", "A", 6);  // por debajo del cierre: sigue abierta
+                    alerts.onStockUpdate("S1", "A", 4);
+                    alerts.onStockUpdate("S1", "A", 0);  // se agota
+                    alerts.onStockUpdate("S1", "A", 0);  // ya avisada
+                    alerts.onStockUpdate("S1", "A", 3);  // repuesto, por debajo del cierre
+                    assertEquals(LowStockAlert.Type.LOW_STOCK, alerts.activeAlerts("S1", "A").get(0).type());
+                    alerts.onStockUpdate("S1", "A", 10); // vuelve al cierre
+                })
+                .expectNext(LowStockAlert.Type.LOW_STOCK, LowStockAlert.Type.OUT_OF_STOCK,
+                        LowStockAlert.Type.LOW_STOCK, LowStockAlert.Type.RECOVERED)
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+
+        assertTrue(alerts.activeAlerts(null, null).isEmpty());
+    }
+
+    @Test
+    void activeAlerts_shouldUseTheMostSpecificThreshold() {
+        alerts.setThreshold(new LowStockThreshold("S1", null, 3, null));
+        alerts.setThreshold(new LowStockThreshold("S1", "B", 1, null));
+
+        alerts.onStockUpdate("S1", "A", 3);
+        alerts.onStockUpdate("S1", "B", 3);
+        alerts.onStockUpdate("S2", "A", 0);
+
+        assertEquals(1, alerts.activeAlerts("S1", null).size());
+        assertEquals(LowStockAlert.Type.LOW_STOCK, alerts.activeAlerts("S1", "A").get(0).type());
+        assertEquals(LowStockAlert.Type.OUT_OF_STOCK, alerts.activeAlerts("S2", null).get(0).type());
+
+        alerts.onDelete("S2", "A");
+        assertTrue(alerts.activeAlerts("S2", null).isEmpty());
+    }
+}
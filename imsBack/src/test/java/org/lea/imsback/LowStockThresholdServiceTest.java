@@ -0,0 +1,105 @@
+package org.lea.imsback;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.dtos.LowStockAlert;
+import org.lea.imsback.models.dtos.LowStockThreshold;
+import org.lea.imsback.services.InventoryService;
+import org.lea.imsback.services.LowStockAlertService;
+import org.lea.imsback.services.LowStockThresholdService;
+import org.lea.imsback.services.StockEventOutbox;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.r2dbc.core.DatabaseClient;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Umbrales de stock bajo persistidos en H2 real, y su evaluación sobre las escrituras.
+ */
+@SpringBootTest
+class LowStockThresholdServiceTest {
+
+    @Autowired
+    private LowStockThresholdService lowStockThresholdService;
+
+    @Autowired
+    private DatabaseClient databaseClient;
+
+    @Autowired
+    private LowStockAlertService lowStockAlertService;
+
+    @Autowired
+    private InventoryService inventoryService;
+
+    @Autowired
+    private StockEventOutbox stockEventOutbox;
+
+    @AfterEach
+    void tearDown() {
+        databaseClient.sql("DELETE FROM low_stock_threshold").fetch().rowsUpdated().block();
+        inventoryService.deleteItem("T2", "NEW").block();
+    }
+
+    @Test
+    void createItem_shouldOpenAnAlert_whenCreatedBelowItsThreshold() {
+        lowStockThresholdService.setThreshold(new LowStockThreshold("T2", "NEW", 5, null)).block();
+
+        StepVerifier.create(lowStockAlertService.subscribe("T2", "NEW"))
+                .then(() -> {
+                    assertTrue(inventoryService.createItem(new Item("NEW", 3, "T2")).block());
+                    stockEventOutbox.drain().block();
+                })
+                .expectNextMatches(alert -> alert.type() == LowStockAlert.Type.LOW_STOCK && alert.quantity() == 3)
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+        assertEquals(1, lowStockAlertService.activeAlerts("T2", "NEW").size());
+    }
+
+    @Test
+    void thresholds_shouldSurviveARestart() {
+        StepVerifier.create(lowStockThresholdService.setThreshold(new LowStockThreshold("T1", "A", 5, null)))
+                .expectNext(new LowStockThreshold("T1", "A", 5, 7))
+                .verifyComplete();
+        StepVerifier.create(lowStockThresholdService.setThreshold(new LowStockThreshold(null, "B", 2, 4)))
+                .expectNextCount(1)
+                .verifyComplete();
+        StepVerifier.create(lowStockThresholdService.setThreshold(new LowStockThreshold("T1", "C", 1, null)))
+                .expectNextCount(1)
+                .verifyComplete();
+        StepVerifier.create(lowStockThresholdService.removeThreshold("T1", "C"))
+                .expectNext(true)
+                .verifyComplete();
+
+        // Arranque nuevo: el servicio de alertas sólo conoce el umbral por defecto
+        LowStockAlertService restarted = new LowStockAlertService(new SimpleMeterRegistry(), 0, 2, 256);
+        StepVerifier.create(new LowStockThresholdService(restarted, databaseClient).restore())
+                .expectNext(2L)
+                .verifyComplete();
+
+        assertEquals(List.of(
+                        new LowStockThreshold(null, null, 0, 2),
+                        new LowStockThreshold(null, "B", 2, 4),
+                        new LowStockThreshold("T1", "A", 5, 7)),
+                restarted.thresholds());
+    }
+
+    @Test
+    void setThreshold_shouldRejectAClearLevelNotAboveTheThreshold() {
+        StepVerifier.create(lowStockThresholdService.setThreshold(new LowStockThreshold("T1", "A", 5, 5)))
+                .expectError(IllegalArgumentException.class)
+                .verify();
+        StepVerifier.create(databaseClient.sql("SELECT COUNT(*) AS c FROM low_stock_threshold")
+                        .map((row, meta) -> row.get("c", Long.class))
+                        .one())
+                .expectNext(0L)
+                .verifyComplete();
+    }
+}
@@ -0,0 +1,44 @@
+package org.lea.imsback;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Timer {@code ims.db.calls} del aspecto sobre el proxy real de {@link InventoryRepository}.
+ */
+@SpringBootTest
+class RepositoryMetricsAspectTest {
+
+    @Autowired
+    private InventoryRepository inventoryRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    void repositoryCall_shouldBeTimed_byMethodAndOutcome() {
+        long found = count("findBySkuAndStoreId", "success");
+        long cancelled = count("findAll", "cancelled");
+
+        inventoryRepository.findBySkuAndStoreId("NO_EXISTE", "NO_EXISTE").block();
+        inventoryRepository.findBySkuAndStoreId("NO_EXISTE", "NO_EXISTE").block();
+        // El listado se corta tras el primer ítem
+        inventoryRepository.findAll().take(1).blockLast();
+
+        assertEquals(found + 2, count("findBySkuAndStoreId", "success"));
+        assertEquals(cancelled + 1, count("findAll", "cancelled"));
+    }
+
+    private long count(String method, String outcome) {
+        Timer timer = meterRegistry.find("ims.db.calls")
+                .tags("repository", "InventoryRepository", "method", method, "outcome", outcome)
+                .timer();
+        return timer != null ? timer.count() : 0;
+    }
+}
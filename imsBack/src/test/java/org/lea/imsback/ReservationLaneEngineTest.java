@@ -0,0 +1,113 @@
+package org.lea.imsback;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.lea.imsback.services.InventoryService;
+import org.lea.imsback.services.ReservationLaneEngine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Prueba de concurrencia del motor por carriles contra H2 real:
+ * 50 reservas simultáneas de 1 unidad sobre un stock de 20.
+ */
+@SpringBootTest(properties = {
+        "ims.reservation.lanes.enabled=true",
+        "ims.reservation.lanes.count=2"
+})
+class ReservationLaneEngineTest {
+
+    private static final String TEST_SKU = "LANE_SKU";
+    private static final String TEST_STORE_ID = "LANE_STORE";
+    private static final int INITIAL_STOCK = 20;
+    private static final int CONCURRENT_REQUESTS = 50;
+
+    @Autowired
+    private InventoryService inventoryService;
+
+    @Autowired
+    private InventoryRepository inventoryRepository;
+
+    @Autowired
+    private ReservationLaneEngine laneEngine;
+
+    @BeforeEach
+    void setup() {
+        inventoryRepository.deleteBySkuAndStoreId(TEST_SKU, TEST_STORE_ID)
+                .then(inventoryRepository.save(new Item(TEST_SKU, INITIAL_STOCK, TEST_STORE_ID)))
+                .block();
+        // Como hace el servicio tras cualquier cambio de stock por fuera del carril
+        laneEngine.invalidate(TEST_STORE_ID, TEST_SKU);
+    }
+
+    @Test
+    void reserveStock_shouldNeverOversell_underConcurrentLoad() {
+        List<ReservationStatus> results = Flux.range(0, CONCURRENT_REQUESTS)
+                .flatMap(i -> inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 1)
+                        .subscribeOn(Schedulers.parallel()), CONCURRENT_REQUESTS)
+                .collectList()
+                .block();
+
+        long reserved = results.stream().filter(ReservationStatus::isReserved).count();
+        assertEquals(INITIAL_STOCK, reserved);
+        assertEquals(CONCURRENT_REQUESTS - INITIAL_STOCK,
+                results.stream().filter(s -> s == ReservationStatus.INSUFFICIENT_STOCK).count());
+
+        // Los Mono se completan recién tras el commit: la BD ya refleja el descuento.
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .expectNextMatches(item -> item.getQuantity() == 0)
+                .verifyComplete();
+    }
+
+    @Test
+    void reserveStock_shouldGuardEachReservationInTheUpdate_whenStockChangesExternally() {
+        // El carril ya conoce la clave (quedan 19) ...
+        StepVerifier.create(inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 1))
+                .expectNext(ReservationStatus.RESERVED)
+                .verifyComplete();
+        // ... y la BD cambia por fuera, sin invalidar el carril.
+        inventoryRepository.updateQuantity(TEST_SKU, TEST_STORE_ID, 2).block();
+
+        // El contador en memoria deja pasar ambas; la guarda del UPDATE rechaza sólo la que no alcanza.
+        List<ReservationStatus> results = Mono.zip(
+                        inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 5),
+                        inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 2),
+                        List::of)
+                .block();
+
+        assertEquals(List.of(ReservationStatus.INSUFFICIENT_STOCK, ReservationStatus.RESERVED), results);
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .expectNextMatches(item -> item.getQuantity() == 0)
+                .verifyComplete();
+    }
+
+    @Test
+    void reserveStock_shouldRollBackTheDiscount_whenTheWriteCommittedWithItFails() {
+        // Lo que se confirma con la reserva (el alta de un hold) va en el mismo group commit
+        Mono<Void> failingWrite = Mono.error(new IllegalStateException("Alta de hold fallida"));
+
+        StepVerifier.create(inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 3, failingWrite))
+                .verifyError(IllegalStateException.class);
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .expectNextMatches(item -> item.getQuantity() == INITIAL_STOCK)
+                .verifyComplete();
+    }
+
+    @Test
+    void reserveStock_shouldReturnNotFound_whenItemDoesNotExist() {
+        StepVerifier.create(inventoryService.reserveStock(TEST_STORE_ID, "MISSING", 1))
+                .expectNext(ReservationStatus.NOT_FOUND)
+                .verifyComplete();
+    }
+}
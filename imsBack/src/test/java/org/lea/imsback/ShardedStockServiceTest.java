@@ -0,0 +1,208 @@
+package org.lea.imsback;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.lea.imsback.repositories.ItemShardRepository;
+import org.lea.imsback.services.InventoryService;
+import org.lea.imsback.services.ShardedStockService;
+import org.lea.imsback.services.StockAggregates;
+import org.lea.imsback.services.StockEventOutbox;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Modo flash sale contra H2 real: el stock se reparte en shards y las lecturas
+ * siguen devolviendo el total.
+ */
+@SpringBootTest
+class ShardedStockServiceTest {
+
+    private static final String TEST_SKU = "FLASH_SKU";
+    private static final String TEST_STORE_ID = "FLASH_STORE";
+    private static final int INITIAL_STOCK = 20;
+
+    @Autowired
+    private InventoryService inventoryService;
+
+    @Autowired
+    private InventoryRepository inventoryRepository;
+
+    @Autowired
+    private ItemShardRepository shardRepository;
+
+    @Autowired
+    private ShardedStockService shardedStockService;
+
+    @Autowired
+    private StockAggregates stockAggregates;
+
+    @Autowired
+    private StockEventOutbox stockEventOutbox;
+
+    @Autowired
+    private TransactionalOperator transactionalOperator;
+
+    @BeforeEach
+    void setup() {
+        inventoryRepository.deleteBySkuAndStoreId(TEST_SKU, TEST_STORE_ID)
+                .then(inventoryRepository.save(new Item(TEST_SKU, INITIAL_STOCK, TEST_STORE_ID)))
+                .then(inventoryService.enableFlashSale(TEST_STORE_ID, TEST_SKU, 4))
+                .block();
+    }
+
+    @AfterEach
+    void cleanup() {
+        inventoryService.deleteItem(TEST_STORE_ID, TEST_SKU).block();
+    }
+
+    @Test
+    void reserveStock_shouldSpreadOverShards_andNeverOversell() {
+        List<ReservationStatus> results = Flux.range(0, 30)
+                .flatMap(i -> inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 1)
+                        .subscribeOn(Schedulers.parallel()))
+                .collectList()
+                .block();
+
+        assertEquals(INITIAL_STOCK, results.stream().filter(ReservationStatus::isReserved).count());
+        StepVerifier.create(inventoryService.getItemBySkuAndStore(TEST_STORE_ID, TEST_SKU))
+                .expectNextMatches(item -> item.getQuantity() == 0)
+                .verifyComplete();
+    }
+
+    @Test
+    void reserveStock_shouldTakeFromSeveralShards_whenNoSingleShardIsEnough() {
+        // 4 shards de 5 unidades: ninguno alcanza para 12 por sí solo.
+        StepVerifier.create(inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 12))
+                .expectNext(ReservationStatus.RESERVED)
+                .verifyComplete();
+        StepVerifier.create(inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 9))
+                .expectNext(ReservationStatus.INSUFFICIENT_STOCK)
+                .verifyComplete();
+        StepVerifier.create(inventoryService.getItemBySkuAndStore(TEST_STORE_ID, TEST_SKU))
+                .expectNextMatches(item -> item.getQuantity() == INITIAL_STOCK - 12)
+                .verifyComplete();
+    }
+
+    @Test
+    void reservation_shouldNotPublishATotalThatMissesAnOpenWriteOnTheOtherShard() {
+        // ARRANGE: dos shards; el 0 queda vacío y el 1 con 10 unidades
+        inventoryService.enableFlashSale(TEST_STORE_ID, TEST_SKU, 2).block();
+        shardRepository.takeFromShard(TEST_STORE_ID, TEST_SKU, 0, INITIAL_STOCK / 2).block();
+        // Una devolución de 5 unidades al shard 0 registra su evento y queda sin confirmar
+        Sinks.Empty<Void> commit = Sinks.empty();
+        Mono<Void> openWrite = transactionalOperator.transactional(
+                        shardRepository.addToShard(TEST_STORE_ID, TEST_SKU, 0, 5)
+                                .then(stockEventOutbox.append(List.of(StockEventOutbox.refresh(TEST_STORE_ID, TEST_SKU))))
+                                .then(commit.asMono()))
+                .cache();
+        openWrite.subscribe();
+
+        // ACT: una reserva confirma en el shard 1 (su evento es el último) y después la devolución
+        assertEquals(ReservationStatus.RESERVED, inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 1).block());
+        commit.tryEmitEmpty();
+        openWrite.block();
+
+        // ASSERT: el agregado ve las dos escrituras
+        assertEquals(INITIAL_STOCK / 2 + 5 - 1, awaitAggregate(INITIAL_STOCK / 2 + 5 - 1));
+    }
+
+    // Drena el outbox hasta que el agregado de la clave llega a lo esperado (o pasa el plazo)
+    private int awaitAggregate(int expected) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        int quantity = stockAggregates.quantity(TEST_STORE_ID, TEST_SKU);
+        while (quantity != expected && System.nanoTime() < deadline) {
+            stockEventOutbox.drain().block();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+            quantity = stockAggregates.quantity(TEST_STORE_ID, TEST_SKU);
+        }
+        return quantity;
+    }
+
+    @Test
+    void disable_shouldKeepShardsAndState_whenItemRowIsMissing() {
+        inventoryRepository.deleteBySkuAndStoreId(TEST_SKU, TEST_STORE_ID).block();
+
+        StepVerifier.create(shardedStockService.disable(TEST_STORE_ID, TEST_SKU))
+                .expectNext(false)
+                .verifyComplete();
+        assertTrue(shardedStockService.isSharded(TEST_STORE_ID, TEST_SKU));
+        StepVerifier.create(shardRepository.sumQuantity(TEST_STORE_ID, TEST_SKU))
+                .expectNext(INITIAL_STOCK)
+                .verifyComplete();
+    }
+
+    @Test
+    void deleteItem_shouldDropShardsAndItem_andThenForgetTheKey() {
+        StepVerifier.create(inventoryService.deleteItem(TEST_STORE_ID, TEST_SKU))
+                .expectNext(true)
+                .verifyComplete();
+
+        assertFalse(shardedStockService.isSharded(TEST_STORE_ID, TEST_SKU));
+        StepVerifier.create(shardRepository.findByStoreIdAndSkuOrderByShard(TEST_STORE_ID, TEST_SKU).count())
+                .expectNext(0L)
+                .verifyComplete();
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .verifyComplete();
+    }
+
+    @Test
+    void reserveStock_shouldFallBackToTheItem_whenShardsAreDrainedAfterRouting() {
+        // La reserva se enruta a los shards ...
+        Mono<ReservationStatus> routed = inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 3);
+        // ... y el flash sale se desactiva antes de que llegue a la BD
+        assertTrue(inventoryService.disableFlashSale(TEST_STORE_ID, TEST_SKU).block());
+
+        StepVerifier.create(routed)
+                .expectNext(ReservationStatus.RESERVED)
+                .verifyComplete();
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .expectNextMatches(item -> item.getQuantity() == INITIAL_STOCK - 3)
+                .verifyComplete();
+    }
+
+    @Test
+    void reserveStock_shouldFallBackToTheShards_whenTheItemIsDrainedAfterRouting() {
+        assertTrue(inventoryService.disableFlashSale(TEST_STORE_ID, TEST_SKU).block());
+        // La reserva se enruta al ítem ...
+        Mono<ReservationStatus> routed = inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 3);
+        // ... y el flash sale se activa antes de que llegue a la BD
+        assertTrue(inventoryService.enableFlashSale(TEST_STORE_ID, TEST_SKU, 4).block());
+
+        StepVerifier.create(routed)
+                .expectNext(ReservationStatus.RESERVED)
+                .verifyComplete();
+        StepVerifier.create(shardRepository.sumQuantity(TEST_STORE_ID, TEST_SKU))
+                .expectNext(INITIAL_STOCK - 3)
+                .verifyComplete();
+    }
+
+    @Test
+    void disableFlashSale_shouldConsolidateStockIntoItem() {
+        inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 3).block();
+
+        StepVerifier.create(inventoryService.disableFlashSale(TEST_STORE_ID, TEST_SKU))
+                .expectNext(true)
+                .verifyComplete();
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId(TEST_SKU, TEST_STORE_ID))
+                .expectNextMatches(item -> item.getQuantity() == INITIAL_STOCK - 3)
+                .verifyComplete();
+    }
+}
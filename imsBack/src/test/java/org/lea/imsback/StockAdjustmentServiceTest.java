@@ -0,0 +1,71 @@
+package org.lea.imsback;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.dtos.AdjustmentResult;
+import org.lea.imsback.models.dtos.StockAdjustment;
+import org.lea.imsback.models.dtos.StockAdjustment.Reason;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.lea.imsback.services.StockAdjustmentService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+
+/**
+ * Ajustes relativos contra H2 real, con tramos de 3 líneas para cubrir el corte entre statements.
+ */
+@SpringBootTest(properties = "ims.adjustments.chunk-size=3")
+class StockAdjustmentServiceTest {
+
+    private static final String STORE_ID = "ADJUST_STORE";
+
+    @Autowired
+    private StockAdjustmentService stockAdjustmentService;
+
+    @Autowired
+    private InventoryRepository inventoryRepository;
+
+    @BeforeEach
+    void setup() {
+        Flux.just("SKU-A", "SKU-B", "SKU-C")
+                .concatMap(sku -> inventoryRepository.deleteBySkuAndStoreId(sku, STORE_ID))
+                .then(inventoryRepository.save(new Item("SKU-A", 10, STORE_ID)))
+                .then(inventoryRepository.save(new Item("SKU-B", 2, STORE_ID)))
+                .block();
+    }
+
+    @Test
+    void adjustAll_shouldSumDeltasPerKeyAndRejectPerKey() {
+        List<StockAdjustment> adjustments = List.of(
+                new StockAdjustment(STORE_ID, "SKU-A", 5, Reason.RECEIPT),
+                new StockAdjustment(STORE_ID, "SKU-B", -3, Reason.DAMAGE),
+                new StockAdjustment(STORE_ID, "SKU-A", -2, Reason.SHRINKAGE),
+                new StockAdjustment(STORE_ID, "SKU-C", 1, Reason.CORRECTION));
+
+        // Tramo 1: SKU-A (+5 -2) y SKU-B (-3, dejaría -1). Tramo 2: SKU-C inexistente.
+        StepVerifier.create(stockAdjustmentService.adjustAll(adjustments))
+                .expectNext(AdjustmentResult.applied(STORE_ID, "SKU-A", 3, 13))
+                .expectNext(AdjustmentResult.rejected(STORE_ID, "SKU-B", -3, AdjustmentResult.Status.INSUFFICIENT_STOCK))
+                .expectNext(AdjustmentResult.rejected(STORE_ID, "SKU-C", 1, AdjustmentResult.Status.NOT_FOUND))
+                .verifyComplete();
+
+        StepVerifier.create(inventoryRepository.findBySkuAndStoreId("SKU-B", STORE_ID))
+                .expectNextMatches(item -> item.getQuantity() == 2)
+                .verifyComplete();
+    }
+
+    @Test
+    void adjust_shouldApplyOnCurrentQuantityAndRejectZeroDelta() {
+        StepVerifier.create(stockAdjustmentService.adjust(new StockAdjustment(STORE_ID, "SKU-B", -2, Reason.CYCLE_COUNT)))
+                .expectNext(AdjustmentResult.applied(STORE_ID, "SKU-B", -2, 0))
+                .verifyComplete();
+
+        StepVerifier.create(stockAdjustmentService.adjust(new StockAdjustment(STORE_ID, "SKU-B", 0, Reason.CORRECTION)))
+                .expectError(IllegalArgumentException.class)
+                .verify();
+    }
+}
@@ -0,0 +1,67 @@
+package org.lea.imsback;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.dtos.StockAggregate;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.lea.imsback.services.StockAggregateService;
+import org.lea.imsback.services.StockAggregates;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.r2dbc.core.DatabaseClient;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Reconciliación y volcado de los agregados contra H2 real.
+ */
+@SpringBootTest
+class StockAggregateServiceTest {
+
+    private static final String STORE_ID = "AGGREGATE_STORE";
+
+    @Autowired
+    private StockAggregateService stockAggregateService;
+
+    @Autowired
+    private StockAggregates stockAggregates;
+
+    @Autowired
+    private InventoryRepository inventoryRepository;
+
+    @Autowired
+    private DatabaseClient databaseClient;
+
+    @BeforeEach
+    void setup() {
+        inventoryRepository.deleteBySkuAndStoreId("AGG-1", STORE_ID)
+                .then(inventoryRepository.deleteBySkuAndStoreId("AGG-2", STORE_ID))
+                .block();
+    }
+
+    @Test
+    void reconcile_shouldCorrectWritesThatBypassedTheEvents() {
+        // Escrituras directas al repositorio: no pasan por los eventos de stock
+        inventoryRepository.save(new Item("AGG-1", 4, STORE_ID))
+                .then(inventoryRepository.save(new Item("AGG-2", 6, STORE_ID)))
+                .block();
+
+        StepVerifier.create(stockAggregateService.reconcile()
+                        .repeatWhenEmpty(retries -> retries.delayElements(Duration.ofMillis(10))))
+                .expectNextMatches(drifted -> drifted > 0)
+                .verifyComplete();
+        assertEquals(new StockAggregate(10, 2), stockAggregates.store(STORE_ID));
+
+        StepVerifier.create(stockAggregateService.flush()).verifyComplete();
+        StepVerifier.create(databaseClient.sql("SELECT units, items FROM stock_aggregate WHERE scope = 'STORE' AND agg_key = $1")
+                        .bind(0, STORE_ID)
+                        .map((row, meta) -> new StockAggregate(row.get("units", Long.class), row.get("items", Long.class)))
+                        .one())
+                .expectNext(new StockAggregate(10, 2))
+                .verifyComplete();
+    }
+}
@@ -0,0 +1,142 @@
+package org.lea.imsback;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.dtos.StockAggregate;
+import org.lea.imsback.services.StockAggregates;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StockAggregatesTest {
+
+    private StockAggregates aggregates;
+
+    @BeforeEach
+    void setUp() {
+        aggregates = new StockAggregates(new SimpleMeterRegistry(), false);
+    }
+
+    @Test
+    void onStockUpdate_shouldApplyDeltasAgainstTheLastSeenQuantity() {
+        aggregates.onStockUpdate("S1", "A", 10);
+        aggregates.onStockUpdate("S1", "B", 5);
+        aggregates.onStockUpdate("S2", "A", 7);
+        aggregates.onStockUpdate("S1", "A", 8);
+        // Reentrega del outbox: mismo valor, sin efecto
+        aggregates.onStockUpdate("S1", "A", 8);
+
+        assertEquals(new StockAggregate(13, 2), aggregates.store("S1"));
+        assertEquals(new StockAggregate(15, 2), aggregates.sku("A"));
+        assertEquals(new StockAggregate(20, 3), aggregates.total());
+
+        aggregates.onDelete("S1", "B");
+        aggregates.onDelete("S1", "B");
+
+        assertEquals(new StockAggregate(8, 1), aggregates.store("S1"));
+        assertNull(aggregates.sku("B"));
+        assertEquals(new StockAggregate(15, 2), aggregates.total());
+    }
+
+    @Test
+    void onStockUpdate_shouldIgnoreEventsOlderThanTheLastApplied() {
+        aggregates.onStockUpdate("S1", "A", 10, 5);
+        // Reentrega tardía de un id salteado
+        aggregates.onStockUpdate("S1", "A", 20, 3);
+
+        assertEquals(10, aggregates.quantity("S1", "A"));
+        assertEquals(new StockAggregate(10, 1), aggregates.total());
+
+        aggregates.onStockUpdate("S1", "A", 7, 6);
+        assertEquals(new StockAggregate(7, 1), aggregates.total());
+    }
+
+    @Test
+    void onStockUpdate_shouldApplyAnUnversionedEvent_afterVersionedOnes() {
+        aggregates.onStockUpdate("S1", "A", 10, 5);
+        // Refresco de una clave que pasó a flash sale: el total leído al publicarlo
+        aggregates.onStockUpdate("S1", "A", 6);
+
+        assertEquals(6, aggregates.quantity("S1", "A"));
+        // La versión aplicada no retrocede: una reentrega vieja se sigue descartando
+        aggregates.onStockUpdate("S1", "A", 20, 3);
+        assertEquals(new StockAggregate(6, 1), aggregates.total());
+    }
+
+    @Test
+    void onDelete_shouldBeIgnored_whenOlderThanTheLastAppliedEvent() {
+        // El ítem se volvió a crear (versión 9) y llega tarde un borrado anterior
+        assertTrue(aggregates.onStockUpdate("S1", "A", 4, 9));
+        assertFalse(aggregates.onDelete("S1", "A", 7));
+
+        assertEquals(4, aggregates.quantity("S1", "A"));
+        assertFalse(aggregates.onStockUpdate("S1", "A", 8, 6));
+    }
+
+    @Test
+    void onDelete_shouldDropEventsOlderThanTheDelete() {
+        aggregates.onStockUpdate("S1", "A", 10, 5);
+        aggregates.onDelete("S1", "A", 7);
+        // Escritura confirmada antes del borrado y publicada después: no vuelve a crear el ítem
+        aggregates.onStockUpdate("S1", "A", 8, 6);
+
+        assertEquals(StockAggregates.ABSENT, aggregates.quantity("S1", "A"));
+        assertEquals(StockAggregate.EMPTY, aggregates.total());
+
+        // El ítem se vuelve a crear después del borrado
+        aggregates.onStockUpdate("S1", "A", 4, 9);
+        assertEquals(new StockAggregate(4, 1), aggregates.total());
+
+        // Olvidadas las lápidas, un borrado viejo ya no descarta nada
+        aggregates.onDelete("S1", "A", 10);
+        aggregates.pruneTombstones(10);
+        aggregates.onStockUpdate("S1", "A", 2, 10);
+        assertEquals(new StockAggregate(2, 1), aggregates.total());
+    }
+
+    @Test
+    void onStockUpdate_shouldKeepTotalsConsistentUnderConcurrentWriters() throws InterruptedException {
+        int threads = 8;
+        int keys = 100;
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            writers[t] = new Thread(() -> {
+                for (int version = 1; version <= 50; version++) {
+                    for (int k = 0; k < keys; k++) {
+                        aggregates.onStockUpdate("S" + k % 4, "SKU-" + k, version, version);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        // Cada clave termina en su última versión (50), se apliquen en el orden que sea
+        assertEquals(new StockAggregate(50L * keys, keys), aggregates.total());
+    }
+
+    @Test
+    void rebuild_shouldReplayConcurrentEventsAndReportDrift() {
+        aggregates.onStockUpdate("S1", "A", 10);
+        aggregates.onStockUpdate("S1", "B", 3);
+        aggregates.drainChanges();
+
+        StockAggregates.Rebuild rebuild = aggregates.beginRebuild();
+        rebuild.add(new Item("A", 4, "S1"));
+        rebuild.add(new Item("B", 3, "S1"));
+        // Llega mientras se lee la fuente de verdad: no se pierde al reemplazar el estado
+        aggregates.onStockUpdate("S1", "B", 1);
+
+        // S1, A y el total no coincidían (B se corrigió con el evento re-aplicado)
+        assertEquals(3, rebuild.complete());
+        assertEquals(new StockAggregate(5, 2), aggregates.store("S1"));
+        assertEquals(new StockAggregate(1, 1), aggregates.sku("B"));
+        assertEquals(4, aggregates.drainChanges().size());
+    }
+}
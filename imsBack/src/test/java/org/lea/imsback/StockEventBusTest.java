@@ -0,0 +1,69 @@
+package org.lea.imsback;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.dtos.StockUpdateEvent;
+import org.lea.imsback.services.StockEventBus;
+import reactor.test.StepVerifier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StockEventBusTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private StockEventBus bus;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        bus = new StockEventBus(meterRegistry, 2);
+    }
+
+    @Test
+    void subscribe_shouldFilterByStoreAndSku() {
+        StepVerifier.create(bus.subscribe("S1", "A", StockEventBus.Overflow.DROP_OLDEST))
+                .then(() -> {
+                    bus.publish(new StockUpdateEvent("S2", "A", 1));
+                    bus.publish(new StockUpdateEvent("S1", "B", 2));
+                    bus.publish(new StockUpdateEvent("S1", "A", 3));
+                })
+                .expectNext(new StockUpdateEvent("S1", "A", 3))
+                .thenCancel()
+                .verify();
+    }
+
+    @Test
+    void dropOldest_shouldKeepNewestEventsForSlowSubscriber() {
+        StepVerifier.create(bus.subscribe(null, null, StockEventBus.Overflow.DROP_OLDEST), 0)
+                .then(() -> {
+                    bus.publish(new StockUpdateEvent("S1", "A", 3));
+                    bus.publish(new StockUpdateEvent("S1", "A", 2));
+                    bus.publish(new StockUpdateEvent("S1", "B", 9));
+                })
+                .thenRequest(10)
+                .expectNext(new StockUpdateEvent("S1", "A", 2), new StockUpdateEvent("S1", "B", 9))
+                .thenCancel()
+                .verify();
+
+        assertEquals(1.0, meterRegistry.get("ims.events.dropped").tag("overflow", "drop_oldest").counter().count());
+    }
+
+    @Test
+    void latestPerKey_shouldConflateUpdatesOfTheSameKey() {
+        StepVerifier.create(bus.subscribe(null, null, StockEventBus.Overflow.LATEST_PER_KEY), 0)
+                .then(() -> {
+                    bus.publish(new StockUpdateEvent("S1", "A", 5));
+                    bus.publish(new StockUpdateEvent("S1", "B", 7));
+                    bus.publish(new StockUpdateEvent("S1", "A", 4));
+                    bus.publish(new StockUpdateEvent("S1", "A", 3));
+                })
+                .thenRequest(10)
+                // "A" conserva su turno pero con el último valor
+                .expectNext(new StockUpdateEvent("S1", "A", 3), new StockUpdateEvent("S1", "B", 7))
+                .then(() -> bus.publish(new StockUpdateEvent("S1", "B", 6)))
+                .expectNext(new StockUpdateEvent("S1", "B", 6))
+                .thenCancel()
+                .verify();
+    }
+}
@@ -0,0 +1,173 @@
+package org.lea.imsback;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.ReservationStatus;
+import org.lea.imsback.models.dtos.StockUpdateEvent;
+import org.lea.imsback.repositories.InventoryRepository;
+import org.lea.imsback.repositories.StockEventOutboxRepository;
+import org.lea.imsback.services.InventoryService;
+import org.lea.imsback.services.StockAggregateService;
+import org.lea.imsback.services.StockAggregates;
+import org.lea.imsback.services.StockEventBus;
+import org.lea.imsback.services.StockEventOutbox;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Outbox transaccional contra H2 real: el evento se confirma con la escritura y el
+ * drenador lo publica en el bus.
+ */
+@SpringBootTest
+class StockEventOutboxTest {
+
+    private static final String TEST_SKU = "OUTBOX_SKU";
+    private static final String TEST_STORE_ID = "OUTBOX_STORE";
+
+    @Autowired
+    private InventoryService inventoryService;
+
+    @Autowired
+    private InventoryRepository inventoryRepository;
+
+    @Autowired
+    private StockEventOutbox stockEventOutbox;
+
+    @Autowired
+    private StockEventOutboxRepository outboxRepository;
+
+    @Autowired
+    private StockEventBus stockEventBus;
+
+    @Autowired
+    private TransactionalOperator transactionalOperator;
+
+    @Autowired
+    private StockAggregateService stockAggregateService;
+
+    @Autowired
+    private StockAggregates stockAggregates;
+
+    @BeforeEach
+    void setup() {
+        inventoryRepository.deleteBySkuAndStoreId(TEST_SKU, TEST_STORE_ID)
+                .then(inventoryRepository.save(new Item(TEST_SKU, 10, TEST_STORE_ID)))
+                .block();
+    }
+
+    @Test
+    void reservation_shouldReachTheBus_throughTheOutbox() {
+        StepVerifier.create(stockEventBus.subscribe(TEST_STORE_ID, TEST_SKU, StockEventBus.Overflow.DROP_OLDEST))
+                .then(() -> {
+                    assertEquals(ReservationStatus.RESERVED,
+                            inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 4).block());
+                    stockEventOutbox.drain().block();
+                })
+                // La versión del evento es su id en el outbox
+                .expectNextMatches(event -> event.equals(new StockUpdateEvent(TEST_STORE_ID, TEST_SKU, 6, event.version()))
+                        && event.version() > 0)
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void delete_shouldReachTheBus_andBuryTheKey_throughTheOutbox() {
+        List<StockUpdateEvent> published = new ArrayList<>();
+        // Otros tests pueden dejar eventos de la clave sin publicar: sólo interesa el borrado
+        StepVerifier.create(stockEventBus.subscribe(TEST_STORE_ID, TEST_SKU, StockEventBus.Overflow.DROP_OLDEST)
+                        .filter(StockUpdateEvent::deleted))
+                .then(() -> {
+                    assertTrue(inventoryService.deleteItem(TEST_STORE_ID, TEST_SKU).block());
+                    stockEventOutbox.drain().block();
+                })
+                // La versión de la lápida es el id del evento de borrado
+                .recordWith(() -> published)
+                .expectNextMatches(event -> event.version() > 0)
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+        // Un evento anterior al borrado que llegue tarde no resucita la clave
+        stockAggregates.onStockUpdate(TEST_STORE_ID, TEST_SKU, 10, published.get(0).version() - 1);
+        assertEquals(StockAggregates.ABSENT, stockAggregates.quantity(TEST_STORE_ID, TEST_SKU));
+    }
+
+    @Test
+    void reservation_shouldBeReadBack_beforeTheDrainerPublishesIt() {
+        // ARRANGE: el ítem queda en el índice compacto con versión conocida
+        stockAggregateService.reconcile().block();
+        assertEquals(10, inventoryService.getItemBySkuAndStore(TEST_STORE_ID, TEST_SKU).block().getQuantity());
+
+        // ACT
+        assertEquals(ReservationStatus.RESERVED, inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 4).block());
+
+        // ASSERT: la lectura siguiente ve la reserva aunque el evento siga en el outbox
+        assertEquals(6, inventoryService.getItemBySkuAndStore(TEST_STORE_ID, TEST_SKU).block().getQuantity());
+    }
+
+    @Test
+    void drain_shouldPublishASkippedEvent_onceItsTransactionCommits() {
+        // ARRANGE: una transacción lenta inserta su evento y queda abierta
+        String slowSku = TEST_SKU + "_SLOW";
+        Sinks.Empty<Void> commit = Sinks.empty();
+        Mono<Void> slowWrite = stockEventOutbox.append(List.of(new StockUpdateEvent(TEST_STORE_ID, slowSku, 3)))
+                .then(commit.asMono());
+        Mono<Void> slowTransaction = transactionalOperator.transactional(slowWrite).cache();
+        slowTransaction.subscribe();
+
+        StepVerifier.create(stockEventBus.subscribe(TEST_STORE_ID, slowSku, StockEventBus.Overflow.DROP_OLDEST))
+                .then(() -> {
+                    // Una escritura posterior confirma primero: pasado el gap-timeout, el drenador saltea el id lento
+                    assertEquals(ReservationStatus.RESERVED,
+                            inventoryService.reserveStock(TEST_STORE_ID, TEST_SKU, 1).block());
+                    stockEventOutbox.drain().block();
+                    sleep(1200);
+                    stockEventOutbox.drain().block();
+
+                    // ACT: la transacción lenta confirma
+                    commit.tryEmitEmpty();
+                    slowTransaction.block();
+                    stockEventOutbox.drain().block();
+                })
+                // ASSERT: su evento se publica igual
+                .expectNextMatches(event -> event.equals(new StockUpdateEvent(TEST_STORE_ID, slowSku, 3, event.version()))
+                        && event.version() > 0)
+                .thenCancel()
+                .verify(Duration.ofSeconds(10));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void append_shouldBeRolledBack_withTheTransaction() {
+        long before = outboxRepository.count().block();
+
+        Mono<Void> failingWrite = stockEventOutbox.append(List.of(new StockUpdateEvent(TEST_STORE_ID, TEST_SKU, 1)))
+                .then(Mono.error(new IllegalStateException("Fallo simulado tras escribir el outbox")));
+        StepVerifier.create(transactionalOperator.transactional(failingWrite))
+                .verifyError(IllegalStateException.class);
+
+        // Si se compactó entre medio, sólo puede haber menos filas, nunca la del evento revertido.
+        StepVerifier.create(outboxRepository.findAll().filter(event -> TEST_SKU.equals(event.getSku())
+                        && Integer.valueOf(1).equals(event.getNewQuantity())).count())
+                .expectNext(0L)
+                .verifyComplete();
+        assertTrue(outboxRepository.count().block() <= before);
+    }
+}
@@ -0,0 +1,51 @@
+package org.lea.imsbench;
+
+import org.lea.imsback.ImsBackApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.r2dbc.core.DatabaseClient;
+
+/**
+ * Levanta imsBack sin servidor web, sobre el mismo H2 en memoria y el mismo schema.sql
+ * que la aplicación. Los benchmarks miden así los servicios reales (outbox, caché,
+ * contención) y no copias simplificadas.
+ */
+final class BenchContext {
+
+    private BenchContext() {
+    }
+
+    static ConfigurableApplicationContext start() {
+        return new SpringApplicationBuilder(ImsBackApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties(
+                        "spring.main.banner-mode=off",
+                        // El cliente de IA no se llama en ningún benchmark
+                        "spring.ai.openai.api-key=bench",
+                        "spring.autoconfigure.exclude="
+                                + "org.springframework.boot.autoconfigure.mongo.MongoReactiveAutoConfiguration,"
+                                + "org.springframework.boot.autoconfigure.data.mongo.MongoReactiveDataAutoConfiguration",
+                        // Los logs por reserva distorsionan la medición
+                        "logging.level.root=WARN",
+                        "logging.level.io.r2dbc=WARN",
+                        "logging.level.org.lea=WARN")
+                .run();
+    }
+
+    /**
+     * Inserta {@code rows} ítems en la tienda con un único INSERT ... SELECT.
+     */
+    static void seed(ConfigurableApplicationContext context, String storeId, int rows, int quantity) {
+        context.getBean(DatabaseClient.class)
+                .sql("""
+                        INSERT INTO item (sku, quantity, store_id, version)
+                        SELECT 'SKU-' || X, :quantity, :storeId, 0 FROM SYSTEM_RANGE(1, :rows)
+                        """)
+                .bind("quantity", quantity)
+                .bind("storeId", storeId)
+                .bind("rows", rows)
+                .then()
+                .block();
+    }
+}
@@ -0,0 +1,37 @@
+package org.lea.imsbench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+
+/**
+ * Punto de entrada: acepta los mismos argumentos que la línea de comandos de JMH
+ * (filtro de benchmarks, -p, -f, -rf json, ...) y agrega siempre el profiler de GC,
+ * para que cada resultado incluya asignación por operación (gc.alloc.rate.norm).
+ * <p>
+ * {@code footprint [rows]} no corre JMH: imprime la memoria retenida por el índice de
+ * inventario compacto frente al basado en objetos ({@link IndexBenchmark#main}).
+ */
+public final class BenchRunner {
+
+    private BenchRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        if (args.length > 0 && args[0].equals("footprint")) {
+            IndexBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,64 @@
+package org.lea.imsbench;
+
+import org.lea.imsback.models.Item;
+import org.lea.imsback.services.InventoryService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Alta de ítems y listado completo de una tienda de {@code rows} ítems
+ * ({@link InventoryService#getItemsByStore(String)}, páginas keyset).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CatalogBenchmark {
+
+    private static final String LISTED_STORE = "BENCH-LIST";
+    private static final String NEW_STORE = "BENCH-NEW";
+
+    @Param({"10000", "1000000"})
+    public int rows;
+
+    private ConfigurableApplicationContext context;
+    private InventoryService inventoryService;
+    private long created;
+
+    @Setup
+    public void setUp() {
+        context = BenchContext.start();
+        inventoryService = context.getBean(InventoryService.class);
+        BenchContext.seed(context, LISTED_STORE, rows, 100);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Boolean createItem() {
+        return inventoryService.createItem(new Item("NEW-" + created++, 100, NEW_STORE)).block();
+    }
+
+    @Benchmark
+    public Long getItemsByStore() {
+        return inventoryService.getItemsByStore(LISTED_STORE).count().block();
+    }
+}
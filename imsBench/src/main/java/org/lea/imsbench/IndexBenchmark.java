@@ -0,0 +1,154 @@
+package org.lea.imsbench;
+
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.StockKey;
+import org.lea.imsback.services.CompactInventoryIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lecturas por (tienda, SKU) en el índice compacto ({@link CompactInventoryIndex}) frente a
+ * un mapa de objetos {@code HashMap<StockKey, Item>} (lo que haría una cache de ítems), sobre
+ * {@code rows} ítems repartidos en {@value #STORES} tiendas. {@code gc.alloc.rate.norm} muestra
+ * la asignación por lectura.
+ * <p>
+ * La memoria retenida por cada representación se mide aparte con {@link #main}
+ * ({@code -Djmh.args="footprint 1000000"}, ver {@link BenchRunner}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class IndexBenchmark {
+
+    private static final int STORES = 100;
+
+    @Param({"100000", "1000000"})
+    public int rows;
+
+    @Param({"false", "true"})
+    public boolean offHeap;
+
+    private CompactInventoryIndex index;
+    private Map<StockKey, Item> objects;
+    // Claves consultadas: strings ya existentes, como los de una petición ya decodificada
+    private String[] storeIds;
+    private String[] skus;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        index = new CompactInventoryIndex(rows, offHeap);
+        objects = new HashMap<>();
+        storeIds = new String[rows];
+        skus = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            Item item = item(i);
+            index.put(item);
+            objects.put(new StockKey(item.getStoreId(), item.getSku()), item);
+            storeIds[i] = item.getStoreId();
+            skus[i] = item.getSku();
+        }
+    }
+
+    @Benchmark
+    public int compactQuantity() {
+        int i = next();
+        return index.quantity(storeIds[i], skus[i]);
+    }
+
+    @Benchmark
+    public int objectQuantity() {
+        int i = next();
+        return objects.get(new StockKey(storeIds[i], skus[i])).getQuantity();
+    }
+
+    @Benchmark
+    public int compactAvailability() {
+        int[] total = new int[1];
+        index.forEachStore(skus[next()], (storeId, quantity) -> total[0] += quantity);
+        return total[0];
+    }
+
+    private int next() {
+        int i = next;
+        next = i + 7919 < rows ? i + 7919 : i + 7919 - rows;
+        return i;
+    }
+
+    // Strings nuevos por ítem, como los que deja el driver al leer cada fila
+    private static Item item(int i) {
+        Item item = new Item(new String("SKU-" + i / STORES), 100, new String("STORE-" + i % STORES));
+        item.setId((long) i + 1);
+        item.setVersion(0L);
+        return item;
+    }
+
+    /**
+     * Memoria retenida por {@code rows} ítems en cada representación: memoria usada tras GC
+     * (heap más buffers directos, para el índice fuera del heap) con la estructura viva, menos
+     * la usada después de soltarla. Uso: {@code footprint [rows]}.
+     */
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        System.out.printf("%-28s %14s %12s%n", "representación (" + rows + " ítems)", "bytes", "bytes/ítem");
+
+        Map<StockKey, Item> objects = new HashMap<>();
+        for (int i = 0; i < rows; i++) {
+            Item item = item(i);
+            objects.put(new StockKey(item.getStoreId(), item.getSku()), item);
+        }
+        long used = usedMemory();
+        // Vivo hasta después de medir (si no, el JIT lo da por muerto y el GC lo libera antes)
+        Reference.reachabilityFence(objects);
+        objects = null;
+        report("HashMap<StockKey, Item>", used - usedMemory(), rows);
+
+        for (boolean offHeap : new boolean[]{false, true}) {
+            CompactInventoryIndex index = new CompactInventoryIndex(rows, offHeap);
+            for (int i = 0; i < rows; i++) {
+                index.put(item(i));
+            }
+            used = usedMemory();
+            long arrays = index.footprintBytes();
+            Reference.reachabilityFence(index);
+            index = null;
+            report(offHeap ? "CompactInventoryIndex (off)" : "CompactInventoryIndex", used - usedMemory(), rows);
+            System.out.printf("%-28s %14d%n", "  de ello, arreglos/buffers", arrays);
+        }
+    }
+
+    private static void report(String name, long bytes, int rows) {
+        System.out.printf("%-28s %14d %12.1f%n", name, bytes, (double) bytes / rows);
+    }
+
+    private static long usedMemory() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long direct = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("direct"))
+                .mapToLong(BufferPoolMXBean::getMemoryUsed)
+                .sum();
+        return runtime.totalMemory() - runtime.freeMemory() + direct;
+    }
+}
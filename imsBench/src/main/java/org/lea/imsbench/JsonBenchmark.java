@@ -0,0 +1,69 @@
+package org.lea.imsbench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.lea.imsback.models.Item;
+import org.lea.imsback.models.dtos.ReservationRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Codificación/decodificación JSON de los cuerpos más frecuentes, con el mismo
+ * ObjectMapper base que usa WebFlux.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    private ObjectMapper objectMapper;
+    private Item item;
+    private ReservationRequest request;
+    private byte[] itemJson;
+    private byte[] requestJson;
+
+    @Setup
+    public void setUp() throws IOException {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        item = new Item("SKU-123456", 42, "STORE-001");
+        item.setId(123456L);
+        item.setVersion(7L);
+        request = new ReservationRequest("STORE-001", "SKU-123456", 2);
+        itemJson = objectMapper.writeValueAsBytes(item);
+        requestJson = objectMapper.writeValueAsBytes(request);
+    }
+
+    @Benchmark
+    public byte[] encodeItem() throws IOException {
+        return objectMapper.writeValueAsBytes(item);
+    }
+
+    @Benchmark
+    public Item decodeItem() throws IOException {
+        return objectMapper.readValue(itemJson, Item.class);
+    }
+
+    @Benchmark
+    public byte[] encodeReservationRequest() throws IOException {
+        return objectMapper.writeValueAsBytes(request);
+    }
+
+    @Benchmark
+    public ReservationRequest decodeReservationRequest() throws IOException {
+        return objectMapper.readValue(requestJson, ReservationRequest.class);
+    }
+}
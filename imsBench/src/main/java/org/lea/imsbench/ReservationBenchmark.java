@@ -0,0 +1,81 @@
+package org.lea.imsbench;
+
+import org.lea.imsback.services.InventoryService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import reactor.core.publisher.Flux;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link InventoryService#tryReserveStock} contra H2 embebido.
+ * <p>
+ * Cada operación es una ronda de {@code subscribers} reservas concurrentes de 1 unidad:
+ * con {@code HOT} todas van al mismo SKU (contención máxima sobre una fila), con
+ * {@code SPREAD} rotan entre {@value #KEYS} SKUs. El tiempo por reserva es el tiempo de
+ * la ronda dividido por {@code subscribers}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReservationBenchmark {
+
+    private static final String STORE = "BENCH-RES";
+    private static final int KEYS = 64;
+
+    public enum Keys {
+        HOT,
+        SPREAD
+    }
+
+    @Param({"1", "8", "64"})
+    public int subscribers;
+
+    @Param({"HOT", "SPREAD"})
+    public Keys keys;
+
+    private ConfigurableApplicationContext context;
+    private InventoryService inventoryService;
+    private long round;
+
+    @Setup
+    public void setUp() {
+        context = BenchContext.start();
+        inventoryService = context.getBean(InventoryService.class);
+        // Stock suficiente para no agotarse durante la medición
+        BenchContext.seed(context, STORE, KEYS, 2_000_000_000);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Long reserveRound() {
+        long base = round++ * subscribers;
+        return Flux.range(0, subscribers)
+                .flatMap(i -> inventoryService.tryReserveStock(STORE, sku(base + i), 1), subscribers)
+                .filter(Boolean::booleanValue)
+                .count()
+                .block();
+    }
+
+    private String sku(long n) {
+        return keys == Keys.HOT ? "SKU-1" : "SKU-" + (n % KEYS + 1);
+    }
+}
@@ -0,0 +1,37 @@
+package org.lea.imsload;
+
+/**
+ * Destinos de la carga. Con varios destinos las peticiones se reparten en round-robin.
+ */
+public enum Endpoint {
+    /** Camino completo: rate limiter + JWT del gateway y ruteo a imsBack. */
+    GATEWAY_RESERVE("gateway-reserve"),
+    /** Directo a imsBack, como línea base sin gateway. */
+    BACK_RESERVE("back-reserve");
+
+    private final String id;
+
+    Endpoint(String id) {
+        this.id = id;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    String url(LoadConfig config) {
+        return switch (this) {
+            case GATEWAY_RESERVE -> config.gatewayUrl() + config.gatewayReservePath();
+            case BACK_RESERVE -> config.backUrl() + "/api/inventario/reserve";
+        };
+    }
+
+    static Endpoint of(String id) {
+        for (Endpoint endpoint : values()) {
+            if (endpoint.id.equals(id.trim())) {
+                return endpoint;
+            }
+        }
+        throw new IllegalArgumentException("Endpoint desconocido: " + id);
+    }
+}
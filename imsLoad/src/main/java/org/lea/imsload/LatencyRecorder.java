@@ -0,0 +1,73 @@
+package org.lea.imsload;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Un histograma HdrHistogram por (endpoint, resultado), en microsegundos.
+ * <p>
+ * La latencia se mide desde el inicio <em>previsto</em> de la petición (no desde que
+ * efectivamente salió), así que un servicio que se traba acumula la espera de las
+ * peticiones que no pudieron salir a tiempo: corrección de omisión coordinada.
+ * Las que el generador descarta por el límite de peticiones en vuelo van a un histograma
+ * aparte por endpoint, con la demora que llevaban al descartarse.
+ */
+final class LatencyRecorder {
+
+    // Hasta 60 s con 3 dígitos significativos; lo que excede se registra como 60 s
+    private static final long HIGHEST_MICROS = TimeUnit.SECONDS.toMicros(60);
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> dropped = new ConcurrentHashMap<>();
+    private volatile boolean recording;
+
+    void start() {
+        recording = true;
+    }
+
+    void stop() {
+        recording = false;
+    }
+
+    boolean isRecording() {
+        return recording;
+    }
+
+    void record(Endpoint endpoint, String outcome, long latencyNanos) {
+        if (recording) {
+            record(histograms, endpoint.id() + "|" + outcome, latencyNanos);
+        }
+    }
+
+    /**
+     * Petición que el generador no pudo emitir (límite de peticiones en vuelo alcanzado),
+     * con la demora desde su inicio previsto hasta el descarte.
+     */
+    void drop(Endpoint endpoint, long latencyNanos) {
+        if (recording) {
+            record(dropped, endpoint.id(), latencyNanos);
+        }
+    }
+
+    Map<String, Histogram> histograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    /**
+     * Histogramas de peticiones descartadas, por endpoint.
+     */
+    Map<String, Histogram> dropped() {
+        return new TreeMap<>(dropped);
+    }
+
+    private static void record(Map<String, Histogram> target, String key, long latencyNanos) {
+        long micros = Math.max(1, Math.min(HIGHEST_MICROS, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+        target.computeIfAbsent(key, k -> new ConcurrentHistogram(HIGHEST_MICROS, 3))
+                .recordValue(micros);
+    }
+}
@@ -0,0 +1,109 @@
+package org.lea.imsload;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parámetros de una corrida ({@code --nombre=valor}). Todos tienen valor por defecto.
+ *
+ * @param mode        OPEN: tasa de llegada constante; CLOSED: {@code users} usuarios en bucle.
+ * @param rate        peticiones por segundo (modo OPEN).
+ * @param users       usuarios virtuales concurrentes (modo CLOSED).
+ * @param pace        intervalo fijo entre inicios de cada usuario (CLOSED); null = sin pausa
+ *                    y sin corrección de omisión coordinada.
+ * @param zipfS       exponente de la distribución Zipf de SKUs; 0 = uniforme.
+ */
+public record LoadConfig(Mode mode,
+                         int rate,
+                         int users,
+                         Duration pace,
+                         Duration duration,
+                         Duration warmup,
+                         List<Endpoint> endpoints,
+                         int keys,
+                         double zipfS,
+                         String storeId,
+                         int quantity,
+                         String gatewayUrl,
+                         String gatewayReservePath,
+                         String backUrl,
+                         String token,
+                         int maxInFlight,
+                         Duration timeout,
+                         boolean seed,
+                         boolean startServices,
+                         Path backJar,
+                         Path gatewayJar,
+                         String serviceArgs,
+                         Path reportDir) {
+
+    public enum Mode {
+        OPEN,
+        CLOSED
+    }
+
+    public static LoadConfig parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Argumento inválido (se espera --nombre=valor): " + arg);
+            }
+            int eq = arg.indexOf('=');
+            values.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        String pace = values.getOrDefault("pace", "");
+        LoadConfig config = new LoadConfig(
+                Mode.valueOf(values.getOrDefault("mode", "open").toUpperCase()),
+                Integer.parseInt(values.getOrDefault("rate", "500")),
+                Integer.parseInt(values.getOrDefault("users", "64")),
+                pace.isBlank() ? null : duration(pace),
+                duration(values.getOrDefault("duration", "60s")),
+                duration(values.getOrDefault("warmup", "10s")),
+                Arrays.stream(values.getOrDefault("endpoints", "gateway-reserve").split(","))
+                        .map(Endpoint::of)
+                        .toList(),
+                Integer.parseInt(values.getOrDefault("keys", "1000")),
+                Double.parseDouble(values.getOrDefault("zipf-s", "0.99")),
+                values.getOrDefault("store", "LOAD-STORE"),
+                Integer.parseInt(values.getOrDefault("quantity", "1")),
+                values.getOrDefault("gateway-url", "http://localhost:9092"),
+                // La ruta ims-back del gateway descarta los dos primeros segmentos (StripPrefix=2)
+                values.getOrDefault("gateway-reserve-path", "/api/inventario/api/inventario/reserve"),
+                values.getOrDefault("back-url", "http://localhost:9090"),
+                values.getOrDefault("token", "load-test"),
+                Integer.parseInt(values.getOrDefault("max-in-flight", "1024")),
+                duration(values.getOrDefault("timeout", "10s")),
+                Boolean.parseBoolean(values.getOrDefault("seed", "true")),
+                Boolean.parseBoolean(values.getOrDefault("start-services", "false")),
+                Path.of(values.getOrDefault("back-jar", "imsBack/target/imsBack-0.0.1-SNAPSHOT-exec.jar")),
+                Path.of(values.getOrDefault("gateway-jar", "imsGetaway/target/imsGetaway-0.0.1-SNAPSHOT.jar")),
+                values.getOrDefault("service-args", "--management.health.mongo.enabled=false --logging.level.io.r2dbc=WARN --logging.level.org.springframework.cloud.gateway=WARN"),
+                Path.of(values.getOrDefault("report-dir", "imsLoad/reports")));
+        if (config.mode() == Mode.OPEN && config.rate() <= 0 || config.mode() == Mode.CLOSED && config.users() <= 0) {
+            throw new IllegalArgumentException("rate (OPEN) o users (CLOSED) debe ser mayor que 0");
+        }
+        return config;
+    }
+
+    // Acepta "30s", "500ms", "2m" o ISO-8601 ("PT30S")
+    private static Duration duration(String value) {
+        String v = value.trim().toLowerCase();
+        if (v.startsWith("pt")) {
+            return Duration.parse(value);
+        }
+        if (v.endsWith("ms")) {
+            return Duration.ofMillis(Long.parseLong(v.substring(0, v.length() - 2)));
+        }
+        long amount = Long.parseLong(v.substring(0, v.length() - 1));
+        return switch (v.charAt(v.length() - 1)) {
+            case 's' -> Duration.ofSeconds(amount);
+            case 'm' -> Duration.ofMinutes(amount);
+            case 'h' -> Duration.ofHours(amount);
+            default -> throw new IllegalArgumentException("Duración inválida: " + value);
+        };
+    }
+}
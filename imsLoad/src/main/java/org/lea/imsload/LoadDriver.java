@@ -0,0 +1,164 @@
+package org.lea.imsload;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Genera la carga de reservas en lazo abierto o cerrado y registra cada respuesta en el
+ * {@link LatencyRecorder}. Los SKUs se eligen con {@link ZipfianKeys}.
+ */
+final class LoadDriver implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(LoadDriver.class);
+
+    private final LoadConfig config;
+    private final LatencyRecorder recorder;
+    private final ZipfianKeys keys;
+    private final WebClient webClient;
+    private final ConnectionProvider connections;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    private final List<Endpoint> endpoints;
+
+    LoadDriver(LoadConfig config, LatencyRecorder recorder) {
+        this.config = config;
+        this.recorder = recorder;
+        this.keys = new ZipfianKeys(config.keys(), config.zipfS());
+        this.endpoints = config.endpoints();
+        this.connections = ConnectionProvider.builder("ims-load")
+                .maxConnections(config.maxInFlight())
+                .pendingAcquireMaxCount(-1)
+                .pendingAcquireTimeout(config.timeout())
+                .build();
+        this.webClient = WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(HttpClient.create(connections)))
+                .defaultHeader(HttpHeaders.AUTHORIZATION, "Bearer " + config.token())
+                .build();
+    }
+
+    /**
+     * Da de alta los SKUs de la corrida en imsBack con stock de sobra (un 409 significa que ya existían).
+     */
+    void seed() {
+        log.info("Creando {} SKUs en la tienda {}", config.keys(), config.storeId());
+        Flux.range(1, config.keys())
+                .flatMap(rank -> webClient.post()
+                        .uri(config.backUrl() + "/api/inventario/create")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(Map.of("sku", ZipfianKeys.sku(rank), "storeId", config.storeId(),
+                                "quantity", Integer.MAX_VALUE / 2))
+                        .exchangeToMono(response -> response.releaseBody().thenReturn(response.statusCode().value())), 32)
+                .filter(status -> status >= 500)
+                .count()
+                .doOnNext(failed -> {
+                    if (failed > 0) {
+                        log.warn("{} SKUs no se pudieron crear", failed);
+                    }
+                })
+                .block();
+    }
+
+    /**
+     * Lazo abierto: una petición cada 1/rate segundos, llegue o no la respuesta de la anterior.
+     */
+    void runOpen(Duration length) {
+        long intervalNanos = 1_000_000_000L / config.rate();
+        long start = System.nanoTime();
+        long end = start + length.toNanos();
+        for (long i = 0; ; i++) {
+            long intended = start + i * intervalNanos;
+            if (intended >= end) {
+                break;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Endpoint endpoint = nextEndpoint();
+            if (inFlight.get() >= config.maxInFlight()) {
+                // Se registra igual: omitirla escondería justamente la saturación
+                recorder.drop(endpoint, System.nanoTime() - intended);
+                continue;
+            }
+            send(endpoint, intended).subscribe();
+        }
+    }
+
+    /**
+     * Lazo cerrado: cada usuario virtual espera su respuesta antes de la siguiente petición.
+     * Con {@code pace} los inicios previstos son fijos y la latencia se corrige por omisión coordinada.
+     */
+    void runClosed(Duration length) {
+        long start = System.nanoTime();
+        long end = start + length.toNanos();
+        Flux.range(0, config.users())
+                .flatMap(user -> virtualUser(start, end), config.users())
+                .blockLast();
+    }
+
+    /**
+     * Espera a que terminen las peticiones en vuelo (como máximo el timeout).
+     */
+    void drain() {
+        long deadline = System.nanoTime() + config.timeout().toNanos();
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(Duration.ofMillis(10).toNanos());
+        }
+    }
+
+    @Override
+    public void close() {
+        connections.dispose();
+    }
+
+    private Mono<Void> virtualUser(long start, long end) {
+        long paceNanos = config.pace() != null ? config.pace().toNanos() : 0;
+        AtomicLong iteration = new AtomicLong();
+        return Mono.defer(() -> {
+                    long intended = paceNanos > 0 ? start + iteration.getAndIncrement() * paceNanos : System.nanoTime();
+                    long wait = intended - System.nanoTime();
+                    Mono<Void> call = send(nextEndpoint(), intended);
+                    return wait > 0 ? Mono.delay(Duration.ofNanos(wait)).then(call) : call;
+                })
+                .repeat(() -> System.nanoTime() < end)
+                .then();
+    }
+
+    private Mono<Void> send(Endpoint endpoint, long intendedNanos) {
+        Map<String, Object> body = Map.of("storeId", config.storeId(), "sku", ZipfianKeys.sku(keys.next()),
+                "quantity", config.quantity());
+        return Mono.defer(() -> {
+                    inFlight.incrementAndGet();
+                    return webClient.post()
+                            .uri(endpoint.url(config))
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .bodyValue(body)
+                            .exchangeToMono(response -> response.releaseBody()
+                                    .thenReturn(String.valueOf(response.statusCode().value())));
+                })
+                .timeout(config.timeout())
+                .onErrorResume(error -> Mono.just(error instanceof TimeoutException ? "timeout" : "error"))
+                .doOnNext(outcome -> recorder.record(endpoint, outcome, System.nanoTime() - intendedNanos))
+                .doFinally(signal -> inFlight.decrementAndGet())
+                .then();
+    }
+
+    private Endpoint nextEndpoint() {
+        return endpoints.get((int) (sequence.getAndIncrement() % endpoints.size()));
+    }
+}
@@ -0,0 +1,75 @@
+package org.lea.imsload;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Generador de carga extremo a extremo para la reserva de stock.
+ * <p>
+ * Ejemplos (desde la raíz del proyecto):
+ * <pre>
+ * mvn -pl imsLoad compile exec:exec -Dload.args="--start-services=true --mode=open --rate=2000 --duration=60s"
+ * mvn -pl imsLoad compile exec:exec -Dload.args="--mode=closed --users=128 --zipf-s=1.2 --endpoints=gateway-reserve,back-reserve"
+ * </pre>
+ * Ver {@link LoadConfig} para todos los parámetros.
+ */
+public final class LoadGenerator {
+    private static final Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadConfig config = LoadConfig.parse(args);
+        try (ServiceLauncher services = new ServiceLauncher()) {
+            if (config.startServices()) {
+                Path logs = config.reportDir().resolve("logs");
+                services.start("imsBack", config.backJar(), config.backUrl(),
+                        "--spring.ai.openai.api-key=load-test " + config.serviceArgs(), logs);
+                if (config.endpoints().contains(Endpoint.GATEWAY_RESERVE)) {
+                    services.start("imsGetaway", config.gatewayJar(), config.gatewayUrl(), config.serviceArgs(), logs);
+                }
+            }
+            run(config);
+        }
+    }
+
+    private static void run(LoadConfig config) throws Exception {
+        LatencyRecorder recorder = new LatencyRecorder();
+        try (LoadDriver driver = new LoadDriver(config, recorder)) {
+            if (config.seed()) {
+                driver.seed();
+            }
+            Instant startedAt = Instant.now();
+            log.info("Calentamiento {} - modo {}", config.warmup(), config.mode());
+            drive(driver, config, config.warmup());
+            log.info("Midiendo {} - endpoints {}, {} SKUs, zipf s={}",
+                    config.duration(), config.endpoints(), config.keys(), config.zipfS());
+            recorder.start();
+            long measureStart = System.nanoTime();
+            drive(driver, config, config.duration());
+            driver.drain();
+            recorder.stop();
+            double seconds = (System.nanoTime() - measureStart) / 1e9;
+
+            RunReport report = RunReport.of(startedAt, config, seconds, recorder);
+            System.out.print(report.table());
+            log.info("Reporte en {}", report.write());
+        }
+    }
+
+    private static void drive(LoadDriver driver, LoadConfig config, Duration length) {
+        if (length.isZero()) {
+            return;
+        }
+        if (config.mode() == LoadConfig.Mode.OPEN) {
+            driver.runOpen(length);
+        } else {
+            driver.runClosed(length);
+        }
+    }
+}
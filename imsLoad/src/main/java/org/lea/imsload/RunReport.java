@@ -0,0 +1,100 @@
+package org.lea.imsload;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Reporte de una corrida: la configuración completa y, por (endpoint, resultado), conteo,
+ * throughput y percentiles en microsegundos. Cada serie incluye el histograma comprimido
+ * en base64 para poder comparar o combinar corridas después sin perder precisión.
+ * Las peticiones descartadas por max-in-flight se informan aparte, una serie por endpoint
+ * con resultado {@code dropped}.
+ */
+record RunReport(Instant startedAt, LoadConfig config, double measuredSeconds, List<Series> series,
+                 List<Series> dropped) {
+
+    private static final DateTimeFormatter FILE_STAMP =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneId.systemDefault());
+
+    record Series(String endpoint, String outcome, long count, double throughput,
+                  double meanMicros, long p50Micros, long p90Micros, long p99Micros, long p999Micros,
+                  long maxMicros, String histogram) {
+    }
+
+    static RunReport of(Instant startedAt, LoadConfig config, double measuredSeconds,
+                        LatencyRecorder recorder) {
+        List<Series> series = new ArrayList<>();
+        recorder.histograms().forEach((key, histogram) -> {
+            String[] parts = key.split("\\|", 2);
+            series.add(series(parts[0], parts[1], histogram, measuredSeconds));
+        });
+        List<Series> dropped = new ArrayList<>();
+        recorder.dropped().forEach((endpoint, histogram) ->
+                dropped.add(series(endpoint, "dropped", histogram, measuredSeconds)));
+        return new RunReport(startedAt, config, measuredSeconds, series, dropped);
+    }
+
+    private static Series series(String endpoint, String outcome, Histogram histogram, double measuredSeconds) {
+        return new Series(endpoint, outcome, histogram.getTotalCount(),
+                histogram.getTotalCount() / measuredSeconds,
+                histogram.getMean(),
+                histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9),
+                histogram.getMaxValue(),
+                encode(histogram));
+    }
+
+    /**
+     * Escribe {@code <report-dir>/<fecha>-<modo>.json} y devuelve la ruta.
+     */
+    Path write() throws IOException {
+        Files.createDirectories(config.reportDir());
+        Path file = config.reportDir().resolve(FILE_STAMP.format(startedAt) + "-" + config.mode().name().toLowerCase() + ".json");
+        new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .disable(SerializationFeature.WRITE_DURATIONS_AS_TIMESTAMPS)
+                .enable(SerializationFeature.INDENT_OUTPUT)
+                .writeValue(file.toFile(), this);
+        return file;
+    }
+
+    String table() {
+        StringBuilder out = new StringBuilder(String.format("%-16s %-8s %10s %10s %10s %10s %10s %10s %10s%n",
+                "endpoint", "outcome", "count", "req/s", "p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "max(us)"));
+        series.forEach(s -> appendRow(out, s));
+        if (!dropped.isEmpty()) {
+            out.append("no emitidas (max-in-flight), demora hasta el descarte:\n");
+            dropped.forEach(s -> appendRow(out, s));
+        }
+        return out.toString();
+    }
+
+    private static void appendRow(StringBuilder out, Series s) {
+        out.append(String.format("%-16s %-8s %10d %10.1f %10d %10d %10d %10d %10d%n",
+                s.endpoint(), s.outcome(), s.count(), s.throughput(),
+                s.p50Micros(), s.p90Micros(), s.p99Micros(), s.p999Micros(), s.maxMicros()));
+    }
+
+    private static String encode(Histogram histogram) {
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+        return Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), length));
+    }
+}
@@ -0,0 +1,84 @@
+package org.lea.imsload;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Levanta imsBack e imsGetaway como procesos hijos a partir de sus jars y espera a que
+ * {@code /actuator/health} responda. La salida de cada proceso va a un .log junto al reporte.
+ */
+final class ServiceLauncher implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ServiceLauncher.class);
+
+    private static final Duration STARTUP_TIMEOUT = Duration.ofMinutes(2);
+
+    private final List<Process> processes = new ArrayList<>();
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+
+    void start(String name, Path jar, String baseUrl, String extraArgs, Path logDir) throws IOException, InterruptedException {
+        if (!Files.exists(jar)) {
+            throw new IllegalStateException("No existe " + jar + ": compilar con 'mvn -pl " + name + " package' antes de la carga");
+        }
+        Files.createDirectories(logDir);
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(), "-jar", jar.toString()));
+        if (!extraArgs.isBlank()) {
+            command.addAll(Arrays.asList(extraArgs.trim().split("\\s+")));
+        }
+        Path logFile = logDir.resolve(name + ".log");
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(logFile.toFile())
+                .start();
+        processes.add(process);
+        log.info("Iniciando {} (log en {})", name, logFile);
+        awaitHealthy(name, baseUrl, process);
+    }
+
+    private void awaitHealthy(String name, String baseUrl, Process process) throws InterruptedException {
+        HttpRequest health = HttpRequest.newBuilder(URI.create(baseUrl + "/actuator/health"))
+                .timeout(Duration.ofSeconds(2))
+                .build();
+        long deadline = System.nanoTime() + STARTUP_TIMEOUT.toNanos();
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException(name + " terminó durante el arranque (código " + process.exitValue() + ")");
+            }
+            try {
+                if (httpClient.send(health, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    log.info("{} listo en {}", name, baseUrl);
+                    return;
+                }
+            } catch (IOException e) {
+                // Todavía no escucha
+            }
+            Thread.sleep(500);
+        }
+        throw new IllegalStateException(name + " no respondió /actuator/health en " + STARTUP_TIMEOUT);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        // En orden inverso: primero el gateway, después el back
+        for (int i = processes.size() - 1; i >= 0; i--) {
+            Process process = processes.get(i);
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.lea.imsload;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Elige SKUs con distribución Zipf: el rango k tiene peso 1/k^s, así que unos pocos SKUs
+ * concentran la mayor parte del tráfico (flash sale). La CDF se precalcula una vez y cada
+ * muestra es una búsqueda binaria.
+ */
+final class ZipfianKeys {
+
+    private final double[] cdf;
+
+    ZipfianKeys(int keys, double s) {
+        this.cdf = new double[keys];
+        double sum = 0;
+        for (int k = 1; k <= keys; k++) {
+            sum += 1.0 / Math.pow(k, s);
+            cdf[k - 1] = sum;
+        }
+        for (int i = 0; i < keys; i++) {
+            cdf[i] /= sum;
+        }
+    }
+
+    /**
+     * @return rango del SKU, de 1 (el más caliente) a {@code keys}.
+     */
+    int next() {
+        int index = Arrays.binarySearch(cdf, ThreadLocalRandom.current().nextDouble());
+        // El último valor de la CDF puede quedar apenas por debajo de 1.0 por redondeo
+        return Math.min(index >= 0 ? index : -index - 1, cdf.length - 1) + 1;
+    }
+
+    static String sku(int rank) {
+        return "LOAD-SKU-" + rank;
+    }
+}